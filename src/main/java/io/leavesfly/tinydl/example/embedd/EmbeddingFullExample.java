@@ -65,7 +65,9 @@ public class EmbeddingFullExample {
             System.out.println("\n4. 前向传播过程:");
             
             // 1. Embedding层：将词汇索引转换为词向量
+            // 输出形状为 (1, 5, embedSize)，展平为 (5, embedSize) 后交给线性层
             Variable embedded = embedding.layerForward(new Variable(sentence));
+            embedded = embedded.reshape(new Shape(sentenceData[0].length, embedSize));
             System.out.println("   - Embedding输出形状: " + embedded.getValue().getShape());
             
             // 2. 第一个全连接层
@@ -9,11 +9,12 @@ import io.leavesfly.tinydl.mlearning.loss.SoftmaxCrossEntropy;
 import io.leavesfly.tinydl.mlearning.optimize.Adam;
 import io.leavesfly.tinydl.mlearning.optimize.Optimizer;
 import io.leavesfly.tinydl.modality.nlp.GPT2Model;
+import io.leavesfly.tinydl.modality.nlp.GenerationRequest;
 import io.leavesfly.tinydl.modality.nlp.SimpleTokenizer;
-import io.leavesfly.tinydl.ndarr.NdArray;
-import io.leavesfly.tinydl.ndarr.Shape;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -264,49 +265,18 @@ public class GPT2Example {
         // 编码提示
         int[] promptTokens = tokenizer.encode(prompt, false);  // 不添加特殊token
         
-        List<Integer> generatedTokens = new ArrayList<>();
-        for (int token : promptTokens) {
-            generatedTokens.add(token);
-        }
+        int start = Math.max(0, promptTokens.length - gpt2Model.getMaxSeqLength());
+        int[] context = Arrays.copyOfRange(promptTokens, start, promptTokens.length);
         
-        // 生成新token
-        for (int i = 0; i < maxNewTokens; i++) {
-            try {
-                // 准备输入序列
-                int[] inputTokens = new int[Math.min(generatedTokens.size(), gpt2Model.getMaxSeqLength())];
-                int startIdx = Math.max(0, generatedTokens.size() - gpt2Model.getMaxSeqLength());
-                
-                for (int j = 0; j < inputTokens.length; j++) {
-                    inputTokens[j] = generatedTokens.get(startIdx + j);
-                }
-                
-                // 填充到最大长度
-                int[] paddedTokens = tokenizer.pad(inputTokens, gpt2Model.getMaxSeqLength(), "pre");
-                
-                // 创建输入张量
-                NdArray input = new NdArray(new Shape(1, gpt2Model.getMaxSeqLength()));
-                for (int j = 0; j < gpt2Model.getMaxSeqLength(); j++) {
-                    input.set(paddedTokens[j], 0, j);
-                }
-                
-                // 预测下一个token
-                int nextToken = gpt2Model.predictNextToken(input);
-                
-                // 检查是否是结束token
-                if (nextToken == SimpleTokenizer.EOS_ID || nextToken == SimpleTokenizer.PAD_ID) {
-                    break;
-                }
-                
-                generatedTokens.add(nextToken);
-                
-            } catch (Exception e) {
-                System.err.println("Error generating token " + i + ": " + e.getMessage());
-                break;
-            }
-        }
+        // 贪心解码，遇到结束token或填充token时停止，提示只输入一次，之后每一步只输入新生成的token
+        GenerationRequest request = new GenerationRequest(context, maxNewTokens);
+        request.setStopTokens(SimpleTokenizer.EOS_ID, SimpleTokenizer.PAD_ID);
+        int[] newTokens = gpt2Model.generate(Collections.singletonList(request), null).get(0);
         
         // 解码生成的文本
-        int[] allTokens = generatedTokens.stream().mapToInt(Integer::intValue).toArray();
+        int[] allTokens = new int[context.length + newTokens.length];
+        System.arraycopy(context, 0, allTokens, 0, context.length);
+        System.arraycopy(newTokens, 0, allTokens, context.length, newTokens.length);
         return tokenizer.decode(allTokens, true);
     }
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import io.leavesfly.tinydl.mlearning.Model;
 import io.leavesfly.tinydl.mlearning.Trainer;
 import io.leavesfly.tinydl.mlearning.loss.SoftmaxCrossEntropy;
 import io.leavesfly.tinydl.mlearning.optimize.Adam;
+import io.leavesfly.tinydl.modality.nlp.DecodingSession;
 import io.leavesfly.tinydl.modality.nlp.MoEGPTModel;
 import io.leavesfly.tinydl.modality.nlp.SimpleTokenizer;
 import io.leavesfly.tinydl.ndarr.NdArray;
@@ -104,7 +105,7 @@ public class MoEGPTExample {
             
             // 6. 进行文本生成测试
             System.out.println("\n=== 文本生成测试 ===");
-            testTextGeneration(model, tokenizer);
+            testTextGeneration(moeModel, tokenizer);
             
             // 7. 性能对比分析
             System.out.println("\n=== 性能分析 ===");
@@ -335,7 +336,7 @@ public class MoEGPTExample {
     /**
      * 测试文本生成
      */
-    private static void testTextGeneration(Model model, SimpleTokenizer tokenizer) {
+    private static void testTextGeneration(MoEGPTModel moeModel, SimpleTokenizer tokenizer) {
         System.out.println("测试文本生成...");
         
         // 准备一些测试输入
@@ -351,7 +352,7 @@ public class MoEGPTExample {
             try {
                 // 简化的生成过程
                 int[] promptTokens = tokenizeText(prompt, tokenizer);
-                String generated = generateText(model, promptTokens, 5); // 生成5个token
+                String generated = generateText(moeModel, promptTokens, 5); // 生成5个token
                 System.out.printf("生成文本: %s\\n", generated);
                 
             } catch (Exception e) {
@@ -361,35 +362,29 @@ public class MoEGPTExample {
     }
     
     /**
-     * 简化的文本生成函数
+     * 简化的文本生成函数，提示只输入一次，之后每一步只输入新生成的token
      */
-    private static String generateText(Model model, int[] promptTokens, int maxGenTokens) {
+    private static String generateText(MoEGPTModel moeModel, int[] promptTokens, int maxGenTokens) {
         StringBuilder result = new StringBuilder();
+        DecodingSession session = moeModel.newDecodingSession(1, false);
         
-        // 复制prompt tokens
-        int[] currentTokens = Arrays.copyOf(promptTokens, promptTokens.length + maxGenTokens);
-        int currentLength = promptTokens.length;
+        // 准备输入
+        NdArray input = NdArray.zeros(new Shape(1, promptTokens.length));
+        for (int j = 0; j < promptTokens.length; j++) {
+            input.set((float) promptTokens[j], 0, j);
+        }
         
         for (int i = 0; i < maxGenTokens; i++) {
             try {
-                // 准备输入
-                int[] input = Arrays.copyOfRange(currentTokens, 0, currentLength);
-                NdArray inputArray = NdArray.zeros(new Shape(1, input.length));
-                for (int j = 0; j < input.length; j++) {
-                    inputArray.set((float) input[j], 0, j);
-                }
-                
                 // 生成下一个token
-                Variable logits = model.forward(new Variable(inputArray));
-                int nextToken = predictNextToken(logits.getValue());
-                
-                // 添加到序列中
-                currentTokens[currentLength] = nextToken;
-                currentLength++;
+                int nextToken = moeModel.predictNextToken(session, input);
                 
                 // 简化：直接添加token ID到结果（实际应用中需要解码）
                 result.append("token_").append(nextToken).append(" ");
                 
+                input = NdArray.zeros(new Shape(1, 1));
+                input.set((float) nextToken, 0, 0);
+                
             } catch (Exception e) {
                 System.err.println("生成第" + i + "个token时出错: " + e.getMessage());
                 break;
@@ -399,29 +394,6 @@ public class MoEGPTExample {
         return result.toString().trim();
     }
     
-    /**
-     * 预测下一个token
-     */
-    private static int predictNextToken(NdArray logits) {
-        int batchSize = logits.shape.dimension[0];
-        int seqLen = logits.shape.dimension[1];
-        int vocabSize = logits.shape.dimension[2];
-        
-        // 获取最后一个位置的logits
-        float maxLogit = Float.NEGATIVE_INFINITY;
-        int bestToken = 0;
-        
-        for (int v = 0; v < vocabSize; v++) {
-            float logit = logits.get(0, seqLen - 1, v);
-            if (logit > maxLogit) {
-                maxLogit = logit;
-                bestToken = v;
-            }
-        }
-        
-        return bestToken;
-    }
-    
     /**
      * 性能分析
      */
@@ -89,7 +89,7 @@ public class RnnCosExam {
                 }
 
                 model.clearGrads();
-                loss.backward();
+                loss.backwardIterative();
                 optimizer.update();
 
                 lossSum += loss.getValue().getNumber().floatValue() / batch.getSize();
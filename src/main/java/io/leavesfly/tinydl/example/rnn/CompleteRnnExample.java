@@ -172,7 +172,7 @@ public class CompleteRnnExample {
                 }
 
                 model.clearGrads();
-                loss.backward();
+                loss.backwardIterative();
                 optimizer.update();
 
                 lossSum += loss.getValue().getNumber().floatValue() / batch.getSize();
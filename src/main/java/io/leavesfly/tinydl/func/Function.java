@@ -1,6 +1,7 @@
 package io.leavesfly.tinydl.func;
 
 import io.leavesfly.tinydl.utils.Config;
+import io.leavesfly.tinydl.utils.Profiler;
 import io.leavesfly.tinydl.ndarr.NdArray;
 
 import java.util.Arrays;
@@ -28,6 +29,12 @@ public abstract class Function {
      */
     protected Variable output;
 
+    /**
+     * 函数所属的层名称
+     * 仅在开启Profiler时于前向传播中记录，用于按层聚合性能统计
+     */
+    private String scope;
+
     /**
      * 函数的执行函数，执行函数的前向传播计算并构建计算图
      * 
@@ -56,7 +63,7 @@ public abstract class Function {
             .toArray(NdArray[]::new);
 
         // 执行前向传播
-        NdArray ndArrayOutput = forward(ndArrayInputs);
+        NdArray ndArrayOutput = Profiler.forward(this, ndArrayInputs);
         
         // 创建输出变量
         Variable _output = new Variable(ndArrayOutput);
@@ -129,6 +136,24 @@ public abstract class Function {
         this.output = output;
     }
 
+    /**
+     * 获取函数所属的层名称
+     * 
+     * @return 层名称，未开启Profiler或不在任何层中时为null
+     */
+    public String getScope() {
+        return scope;
+    }
+
+    /**
+     * 设置函数所属的层名称
+     * 
+     * @param scope 层名称
+     */
+    public void setScope(String scope) {
+        this.scope = scope;
+    }
+
     /**
      * 获取函数所需的输入参数个数
      * 
@@ -1,6 +1,7 @@
 package io.leavesfly.tinydl.func;
 
 import io.leavesfly.tinydl.func.base.*;
+import io.leavesfly.tinydl.func.graph.GraphScheduler;
 import io.leavesfly.tinydl.func.loss.MeanSE;
 import io.leavesfly.tinydl.func.loss.SoftmaxCE;
 
@@ -8,9 +9,13 @@ import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.func.math.*;
 import io.leavesfly.tinydl.func.matrix.*;
+import io.leavesfly.tinydl.utils.Config;
+import io.leavesfly.tinydl.utils.Profiler;
 
 import java.io.Serializable;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Stack;
 
@@ -110,42 +115,15 @@ public class Variable implements Serializable {
     }
 
     /**
-     * 变量的反向传播（递归实现）
-     * 
+     * 变量的反向传播
+     *
      * 根据正向传播时构建的计算图，从当前变量开始反向传播计算每个变量的梯度。
-     * 如果变量不需要计算梯度，则直接返回。
-     * 如果梯度未初始化，则初始化为全1的数组。
-     * 然后递归地调用生成该变量的函数的backward方法计算输入变量的梯度。
+     * 如果变量不需要计算梯度，则直接返回；如果梯度未初始化，则初始化为全1的数组。
+     * 由backwardIterative完成，被多处使用的中间变量（例如展开多步的RNN隐藏状态）
+     * 在所有消费者的梯度累加完毕后只向前传播一次。
      */
     public void backward() {
-        if (!requireGrad) {
-            this.grad = null;
-            return;
-        }
-        //初始化为1
-        if (Objects.isNull(grad)) {
-            setGrad(NdArray.ones(this.getValue().getShape()));
-        }
-        // 当前采用的是递归调用，为了效率可用堆栈循环
-        Function _creator = creator;
-        if (!Objects.isNull(_creator)) {
-            Variable[] _inputs = _creator.getInputs();
-            List<NdArray> grads = _creator.backward(grad);
-            if (_inputs.length != grads.size()) {
-                throw new RuntimeException("Variable backward grads size error!");
-            }
-            int index = 0;
-            for (Variable input : _inputs) {
-                // 累加梯度而不是直接设置，支持梯度复用
-                if (input.getGrad() != null) {
-                    input.setGrad(input.getGrad().add(grads.get(index)));
-                } else {
-                    input.setGrad(grads.get(index));
-                }
-                input.backward();
-                index++;
-            }
-        }
+        backwardIterative();
     }
 
     /**
@@ -153,6 +131,8 @@ public class Variable implements Serializable {
      * 
      * 使用栈来实现迭代的反向传播，避免递归调用可能导致的栈溢出问题。
      * 特别适用于深层网络或RNN等场景。
+     * 先统计每个函数的消费者数量，函数的输出梯度被所有消费者累加完毕后才继续向前传播，
+     * 因此被多处使用的中间变量（例如RNN的隐藏状态）只传播一次，梯度不会重复累加。
      */
     public void backwardIterative() {
         if (!requireGrad) {
@@ -164,21 +144,36 @@ public class Variable implements Serializable {
         if (Objects.isNull(grad)) {
             setGrad(NdArray.ones(this.getValue().getShape()));
         }
-        
-        // 使用栈来模拟递归过程
-        Stack<Variable> stack = new Stack<>();
-        stack.push(this);
-        
+        if (Objects.isNull(creator)) {
+            return;
+        }
+
+        // 1，统计每个函数需要等待的消费者数量
+        Map<Function, Integer> pending = new IdentityHashMap<>();
+        Stack<Function> stack = new Stack<>();
+        pending.put(creator, 0);
+        stack.push(creator);
         while (!stack.isEmpty()) {
-            Variable currentVar = stack.pop();
-            
-            Function currentCreator = currentVar.getCreator();
-            if (Objects.isNull(currentCreator)) {
-                continue;
+            for (Variable input : stack.pop().getInputs()) {
+                Function inputCreator = input.propagateCreator();
+                if (Objects.isNull(inputCreator)) {
+                    continue;
+                }
+                Integer count = pending.get(inputCreator);
+                if (count == null) {
+                    count = 0;
+                    stack.push(inputCreator);
+                }
+                pending.put(inputCreator, count + 1);
             }
-            
+        }
+
+        // 2，按拓扑序反向传播，函数的输出梯度累加完毕后才入栈
+        stack.push(creator);
+        while (!stack.isEmpty()) {
+            Function currentCreator = stack.pop();
             Variable[] inputs = currentCreator.getInputs();
-            List<NdArray> grads = currentCreator.backward(currentVar.getGrad());
+            List<NdArray> grads = Profiler.backward(currentCreator, currentCreator.getOutput().getGrad());
             
             if (inputs.length != grads.size()) {
                 throw new RuntimeException("Variable backward grads size error!");
@@ -195,27 +190,65 @@ public class Variable implements Serializable {
                     input.setGrad(grad);
                 }
                 
-                // 如果输入变量有创建者函数，将其加入栈中继续处理
-                if (input.getCreator() != null) {
-                    stack.push(input);
+                // 输入变量的所有消费者都已完成时，继续处理其创建者函数
+                Function inputCreator = input.propagateCreator();
+                if (inputCreator != null) {
+                    int count = pending.get(inputCreator) - 1;
+                    pending.put(inputCreator, count);
+                    if (count == 0) {
+                        stack.push(inputCreator);
+                    }
                 }
             }
         }
     }
 
+    /**
+     * 反向传播需要经过当前变量继续传播时返回其创建者函数，否则返回null
+     */
+    private Function propagateCreator() {
+        if (!requireGrad || Objects.isNull(creator) || Objects.isNull(creator.getInputs())) {
+            return null;
+        }
+        return creator;
+    }
+
+    /**
+     * 变量的反向传播（并行实现）
+     *
+     * 基于依赖计数在共享的ForkJoin线程池上调度反向传播，
+     * 每个函数在其输出梯度累加完成后执行且只执行一次，互不依赖的兄弟分支并行执行。
+     */
+    public void backwardParallel() {
+        GraphScheduler.backward(this);
+    }
+
     /**
      * 切断计算图
-     * 
+     *
      * 用于RNN中切断计算图，防止梯度回传过长导致的梯度消失或爆炸问题。
-     * 该方法会清除当前变量的creator引用，并递归地对输入变量调用unChainBackward。
+     * 使用栈迭代地清除当前变量及其上游变量的creator引用，并释放函数对输入输出的引用，
+     * 长序列展开的计算图也不会导致栈溢出。
      */
     public void unChainBackward() {
-        Function creatorFunc = creator;
-        if (!Objects.isNull(creatorFunc)) {
+        Stack<Variable> stack = new Stack<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Variable variable = stack.pop();
+            Function creatorFunc = variable.creator;
+            if (Objects.isNull(creatorFunc)) {
+                continue;
+            }
+            variable.unChain();
             Variable[] xs = creatorFunc.getInputs();
-            unChain();
+            if (Objects.isNull(xs)) {
+                continue;
+            }
+            creatorFunc.unChain();
             for (Variable x : xs) {
-                x.unChainBackward();
+                if (x != null && x.creator != null) {
+                    stack.push(x);
+                }
             }
         }
     }
@@ -609,6 +642,24 @@ public class Variable implements Serializable {
         return function.call(this, w, b);
     }
 
+    /**
+     * 融合了激活函数的线性变换
+     * 
+     * 对变量执行 y = act(xW + b)，偏置相加与激活函数在一次遍历中完成
+     * 
+     * @param w 权重变量
+     * @param b 偏置变量，可为null
+     * @param activeFunc 激活函数类型（ReLU、Sigmoid、Tanh）
+     * @return 线性变换并激活后的新变量
+     */
+    public Variable linear(Variable w, Variable b, Config.ActiveFunc activeFunc) {
+        Function function = new FusedLinear(activeFunc);
+        if (Objects.isNull(b)) {
+            return function.call(this, w);
+        }
+        return function.call(this, w, b);
+    }
+
     /**
      * 索引操作
      * 
@@ -651,4 +702,16 @@ public class Variable implements Serializable {
     public Variable softmaxCrossEntropy(Variable other) {
         return new SoftmaxCE().call(this, other);
     }
+
+    /**
+     * 带忽略标签和样本掩码的Softmax交叉熵损失
+     * 
+     * @param other 目标变量（类别索引）
+     * @param ignoreIndex 需要忽略的标签值，SoftmaxCE.NO_IGNORE表示不忽略
+     * @param mask 每个样本的权重，为null时所有样本权重为1
+     * @return Softmax交叉熵损失值
+     */
+    public Variable softmaxCrossEntropy(Variable other, int ignoreIndex, NdArray mask) {
+        return new SoftmaxCE(ignoreIndex, mask).call(this, other);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,182 @@
+package io.leavesfly.tinydl.func.graph;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.func.Variable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 捕获的计算图
+ *
+ * 从某个输出变量出发，沿着creator反向遍历动态构建的计算图，
+ * 得到按前向执行顺序（拓扑序）排列的函数列表，以及变量与消费者函数之间的关系。
+ * 遍历过程使用显式栈实现，避免深层网络或长序列RNN导致的栈溢出。
+ *
+ * 注意：只有在训练模式（Config.train = true）下，Function才会记录输入输出，
+ * 因此需要在训练模式下执行一次前向传播后再进行捕获。
+ */
+public class ComputeGraph {
+
+    /**
+     * 计算图的输出变量
+     */
+    private final Variable output;
+
+    /**
+     * 按前向执行顺序排列的函数列表
+     */
+    private final List<Function> functions;
+
+    /**
+     * 函数在拓扑序中的位置
+     */
+    private final Map<Function, Integer> order;
+
+    /**
+     * 变量到消费该变量的函数列表的映射
+     */
+    private final Map<Variable, List<Function>> consumers;
+
+    /**
+     * 计算图的叶子变量（没有creator的变量，如输入数据和参数）
+     */
+    private final List<Variable> leaves;
+
+    private ComputeGraph(Variable output) {
+        this.output = output;
+        this.functions = new ArrayList<>();
+        this.order = new IdentityHashMap<>();
+        this.consumers = new IdentityHashMap<>();
+        this.leaves = new ArrayList<>();
+    }
+
+    /**
+     * 从输出变量捕获计算图
+     *
+     * @param output 计算图的输出变量（通常是损失值）
+     * @return 捕获的计算图
+     */
+    public static ComputeGraph trace(Variable output) {
+        if (Objects.isNull(output)) {
+            throw new IllegalArgumentException("ComputeGraph trace output is null!");
+        }
+        ComputeGraph graph = new ComputeGraph(output);
+        graph.build();
+        return graph;
+    }
+
+    /**
+     * 使用后序深度优先遍历生成拓扑序
+     */
+    private void build() {
+        Map<Variable, Boolean> visitedVars = new IdentityHashMap<>();
+        Deque<Variable> stack = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        stack.push(output);
+        expanded.push(false);
+
+        while (!stack.isEmpty()) {
+            Variable var = stack.pop();
+            boolean isExpanded = expanded.pop();
+            Function creator = var.getCreator();
+
+            if (isExpanded) {
+                // 所有输入都已处理，当前creator可以进入拓扑序
+                if (!order.containsKey(creator)) {
+                    order.put(creator, functions.size());
+                    functions.add(creator);
+                }
+                continue;
+            }
+            if (visitedVars.containsKey(var)) {
+                continue;
+            }
+            visitedVars.put(var, true);
+
+            if (Objects.isNull(creator) || Objects.isNull(creator.getInputs())) {
+                leaves.add(var);
+                continue;
+            }
+
+            stack.push(var);
+            expanded.push(true);
+            Variable[] inputs = creator.getInputs();
+            for (int i = inputs.length - 1; i >= 0; i--) {
+                Variable input = inputs[i];
+                if (Objects.isNull(input)) {
+                    continue;
+                }
+                consumers.computeIfAbsent(input, k -> new ArrayList<>()).add(creator);
+                if (!visitedVars.containsKey(input)) {
+                    stack.push(input);
+                    expanded.push(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取计算图的输出变量
+     *
+     * @return 输出变量
+     */
+    public Variable getOutput() {
+        return output;
+    }
+
+    /**
+     * 获取按前向执行顺序排列的函数列表
+     *
+     * @return 函数列表（只读）
+     */
+    public List<Function> getFunctions() {
+        return Collections.unmodifiableList(functions);
+    }
+
+    /**
+     * 获取函数在拓扑序中的位置
+     *
+     * @param function 函数
+     * @return 位置索引，不在图中时返回-1
+     */
+    public int indexOf(Function function) {
+        Integer index = order.get(function);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * 获取消费指定变量的函数列表
+     *
+     * @param variable 变量
+     * @return 消费者函数列表，没有消费者时返回空列表
+     */
+    public List<Function> getConsumers(Variable variable) {
+        List<Function> list = consumers.get(variable);
+        return list == null ? Collections.<Function>emptyList() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * 获取计算图的叶子变量
+     *
+     * @return 叶子变量列表（只读）
+     */
+    public List<Variable> getLeaves() {
+        return Collections.unmodifiableList(leaves);
+    }
+
+    /**
+     * 获取计算图中函数节点的数量
+     *
+     * @return 函数数量
+     */
+    public int size() {
+        return functions.size();
+    }
+}
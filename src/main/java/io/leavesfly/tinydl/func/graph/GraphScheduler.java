@@ -0,0 +1,259 @@
+package io.leavesfly.tinydl.func.graph;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.utils.Profiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 计算图并行调度器
+ *
+ * 在共享的ForkJoin线程池上并行执行计算图中相互独立的分支：
+ * 1. 反向传播：基于依赖计数，一个函数的输出梯度被所有消费者累加完成后，
+ * 该函数的反向传播即可提交执行，兄弟分支因此可以同时进行；
+ * 2. 前向传播：提供invokeAll，供多头注意力的Q/K/V投影、MoE的多个专家等
+ * 互不依赖的层调用同时执行。
+ *
+ * 并行执行要求各分支中的Function实例互不共享（同一个Layer实例不能同时出现在两个分支中）。
+ */
+public final class GraphScheduler {
+
+    private static volatile ForkJoinPool pool;
+
+    private GraphScheduler() {
+    }
+
+    /**
+     * 获取共享的ForkJoin线程池，默认并行度为CPU核数
+     *
+     * @return 线程池
+     */
+    public static ForkJoinPool getPool() {
+        if (pool == null) {
+            synchronized (GraphScheduler.class) {
+                if (pool == null) {
+                    pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * 设置共享线程池的并行度，旧的线程池会在已提交任务完成后关闭
+     *
+     * @param parallelism 并行度
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive!");
+        }
+        ForkJoinPool old = pool;
+        pool = new ForkJoinPool(parallelism);
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * 并行执行一组互相独立的任务，并按提交顺序返回结果
+     *
+     * 在线程池内部调用时直接fork子任务，在外部调用时提交到共享线程池。
+     *
+     * @param branches 独立的任务
+     * @param <T> 结果类型
+     * @return 各任务的结果
+     */
+    public static <T> List<T> invokeAll(List<Callable<T>> branches) {
+        List<T> results = new ArrayList<>(branches.size());
+        if (branches.size() <= 1) {
+            for (Callable<T> branch : branches) {
+                try {
+                    results.add(branch.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return results;
+        }
+
+        // 把当前线程的层作用域传递给各个分支，保证性能统计归属正确
+        String scope = Profiler.currentScope();
+        List<ForkJoinTask<T>> tasks = new ArrayList<>(branches.size());
+        for (Callable<T> branch : branches) {
+            tasks.add(ForkJoinTask.adapt(() -> Profiler.callInScope(scope, branch)));
+        }
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            ForkJoinPool forkJoinPool = getPool();
+            for (ForkJoinTask<T> task : tasks) {
+                forkJoinPool.execute(task);
+            }
+        }
+        for (ForkJoinTask<T> task : tasks) {
+            results.add(task.join());
+        }
+        return results;
+    }
+
+    /**
+     * 基于依赖计数的并行反向传播
+     *
+     * 与Variable.backward相同，梯度在输入变量上累加，不需要梯度的变量会截断反向传播。
+     * 每个函数只在其输出梯度累加完毕后执行一次反向传播。
+     *
+     * @param output 反向传播的起点（通常是损失值）
+     */
+    public static void backward(Variable output) {
+        if (!output.isRequireGrad()) {
+            output.clearGrad();
+            return;
+        }
+        if (Objects.isNull(output.getGrad())) {
+            output.setGrad(NdArray.ones(output.getValue().getShape()));
+        }
+        Function root = output.getCreator();
+        if (Objects.isNull(root)) {
+            return;
+        }
+
+        Map<Function, AtomicInteger> pending = countDependencies(root);
+        CountDownLatch latch = new CountDownLatch(pending.size());
+        AtomicReference<Throwable> error = new AtomicReference<>();
+
+        getPool().execute(new BackwardTask(root, pending, latch, error));
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("GraphScheduler backward interrupted!", e);
+        }
+        if (error.get() != null) {
+            throw new RuntimeException("GraphScheduler backward error!", error.get());
+        }
+    }
+
+    /**
+     * 统计每个函数在反向传播中需要等待的消费者数量
+     */
+    private static Map<Function, AtomicInteger> countDependencies(Function root) {
+        Map<Function, AtomicInteger> pending = new IdentityHashMap<>();
+        Deque<Function> stack = new ArrayDeque<>();
+        pending.put(root, new AtomicInteger());
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Function function = stack.pop();
+            for (Variable input : function.getInputs()) {
+                Function creator = propagateTo(input);
+                if (creator == null) {
+                    continue;
+                }
+                AtomicInteger count = pending.get(creator);
+                if (count == null) {
+                    count = new AtomicInteger();
+                    pending.put(creator, count);
+                    stack.push(creator);
+                }
+                count.incrementAndGet();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * 判断反向传播是否需要经过输入变量继续传播
+     *
+     * @return 需要继续传播时返回输入变量的creator，否则返回null
+     */
+    private static Function propagateTo(Variable input) {
+        if (Objects.isNull(input) || !input.isRequireGrad()) {
+            return null;
+        }
+        Function creator = input.getCreator();
+        if (Objects.isNull(creator) || Objects.isNull(creator.getInputs())) {
+            return null;
+        }
+        return creator;
+    }
+
+    /**
+     * 单个函数的反向传播任务
+     */
+    private static class BackwardTask implements Runnable {
+
+        private final Function function;
+        private final Map<Function, AtomicInteger> pending;
+        private final CountDownLatch latch;
+        private final AtomicReference<Throwable> error;
+
+        BackwardTask(Function function, Map<Function, AtomicInteger> pending,
+                     CountDownLatch latch, AtomicReference<Throwable> error) {
+            this.function = function;
+            this.pending = pending;
+            this.latch = latch;
+            this.error = error;
+        }
+
+        @Override
+        public void run() {
+            // 第一个就绪的函数在当前线程继续执行，用循环而不是递归，长链不会耗尽调用栈
+            Function current = function;
+            try {
+                while (current != null && error.get() == null) {
+                    Variable[] inputs = current.getInputs();
+                    List<NdArray> grads = Profiler.backward(current, current.getOutput().getGrad());
+                    if (inputs.length != grads.size()) {
+                        throw new RuntimeException("Variable backward grads size error!");
+                    }
+                    List<Function> ready = new ArrayList<>();
+                    for (int i = 0; i < inputs.length; i++) {
+                        Variable input = inputs[i];
+                        if (Objects.isNull(input) || !input.isRequireGrad()) {
+                            continue;
+                        }
+                        // 同一个变量可能被多个分支同时累加梯度
+                        synchronized (input) {
+                            if (input.getGrad() != null) {
+                                input.setGrad(input.getGrad().add(grads.get(i)));
+                            } else {
+                                input.setGrad(grads.get(i));
+                            }
+                        }
+                        Function creator = propagateTo(input);
+                        if (creator != null && pending.get(creator).decrementAndGet() == 0) {
+                            ready.add(creator);
+                        }
+                    }
+                    // 其余就绪的函数fork到线程池
+                    for (int i = 1; i < ready.size(); i++) {
+                        ForkJoinTask.adapt(new BackwardTask(ready.get(i), pending, latch, error)).fork();
+                    }
+                    latch.countDown();
+                    current = ready.isEmpty() ? null : ready.get(0);
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+                while (latch.getCount() > 0) {
+                    latch.countDown();
+                }
+            }
+        }
+    }
+}
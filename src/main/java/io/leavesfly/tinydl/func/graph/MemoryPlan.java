@@ -0,0 +1,300 @@
+package io.leavesfly.tinydl.func.graph;
+
+import io.leavesfly.tinydl.ndarr.Shape;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 内存规划结果
+ *
+ * 记录计算图中每个中间张量（前向激活值以及反向梯度）的生命周期、
+ * 所分配的复用缓冲区编号，以及规划后的峰值内存等统计信息。
+ */
+public class MemoryPlan {
+
+    /**
+     * 单个中间张量的规划信息
+     */
+    public static class TensorPlan {
+
+        private final String name;
+        private final Shape shape;
+        private final long bytes;
+        private final int start;
+        private final int end;
+        private final boolean gradient;
+        private int bufferId = -1;
+        private boolean inPlace;
+
+        TensorPlan(String name, Shape shape, int start, int end, boolean gradient) {
+            this.name = name;
+            this.shape = shape;
+            this.bytes = (long) shape.size() * Float.BYTES;
+            this.start = start;
+            this.end = end;
+            this.gradient = gradient;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Shape getShape() {
+            return shape;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * 张量被产生的时间步
+         *
+         * @return 时间步（前向为[0, n)，反向为[n, 2n)）
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * 张量最后一次被使用的时间步
+         *
+         * @return 时间步
+         */
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * 是否为反向传播产生的梯度张量
+         *
+         * @return 是梯度返回true
+         */
+        public boolean isGradient() {
+            return gradient;
+        }
+
+        /**
+         * 分配到的缓冲区编号
+         *
+         * @return 缓冲区编号
+         */
+        public int getBufferId() {
+            return bufferId;
+        }
+
+        /**
+         * 是否原地复用了输入张量的缓冲区
+         *
+         * @return 原地执行返回true
+         */
+        public boolean isInPlace() {
+            return inPlace;
+        }
+
+        void assign(int bufferId, boolean inPlace) {
+            this.bufferId = bufferId;
+            this.inPlace = inPlace;
+        }
+    }
+
+    private final List<TensorPlan> tensors;
+    private final List<Long> bufferBytes;
+    private final long parameterBytes;
+    private final long parameterGradBytes;
+    private final long inputBytes;
+    private final long livePeakBytes;
+    private final int batchSize;
+
+    MemoryPlan(List<TensorPlan> tensors, List<Long> bufferBytes, long parameterBytes, long parameterGradBytes,
+               long inputBytes, long livePeakBytes, int batchSize) {
+        this.tensors = tensors;
+        this.bufferBytes = bufferBytes;
+        this.parameterBytes = parameterBytes;
+        this.parameterGradBytes = parameterGradBytes;
+        this.inputBytes = inputBytes;
+        this.livePeakBytes = livePeakBytes;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 获取所有中间张量的规划信息
+     *
+     * @return 张量规划列表（只读）
+     */
+    public List<TensorPlan> getTensors() {
+        return Collections.unmodifiableList(tensors);
+    }
+
+    /**
+     * 获取复用缓冲区的数量
+     *
+     * @return 缓冲区数量
+     */
+    public int getBufferCount() {
+        return bufferBytes.size();
+    }
+
+    /**
+     * 获取指定缓冲区的容量
+     *
+     * @param bufferId 缓冲区编号
+     * @return 缓冲区容量（字节）
+     */
+    public long getBufferBytes(int bufferId) {
+        return bufferBytes.get(bufferId);
+    }
+
+    /**
+     * 获取中间张量所有缓冲区的总容量
+     *
+     * @return 缓冲区总容量（字节）
+     */
+    public long getPlannedActivationBytes() {
+        long sum = 0;
+        for (long bytes : bufferBytes) {
+            sum += bytes;
+        }
+        return sum;
+    }
+
+    /**
+     * 不做任何复用时中间张量所需的总内存
+     *
+     * @return 总内存（字节）
+     */
+    public long getNaiveActivationBytes() {
+        long sum = 0;
+        for (TensorPlan tensor : tensors) {
+            sum += tensor.bytes;
+        }
+        return sum;
+    }
+
+    /**
+     * 任意时刻同时存活的中间张量大小之和的最大值，是缓冲区复用所能达到的理论下界
+     *
+     * @return 存活峰值（字节）
+     */
+    public long getLivePeakBytes() {
+        return livePeakBytes;
+    }
+
+    /**
+     * 参数所占内存
+     *
+     * @return 参数内存（字节）
+     */
+    public long getParameterBytes() {
+        return parameterBytes;
+    }
+
+    /**
+     * 参数梯度所占内存
+     *
+     * @return 参数梯度内存（字节）
+     */
+    public long getParameterGradBytes() {
+        return parameterGradBytes;
+    }
+
+    /**
+     * 输入数据（非参数的叶子变量）所占内存
+     *
+     * @return 输入内存（字节）
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     * 规划后的峰值内存：参数 + 参数梯度 + 输入 + 复用缓冲区
+     *
+     * @return 峰值内存（字节）
+     */
+    public long getPlannedPeakBytes() {
+        return parameterBytes + parameterGradBytes + inputBytes + getPlannedActivationBytes();
+    }
+
+    /**
+     * 根据内存预算估算可用的最大批次大小
+     *
+     * 参数及其梯度与批次大小无关，输入和中间张量近似与批次大小成正比。
+     *
+     * @param budgetBytes 内存预算（字节）
+     * @return 估算的最大批次大小，预算不足以容纳参数时返回0
+     */
+    public int estimateMaxBatchSize(long budgetBytes) {
+        long fixed = parameterBytes + parameterGradBytes;
+        long perSample = (inputBytes + getPlannedActivationBytes()) / Math.max(1, batchSize);
+        if (budgetBytes <= fixed) {
+            return 0;
+        }
+        if (perSample == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (budgetBytes - fixed) / perSample);
+    }
+
+    /**
+     * 生成内存规划报告
+     *
+     * @return 报告文本
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== 内存规划报告 ===\n");
+        sb.append(String.format("中间张量数量: %d, 复用缓冲区数量: %d%n", tensors.size(), bufferBytes.size()));
+        int inPlaceCount = 0;
+        for (TensorPlan tensor : tensors) {
+            if (tensor.inPlace) {
+                inPlaceCount++;
+            }
+        }
+        sb.append(String.format("原地执行张量数量: %d%n", inPlaceCount));
+        sb.append(String.format("参数内存: %s, 参数梯度内存: %s, 输入内存: %s%n",
+                formatBytes(parameterBytes), formatBytes(parameterGradBytes), formatBytes(inputBytes)));
+        sb.append(String.format("中间张量(不复用): %s%n", formatBytes(getNaiveActivationBytes())));
+        sb.append(String.format("中间张量(规划后): %s%n", formatBytes(getPlannedActivationBytes())));
+        sb.append(String.format("中间张量(存活下界): %s%n", formatBytes(livePeakBytes)));
+        sb.append(String.format("规划峰值内存: %s%n", formatBytes(getPlannedPeakBytes())));
+        return sb.toString();
+    }
+
+    /**
+     * 按缓冲区列出张量分配明细
+     *
+     * @return 明细文本
+     */
+    public String detail() {
+        List<List<TensorPlan>> byBuffer = new ArrayList<>();
+        for (int i = 0; i < bufferBytes.size(); i++) {
+            byBuffer.add(new ArrayList<TensorPlan>());
+        }
+        for (TensorPlan tensor : tensors) {
+            byBuffer.get(tensor.bufferId).add(tensor);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < byBuffer.size(); i++) {
+            sb.append(String.format("buffer#%d (%s):%n", i, formatBytes(bufferBytes.get(i))));
+            for (TensorPlan tensor : byBuffer.get(i)) {
+                sb.append(String.format("  %-24s %-14s [%d, %d]%s%s%n", tensor.name, tensor.shape,
+                        tensor.start, tensor.end, tensor.gradient ? " grad" : "", tensor.inPlace ? " in-place" : ""));
+            }
+        }
+        return sb.toString();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024L * 1024) {
+            return String.format("%.2f KB", bytes / 1024.0);
+        } else if (bytes < 1024L * 1024 * 1024) {
+            return String.format("%.2f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,312 @@
+package io.leavesfly.tinydl.func.graph;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.nnet.Parameter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 基于生命周期（liveness）分析的内存规划器
+ *
+ * 在捕获的计算图上计算每个中间张量的生命周期，并使用贪心的最佳适配策略
+ * 将生命周期不重叠的张量分配到同一个缓冲区，从而得到最少数量的可复用缓冲区。
+ * 对逐元素算子，当输入在该算子之后不再被使用时，输出直接原地复用输入的缓冲区。
+ *
+ * 时间轴的划分：设计算图中有n个函数，前向传播中第i个函数在时间步i执行，
+ * 反向传播中第i个函数在时间步2n-1-i执行。
+ *
+ * 规划结果只用于估算内存占用和最大批次，执行时NdArray仍然按需分配，不会按规划复用缓冲区。
+ * 生命周期依据OpTraits登记的算子特性推断：反向传播需要输入的算子会延长输入的生命周期，
+ * 读取输出值的算子与未登记的算子会延长输出的生命周期；特性登记不准确的算子可能使规划偏乐观，
+ * 因此不能直接按规划原地改写张量。
+ *
+ * 使用示例：
+ * <pre>
+ * Variable loss = lossFunc.loss(y, model.forward(x));
+ * MemoryPlan plan = new MemoryPlanner(true).plan(ComputeGraph.trace(loss));
+ * System.out.println(plan.report());
+ * int maxBatch = plan.estimateMaxBatchSize(512L * 1024 * 1024);
+ * </pre>
+ */
+public class MemoryPlanner {
+
+    /**
+     * 是否为训练模式规划（训练模式需要为反向传播保留激活值并规划梯度）
+     */
+    private final boolean training;
+
+    /**
+     * 是否允许原地执行
+     */
+    private boolean enableInPlace = true;
+
+    /**
+     * 构造函数
+     *
+     * @param training 是否为训练模式规划
+     */
+    public MemoryPlanner(boolean training) {
+        this.training = training;
+    }
+
+    /**
+     * 设置是否允许原地执行
+     *
+     * @param enableInPlace 是否允许原地执行
+     * @return 当前规划器
+     */
+    public MemoryPlanner setEnableInPlace(boolean enableInPlace) {
+        this.enableInPlace = enableInPlace;
+        return this;
+    }
+
+    /**
+     * 对计算图进行内存规划，批次大小取自输入数据的第一维
+     *
+     * @param graph 捕获的计算图
+     * @return 内存规划结果
+     */
+    public MemoryPlan plan(ComputeGraph graph) {
+        int batchSize = 1;
+        for (Variable leaf : graph.getLeaves()) {
+            if (!(leaf instanceof Parameter)) {
+                batchSize = Math.max(batchSize, leaf.getValue().getShape().dimension[0]);
+                break;
+            }
+        }
+        return plan(graph, batchSize);
+    }
+
+    /**
+     * 对计算图进行内存规划
+     *
+     * @param graph 捕获的计算图
+     * @param batchSize 捕获计算图时使用的批次大小，用于估算最大批次
+     * @return 内存规划结果
+     */
+    public MemoryPlan plan(ComputeGraph graph, int batchSize) {
+        List<Function> functions = graph.getFunctions();
+        int n = functions.size();
+
+        Map<Variable, MemoryPlan.TensorPlan> valuePlans = new IdentityHashMap<>();
+        Map<Variable, MemoryPlan.TensorPlan> gradPlans = new IdentityHashMap<>();
+        Map<MemoryPlan.TensorPlan, List<MemoryPlan.TensorPlan>> inPlaceSources = new IdentityHashMap<>();
+        Map<MemoryPlan.TensorPlan, Function> gradProducers = new IdentityHashMap<>();
+        List<MemoryPlan.TensorPlan> tensors = new ArrayList<>();
+
+        // 1，计算前向激活值的生命周期
+        for (int i = 0; i < n; i++) {
+            Function function = functions.get(i);
+            Variable out = function.getOutput();
+            if (Objects.isNull(out)) {
+                continue;
+            }
+            int end = i;
+            for (Function consumer : graph.getConsumers(out)) {
+                int index = graph.indexOf(consumer);
+                end = Math.max(end, index);
+                if (training && OpTraits.backwardNeedsInputs(consumer)) {
+                    end = Math.max(end, backwardStep(index, n));
+                }
+            }
+            if (training && OpTraits.backwardNeedsOutput(function)) {
+                end = Math.max(end, backwardStep(i, n));
+            }
+            if (out == graph.getOutput()) {
+                end = Math.max(end, training ? n : n - 1);
+            }
+            MemoryPlan.TensorPlan plan = new MemoryPlan.TensorPlan(nameOf(out, function, i),
+                    out.getValue().getShape(), i, end, false);
+            valuePlans.put(out, plan);
+            tensors.add(plan);
+        }
+
+        // 2，计算反向梯度的生命周期：梯度在最先执行反向的消费者处产生，在creator的反向处被消费
+        if (training) {
+            for (int i = 0; i < n; i++) {
+                Function function = functions.get(i);
+                Variable out = function.getOutput();
+                if (Objects.isNull(out) || !out.isRequireGrad()) {
+                    continue;
+                }
+                int start;
+                Function producer = null;
+                if (out == graph.getOutput()) {
+                    start = n;
+                } else {
+                    int lastConsumer = -1;
+                    for (Function consumer : graph.getConsumers(out)) {
+                        int index = graph.indexOf(consumer);
+                        if (index > lastConsumer) {
+                            lastConsumer = index;
+                            producer = consumer;
+                        }
+                    }
+                    if (lastConsumer < 0) {
+                        continue;
+                    }
+                    start = backwardStep(lastConsumer, n);
+                }
+                MemoryPlan.TensorPlan plan = new MemoryPlan.TensorPlan(nameOf(out, function, i) + ".grad",
+                        out.getValue().getShape(), start, backwardStep(i, n), true);
+                gradPlans.put(out, plan);
+                tensors.add(plan);
+                // 多输入的算子在算出全部输入梯度之前仍要读取输出梯度，只有单输入的逐元素算子可以复用
+                if (producer != null && OpTraits.allowInPlace(producer) && producer.getInputs().length == 1) {
+                    gradProducers.put(plan, producer);
+                }
+            }
+            // 单输入逐元素算子的输入梯度可以复用输出梯度的缓冲区
+            for (Map.Entry<MemoryPlan.TensorPlan, Function> entry : gradProducers.entrySet()) {
+                MemoryPlan.TensorPlan source = gradPlans.get(entry.getValue().getOutput());
+                if (source != null) {
+                    inPlaceSources.put(entry.getKey(), Collections.singletonList(source));
+                }
+            }
+        }
+
+        // 3，逐元素算子的输出可以复用输入的缓冲区
+        for (int i = 0; i < n; i++) {
+            Function function = functions.get(i);
+            MemoryPlan.TensorPlan plan = valuePlans.get(function.getOutput());
+            if (plan == null || !OpTraits.allowInPlace(function)) {
+                continue;
+            }
+            List<MemoryPlan.TensorPlan> sources = new ArrayList<>();
+            for (Variable input : function.getInputs()) {
+                MemoryPlan.TensorPlan source = valuePlans.get(input);
+                if (source != null) {
+                    sources.add(source);
+                }
+            }
+            inPlaceSources.put(plan, sources);
+        }
+
+        // 4，统计叶子变量（参数与输入）
+        long parameterBytes = 0;
+        long parameterGradBytes = 0;
+        long inputBytes = 0;
+        for (Variable leaf : graph.getLeaves()) {
+            long bytes = (long) leaf.getValue().getShape().size() * Float.BYTES;
+            boolean hasGrad = training && leaf.isRequireGrad();
+            if (leaf instanceof Parameter) {
+                parameterBytes += bytes;
+                parameterGradBytes += hasGrad ? bytes : 0;
+            } else {
+                inputBytes += hasGrad ? 2 * bytes : bytes;
+            }
+        }
+
+        List<Long> buffers = assignBuffers(tensors, inPlaceSources);
+        long livePeak = computeLivePeak(tensors, training ? 2 * n : n);
+        return new MemoryPlan(tensors, buffers, parameterBytes, parameterGradBytes, inputBytes, livePeak, batchSize);
+    }
+
+    /**
+     * 贪心分配缓冲区：按产生时间扫描，优先原地复用，其次最佳适配空闲缓冲区，最后新建缓冲区
+     */
+    private List<Long> assignBuffers(List<MemoryPlan.TensorPlan> tensors,
+                                     Map<MemoryPlan.TensorPlan, List<MemoryPlan.TensorPlan>> inPlaceSources) {
+        List<MemoryPlan.TensorPlan> sorted = new ArrayList<>(tensors);
+        sorted.sort(Comparator.comparingInt(MemoryPlan.TensorPlan::getStart)
+                .thenComparing(Comparator.comparingLong(MemoryPlan.TensorPlan::getBytes).reversed()));
+
+        List<Long> capacities = new ArrayList<>();
+        List<MemoryPlan.TensorPlan> active = new ArrayList<>();
+        List<Integer> free = new ArrayList<>();
+
+        for (MemoryPlan.TensorPlan tensor : sorted) {
+            // 释放生命周期已经结束的张量
+            Iterator<MemoryPlan.TensorPlan> iterator = active.iterator();
+            while (iterator.hasNext()) {
+                MemoryPlan.TensorPlan alive = iterator.next();
+                if (alive.getEnd() < tensor.getStart()) {
+                    free.add(alive.getBufferId());
+                    iterator.remove();
+                }
+            }
+
+            // 原地复用：输入恰好在当前步结束生命周期，且大小一致
+            if (enableInPlace && inPlaceSources.containsKey(tensor)) {
+                MemoryPlan.TensorPlan reused = null;
+                for (MemoryPlan.TensorPlan source : inPlaceSources.get(tensor)) {
+                    if (source.getEnd() == tensor.getStart() && source.getBytes() == tensor.getBytes()
+                            && active.contains(source)) {
+                        reused = source;
+                        break;
+                    }
+                }
+                if (reused != null) {
+                    active.remove(reused);
+                    tensor.assign(reused.getBufferId(), true);
+                    active.add(tensor);
+                    continue;
+                }
+            }
+
+            // 最佳适配：容量足够的最小空闲缓冲区；都不够时扩容最大的空闲缓冲区
+            int best = -1;
+            int largest = -1;
+            for (int id : free) {
+                long capacity = capacities.get(id);
+                if (capacity >= tensor.getBytes() && (best < 0 || capacity < capacities.get(best))) {
+                    best = id;
+                }
+                if (largest < 0 || capacity > capacities.get(largest)) {
+                    largest = id;
+                }
+            }
+            int bufferId;
+            if (best >= 0) {
+                bufferId = best;
+            } else if (largest >= 0) {
+                bufferId = largest;
+                capacities.set(largest, tensor.getBytes());
+            } else {
+                bufferId = capacities.size();
+                capacities.add(tensor.getBytes());
+            }
+            free.remove(Integer.valueOf(bufferId));
+            tensor.assign(bufferId, false);
+            active.add(tensor);
+        }
+        return capacities;
+    }
+
+    /**
+     * 计算任意时刻存活张量大小之和的最大值，原地执行的张量在产生的时间步与输入共享存储
+     */
+    private long computeLivePeak(List<MemoryPlan.TensorPlan> tensors, int steps) {
+        long[] delta = new long[steps + 2];
+        for (MemoryPlan.TensorPlan tensor : tensors) {
+            delta[tensor.isInPlace() ? tensor.getStart() + 1 : tensor.getStart()] += tensor.getBytes();
+            delta[tensor.getEnd() + 1] -= tensor.getBytes();
+        }
+        long live = 0;
+        long peak = 0;
+        for (long d : delta) {
+            live += d;
+            peak = Math.max(peak, live);
+        }
+        return peak;
+    }
+
+    private static int backwardStep(int index, int n) {
+        return 2 * n - 1 - index;
+    }
+
+    private static String nameOf(Variable variable, Function creator, int index) {
+        if (variable.getName() != null) {
+            return variable.getName();
+        }
+        return creator.getClass().getSimpleName() + "#" + index;
+    }
+}
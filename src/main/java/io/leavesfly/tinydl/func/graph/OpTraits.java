@@ -0,0 +1,132 @@
+package io.leavesfly.tinydl.func.graph;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.func.base.Add;
+import io.leavesfly.tinydl.func.base.Div;
+import io.leavesfly.tinydl.func.base.Mul;
+import io.leavesfly.tinydl.func.base.Neg;
+import io.leavesfly.tinydl.func.base.Sub;
+import io.leavesfly.tinydl.func.math.Clip;
+import io.leavesfly.tinydl.func.math.Cos;
+import io.leavesfly.tinydl.func.math.Exp;
+import io.leavesfly.tinydl.func.math.Log;
+import io.leavesfly.tinydl.func.math.Max;
+import io.leavesfly.tinydl.func.math.Pow;
+import io.leavesfly.tinydl.func.math.ReLu;
+import io.leavesfly.tinydl.func.math.Sigmoid;
+import io.leavesfly.tinydl.func.math.Sin;
+import io.leavesfly.tinydl.func.math.Squ;
+import io.leavesfly.tinydl.func.math.Tanh;
+import io.leavesfly.tinydl.func.matrix.BroadcastTo;
+import io.leavesfly.tinydl.func.matrix.FusedLinear;
+import io.leavesfly.tinydl.func.matrix.GetItem;
+import io.leavesfly.tinydl.func.matrix.Linear;
+import io.leavesfly.tinydl.func.matrix.MatMul;
+import io.leavesfly.tinydl.func.matrix.Reshape;
+import io.leavesfly.tinydl.func.matrix.SoftMax;
+import io.leavesfly.tinydl.func.matrix.Sum;
+import io.leavesfly.tinydl.func.matrix.SumTo;
+import io.leavesfly.tinydl.func.matrix.Transpose;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 算子特性描述
+ *
+ * 记录各个Function子类与内存规划、图变换相关的特性，例如：
+ * 是否为逐元素算子（可以原地执行）、反向传播是否需要保留输入值或输出值。
+ * 未登记的算子按最保守的方式处理：不可原地执行，反向传播需要同时保留输入和输出。
+ */
+public final class OpTraits {
+
+    /**
+     * 逐元素算子：输出与第一个输入形状一致，每个输出元素只依赖对应位置的输入元素
+     */
+    private static final Set<Class<? extends Function>> ELEMENT_WISE = new HashSet<>(Arrays.asList(
+            Add.class, Sub.class, Mul.class, Div.class, Neg.class,
+            Exp.class, Log.class, Sin.class, Cos.class, Tanh.class, Sigmoid.class,
+            ReLu.class, Clip.class, Pow.class, Squ.class));
+
+    /**
+     * 反向传播只需要形状信息、不需要保留输入值的算子
+     */
+    private static final Set<Class<? extends Function>> SHAPE_ONLY_BACKWARD = new HashSet<>(Arrays.asList(
+            Add.class, Sub.class, Neg.class, Reshape.class, BroadcastTo.class,
+            SumTo.class, Sum.class, Transpose.class,
+            Tanh.class, Sigmoid.class, SoftMax.class));
+
+    /**
+     * 反向传播需要保留输出值的算子
+     */
+    private static final Set<Class<? extends Function>> OUTPUT_BACKWARD = new HashSet<>(Arrays.asList(
+            Tanh.class, Sigmoid.class, SoftMax.class, Max.class, FusedLinear.class));
+
+    /**
+     * 反向传播只需要保留输入值、不读取输出值的其他算子
+     */
+    private static final Set<Class<? extends Function>> INPUT_ONLY_BACKWARD = new HashSet<>(Arrays.asList(
+            MatMul.class, Linear.class, GetItem.class));
+
+    private OpTraits() {
+    }
+
+    /**
+     * 登记新的逐元素算子
+     *
+     * @param clazz 算子类型
+     */
+    public static synchronized void registerElementWise(Class<? extends Function> clazz) {
+        ELEMENT_WISE.add(clazz);
+    }
+
+    /**
+     * 判断算子是否为逐元素算子
+     *
+     * @param function 算子
+     * @return 是逐元素算子返回true
+     */
+    public static boolean isElementWise(Function function) {
+        return ELEMENT_WISE.contains(function.getClass());
+    }
+
+    /**
+     * 判断算子是否允许原地执行（输出复用输入的存储）
+     *
+     * 只有逐元素算子且输出与输入大小一致时才允许原地执行，
+     * 同时需要输入在该算子之后不再被使用（由调用方根据生命周期判断）。
+     *
+     * @param function 算子
+     * @return 允许原地执行返回true
+     */
+    public static boolean allowInPlace(Function function) {
+        return isElementWise(function);
+    }
+
+    /**
+     * 判断算子的反向传播是否需要保留输入值
+     *
+     * @param function 算子
+     * @return 需要保留输入值返回true
+     */
+    public static boolean backwardNeedsInputs(Function function) {
+        return !SHAPE_ONLY_BACKWARD.contains(function.getClass());
+    }
+
+    /**
+     * 判断算子的反向传播是否需要保留输出值
+     *
+     * @param function 算子
+     * @return 需要保留输出值返回true
+     */
+    public static boolean backwardNeedsOutput(Function function) {
+        return OUTPUT_BACKWARD.contains(function.getClass()) || !isRegistered(function);
+    }
+
+    private static boolean isRegistered(Function function) {
+        Class<? extends Function> clazz = function.getClass();
+        return ELEMENT_WISE.contains(clazz) || SHAPE_ONLY_BACKWARD.contains(clazz)
+                || OUTPUT_BACKWARD.contains(clazz) || INPUT_ONLY_BACKWARD.contains(clazz);
+    }
+}
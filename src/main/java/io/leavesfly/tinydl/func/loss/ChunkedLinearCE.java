@@ -0,0 +1,220 @@
+package io.leavesfly.tinydl.func.loss;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.ndarr.NdArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 分块的输出投影与Softmax交叉熵损失
+ *
+ * 将 logits = x * w (+ b) 与Softmax交叉熵合并为一个算子，按词表维度分块计算：
+ * 前向传播对每个分块计算logits后立即以在线log-sum-exp的方式累加到每一行的最大值与指数和，
+ * 并取出标签位置的logit；反向传播逐块重新计算logits，得到 softmax - 1[label] 后
+ * 立即累加到x、w、b的梯度中。任意时刻只保存一个分块的logits，
+ * 不会生成(样本数, 词表大小)的完整logits张量。
+ *
+ * 输入依次为：x (n, d)、w (d, vocab)、[b] (vocab)、label (n)，标签为类别索引。
+ */
+public class ChunkedLinearCE extends Function {
+
+    private final int chunkSize;
+
+    private final int ignoreIndex;
+
+    /**
+     * 前向传播中每个样本的log-sum-exp，反向传播直接复用
+     */
+    private float[] logSumExp;
+
+    private int validCount;
+
+    /**
+     * 构造函数
+     *
+     * @param chunkSize 每个分块包含的词表大小
+     * @param ignoreIndex 需要忽略的标签值，SoftmaxCE.NO_IGNORE表示不忽略
+     */
+    public ChunkedLinearCE(int chunkSize, int ignoreIndex) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive!");
+        }
+        this.chunkSize = chunkSize;
+        this.ignoreIndex = ignoreIndex;
+    }
+
+    @Override
+    public NdArray forward(NdArray... inputs) {
+        NdArray x = inputs[0];
+        NdArray w = inputs[1];
+        NdArray b = inputs.length == 4 ? inputs[2] : null;
+        NdArray label = inputs[inputs.length - 1];
+
+        int n = x.getShape().getRow();
+        int d = x.getShape().getColumn();
+        int vocab = w.getShape().getColumn();
+        if (w.getShape().getRow() != d) {
+            throw new RuntimeException("ChunkedLinearCE weight shape error!");
+        }
+        if (label.buffer.length < n) {
+            throw new RuntimeException("ChunkedLinearCE label size error! Expected: " + n
+                    + ", Actual: " + label.buffer.length);
+        }
+        // 越界的标签在分块中永远取不到目标logit，会静默得到错误的损失，先统一检查
+        for (int i = 0; i < n; i++) {
+            int labelValue = (int) label.buffer[i];
+            if (labelValue != ignoreIndex && (labelValue < 0 || labelValue >= vocab)) {
+                throw new IllegalArgumentException("ChunkedLinearCE label " + labelValue
+                        + " out of range [0, " + vocab + ")");
+            }
+        }
+
+        float[] max = new float[n];
+        double[] expSum = new double[n];
+        float[] target = new float[n];
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+
+        float[] logits = new float[n * Math.min(chunkSize, vocab)];
+        for (int start = 0; start < vocab; start += chunkSize) {
+            int size = Math.min(chunkSize, vocab - start);
+            computeLogits(x.buffer, w.buffer, b, logits, n, d, vocab, start, size);
+
+            for (int i = 0; i < n; i++) {
+                int offset = i * size;
+                float chunkMax = Float.NEGATIVE_INFINITY;
+                for (int j = 0; j < size; j++) {
+                    chunkMax = Math.max(chunkMax, logits[offset + j]);
+                }
+                // 在线log-sum-exp：最大值变大时先把已有的指数和缩放到新的最大值
+                float newMax = Math.max(max[i], chunkMax);
+                double sum = expSum[i] * Math.exp(max[i] - newMax);
+                for (int j = 0; j < size; j++) {
+                    sum += Math.exp(logits[offset + j] - newMax);
+                }
+                max[i] = newMax;
+                expSum[i] = sum;
+
+                int labelIndex = (int) label.buffer[i] - start;
+                if (labelIndex >= 0 && labelIndex < size) {
+                    target[i] = logits[offset + labelIndex];
+                }
+            }
+        }
+
+        logSumExp = new float[n];
+        validCount = 0;
+        float loss = 0f;
+        for (int i = 0; i < n; i++) {
+            logSumExp[i] = max[i] + (float) Math.log(expSum[i]);
+            if ((int) label.buffer[i] != ignoreIndex) {
+                loss += logSumExp[i] - target[i];
+                validCount++;
+            }
+        }
+        return new NdArray(validCount == 0 ? 0f : loss / validCount);
+    }
+
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        NdArray x = inputs[0].getValue();
+        NdArray w = inputs[1].getValue();
+        NdArray b = inputs.length == 4 ? inputs[2].getValue() : null;
+        NdArray label = inputs[inputs.length - 1].getValue();
+
+        int n = x.getShape().getRow();
+        int d = x.getShape().getColumn();
+        int vocab = w.getShape().getColumn();
+
+        NdArray xGrad = new NdArray(x.getShape());
+        NdArray wGrad = new NdArray(w.getShape());
+        NdArray bGrad = b == null ? null : new NdArray(b.getShape());
+        float scale = validCount == 0 ? 0f : yGrad.getNumber().floatValue() / validCount;
+
+        float[] grad = new float[n * Math.min(chunkSize, vocab)];
+        for (int start = 0; start < vocab; start += chunkSize) {
+            int size = Math.min(chunkSize, vocab - start);
+            computeLogits(x.buffer, w.buffer, b, grad, n, d, vocab, start, size);
+
+            // 分块内原地计算 (softmax - 1[label]) * scale
+            for (int i = 0; i < n; i++) {
+                int offset = i * size;
+                int labelValue = (int) label.buffer[i];
+                if (labelValue == ignoreIndex) {
+                    Arrays.fill(grad, offset, offset + size, 0f);
+                    continue;
+                }
+                for (int j = 0; j < size; j++) {
+                    grad[offset + j] = (float) Math.exp(grad[offset + j] - logSumExp[i]) * scale;
+                }
+                int labelIndex = labelValue - start;
+                if (labelIndex >= 0 && labelIndex < size) {
+                    grad[offset + labelIndex] -= scale;
+                }
+            }
+
+            // xGrad += g * w[:, chunk]^T，wGrad[:, chunk] += x^T * g
+            for (int i = 0; i < n; i++) {
+                int gOffset = i * size;
+                for (int k = 0; k < d; k++) {
+                    int wOffset = k * vocab + start;
+                    float xValue = x.buffer[i * d + k];
+                    float sum = 0f;
+                    for (int j = 0; j < size; j++) {
+                        float g = grad[gOffset + j];
+                        sum += g * w.buffer[wOffset + j];
+                        wGrad.buffer[wOffset + j] += xValue * g;
+                    }
+                    xGrad.buffer[i * d + k] += sum;
+                }
+                if (bGrad != null) {
+                    for (int j = 0; j < size; j++) {
+                        bGrad.buffer[start + j] += grad[gOffset + j];
+                    }
+                }
+            }
+        }
+
+        List<NdArray> grads = new ArrayList<>();
+        grads.add(xGrad);
+        grads.add(wGrad);
+        if (bGrad != null) {
+            grads.add(bGrad);
+        }
+        grads.add(label.like(0));
+        return grads;
+    }
+
+    /**
+     * 计算一个分块的logits：out[i, j] = x[i, :] * w[:, start + j] (+ b[start + j])
+     */
+    private static void computeLogits(float[] x, float[] w, NdArray b, float[] out,
+                                      int n, int d, int vocab, int start, int size) {
+        for (int i = 0; i < n; i++) {
+            int offset = i * size;
+            for (int j = 0; j < size; j++) {
+                out[offset + j] = b == null ? 0f : b.buffer[start + j];
+            }
+            for (int k = 0; k < d; k++) {
+                float xValue = x[i * d + k];
+                int wOffset = k * vocab + start;
+                for (int j = 0; j < size; j++) {
+                    out[offset + j] += xValue * w[wOffset + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取所需输入参数个数
+     *
+     * 可以接受3个或4个输入参数（x, w, [b], label）。
+     *
+     * @return 输入参数个数，-1表示可变参数
+     */
+    @Override
+    public int requireInputNum() {
+        return -1;
+    }
+}
@@ -0,0 +1,169 @@
+package io.leavesfly.tinydl.func.loss;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.nnet.Parameter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 采样Softmax交叉熵损失
+ *
+ * 每个样本只对真实类别与同一批共享的k个采样类别计算logits：
+ * logit(c) = x * w[:, c] + b[c] - log(Q(c))，
+ * 其中Q(c)为类别c在k次采样中的期望次数（logQ修正），使采样Softmax的梯度是完整Softmax的近似无偏估计。
+ * 与真实类别相同的采样类别（accidental hit）会被排除。
+ * 输出层的计算量从O(vocab)降为O(k)。
+ *
+ * 输入依次为：x (n, d)、label (n)，标签为类别索引。输出层的权重 w (d, vocab) 与偏置 b (vocab)
+ * 由构造函数给出，不作为函数的输入：反向传播时只把真实类别与采样类别对应列的梯度
+ * 以按列稀疏的形式累加到参数上（见 Parameter.accumulateSparseColumnGrad），
+ * 不生成词表大小的稠密梯度，优化器也只更新这些列。
+ */
+public class SampledSoftmaxCE extends Function {
+
+    private final Parameter weight;
+
+    private final Parameter bias;
+
+    private final int[] sampled;
+
+    private final float[] sampledLogQ;
+
+    private final float[] labelLogQ;
+
+    /**
+     * 前向传播中每个样本在候选类别上的softmax，形状为 n * (k + 1)，第0列为真实类别
+     */
+    private float[] probs;
+
+    /**
+     * 构造函数
+     *
+     * @param weight 输出层权重，shape: (d, vocab)
+     * @param bias 输出层偏置，元素个数为vocab，为null时不使用偏置
+     * @param sampled 采样得到的类别
+     * @param sampledLogQ 每个采样类别的log(Q)
+     * @param labelLogQ 每个样本真实类别的log(Q)
+     */
+    public SampledSoftmaxCE(Parameter weight, Parameter bias, int[] sampled, float[] sampledLogQ, float[] labelLogQ) {
+        this.weight = weight;
+        this.bias = bias;
+        this.sampled = sampled;
+        this.sampledLogQ = sampledLogQ;
+        this.labelLogQ = labelLogQ;
+    }
+
+    @Override
+    public NdArray forward(NdArray... inputs) {
+        NdArray x = inputs[0];
+        NdArray w = weight.getValue();
+        NdArray b = bias == null ? null : bias.getValue();
+        NdArray label = inputs[1];
+
+        int n = x.getShape().getRow();
+        int d = x.getShape().getColumn();
+        int vocab = w.getShape().getColumn();
+        int candidates = sampled.length + 1;
+
+        probs = new float[n * candidates];
+        float loss = 0f;
+        for (int i = 0; i < n; i++) {
+            int target = (int) label.buffer[i];
+            int offset = i * candidates;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int c = 0; c < candidates; c++) {
+                int id = c == 0 ? target : sampled[c - 1];
+                float logit;
+                if (c > 0 && id == target) {
+                    logit = Float.NEGATIVE_INFINITY;
+                } else {
+                    logit = dot(x.buffer, i * d, w.buffer, id, d, vocab) + (b == null ? 0f : b.buffer[id])
+                            - (c == 0 ? labelLogQ[i] : sampledLogQ[c - 1]);
+                }
+                probs[offset + c] = logit;
+                max = Math.max(max, logit);
+            }
+            double sum = 0.0;
+            for (int c = 0; c < candidates; c++) {
+                sum += Math.exp(probs[offset + c] - max);
+            }
+            float logSumExp = max + (float) Math.log(sum);
+            loss += logSumExp - probs[offset];
+            for (int c = 0; c < candidates; c++) {
+                probs[offset + c] = (float) Math.exp(probs[offset + c] - logSumExp);
+            }
+        }
+        return new NdArray(loss / n);
+    }
+
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        NdArray x = inputs[0].getValue();
+        NdArray w = weight.getValue();
+        NdArray label = inputs[1].getValue();
+
+        int n = x.getShape().getRow();
+        int d = x.getShape().getColumn();
+        int vocab = w.getShape().getColumn();
+        int k = sampled.length;
+        int candidates = k + 1;
+
+        // 被用到的列：前k条为共享的采样类别，之后n条为每个样本的真实类别，重复的列由优化器合并
+        int[] ids = new int[k + n];
+        System.arraycopy(sampled, 0, ids, 0, k);
+        float[] wGrad = new float[(k + n) * d];
+        float[] bGrad = new float[k + n];
+
+        NdArray xGrad = new NdArray(x.getShape());
+        float scale = yGrad.getNumber().floatValue() / n;
+
+        for (int i = 0; i < n; i++) {
+            ids[k + i] = (int) label.buffer[i];
+            int offset = i * candidates;
+            for (int c = 0; c < candidates; c++) {
+                // 候选类别上 softmax - 1[target]，真实类别在第0列
+                float g = (probs[offset + c] - (c == 0 ? 1f : 0f)) * scale;
+                if (g == 0f) {
+                    continue;
+                }
+                int record = c == 0 ? k + i : c - 1;
+                int id = ids[record];
+                for (int j = 0; j < d; j++) {
+                    xGrad.buffer[i * d + j] += g * w.buffer[j * vocab + id];
+                    wGrad[record * d + j] += g * x.buffer[i * d + j];
+                }
+                bGrad[record] += g;
+            }
+        }
+
+        weight.accumulateSparseColumnGrad(ids, wGrad);
+        if (bias != null) {
+            bias.accumulateSparseColumnGrad(ids, bGrad);
+        }
+
+        List<NdArray> grads = new ArrayList<>();
+        grads.add(xGrad);
+        grads.add(label.like(0));
+        return grads;
+    }
+
+    private static float dot(float[] x, int xOffset, float[] w, int column, int d, int vocab) {
+        float sum = 0f;
+        for (int k = 0; k < d; k++) {
+            sum += x[xOffset + k] * w[k * vocab + column];
+        }
+        return sum;
+    }
+
+    /**
+     * 获取所需输入参数个数
+     *
+     * @return 输入参数个数（x, label）
+     */
+    @Override
+    public int requireInputNum() {
+        return 2;
+    }
+}
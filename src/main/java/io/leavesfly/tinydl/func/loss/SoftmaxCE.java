@@ -2,24 +2,67 @@ package io.leavesfly.tinydl.func.loss;
 
 import io.leavesfly.tinydl.func.Function;
 import io.leavesfly.tinydl.ndarr.NdArray;
-import io.leavesfly.tinydl.ndarr.Shape;
-import io.leavesfly.tinydl.utils.Util;
 
 import java.util.Arrays;
 import java.util.List;
 
 /**
  * Softmax交叉熵损失函数
- * 
+ *
  * 用于多分类问题的损失函数，结合了Softmax激活函数和交叉熵损失。
+ * 标签直接使用类别索引（形状为(n, 1)或n个元素），不生成one-hot矩阵。
+ * 预测值的最后一维是类别维，前面的维度都视为样本维，例如(batch, seq, vocab)。
+ *
+ * 支持两种忽略方式：
+ * 1. ignoreIndex：标签等于该值的样本不参与损失计算；
+ * 2. mask：每个样本的权重（通常是0/1），损失按权重之和求平均。
  */
 public class SoftmaxCE extends Function {
+
+    /**
+     * 不忽略任何标签
+     */
+    public static final int NO_IGNORE = Integer.MIN_VALUE;
+
+    private final int ignoreIndex;
+
+    private final NdArray mask;
+
+    /**
+     * 前向传播中每个样本的log-sum-exp，反向传播直接复用
+     */
+    private float[] logSumExp;
+
+    /**
+     * 每个样本的权重以及权重之和
+     */
+    private float[] weights;
+    private float weightSum;
+
+    public SoftmaxCE() {
+        this(NO_IGNORE, null);
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param ignoreIndex 需要忽略的标签值，NO_IGNORE表示不忽略
+     * @param mask 每个样本的权重，元素个数等于样本数，为null时所有样本权重为1
+     */
+    public SoftmaxCE(int ignoreIndex, NdArray mask) {
+        this.ignoreIndex = ignoreIndex;
+        this.mask = mask;
+    }
+
     /**
      * 前向传播计算Softmax交叉熵损失
-     * 
-     * 计算公式：Loss = -Σ(yi*log(σ(xi)))
-     * 其中σ(x)为Softmax函数，y为真实标签
-     * 
+     *
+     * 计算公式：Loss = -Σ(wi*log(σ(xi)[yi])) / Σwi
+     * 其中σ(x)为Softmax函数，y为真实标签的类别索引，w为样本权重
+     *
+     * 每一行在一次遍历中完成 max、exp、求和与log（log-sum-exp），
+     * 不再为 sub、exp、sumTo、log、getItem 分别生成整块的中间张量。
+     *
      * @param inputs 输入的NdArray数组，包含预测值和真实标签
      * @return Softmax交叉熵损失值
      */
@@ -29,29 +72,54 @@ public class SoftmaxCE extends Function {
         NdArray predict = inputs[0];
         NdArray labelY = inputs[1];
 
-        int row = predict.getShape().getRow();
-
-        NdArray max = predict.max(1);
-        NdArray max2PredictShape = max.broadcastTo(predict.getShape());
-        max = max.add(predict.sub(max2PredictShape).exp().sumTo(new Shape(row, 1)).log());
-
-        int[] colSlices = Util.toInt(labelY.transpose().getMatrix()[0]);
-
-        predict = predict.sub(max.broadcastTo(predict.getShape()));
-
-        predict = predict.getItem(Util.getSeq(row), colSlices);
-
-        float sum = predict.sum().getNumber().floatValue();
-        return new NdArray(-sum / (float) row);
+        int[] dimension = predict.getShape().dimension;
+        int column = dimension[dimension.length - 1];
+        int row = predict.buffer.length / column;
+        if (labelY.buffer.length < row) {
+            throw new RuntimeException("SoftmaxCE label size error! Expected: " + row
+                    + ", Actual: " + labelY.buffer.length);
+        }
+        if (mask != null && mask.buffer.length != row) {
+            throw new RuntimeException("SoftmaxCE mask size error! Expected: " + row
+                    + ", Actual: " + mask.buffer.length);
+        }
+        float[] buffer = predict.buffer;
+
+        logSumExp = new float[row];
+        weights = new float[row];
+        weightSum = 0f;
+        float sum = 0f;
+        for (int i = 0; i < row; i++) {
+            int label = (int) labelY.buffer[i];
+            float weight = mask == null ? 1f : mask.buffer[i];
+            if (label == ignoreIndex || weight == 0f) {
+                continue;
+            }
+            int offset = i * column;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int j = 0; j < column; j++) {
+                max = Math.max(max, buffer[offset + j]);
+            }
+            double expSum = 0.0;
+            for (int j = 0; j < column; j++) {
+                expSum += Math.exp(buffer[offset + j] - max);
+            }
+            logSumExp[i] = max + (float) Math.log(expSum);
+            weights[i] = weight;
+            weightSum += weight;
+            sum += weight * (buffer[offset + label] - logSumExp[i]);
+        }
+        return new NdArray(weightSum == 0f ? 0f : -sum / weightSum);
     }
 
     /**
      * 反向传播计算梯度
-     * 
+     *
      * 对于Softmax交叉熵损失函数，梯度计算公式为：
-     * ∂Loss/∂x = (σ(x) - y) / n
-     * 其中σ(x)为Softmax函数，y为真实标签，n为批次大小
-     * 
+     * ∂Loss/∂x = wi * (σ(x) - 1[y]) / Σwi
+     * 其中σ(x)由前向传播保存的log-sum-exp直接求出，1[y]只在标签位置减1，
+     * 梯度写入同一块缓冲区，不生成softmax、one-hot等中间矩阵。
+     *
      * @param yGrad 输出变量的梯度
      * @return 输入变量的梯度列表
      */
@@ -61,24 +129,33 @@ public class SoftmaxCE extends Function {
         NdArray predict = inputs[0].getValue();
         NdArray label = inputs[1].getValue();
 
-        int row = predict.getShape().getRow();
-        int column = predict.getShape().getColumn();
-
-        NdArray gy = yGrad.mulNum(1 / (float) row);
-        NdArray y = predict.softMax();
-        NdArray oneHot = NdArray.eye(new Shape(column, column)).getItem(
-                Util.toInt(label.transpose().getMatrix()[0]), null);
-
-        y = y.sub(oneHot).mulNum(gy.getNumber());
-
-        return Arrays.asList(y, label.like(1));
+        int column = predict.getShape().dimension[predict.getShape().dimension.length - 1];
+        int row = predict.buffer.length / column;
+        float[] buffer = predict.buffer;
+
+        NdArray grad = new NdArray(predict.getShape());
+        float gy = weightSum == 0f ? 0f : yGrad.getNumber().floatValue() / weightSum;
+        for (int i = 0; i < row; i++) {
+            if (weights[i] == 0f) {
+                continue;
+            }
+            int offset = i * column;
+            float scale = gy * weights[i];
+            float lse = logSumExp[i];
+            for (int j = 0; j < column; j++) {
+                grad.buffer[offset + j] = (float) Math.exp(buffer[offset + j] - lse) * scale;
+            }
+            grad.buffer[offset + (int) label.buffer[i]] -= scale;
+        }
+
+        return Arrays.asList(grad, label.like(0));
     }
 
     /**
      * 获取所需输入参数个数
-     * 
+     *
      * Softmax交叉熵损失函数需要两个输入参数：预测值和真实标签。
-     * 
+     *
      * @return 输入参数个数，固定为2
      */
     @Override
@@ -0,0 +1,142 @@
+package io.leavesfly.tinydl.func.matrix;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.utils.Config;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 融合的线性变换与激活函数
+ *
+ * 执行 y = act(x * w + b)，其中偏置相加和激活函数在矩阵乘法之后的同一次遍历中完成，
+ * 避免Linear、Add、激活函数分别生成中间张量。
+ * 反向传播同样先在一次遍历中求出激活前的梯度，再计算x、w、b的梯度。
+ *
+ * 支持的激活函数：ReLU、Sigmoid、Tanh，以及不使用激活函数（activeFunc为null）。
+ */
+public class FusedLinear extends Function {
+
+    private final Config.ActiveFunc activeFunc;
+
+    /**
+     * 构造函数
+     *
+     * @param activeFunc 激活函数类型，为null时只执行线性变换
+     */
+    public FusedLinear(Config.ActiveFunc activeFunc) {
+        if (activeFunc == Config.ActiveFunc.SoftMax) {
+            throw new IllegalArgumentException("FusedLinear does not support SoftMax activation!");
+        }
+        this.activeFunc = activeFunc;
+    }
+
+    /**
+     * 前向传播计算融合的线性变换与激活函数
+     *
+     * @param inputs 输入的NdArray数组，长度为2或3（x, w, [b]）
+     * @return 激活后的NdArray
+     */
+    @Override
+    public NdArray forward(NdArray... inputs) {
+        NdArray y = inputs[0].dot(inputs[1]);
+        float[] bias = inputs.length > 2 ? inputs[2].buffer : null;
+        float[] buffer = y.buffer;
+        int column = y.getShape().getColumn();
+
+        for (int i = 0; i < buffer.length; i++) {
+            float value = bias == null ? buffer[i] : buffer[i] + bias[i % column];
+            buffer[i] = activate(value);
+        }
+        return y;
+    }
+
+    /**
+     * 反向传播计算梯度
+     *
+     * 先计算激活前的梯度 g = yGrad * act'(y)，再计算：
+     * - ∂y/∂x = g * w^T
+     * - ∂y/∂w = x^T * g
+     * - ∂y/∂b = sum(g)
+     *
+     * @param yGrad 输出变量的梯度
+     * @return 输入变量的梯度列表
+     */
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        NdArray x = inputs[0].getValue();
+        NdArray w = inputs[1].getValue();
+        float[] y = output.getValue().buffer;
+
+        NdArray g = new NdArray(yGrad.getShape());
+        for (int i = 0; i < y.length; i++) {
+            g.buffer[i] = yGrad.buffer[i] * derivative(y[i]);
+        }
+
+        NdArray xGrad = g.dot(w.transpose());
+        NdArray wGrad = x.transpose().dot(g);
+        if (inputs.length == 2) {
+            return Arrays.asList(xGrad, wGrad);
+        }
+
+        Shape bShape = inputs[2].getValue().getShape();
+        int column = g.getShape().getColumn();
+        NdArray bGrad = new NdArray(bShape);
+        for (int i = 0; i < g.buffer.length; i++) {
+            bGrad.buffer[i % column] += g.buffer[i];
+        }
+        return Arrays.asList(xGrad, wGrad, bGrad);
+    }
+
+    /**
+     * 激活函数
+     */
+    private float activate(float value) {
+        if (activeFunc == null) {
+            return value;
+        }
+        switch (activeFunc) {
+            case ReLU:
+                return value > 0f ? value : 0f;
+            case Sigmoid:
+                return (float) (1.0 / (1.0 + Math.exp(-value)));
+            case Tanh:
+                return (float) Math.tanh(value);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * 激活函数的导数，使用激活后的输出值表示
+     */
+    private float derivative(float y) {
+        if (activeFunc == null) {
+            return 1f;
+        }
+        switch (activeFunc) {
+            case ReLU:
+                return y > 0f ? 1f : 0f;
+            case Sigmoid:
+                return y * (1f - y);
+            case Tanh:
+                return 1f - y * y;
+            default:
+                return 1f;
+        }
+    }
+
+    /**
+     * 获取所需输入参数个数
+     *
+     * 融合线性变换可以接受2个或3个输入参数（x, w, [b]）。
+     *
+     * @return 输入参数个数，-1表示可变参数
+     */
+    @Override
+    public int requireInputNum() {
+        return -1;
+    }
+}
@@ -7,6 +7,7 @@ import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Block;
 import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.utils.Profiler;
 import io.leavesfly.tinydl.utils.Uml;
 
 import java.io.*;
@@ -195,7 +196,7 @@ public class Model implements Serializable {
      * @return 输出变量
      */
     public Variable forward(Variable... inputs) {
-        return block.layerForward(inputs);
+        return Profiler.layerForward(block, inputs);
     }
 
     /**
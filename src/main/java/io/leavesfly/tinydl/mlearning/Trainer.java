@@ -10,6 +10,7 @@ import io.leavesfly.tinydl.mlearning.parallel.GradientAggregator;
 import io.leavesfly.tinydl.mlearning.parallel.ParallelBatchProcessor;
 import io.leavesfly.tinydl.mlearning.parallel.ParallelTrainingUtils;
 import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.utils.Config;
 
 import java.util.List;
 import java.util.Map;
@@ -56,6 +57,9 @@ public class Trainer {
     private ExecutorService executorService;
     private boolean enableParallelTraining;
 
+    // 截断的时间反向传播（truncated BPTT）配置，0表示不启用
+    private int truncatedBpttSteps;
+
     /**
      * 构造器（默认不启用并行训练）
      * @param _maxEpoch 最大训练轮次
@@ -130,7 +134,9 @@ public class Trainer {
      * @param shuffleData 是否打乱数据
      */
     public void train(boolean shuffleData) {
-        if (enableParallelTraining) {
+        if (truncatedBpttSteps > 0) {
+            truncatedBpttTrain();
+        } else if (enableParallelTraining) {
             parallelTrain(shuffleData);
         } else {
             singleThreadTrain(shuffleData);
@@ -168,7 +174,11 @@ public class Trainer {
                 model.clearGrads();
                 lossSum += lossVariable.getValue().getNumber().floatValue();
 
-                lossVariable.backward();
+                if (Config.parallel) {
+                    lossVariable.backwardParallel();
+                } else {
+                    lossVariable.backwardIterative();
+                }
 
                 optimizer.update();
                 lossVariable.unChainBackward();
@@ -325,7 +335,11 @@ public class Trainer {
             model.clearGrads();
             lossSum += lossVariable.getValue().getNumber().floatValue();
 
-            lossVariable.backward();
+            if (Config.parallel) {
+                lossVariable.backwardParallel();
+            } else {
+                lossVariable.backwardIterative();
+            }
             optimizer.update();
             lossVariable.unChainBackward();
 
@@ -344,6 +358,86 @@ public class Trainer {
         evaluator.evaluate();
     }
     
+    /**
+     * 截断的时间反向传播训练（用于RNN等有状态模型）
+     *
+     * 每个批次中的样本按时间步顺序依次输入模型，每k个时间步累加一次损失并执行
+     * 反向传播与参数更新，随后切断计算图：隐藏状态的值保留到下一个时间步，
+     * 但梯度不再回传到更早的时间步。计算图最多保留k个时间步，内存占用与序列长度无关。
+     * 隐藏状态只在每轮开始时重置，相邻批次被视为同一序列的连续片段，因此不打乱数据。
+     */
+    public void truncatedBpttTrain() {
+        DataSet trainDataSet = dataSet.getTrainDataSet();
+
+        for (int i = 0; i < maxEpoch; i++) {
+
+            model.resetState();
+            monitor.startNewEpoch(i);
+
+            float lossSum = 0f;
+            int stepCount = 0;
+            for (Batch batch : trainDataSet.getBatches()) {
+                NdArray[] xArray = batch.getX();
+                NdArray[] yArray = batch.getY();
+
+                Variable lossVariable = null;
+                int chunkSteps = 0;
+                for (int j = 0; j < batch.getSize(); j++) {
+                    Variable variableX = new Variable(xArray[j]).setName("x").setRequireGrad(false);
+                    Variable variableY = new Variable(yArray[j]).setName("y").setRequireGrad(false);
+                    Variable stepLoss = loss.loss(variableY, model.forward(variableX));
+                    lossVariable = lossVariable == null ? stepLoss : lossVariable.add(stepLoss);
+                    chunkSteps++;
+
+                    if (chunkSteps < truncatedBpttSteps && j < batch.getSize() - 1) {
+                        continue;
+                    }
+                    lossVariable.setName("loss");
+                    model.clearGrads();
+                    lossSum += lossVariable.getValue().getNumber().floatValue();
+                    stepCount += chunkSteps;
+
+                    if (Config.parallel) {
+                        lossVariable.backwardParallel();
+                    } else {
+                        lossVariable.backwardIterative();
+                    }
+                    optimizer.update();
+                    // 切断计算图，隐藏状态作为下一段的起点
+                    lossVariable.unChainBackward();
+
+                    lossVariable = null;
+                    chunkSteps = 0;
+                }
+            }
+            monitor.collectInfo(stepCount == 0 ? 0f : lossSum / stepCount);
+            monitor.endEpoch();
+            monitor.printTrainInfo();
+        }
+        monitor.plot();
+    }
+
+    /**
+     * 设置截断的时间反向传播的步长
+     *
+     * @param steps 每次反向传播覆盖的时间步数，0表示不启用
+     */
+    public void configureTruncatedBptt(int steps) {
+        if (steps < 0) {
+            throw new IllegalArgumentException("truncated BPTT steps must not be negative!");
+        }
+        this.truncatedBpttSteps = steps;
+    }
+
+    /**
+     * 获取截断的时间反向传播的步长
+     *
+     * @return 时间步数，0表示未启用
+     */
+    public int getTruncatedBpttSteps() {
+        return truncatedBpttSteps;
+    }
+
     /**
      * 设置并行训练参数
      * @param enable 是否启用并行训练
@@ -460,7 +554,7 @@ public class Trainer {
                     float lossValue = lossVariable.getValue().getNumber().floatValue();
                     totalLoss += lossValue;
 
-                    lossVariable.backward();
+                    lossVariable.backwardIterative();
                     optimizer.update();
                     lossVariable.unChainBackward();
 
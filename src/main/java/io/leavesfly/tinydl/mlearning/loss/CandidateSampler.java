@@ -0,0 +1,152 @@
+package io.leavesfly.tinydl.mlearning.loss;
+
+import java.util.Random;
+
+/**
+ * 候选类别采样器
+ *
+ * 为采样Softmax按提议分布Q采样负类别，并给出每个类别的采样概率，用于logQ修正。
+ * 提供两种常用的提议分布：
+ * 1. log-uniform（Zipf）：适用于按词频降序编号的词表，P(c) = log((c+2)/(c+1)) / log(V+1)；
+ * 2. unigram^0.75：按词频的幂次平滑分布采样，与Word2Vec的负采样一致。
+ */
+public abstract class CandidateSampler {
+
+    protected final int vocabSize;
+
+    protected final Random random;
+
+    protected CandidateSampler(int vocabSize, long seed) {
+        if (vocabSize <= 0) {
+            throw new IllegalArgumentException("vocabSize must be positive!");
+        }
+        this.vocabSize = vocabSize;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * 创建log-uniform采样器
+     *
+     * @param vocabSize 词表大小，类别编号需按频率降序排列
+     * @param seed 随机种子
+     * @return 采样器
+     */
+    public static CandidateSampler logUniform(int vocabSize, long seed) {
+        return new LogUniformSampler(vocabSize, seed);
+    }
+
+    /**
+     * 创建unigram^power采样器
+     *
+     * @param counts 每个类别的出现次数
+     * @param power 平滑幂次，通常为0.75
+     * @param seed 随机种子
+     * @return 采样器
+     */
+    public static CandidateSampler unigram(float[] counts, double power, long seed) {
+        return new UnigramSampler(counts, power, seed);
+    }
+
+    /**
+     * 有放回地采样k个类别
+     *
+     * @param k 采样数量
+     * @return 采样得到的类别编号
+     */
+    public int[] sample(int k) {
+        int[] result = new int[k];
+        for (int i = 0; i < k; i++) {
+            result[i] = sampleOne();
+        }
+        return result;
+    }
+
+    /**
+     * 采样一个类别
+     *
+     * @return 类别编号
+     */
+    protected abstract int sampleOne();
+
+    /**
+     * 类别被单次采样选中的概率
+     *
+     * @param id 类别编号
+     * @return 概率
+     */
+    public abstract double probability(int id);
+
+    public int getVocabSize() {
+        return vocabSize;
+    }
+
+    /**
+     * log-uniform（Zipf）分布采样器
+     */
+    private static class LogUniformSampler extends CandidateSampler {
+
+        private final double logRange;
+
+        LogUniformSampler(int vocabSize, long seed) {
+            super(vocabSize, seed);
+            this.logRange = Math.log(vocabSize + 1.0);
+        }
+
+        @Override
+        protected int sampleOne() {
+            int id = (int) Math.exp(random.nextDouble() * logRange) - 1;
+            return Math.min(Math.max(id, 0), vocabSize - 1);
+        }
+
+        @Override
+        public double probability(int id) {
+            return (Math.log(id + 2.0) - Math.log(id + 1.0)) / logRange;
+        }
+    }
+
+    /**
+     * unigram^power分布采样器，使用累积分布与二分查找采样
+     */
+    private static class UnigramSampler extends CandidateSampler {
+
+        private final double[] cumulative;
+
+        private final double total;
+
+        UnigramSampler(float[] counts, double power, long seed) {
+            super(counts.length, seed);
+            cumulative = new double[counts.length];
+            double sum = 0.0;
+            for (int i = 0; i < counts.length; i++) {
+                sum += Math.pow(Math.max(counts[i], 0f), power);
+                cumulative[i] = sum;
+            }
+            if (sum <= 0.0) {
+                throw new IllegalArgumentException("unigram counts must not be all zero!");
+            }
+            total = sum;
+        }
+
+        @Override
+        protected int sampleOne() {
+            double target = random.nextDouble() * total;
+            int low = 0;
+            int high = cumulative.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] > target) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public double probability(int id) {
+            double previous = id == 0 ? 0.0 : cumulative[id - 1];
+            return (cumulative[id] - previous) / total;
+        }
+    }
+}
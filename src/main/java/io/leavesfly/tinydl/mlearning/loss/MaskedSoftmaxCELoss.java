@@ -1,6 +1,7 @@
 package io.leavesfly.tinydl.mlearning.loss;
 
 import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.func.loss.SoftmaxCE;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 
@@ -9,6 +10,7 @@ import io.leavesfly.tinydl.ndarr.Shape;
  * 
  * 用于处理序列模型中的掩码交叉熵损失计算，特别适用于处理变长序列。
  * 在序列处理中，较短的序列会被填充到固定长度，掩码用于忽略填充部分的损失计算。
+ * 掩码的元素个数与样本数（预测值除最后一维外的元素个数）一致，例如(batch_size, seq_len)。
  * 
  * @author TinyDL
  * @version 1.0
@@ -17,6 +19,8 @@ public class MaskedSoftmaxCELoss extends SoftmaxCrossEntropy {
     
     private NdArray mask;
     
+    private int ignoreIndex = SoftmaxCE.NO_IGNORE;
+    
     /**
      * 构造函数
      */
@@ -36,83 +40,19 @@ public class MaskedSoftmaxCELoss extends SoftmaxCrossEntropy {
     /**
      * 计算掩码Softmax交叉熵损失
      * 
-     * @param y 真实标签
+     * 掩码与忽略标签都交给融合的SoftmaxCE处理：被掩盖的位置不参与损失与梯度，
+     * 损失按有效位置的个数求平均，全部被掩盖时损失为0。
+     * 
+     * @param y 真实标签（类别索引）
      * @param predict 预测值
      * @return 损失值变量
      */
     @Override
     public Variable loss(Variable y, Variable predict) {
-        // 计算标准的Softmax交叉熵损失
-        Variable standardLoss = super.loss(y, predict);
-        
-        // 如果提供了掩码，则应用掩码
-        if (mask != null) {
-            NdArray lossValue = standardLoss.getValue();
-            
-            // 确保掩码形状与损失值形状兼容
-            NdArray broadcastMask = mask;
-            if (!mask.getShape().equals(lossValue.getShape())) {
-                // 如果掩码是一维的，需要广播到损失值的形状
-                if (mask.getShape().dimension.length == 1) {
-                    // 创建与损失值形状相同的掩码
-                    broadcastMask = mask.reshape(new Shape(mask.getShape().dimension[0], 1));
-                }
-                // 如果需要，进一步广播到完整形状
-                if (!broadcastMask.getShape().equals(lossValue.getShape())) {
-                    // 检查是否可以广播
-                    Shape maskShape = broadcastMask.getShape();
-                    Shape lossShape = lossValue.getShape();
-                    
-                    // 确保目标形状的每个维度都大于等于原数组对应维度
-                    if (lossShape.dimension.length >= maskShape.dimension.length) {
-                        // 检查是否可以安全广播
-                        boolean canBroadcast = true;
-                        for (int i = 0; i < maskShape.dimension.length; i++) {
-                            int maskDim = maskShape.dimension[maskShape.dimension.length - 1 - i];
-                            int lossDim = lossShape.dimension[lossShape.dimension.length - 1 - i];
-                            if (maskDim != 1 && maskDim != lossDim) {
-                                canBroadcast = false;
-                                break;
-                            }
-                        }
-                        
-                        if (canBroadcast) {
-                            broadcastMask = broadcastMask.broadcastTo(lossShape);
-                        } else {
-                            // 如果无法直接广播，创建一个新的掩码
-                            broadcastMask = new NdArray(lossShape);
-                            // 将原掩码的值复制到新掩码中（简化处理）
-                            for (int i = 0; i < Math.min(broadcastMask.getShape().size(), maskShape.size()); i++) {
-                                broadcastMask.buffer[i] = mask.buffer[i % mask.buffer.length];
-                            }
-                        }
-                    } else {
-                        // 如果无法直接广播，创建一个新的掩码
-                        broadcastMask = new NdArray(lossShape);
-                        // 将原掩码的值复制到新掩码中（简化处理）
-                        for (int i = 0; i < Math.min(broadcastMask.getShape().size(), maskShape.size()); i++) {
-                            broadcastMask.buffer[i] = mask.buffer[i % mask.buffer.length];
-                        }
-                    }
-                }
-            }
-            
-            // 应用掩码：将填充位置的损失设为0
-            NdArray maskedLoss = lossValue.mul(broadcastMask);
-            
-            // 计算平均损失时只考虑有效位置
-            float validPositions = broadcastMask.sum().getNumber().floatValue();
-            if (validPositions > 0) {
-                // 返回掩码后的平均损失
-                return new Variable(maskedLoss.sum().divNum(validPositions));
-            } else {
-                // 如果没有有效位置，返回0损失
-                return new Variable(0f);
-            }
+        if (mask == null && ignoreIndex == SoftmaxCE.NO_IGNORE) {
+            return super.loss(y, predict);
         }
-        
-        // 如果没有提供掩码，返回标准损失
-        return standardLoss;
+        return predict.softmaxCrossEntropy(y, ignoreIndex, mask);
     }
     
     /**
@@ -131,6 +71,22 @@ public class MaskedSoftmaxCELoss extends SoftmaxCrossEntropy {
         return mask;
     }
     
+    /**
+     * 设置需要忽略的标签值（例如填充符的索引）
+     * @param ignoreIndex 标签值，SoftmaxCE.NO_IGNORE表示不忽略
+     */
+    public void setIgnoreIndex(int ignoreIndex) {
+        this.ignoreIndex = ignoreIndex;
+    }
+    
+    /**
+     * 获取需要忽略的标签值
+     * @return 标签值
+     */
+    public int getIgnoreIndex() {
+        return ignoreIndex;
+    }
+    
     /**
      * 创建序列掩码
      * 
@@ -0,0 +1,121 @@
+package io.leavesfly.tinydl.mlearning.loss;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.func.loss.ChunkedLinearCE;
+import io.leavesfly.tinydl.func.loss.SampledSoftmaxCE;
+import io.leavesfly.tinydl.func.loss.SoftmaxCE;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.utils.Config;
+
+/**
+ * 采样Softmax损失函数
+ *
+ * 用于大词表输出层的训练：预测值传入输出层之前的隐藏状态，输出层的权重与偏置由构造函数给出。
+ * 训练时（Config.train为true）每次调用按提议分布采样k个负类别，只对真实类别与采样类别计算logits，
+ * 并减去log(Q)修正采样偏差，输出层的计算量从O(vocab)降为O(k)，
+ * 权重与偏置只得到这些类别对应列的稀疏梯度，优化器也只更新这些列；
+ * 推理时回退到完整Softmax，使用分块的输出投影与交叉熵损失计算精确值。
+ *
+ * 与Word2Vec中的负采样思路一致，但作为通用损失函数可用于任意输出层。
+ */
+public class SampledSoftmaxLoss extends Loss {
+
+    private final Parameter weight;
+
+    private final Parameter bias;
+
+    private final int numSampled;
+
+    private final CandidateSampler sampler;
+
+    private int chunkSize = 1024;
+
+    /**
+     * 构造函数
+     *
+     * @param weight 输出层权重，shape: (hiddenSize, vocabSize)
+     * @param bias 输出层偏置，元素个数为vocabSize，为null时不使用偏置
+     * @param numSampled 每次采样的负类别数量
+     * @param sampler 负类别的提议分布
+     */
+    public SampledSoftmaxLoss(Parameter weight, Parameter bias, int numSampled, CandidateSampler sampler) {
+        int vocabSize = weight.getValue().getShape().getColumn();
+        if (numSampled <= 0) {
+            throw new IllegalArgumentException("numSampled must be positive!");
+        }
+        if (sampler.getVocabSize() != vocabSize) {
+            throw new IllegalArgumentException("sampler vocabSize does not match weight! Expected: "
+                    + vocabSize + ", Actual: " + sampler.getVocabSize());
+        }
+        this.weight = weight;
+        this.bias = bias;
+        this.numSampled = numSampled;
+        this.sampler = sampler;
+    }
+
+    /**
+     * 计算损失
+     *
+     * @param y 真实标签（类别索引），元素个数等于样本数
+     * @param predict 输出层之前的隐藏状态，shape: (n, hiddenSize) 或 (batch_size, seq_len, hiddenSize)
+     * @return 平均交叉熵损失
+     */
+    @Override
+    public Variable loss(Variable y, Variable predict) {
+        int[] dimension = predict.getValue().getShape().dimension;
+        int hiddenSize = dimension[dimension.length - 1];
+        int n = predict.getValue().buffer.length / hiddenSize;
+        Variable hidden = dimension.length == 2 ? predict : predict.reshape(new Shape(n, hiddenSize));
+        Variable labels = y.reshape(new Shape(n, 1));
+
+        if (!Config.train) {
+            ChunkedLinearCE fullLoss = new ChunkedLinearCE(chunkSize, SoftmaxCE.NO_IGNORE);
+            return bias == null ? fullLoss.call(hidden, weight, labels)
+                    : fullLoss.call(hidden, weight, bias, labels);
+        }
+
+        int[] sampled = sampler.sample(numSampled);
+        float[] sampledLogQ = new float[numSampled];
+        for (int i = 0; i < numSampled; i++) {
+            sampledLogQ[i] = logExpectedCount(sampled[i]);
+        }
+        float[] labelLogQ = new float[n];
+        for (int i = 0; i < n; i++) {
+            labelLogQ[i] = logExpectedCount((int) labels.getValue().buffer[i]);
+        }
+
+        return new SampledSoftmaxCE(weight, bias, sampled, sampledLogQ, labelLogQ).call(hidden, labels);
+    }
+
+    /**
+     * 类别在k次有放回采样中的期望次数的对数：log(k * P(c))
+     */
+    private float logExpectedCount(int id) {
+        return (float) Math.log(numSampled * sampler.probability(id));
+    }
+
+    public int getNumSampled() {
+        return numSampled;
+    }
+
+    public CandidateSampler getSampler() {
+        return sampler;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * 设置推理时完整Softmax每个词表分块的大小
+     *
+     * @param chunkSize 分块大小
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive!");
+        }
+        this.chunkSize = chunkSize;
+    }
+}
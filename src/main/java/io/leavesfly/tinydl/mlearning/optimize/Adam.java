@@ -3,6 +3,7 @@ package io.leavesfly.tinydl.mlearning.optimize;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.mlearning.Model;
 import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.nnet.RowSparseGrad;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -18,6 +19,9 @@ import java.util.Map;
  * v = β2 * v + (1 - β2) * g^2
  * θ = θ - lr * m_hat / (sqrt(v_hat) + ε)
  * 
+ * 只有按行稀疏梯度的参数（例如词嵌入）采用惰性更新：只有被查到的行更新一阶矩、二阶矩和参数值，
+ * 没有出现在批次中的行保持不变（其矩估计不衰减），每步的代价与批次中的token数成正比。
+ * 
  * @author TinyDL
  * @version 1.0
  */
@@ -67,6 +71,14 @@ public class Adam extends Optimizer {
         super.update();
     }
 
+    /**
+     * 更新单个参数
+     * 
+     * 一阶矩、二阶矩和参数值在同一次遍历中原地更新，
+     * 不再为每一步运算生成一个与参数同样大小的中间张量。
+     * 
+     * @param parameter 参数
+     */
     @Override
     public void updateOne(Parameter parameter) {
 
@@ -75,19 +87,52 @@ public class Adam extends Optimizer {
             ms.put(key, NdArray.zeros(parameter.getValue().getShape()));
             vs.put(key, NdArray.zeros(parameter.getValue().getShape()));
         }
-        NdArray m = ms.get(key);
-        NdArray v = vs.get(key);
+        float[] m = ms.get(key).buffer;
+        float[] v = vs.get(key).buffer;
+        float[] value = parameter.getValue().buffer;
 
-        NdArray grad = parameter.getGrad();
+        RowSparseGrad sparseGrad = parameter.getSparseGrad();
+        if (sparseGrad != null && parameter.getGrad() == null) {
+            updateRows(sparseGrad.coalesce(), m, v, value);
+            return;
+        }
+        NdArray denseGrad = parameter.getDenseGrad();
+        if (denseGrad == null) {
+            return;
+        }
+        float[] grad = denseGrad.buffer;
 
-        m = m.add(grad.sub(m).mulNum(1 - beta1));
-        v = v.add(grad.mul(grad).sub(v).mulNum(1 - beta2));
-        ms.put(key, m);
-        vs.put(key, v);
+        float lr = lr();
+        float decay1 = 1 - beta1;
+        float decay2 = 1 - beta2;
+        for (int i = 0; i < value.length; i++) {
+            float g = grad[i];
+            m[i] += (g - m[i]) * decay1;
+            v[i] += (g * g - v[i]) * decay2;
+            value[i] -= lr * m[i] / ((float) Math.sqrt(v[i]) + epsilon);
+        }
+    }
 
-        NdArray delat = m.mulNum(lr()).div(v.pow(0.5f).add(NdArray.like(v.getShape(), epsilon)));
-        parameter.setValue(parameter.getValue().sub(delat));
+    /**
+     * 惰性更新：只对合并后的稀疏梯度涉及的行做一次Adam更新
+     */
+    private void updateRows(RowSparseGrad sparseGrad, float[] m, float[] v, float[] value) {
+        float[] grad = sparseGrad.getValues();
+        int columns = sparseGrad.getRecordSize();
 
+        float lr = lr();
+        float decay1 = 1 - beta1;
+        float decay2 = 1 - beta2;
+        for (int r = 0; r < sparseGrad.size(); r++) {
+            int source = r * columns;
+            for (int c = 0; c < columns; c++) {
+                int i = sparseGrad.index(r, c);
+                float g = grad[source + c];
+                m[i] += (g - m[i]) * decay1;
+                v[i] += (g * g - v[i]) * decay2;
+                value[i] -= lr * m[i] / ((float) Math.sqrt(v[i]) + epsilon);
+            }
+        }
     }
 
     /**
@@ -1,7 +1,9 @@
 package io.leavesfly.tinydl.mlearning.optimize;
 
 import io.leavesfly.tinydl.mlearning.Model;
+import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.nnet.RowSparseGrad;
 
 /**
  * 随机梯度下降优化器
@@ -9,6 +11,8 @@ import io.leavesfly.tinydl.nnet.Parameter;
  * 实现了经典的随机梯度下降算法，用于更新模型参数。
  * 更新公式：θ = θ - lr * ∇J(θ)
  * 
+ * 只有按行稀疏梯度的参数（例如词嵌入）只更新被查到的行，代价与批次中的token数成正比。
+ * 
  * @author TinyDL
  * @version 1.0
  */
@@ -28,6 +32,30 @@ public class SGD extends Optimizer {
 
     @Override
     public void updateOne(Parameter parameter) {
-        parameter.setValue(parameter.getValue().sub(parameter.getGrad().mulNum(lr)));
+        RowSparseGrad sparseGrad = parameter.getSparseGrad();
+        if (sparseGrad != null && parameter.getGrad() == null) {
+            updateRows(parameter, sparseGrad);
+            return;
+        }
+        NdArray grad = parameter.getDenseGrad();
+        if (grad == null) {
+            return;
+        }
+        parameter.setValue(parameter.getValue().sub(grad.mulNum(lr)));
+    }
+
+    /**
+     * 只更新稀疏梯度涉及的行，重复的行直接逐次相减，不需要先合并
+     */
+    private void updateRows(Parameter parameter, RowSparseGrad sparseGrad) {
+        float[] value = parameter.getValue().buffer;
+        float[] grad = sparseGrad.getValues();
+        int columns = sparseGrad.getRecordSize();
+        for (int i = 0; i < sparseGrad.size(); i++) {
+            int source = i * columns;
+            for (int c = 0; c < columns; c++) {
+                value[sparseGrad.index(i, c)] -= lr * grad[source + c];
+            }
+        }
     }
 }
\ No newline at end of file
@@ -46,7 +46,7 @@ public class GradientAggregator {
             // 累加梯度
             for (Map.Entry<String, Parameter> entry : gradients.entrySet()) {
                 String paramName = entry.getKey();
-                NdArray gradient = entry.getValue().getGrad();
+                NdArray gradient = entry.getValue().getDenseGrad();
                 
                 if (gradient != null) {
                     accumulatedGradients.merge(paramName, gradient, NdArray::add);
@@ -63,7 +63,7 @@ public class ParallelBatchProcessor implements Callable<ParallelBatchProcessor.B
             
             // 4. 清空梯度并执行反向传播
             model.clearGrads();
-            lossVariable.backward();
+            lossVariable.backwardIterative();
             
             // 5. 获取梯度并提交到聚合器
             Map<String, Parameter> gradients = model.getAllParams();
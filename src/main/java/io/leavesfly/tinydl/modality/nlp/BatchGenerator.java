@@ -0,0 +1,136 @@
+package io.leavesfly.tinydl.modality.nlp;
+
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量文本生成
+ *
+ * @author leavesfly
+ * @version 0.01
+ *
+ * 在一个DecodingSession上同时解码多条提示长度不同的请求：
+ * 1. prefill：提示长度相同的请求合成一批输入，各请求的缓存长度可以不同；
+ * 2. 解码：每一步所有未结束的请求各输入一个新token，合成一次批量前向计算，
+ *    已结束的请求不再参与计算。
+ * 每条请求使用自己的采样参数、随机种子与停止token，每生成一个token立即通知TokenListener。
+ */
+public class BatchGenerator {
+
+    private final DecodingSession session;
+
+    /**
+     * @param session 解码会话，样本数不少于一次生成的请求数
+     */
+    public BatchGenerator(DecodingSession session) {
+        this.session = session;
+    }
+
+    /**
+     * 生成文本
+     *
+     * @param requests 生成请求
+     * @param listener 流式回调，可以为null
+     * @return 每条请求生成的token，不含提示与停止token
+     */
+    public List<int[]> generate(List<GenerationRequest> requests, TokenListener listener) {
+        int n = requests.size();
+        if (n == 0 || n > session.getBatchSize()) {
+            throw new IllegalArgumentException("BatchGenerator expects 1 to " + session.getBatchSize()
+                    + " requests, but got " + n);
+        }
+        session.reset();
+
+        TokenSampler[] samplers = new TokenSampler[n];
+        int[][] outputs = new int[n][];
+        int[] counts = new int[n];
+        float[][] nextLogits = new float[n][];
+        for (int i = 0; i < n; i++) {
+            samplers[i] = requests.get(i).newSampler();
+            outputs[i] = new int[requests.get(i).getMaxNewTokens()];
+        }
+
+        // 提示长度相同的请求合成一批prefill
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            groups.computeIfAbsent(requests.get(i).getPromptTokens().length, len -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<Integer, List<Integer>> group : groups.entrySet()) {
+            int[] rows = group.getValue().stream().mapToInt(Integer::intValue).toArray();
+            int length = group.getKey();
+            NdArray tokens = new NdArray(new Shape(rows.length, length));
+            for (int i = 0; i < rows.length; i++) {
+                int[] prompt = requests.get(rows[i]).getPromptTokens();
+                for (int t = 0; t < length; t++) {
+                    tokens.buffer[i * length + t] = prompt[t];
+                }
+            }
+            storeLogits(rows, session.feed(rows, tokens), nextLogits);
+        }
+
+        int[] active = new int[n];
+        for (int i = 0; i < n; i++) {
+            active[i] = i;
+        }
+        int activeCount = n;
+        while (activeCount > 0) {
+            int[] feedRows = new int[activeCount];
+            float[] feedTokens = new float[activeCount];
+            int feedCount = 0;
+            for (int a = 0; a < activeCount; a++) {
+                int row = active[a];
+                GenerationRequest request = requests.get(row);
+                int token = samplers[row].sample(nextLogits[row], 0, nextLogits[row].length);
+                if (request.isStopToken(token)) {
+                    finish(row, outputs, counts, listener);
+                    continue;
+                }
+                outputs[row][counts[row]++] = token;
+                if (listener != null) {
+                    listener.onToken(row, token);
+                }
+                if (counts[row] == request.getMaxNewTokens() || session.length(row) >= session.getMaxLength()) {
+                    finish(row, outputs, counts, listener);
+                    continue;
+                }
+                feedRows[feedCount] = row;
+                feedTokens[feedCount] = token;
+                feedCount++;
+            }
+            if (feedCount == 0) {
+                break;
+            }
+            // 所有未结束的请求各输入一个token，一次批量前向
+            int[] rows = Arrays.copyOf(feedRows, feedCount);
+            NdArray tokens = new NdArray(Arrays.copyOf(feedTokens, feedCount), new Shape(feedCount, 1));
+            storeLogits(rows, session.feed(rows, tokens), nextLogits);
+            active = rows;
+            activeCount = feedCount;
+        }
+
+        List<int[]> results = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            results.add(Arrays.copyOf(outputs[i], counts[i]));
+        }
+        return results;
+    }
+
+    private static void storeLogits(int[] rows, NdArray logits, float[][] nextLogits) {
+        int vocabSize = logits.shape.dimension[1];
+        for (int i = 0; i < rows.length; i++) {
+            nextLogits[rows[i]] = Arrays.copyOfRange(logits.buffer, i * vocabSize, (i + 1) * vocabSize);
+        }
+    }
+
+    private static void finish(int row, int[][] outputs, int[] counts, TokenListener listener) {
+        if (listener != null) {
+            listener.onFinish(row, Arrays.copyOf(outputs[row], counts[row]));
+        }
+    }
+}
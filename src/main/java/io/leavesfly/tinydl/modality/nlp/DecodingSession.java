@@ -0,0 +1,218 @@
+package io.leavesfly.tinydl.modality.nlp;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.layer.transformer.CachedDecoderLayer;
+import io.leavesfly.tinydl.nnet.layer.transformer.GPT2OutputHead;
+import io.leavesfly.tinydl.nnet.layer.transformer.GPT2TokenEmbedding;
+import io.leavesfly.tinydl.nnet.layer.transformer.KVCache;
+import io.leavesfly.tinydl.nnet.layer.transformer.LayerNorm;
+import io.leavesfly.tinydl.utils.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 自回归解码会话
+ *
+ * @author leavesfly
+ * @version 0.01
+ *
+ * 会话为模型的每个解码器层保存一份KVCache，并记录每个样本已经输入的token数。
+ * 第一次feed输入提示（prefill），之后每一步只输入新生成的token，
+ * 每个token的K/V只计算一次，生成N个token的总计算量由 O(N²) 次完整前向降为 O(N) 次单token前向。
+ * 输出头只对最后一个位置计算，返回 (样本数, vocabSize) 的logits。
+ *
+ * 会话只用于推理，feed期间关闭Config.train，不构建计算图。
+ */
+public class DecodingSession {
+
+    private final GPT2TokenEmbedding tokenEmbedding;
+    private final List<? extends CachedDecoderLayer> layers;
+    private final LayerNorm finalLayerNorm;
+    private final GPT2OutputHead outputHead;
+    private final List<KVCache> caches;
+    private final int batchSize;
+    private final int maxLength;
+
+    /**
+     * 每个样本已输入的token数，即下一个token的位置
+     */
+    private final int[] positions;
+
+    /**
+     * 构造解码会话
+     *
+     * @param tokenEmbedding Token嵌入层
+     * @param layers 解码器层
+     * @param finalLayerNorm 最终层归一化
+     * @param outputHead 输出头
+     * @param dModel 模型维度
+     * @param batchSize 同时解码的样本数
+     * @param maxLength 每个样本的最大长度，通常为模型的maxSeqLength
+     * @param preallocate 是否一次分配maxLength的缓存，否则按需扩容
+     */
+    public DecodingSession(GPT2TokenEmbedding tokenEmbedding, List<? extends CachedDecoderLayer> layers,
+                           LayerNorm finalLayerNorm, GPT2OutputHead outputHead, int dModel,
+                           int batchSize, int maxLength, boolean preallocate) {
+        this.tokenEmbedding = tokenEmbedding;
+        this.layers = layers;
+        this.finalLayerNorm = finalLayerNorm;
+        this.outputHead = outputHead;
+        this.batchSize = batchSize;
+        this.maxLength = maxLength;
+        this.positions = new int[batchSize];
+        this.caches = new ArrayList<>();
+        for (int i = 0; i < layers.size(); i++) {
+            caches.add(KVCache.create(batchSize, dModel, maxLength, preallocate));
+        }
+    }
+
+    /**
+     * 所有样本输入相同数量的新token
+     *
+     * @param tokenIds 新token，shape: (batchSize, new_len)
+     * @return 每个样本最后一个位置的logits，shape: (batchSize, vocabSize)
+     */
+    public NdArray feed(NdArray tokenIds) {
+        int[] rows = new int[batchSize];
+        for (int b = 0; b < batchSize; b++) {
+            rows[b] = b;
+        }
+        return feed(rows, tokenIds);
+    }
+
+    /**
+     * 只对部分样本输入新token，其余样本的缓存保持不变
+     *
+     * @param rows 参与本次计算的样本下标，互不相同
+     * @param tokenIds 新token，shape: (rows.length, new_len)，第i行属于第rows[i]个样本
+     * @return 这些样本最后一个位置的logits，shape: (rows.length, vocabSize)
+     */
+    public NdArray feed(int[] rows, NdArray tokenIds) {
+        int[] dims = tokenIds.shape.dimension;
+        checkInput(rows, tokenIds);
+
+        boolean train = Config.train;
+        Config.train = false;
+        try {
+            NdArray hidden = forwardHidden(rows, tokenIds).getValue();
+
+            // 只取最后一个位置的隐藏状态送入输出头
+            int seqLen = dims[1];
+            int dModel = hidden.shape.dimension[2];
+            NdArray last = new NdArray(new Shape(rows.length, 1, dModel));
+            for (int i = 0; i < rows.length; i++) {
+                System.arraycopy(hidden.buffer, ((i + 1) * seqLen - 1) * dModel, last.buffer, i * dModel, dModel);
+            }
+            NdArray logits = outputHead.layerForward(new Variable(last)).getValue();
+            return logits.reshape(new Shape(rows.length, logits.shape.dimension[2]));
+        } finally {
+            Config.train = train;
+        }
+    }
+
+    /**
+     * 输入新token并返回每个新位置的logits，用于一次前向验证多个token（例如投机解码）
+     *
+     * @param rows 参与本次计算的样本下标，互不相同
+     * @param tokenIds 新token，shape: (rows.length, new_len)，第i行属于第rows[i]个样本
+     * @return 每个新位置的logits，shape: (rows.length, new_len, vocabSize)，第t个位置是输入前t+1个新token之后的预测
+     */
+    public NdArray feedAll(int[] rows, NdArray tokenIds) {
+        checkInput(rows, tokenIds);
+
+        boolean train = Config.train;
+        Config.train = false;
+        try {
+            return outputHead.layerForward(forwardHidden(rows, tokenIds)).getValue();
+        } finally {
+            Config.train = train;
+        }
+    }
+
+    /**
+     * 把第row个样本回退到前length个token，丢弃之后各层缓存的K/V
+     */
+    public void truncate(int row, int length) {
+        if (length < 0 || length > positions[row]) {
+            throw new IllegalArgumentException("DecodingSession cannot truncate row " + row + " of length "
+                    + positions[row] + " to " + length);
+        }
+        for (KVCache cache : caches) {
+            cache.truncate(row, length);
+        }
+        positions[row] = length;
+    }
+
+    /**
+     * 嵌入新token并依次通过各解码器层与最终层归一化
+     */
+    private Variable forwardHidden(int[] rows, NdArray tokenIds) {
+        int[] starts = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            starts[i] = positions[rows[i]];
+        }
+        Variable x = tokenEmbedding.forwardAt(new Variable(tokenIds), starts);
+        for (int l = 0; l < layers.size(); l++) {
+            x = layers.get(l).forwardCached(x, caches.get(l), rows);
+        }
+        for (int row : rows) {
+            positions[row] += tokenIds.shape.dimension[1];
+        }
+        return finalLayerNorm.layerForward(x);
+    }
+
+    private void checkInput(int[] rows, NdArray tokenIds) {
+        int[] dims = tokenIds.shape.dimension;
+        if (dims.length != 2 || dims[0] != rows.length || dims[1] == 0) {
+            throw new IllegalArgumentException("DecodingSession expects (" + rows.length
+                    + ", new_len) token ids, but got " + tokenIds.getShape());
+        }
+        checkRows(rows);
+    }
+
+    private void checkRows(int[] rows) {
+        boolean[] seen = new boolean[batchSize];
+        for (int row : rows) {
+            if (row < 0 || row >= batchSize || seen[row]) {
+                throw new IllegalArgumentException("DecodingSession rows must be distinct and in [0, " + batchSize + ")");
+            }
+            seen[row] = true;
+        }
+    }
+
+    /**
+     * 清空所有样本，开始新的解码，保留已分配的缓存
+     */
+    public void reset() {
+        for (KVCache cache : caches) {
+            cache.reset();
+        }
+        Arrays.fill(positions, 0);
+    }
+
+    /**
+     * 第row个样本已输入的token数
+     */
+    public int length(int row) {
+        return positions[row];
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * 获取各解码器层的缓存
+     */
+    public List<KVCache> getCaches() {
+        return caches;
+    }
+}
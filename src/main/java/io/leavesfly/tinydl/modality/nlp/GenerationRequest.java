@@ -0,0 +1,110 @@
+package io.leavesfly.tinydl.modality.nlp;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * 一条文本生成请求
+ *
+ * @author leavesfly
+ * @version 0.01
+ *
+ * 包含提示token、最多生成的token数、采样参数、随机种子与停止token。
+ * 默认使用贪心解码（temperature = 0），不限制top-k与top-p，没有停止token。
+ */
+public class GenerationRequest {
+
+    private final int[] promptTokens;
+    private final int maxNewTokens;
+    private float temperature = 0f;
+    private int topK = 0;
+    private float topP = 1f;
+    private Long seed;
+    private int[] stopTokens = new int[0];
+
+    /**
+     * @param promptTokens 提示token，至少包含一个token
+     * @param maxNewTokens 最多生成的token数
+     */
+    public GenerationRequest(int[] promptTokens, int maxNewTokens) {
+        if (promptTokens == null || promptTokens.length == 0) {
+            throw new IllegalArgumentException("GenerationRequest prompt must contain at least one token!");
+        }
+        if (maxNewTokens <= 0) {
+            throw new IllegalArgumentException("GenerationRequest maxNewTokens must be positive, but got " + maxNewTokens);
+        }
+        this.promptTokens = promptTokens;
+        this.maxNewTokens = maxNewTokens;
+    }
+
+    /**
+     * 按本请求的采样参数创建采样器，设置了随机种子时结果可复现
+     * 
+     * 相邻的种子在java.util.Random中产生的前几个随机数高度相关，种子先经过SplittableRandom打散，
+     * 使用 0, 1, 2, ... 作为各请求的种子时各请求的采样结果仍然相互独立。
+     */
+    public TokenSampler newSampler() {
+        Random random = seed == null ? new Random() : new Random(new SplittableRandom(seed).nextLong());
+        return new TokenSampler(temperature, topK, topP, random);
+    }
+
+    /**
+     * 是否为停止token，生成停止token时结束该请求，停止token本身不输出
+     */
+    public boolean isStopToken(int token) {
+        for (int stopToken : stopTokens) {
+            if (stopToken == token) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int[] getPromptTokens() {
+        return promptTokens;
+    }
+
+    public int getMaxNewTokens() {
+        return maxNewTokens;
+    }
+
+    public float getTemperature() {
+        return temperature;
+    }
+
+    public void setTemperature(float temperature) {
+        this.temperature = temperature;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public void setTopK(int topK) {
+        this.topK = topK;
+    }
+
+    public float getTopP() {
+        return topP;
+    }
+
+    public void setTopP(float topP) {
+        this.topP = topP;
+    }
+
+    public Long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int[] getStopTokens() {
+        return stopTokens;
+    }
+
+    public void setStopTokens(int... stopTokens) {
+        this.stopTokens = stopTokens;
+    }
+}
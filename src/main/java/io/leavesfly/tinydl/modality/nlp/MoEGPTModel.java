@@ -1,6 +1,7 @@
 package io.leavesfly.tinydl.modality.nlp;
 
 import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.mlearning.loss.SampledSoftmaxLoss;
 import io.leavesfly.tinydl.modality.nlp.block.MoETransformerBlock;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
@@ -280,8 +281,47 @@ public class MoEGPTModel extends Block {
     
     @Override
     public Variable layerForward(Variable... inputs) {
-        Variable tokenIds = inputs[0];  // shape: (batch_size, seq_len)
-        
+        // 4. 输出投影到词汇表
+        return outputHead.layerForward(forwardHidden(inputs[0]));
+    }
+    
+    /**
+     * 计算语言模型的交叉熵损失
+     * 
+     * 隐藏状态直接交给输出头的分块投影与损失融合计算，不生成完整的logits张量，
+     * 训练时的峰值内存不再随词表大小线性增长。
+     * 
+     * @param tokenIds 输入token序列，shape: (batch_size, seq_len)
+     * @param targetIds 目标token序列，shape: (batch_size, seq_len)
+     * @return 平均交叉熵损失
+     */
+    public Variable computeLoss(Variable tokenIds, Variable targetIds) {
+        return outputHead.loss(forwardHidden(tokenIds), targetIds);
+    }
+    
+    /**
+     * 使用采样Softmax计算语言模型的损失
+     * 
+     * 训练时只对目标token与采样的负类别计算输出投影，推理时回退到完整Softmax。
+     * 损失函数通常由输出头的参数构造：
+     * new SampledSoftmaxLoss(getOutputHead().getOutputWeight(), getOutputHead().getOutputBias(), k, sampler)
+     * 
+     * @param tokenIds 输入token序列，shape: (batch_size, seq_len)
+     * @param targetIds 目标token序列，shape: (batch_size, seq_len)
+     * @param sampledLoss 采样Softmax损失函数
+     * @return 平均交叉熵损失
+     */
+    public Variable computeLoss(Variable tokenIds, Variable targetIds, SampledSoftmaxLoss sampledLoss) {
+        return sampledLoss.loss(targetIds, forwardHidden(tokenIds));
+    }
+    
+    /**
+     * 计算输出头之前的隐藏状态
+     * 
+     * @param tokenIds 输入token序列，shape: (batch_size, seq_len)
+     * @return 最终层归一化之后的隐藏状态，shape: (batch_size, seq_len, dModel)
+     */
+    private Variable forwardHidden(Variable tokenIds) {
         // 验证输入形状
         NdArray inputData = tokenIds.getValue();
         if (inputData.shape.dimension.length != 2) {
@@ -306,10 +346,7 @@ public class MoEGPTModel extends Block {
         // 3. 最终层归一化
         x = finalLayerNorm.layerForward(x);
         
-        // 4. 输出投影到词汇表
-        Variable logits = outputHead.layerForward(x);
-        
-        return logits;
+        return x;
     }
     
     /**
@@ -329,29 +366,60 @@ public class MoEGPTModel extends Block {
      * @return 最可能的下一个token ID
      */
     public int predictNextToken(NdArray tokenIds) {
-        Variable input = new Variable(tokenIds);
-        Variable logits = generate(input);
-        
-        // 获取最后一个位置的logits
-        NdArray logitsData = logits.getValue();
-        int batchSize = logitsData.shape.dimension[0];
-        int seqLen = logitsData.shape.dimension[1];
+        // 只对第一个样本做一次prefill，输出头只计算最后一个位置
+        int seqLen = tokenIds.shape.dimension[1];
+        NdArray first = new NdArray(new Shape(1, seqLen));
+        System.arraycopy(tokenIds.buffer, 0, first.buffer, 0, seqLen);
+        return predictNextToken(newDecodingSession(1, false), first);
+    }
+    
+    /**
+     * 在解码会话上输入新token并预测下一个token（贪心解码）
+     * 
+     * @param session 解码会话，由newDecodingSession创建
+     * @param newTokenIds 第一个样本新输入的token，shape: (1, new_len)
+     * @return 最可能的下一个token ID
+     */
+    public int predictNextToken(DecodingSession session, NdArray newTokenIds) {
+        NdArray logits = session.feed(new int[]{0}, newTokenIds);
         
         // 找到最大概率的token（简单的贪心解码）
         float maxLogit = Float.NEGATIVE_INFINITY;
         int bestToken = 0;
-        
         for (int v = 0; v < vocabSize; v++) {
-            float logit = logitsData.get(0, seqLen - 1, v);  // 取第一个batch的最后一个位置
-            if (logit > maxLogit) {
-                maxLogit = logit;
+            if (logits.buffer[v] > maxLogit) {
+                maxLogit = logits.buffer[v];
                 bestToken = v;
             }
         }
-        
         return bestToken;
     }
     
+    /**
+     * 批量生成文本
+     * 
+     * 提示长度不同的多条请求在同一个解码会话中一起解码，每条请求使用各自的采样参数、随机种子与停止token。
+     * 
+     * @param requests 生成请求
+     * @param listener 每生成一个token时的回调，可以为null
+     * @return 每条请求生成的token，不含提示与停止token
+     */
+    public List<int[]> generate(List<GenerationRequest> requests, TokenListener listener) {
+        return new BatchGenerator(newDecodingSession(requests.size(), false)).generate(requests, listener);
+    }
+    
+    /**
+     * 创建使用键/值缓存的解码会话
+     * 
+     * @param batchSize 同时解码的样本数
+     * @param preallocate 是否一次分配maxSeqLength的缓存，否则按需扩容
+     * @return 解码会话
+     */
+    public DecodingSession newDecodingSession(int batchSize, boolean preallocate) {
+        return new DecodingSession(tokenEmbedding, moeTransformerBlocks, finalLayerNorm, outputHead,
+                dModel, batchSize, maxSeqLength, preallocate);
+    }
+    
     /**
      * 计算总的负载均衡损失
      * 这个损失应该添加到训练损失中以鼓励专家的均匀使用
@@ -0,0 +1,197 @@
+package io.leavesfly.tinydl.modality.nlp;
+
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+
+import java.util.Arrays;
+
+/**
+ * 使用小规模草稿模型的投机解码
+ *
+ * @author leavesfly
+ * @version 0.01
+ *
+ * 每一轮由草稿模型逐个提出k个token并记录其采样分布q，目标模型只做一次前向，
+ * 同时得到这k个位置以及其后一个位置的分布p，然后依次验证：
+ * 1. 以 min(1, p(x) / q(x)) 的概率接受草稿token x；
+ * 2. 第一个被拒绝的位置从 max(0, p - q) 归一化后的分布重新采样，本轮结束；
+ * 3. 全部接受时再从目标模型的第k+1个分布额外采样一个token。
+ * 这种拒绝采样的修正保证输出序列的分布与直接用目标模型逐个采样完全相同，
+ * 草稿模型越接近目标模型，每次目标模型前向平均产出的token越多。
+ *
+ * 两个模型各自使用一个DecodingSession，被拒绝的草稿token通过truncate从缓存中回退。
+ * 草稿模型的最大长度较短时（例如用createTinyModel为createSmallModel做草稿），
+ * 草稿模型的缓存放满之后不再提出token，退化为目标模型逐个解码。
+ * 采样参数（温度、top-k、top-p）同时作用于p与q，温度为0时与目标模型的贪心解码结果一致。
+ */
+public class SpeculativeDecoder {
+
+    private static final int[] ROW = {0};
+
+    private final GPT2Model target;
+    private final GPT2Model draft;
+    private final int numSpeculativeTokens;
+
+    private long proposedTokens;
+    private long acceptedTokens;
+
+    /**
+     * @param target 目标模型
+     * @param draft 草稿模型，词表必须与目标模型一致
+     * @param numSpeculativeTokens 每一轮草稿模型提出的token数k
+     */
+    public SpeculativeDecoder(GPT2Model target, GPT2Model draft, int numSpeculativeTokens) {
+        if (target.getVocabSize() != draft.getVocabSize()) {
+            throw new IllegalArgumentException("SpeculativeDecoder target and draft models must share the vocabulary, but got "
+                    + target.getVocabSize() + " and " + draft.getVocabSize());
+        }
+        if (numSpeculativeTokens <= 0) {
+            throw new IllegalArgumentException("SpeculativeDecoder numSpeculativeTokens must be positive, but got "
+                    + numSpeculativeTokens);
+        }
+        this.target = target;
+        this.draft = draft;
+        this.numSpeculativeTokens = numSpeculativeTokens;
+    }
+
+    /**
+     * 生成文本
+     *
+     * @param request 生成请求
+     * @param listener 流式回调，可以为null，requestIndex固定为0
+     * @return 生成的token，不含提示与停止token
+     */
+    public int[] generate(GenerationRequest request, TokenListener listener) {
+        DecodingSession targetSession = target.newDecodingSession(1, false);
+        DecodingSession draftSession = draft.newDecodingSession(1, false);
+        TokenSampler sampler = request.newSampler();
+        int vocabSize = target.getVocabSize();
+        int maxNewTokens = request.getMaxNewTokens();
+        int[] output = new int[maxNewTokens];
+        int count = 0;
+
+        // 提示的最后一个token留到第一轮，与草稿token一起输入
+        int[] prompt = request.getPromptTokens();
+        if (prompt.length > 1) {
+            NdArray context = tokens(Arrays.copyOf(prompt, prompt.length - 1));
+            targetSession.feed(ROW, context);
+            draftSession.feed(ROW, context);
+        }
+        int targetPending = prompt[prompt.length - 1];
+        int[] draftPending = {targetPending};
+
+        boolean finished = false;
+        while (!finished && count < maxNewTokens) {
+            int targetLength = targetSession.length(0);
+            int draftLength = draftSession.length(0);
+            if (targetLength + 1 > target.getMaxSeqLength()) {
+                break;
+            }
+            // 本轮最多提出的草稿token数：不超过剩余可生成的数量，且两个模型的缓存都放得下
+            int k = Math.min(numSpeculativeTokens, maxNewTokens - count - 1);
+            k = Math.min(k, target.getMaxSeqLength() - targetLength - 1);
+            k = Math.max(0, Math.min(k, draft.getMaxSeqLength() - draftLength - draftPending.length + 1));
+
+            // 1. 草稿模型逐个提出k个token，记录其采样分布q
+            int[] proposals = new int[k];
+            double[][] q = new double[k][];
+            for (int i = 0; i < k; i++) {
+                NdArray logits = draftSession.feed(ROW, tokens(i == 0 ? draftPending : new int[]{proposals[i - 1]}));
+                q[i] = sampler.probabilities(logits.buffer, 0, vocabSize);
+                proposals[i] = sampler.sample(q[i]);
+            }
+
+            // 2. 目标模型一次前向，得到k+1个位置的logits
+            int[] verify = new int[k + 1];
+            verify[0] = targetPending;
+            System.arraycopy(proposals, 0, verify, 1, k);
+            NdArray targetLogits = targetSession.feedAll(ROW, tokens(verify));
+
+            // 3. 依次验证草稿token，第一个被拒绝的位置从 max(0, p - q) 重新采样
+            int accepted = 0;
+            int next = -1;
+            for (int i = 0; i < k; i++) {
+                double[] p = sampler.probabilities(targetLogits.buffer, i * vocabSize, vocabSize);
+                int proposal = proposals[i];
+                if (sampler.accept(p[proposal] / q[i][proposal])) {
+                    accepted++;
+                    continue;
+                }
+                double[] residual = new double[vocabSize];
+                double mass = 0;
+                for (int v = 0; v < vocabSize; v++) {
+                    residual[v] = Math.max(0, p[v] - q[i][v]);
+                    mass += residual[v];
+                }
+                next = sampler.sample(mass > 0 ? residual : p);
+                break;
+            }
+            if (next < 0) {
+                // 全部接受，从目标模型的下一个分布额外采样一个token
+                next = sampler.sample(sampler.probabilities(targetLogits.buffer, k * vocabSize, vocabSize));
+            }
+            proposedTokens += k;
+            acceptedTokens += accepted;
+
+            // 4. 回退被拒绝的token，下一轮先输入本轮最后采样的token
+            targetSession.truncate(0, targetLength + 1 + accepted);
+            targetPending = next;
+            if (k == 0) {
+                draftPending = Arrays.copyOf(draftPending, draftPending.length + 1);
+                draftPending[draftPending.length - 1] = next;
+            } else if (accepted == k) {
+                // 最后一个草稿token还没有输入草稿模型
+                draftPending = new int[]{proposals[k - 1], next};
+            } else {
+                draftSession.truncate(0, draftLength + draftPending.length + accepted);
+                draftPending = new int[]{next};
+            }
+
+            // 5. 按顺序输出被接受的草稿token与最后采样的token
+            for (int i = 0; i <= accepted; i++) {
+                int token = i < accepted ? proposals[i] : next;
+                if (request.isStopToken(token)) {
+                    finished = true;
+                    break;
+                }
+                output[count++] = token;
+                if (listener != null) {
+                    listener.onToken(0, token);
+                }
+            }
+        }
+
+        int[] result = Arrays.copyOf(output, count);
+        if (listener != null) {
+            listener.onFinish(0, result);
+        }
+        return result;
+    }
+
+    private static NdArray tokens(int[] ids) {
+        NdArray array = new NdArray(new Shape(1, ids.length));
+        for (int i = 0; i < ids.length; i++) {
+            array.buffer[i] = ids[i];
+        }
+        return array;
+    }
+
+    /**
+     * 草稿token被目标模型接受的比例
+     */
+    public double getAcceptanceRate() {
+        return proposedTokens == 0 ? 0 : (double) acceptedTokens / proposedTokens;
+    }
+
+    public long getProposedTokens() {
+        return proposedTokens;
+    }
+
+    public long getAcceptedTokens() {
+        return acceptedTokens;
+    }
+
+    public int getNumSpeculativeTokens() {
+        return numSpeculativeTokens;
+    }
+}
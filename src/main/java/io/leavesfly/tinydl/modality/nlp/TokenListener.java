@@ -0,0 +1,24 @@
+package io.leavesfly.tinydl.modality.nlp;
+
+/**
+ * 生成过程的流式回调，每生成一个token立即通知
+ */
+public interface TokenListener {
+
+    /**
+     * 第requestIndex条请求生成了一个token
+     *
+     * @param requestIndex 请求在批次中的下标
+     * @param token 生成的token
+     */
+    void onToken(int requestIndex, int token);
+
+    /**
+     * 第requestIndex条请求生成结束（遇到停止token、达到maxNewTokens或模型的最大长度）
+     *
+     * @param requestIndex 请求在批次中的下标
+     * @param tokens 该请求生成的全部token，不含提示与停止token
+     */
+    default void onFinish(int requestIndex, int[] tokens) {
+    }
+}
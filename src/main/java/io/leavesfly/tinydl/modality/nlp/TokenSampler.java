@@ -0,0 +1,249 @@
+package io.leavesfly.tinydl.modality.nlp;
+
+import java.util.Random;
+
+/**
+ * 按logits采样下一个token
+ *
+ * @author leavesfly
+ * @version 0.01
+ *
+ * 支持温度、top-k与top-p（nucleus）采样，温度不大于0时退化为贪心解码。
+ * 候选集合通过堆做部分选择，不对整个词表排序：
+ * top-k使用大小为k的最小堆，复杂度 O(V log k)；
+ * 只有top-p时对全部logits建最大堆（O(V)），按概率从大到小弹出直到累计概率达到p，
+ * 只为真正进入nucleus的m个token付出 O(m log V)。
+ */
+public class TokenSampler {
+
+    private final float temperature;
+    private final int topK;
+    private final float topP;
+    private final Random random;
+
+    /**
+     * @param temperature 温度，不大于0时使用贪心解码
+     * @param topK 只在概率最大的k个token中采样，不大于0表示不限制
+     * @param topP 只在累计概率达到p的最小token集合中采样，不小于1表示不限制
+     * @param random 随机数生成器
+     */
+    public TokenSampler(float temperature, int topK, float topP, Random random) {
+        if (topP <= 0f) {
+            throw new IllegalArgumentException("TokenSampler topP must be positive, but got " + topP);
+        }
+        this.temperature = temperature;
+        this.topK = topK;
+        this.topP = topP;
+        this.random = random;
+    }
+
+    /**
+     * 从 logits[offset, offset + vocabSize) 中采样一个token
+     */
+    public int sample(float[] logits, int offset, int vocabSize) {
+        if (temperature <= 0f) {
+            return argmax(logits, offset, vocabSize);
+        }
+        Candidates candidates = select(logits, offset, vocabSize);
+        int chosen = pick(candidates.weights, candidates.count);
+        return candidates.tokens == null ? chosen : candidates.tokens[chosen];
+    }
+
+    /**
+     * 经过温度、top-k与top-p处理后实际用于采样的概率分布，温度不大于0时为argmax处的one-hot分布
+     *
+     * @return 长度为vocabSize的概率，候选集合之外的token概率为0
+     */
+    public double[] probabilities(float[] logits, int offset, int vocabSize) {
+        double[] probabilities = new double[vocabSize];
+        if (temperature <= 0f) {
+            probabilities[argmax(logits, offset, vocabSize)] = 1;
+            return probabilities;
+        }
+        Candidates candidates = select(logits, offset, vocabSize);
+        double mass = 0;
+        for (int i = 0; i < candidates.count; i++) {
+            mass += candidates.weights[i];
+        }
+        for (int i = 0; i < candidates.count; i++) {
+            int token = candidates.tokens == null ? i : candidates.tokens[i];
+            probabilities[token] = candidates.weights[i] / mass;
+        }
+        return probabilities;
+    }
+
+    /**
+     * 按给定的（未必归一化的）权重采样一个token
+     */
+    public int sample(double[] weights) {
+        return pick(weights, weights.length);
+    }
+
+    /**
+     * 以probability的概率返回true
+     */
+    public boolean accept(double probability) {
+        return random.nextDouble() < probability;
+    }
+
+    /**
+     * 采样的候选token与对应的未归一化权重，tokens为null时第i个候选就是token i
+     */
+    private static class Candidates {
+        int[] tokens;
+        double[] weights;
+        int count;
+    }
+
+    private Candidates select(float[] logits, int offset, int vocabSize) {
+        float max = logits[offset + argmax(logits, offset, vocabSize)];
+        Candidates candidates = new Candidates();
+
+        if (topK > 0 && topK < vocabSize) {
+            // 最小堆选出最大的k个，排成降序后按top-p截断
+            candidates.tokens = selectTopK(logits, offset, vocabSize, topK);
+            candidates.weights = new double[topK];
+            double total = 0;
+            for (int i = 0; i < topK; i++) {
+                candidates.weights[i] = Math.exp((logits[offset + candidates.tokens[i]] - max) / temperature);
+                total += candidates.weights[i];
+            }
+            candidates.count = topK;
+            if (topP < 1f) {
+                double cumulative = 0;
+                for (int i = 0; i < topK; i++) {
+                    cumulative += candidates.weights[i];
+                    if (cumulative >= topP * total) {
+                        candidates.count = i + 1;
+                        break;
+                    }
+                }
+            }
+            return candidates;
+        }
+
+        double[] weights = new double[vocabSize];
+        double total = 0;
+        for (int v = 0; v < vocabSize; v++) {
+            weights[v] = Math.exp((logits[offset + v] - max) / temperature);
+            total += weights[v];
+        }
+        if (topP >= 1f) {
+            candidates.weights = weights;
+            candidates.count = vocabSize;
+            return candidates;
+        }
+
+        // 最大堆按概率从大到小弹出，直到累计概率达到topP，弹出的token依次记入候选
+        int[] heap = new int[vocabSize];
+        for (int v = 0; v < vocabSize; v++) {
+            heap[v] = v;
+        }
+        for (int i = vocabSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, vocabSize, i, logits, offset, false);
+        }
+        int size = vocabSize;
+        candidates.tokens = new int[vocabSize];
+        candidates.weights = new double[vocabSize];
+        double cumulative = 0;
+        while (size > 0 && cumulative < topP * total) {
+            int token = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size, 0, logits, offset, false);
+            candidates.tokens[candidates.count] = token;
+            candidates.weights[candidates.count++] = weights[token];
+            cumulative += weights[token];
+        }
+        return candidates;
+    }
+
+    /**
+     * 按权重在前count个候选中采样，返回候选下标
+     */
+    private int pick(double[] weights, int count) {
+        double mass = 0;
+        for (int i = 0; i < count; i++) {
+            mass += weights[i];
+        }
+        double r = random.nextDouble() * mass;
+        for (int i = 0; i < count; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+        return count - 1;
+    }
+
+    /**
+     * 用大小为k的最小堆选出logits最大的k个token，按logits降序返回
+     */
+    private static int[] selectTopK(float[] logits, int offset, int vocabSize, int k) {
+        int[] heap = new int[k];
+        int size = 0;
+        for (int v = 0; v < vocabSize; v++) {
+            if (size < k) {
+                heap[size] = v;
+                siftUp(heap, size++, logits, offset);
+            } else if (logits[offset + v] > logits[offset + heap[0]]) {
+                heap[0] = v;
+                siftDown(heap, k, 0, logits, offset, true);
+            }
+        }
+        // 依次弹出最小值放到末尾，得到降序排列
+        for (int end = k - 1; end > 0; end--) {
+            int min = heap[0];
+            heap[0] = heap[end];
+            heap[end] = min;
+            siftDown(heap, end, 0, logits, offset, true);
+        }
+        return heap;
+    }
+
+    private static boolean before(float[] logits, int offset, int a, int b, boolean minHeap) {
+        return minHeap ? logits[offset + a] < logits[offset + b] : logits[offset + a] > logits[offset + b];
+    }
+
+    private static void siftUp(int[] heap, int pos, float[] logits, int offset) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (!before(logits, offset, heap[pos], heap[parent], true)) {
+                return;
+            }
+            int tmp = heap[pos];
+            heap[pos] = heap[parent];
+            heap[parent] = tmp;
+            pos = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, int pos, float[] logits, int offset, boolean minHeap) {
+        while (true) {
+            int left = 2 * pos + 1;
+            if (left >= size) {
+                return;
+            }
+            int child = left + 1 < size && before(logits, offset, heap[left + 1], heap[left], minHeap) ? left + 1 : left;
+            if (!before(logits, offset, heap[child], heap[pos], minHeap)) {
+                return;
+            }
+            int tmp = heap[pos];
+            heap[pos] = heap[child];
+            heap[child] = tmp;
+            pos = child;
+        }
+    }
+
+    /**
+     * logits最大的token
+     */
+    public static int argmax(float[] logits, int offset, int vocabSize) {
+        int best = 0;
+        for (int v = 1; v < vocabSize; v++) {
+            if (logits[offset + v] > logits[offset + best]) {
+                best = v;
+            }
+        }
+        return best;
+    }
+}
@@ -272,6 +272,18 @@ public class Word2Vec extends Block {
         }
     }
     
+    /**
+     * 查词向量，每个索引对应结果的一行
+     * 
+     * @param embedding 嵌入层
+     * @param ids 词索引，任意形状
+     * @return 形状为 (索引个数, embedSize) 的词向量
+     */
+    private Variable lookup(Embedding embedding, Variable ids) {
+        Variable embedded = embedding.layerForward(ids);
+        return embedded.reshape(new Shape(ids.getValue().getShape().size(), embedSize));
+    }
+    
     /**
      * Skip-gram前向传播
      * 
@@ -280,7 +292,7 @@ public class Word2Vec extends Block {
      */
     private Variable forwardSkipGram(Variable input) {
         // 输入是中心词索引
-        Variable embedded = inputEmbedding.layerForward(input);
+        Variable embedded = lookup(inputEmbedding, input);
         
         if (useNegativeSampling) {
             // 使用负采样，返回嵌入向量
@@ -300,7 +312,7 @@ public class Word2Vec extends Block {
      */
     private Variable forwardCBOW(Variable input) {
         // 输入是上下文词索引的平均
-        Variable embedded = inputEmbedding.layerForward(input);
+        Variable embedded = lookup(inputEmbedding, input);
         
         // 对于CBOW，通常需要对多个上下文词的嵌入求平均
         // 这里简化处理，假设输入已经是平均后的结果
@@ -323,14 +335,14 @@ public class Word2Vec extends Block {
      */
     public Variable negativeSamplingLoss(Variable centerEmbedding, int targetWord, List<Integer> negativeWords) {
         // 正样本损失
-        Variable targetEmbedding = outputEmbedding.layerForward(new Variable(new NdArray(new float[][]{{targetWord}})));
+        Variable targetEmbedding = lookup(outputEmbedding, new Variable(new NdArray(new float[][]{{targetWord}})));
         Variable posScore = centerEmbedding.matMul(targetEmbedding.transpose());
         Variable posLoss = new Sigmoid().call(posScore).log().neg();
         
         // 负样本损失
         Variable negLoss = new Variable(new NdArray(0f));
         for (int negWord : negativeWords) {
-            Variable negEmbedding = outputEmbedding.layerForward(new Variable(new NdArray(new float[][]{{negWord}})));
+            Variable negEmbedding = lookup(outputEmbedding, new Variable(new NdArray(new float[][]{{negWord}})));
             Variable negScore = centerEmbedding.matMul(negEmbedding.transpose());
             Variable negSigmoid = new Sigmoid().call(negScore.neg());
             negLoss = negLoss.add(negSigmoid.log().neg());
@@ -398,7 +410,7 @@ public class Word2Vec extends Block {
         }
         
         Variable wordVar = new Variable(new NdArray(new float[][]{{idx}}));
-        Variable embedding = inputEmbedding.layerForward(wordVar);
+        Variable embedding = lookup(inputEmbedding, wordVar);
         return embedding.getValue();
     }
     
@@ -5,6 +5,8 @@ import io.leavesfly.tinydl.modality.nlp.layer.MoELayer;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
+import io.leavesfly.tinydl.nnet.layer.transformer.CachedDecoderLayer;
+import io.leavesfly.tinydl.nnet.layer.transformer.KVCache;
 import io.leavesfly.tinydl.nnet.layer.transformer.LayerNorm;
 import io.leavesfly.tinydl.nnet.layer.transformer.MultiHeadAttention;
 
@@ -30,7 +32,7 @@ import java.util.List;
  * @author leavesfly
  * @version 0.01
  */
-public class MoETransformerBlock extends Layer {
+public class MoETransformerBlock extends Layer implements CachedDecoderLayer {
     
     /**
      * 第一个层归一化（注意力前）
@@ -206,6 +208,24 @@ public class MoETransformerBlock extends Layer {
         return residual2;
     }
     
+    /**
+     * 使用键/值缓存的增量前向计算，只处理新输入的token
+     * 
+     * 仅用于推理，因此不应用Dropout。
+     */
+    @Override
+    public Variable forwardCached(Variable x, KVCache cache, int[] rows) {
+        Variable norm1Output = layerNorm1.layerForward(x);
+        Variable attentionOutput = attention.forwardCached(norm1Output, cache, rows);
+        Variable residual1 = enableResidualConnection ? 
+            addResidualConnection(x, attentionOutput) : attentionOutput;
+        
+        Variable norm2Output = layerNorm2.layerForward(residual1);
+        Variable moeOutput = moeLayer.layerForward(norm2Output);
+        return enableResidualConnection ? 
+            addResidualConnection(residual1, moeOutput) : moeOutput;
+    }
+    
     /**
      * 添加残差连接
      * 
@@ -1,12 +1,15 @@
 package io.leavesfly.tinydl.modality.nlp.layer;
 
 import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.func.graph.GraphScheduler;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
+import io.leavesfly.tinydl.utils.Config;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Mixture of Experts (MoE) 层实现
@@ -174,13 +177,26 @@ public class MoELayer extends Layer {
         int totalTokens = batchSize * seqLen;
         
         // 1. 通过门控网络计算专家权重
-        Variable gatingWeights = gatingNetwork.layerForward(input); // shape: (batch_size, seq_len, num_experts)
-        
         // 2. 获取所有专家的输出
-        List<Variable> expertOutputs = new ArrayList<>();
-        for (MoEExpertNetwork expert : experts) {
-            Variable expertOutput = expert.layerForward(input); // shape: (batch_size, seq_len, output_dim)
-            expertOutputs.add(expertOutput);
+        Variable gatingWeights; // shape: (batch_size, seq_len, num_experts)
+        List<Variable> expertOutputs; // shape: (batch_size, seq_len, output_dim)
+        if (Config.parallel) {
+            // 门控网络与各个专家互不依赖，在共享线程池上同时执行
+            List<Callable<Variable>> branches = new ArrayList<>();
+            branches.add(() -> gatingNetwork.layerForward(input));
+            for (MoEExpertNetwork expert : experts) {
+                branches.add(() -> expert.layerForward(input));
+            }
+            List<Variable> results = GraphScheduler.invokeAll(branches);
+            gatingWeights = results.get(0);
+            expertOutputs = results.subList(1, results.size());
+        } else {
+            gatingWeights = gatingNetwork.layerForward(input);
+            expertOutputs = new ArrayList<>();
+            for (MoEExpertNetwork expert : experts) {
+                Variable expertOutput = expert.layerForward(input);
+                expertOutputs.add(expertOutput);
+            }
         }
         
         // 3. 根据门控权重对专家输出进行加权求和
@@ -0,0 +1,75 @@
+package io.leavesfly.tinydl.ndarr;
+
+/**
+ * 直接在一维缓冲区上计算的矩阵乘法工具类，供卷积层、循环层等操作NdArray.buffer的计算使用
+ *
+ * 所有矩阵都以行主序存放在float[]中，通过偏移量定位，
+ * 结果累加到输出矩阵上（C += ...），调用方负责输出的初始值。
+ * 转置版本直接按原始布局索引，不生成转置后的副本。
+ */
+public class GemmUtil {
+
+    private GemmUtil() {
+    }
+
+    /**
+     * C(m, n) += A(m, k) * B(k, n)
+     */
+    public static void gemm(int m, int k, int n,
+                            float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset) {
+        for (int i = 0; i < m; i++) {
+            int cRow = cOffset + i * n;
+            int aRow = aOffset + i * k;
+            for (int p = 0; p < k; p++) {
+                float aValue = a[aRow + p];
+                if (aValue == 0f) {
+                    continue;
+                }
+                int bRow = bOffset + p * n;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += aValue * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * C(m, n) += A^T * B，其中A的存储形状为(k, m)，B为(k, n)
+     */
+    public static void gemmTransA(int m, int k, int n,
+                                  float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset) {
+        for (int p = 0; p < k; p++) {
+            int aRow = aOffset + p * m;
+            int bRow = bOffset + p * n;
+            for (int i = 0; i < m; i++) {
+                float aValue = a[aRow + i];
+                if (aValue == 0f) {
+                    continue;
+                }
+                int cRow = cOffset + i * n;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += aValue * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * C(m, n) += A * B^T，其中A的存储形状为(m, k)，B为(n, k)
+     */
+    public static void gemmTransB(int m, int k, int n,
+                                  float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset) {
+        for (int i = 0; i < m; i++) {
+            int aRow = aOffset + i * k;
+            int cRow = cOffset + i * n;
+            for (int j = 0; j < n; j++) {
+                int bRow = bOffset + j * k;
+                float sum = 0f;
+                for (int p = 0; p < k; p++) {
+                    sum += a[aRow + p] * b[bRow + p];
+                }
+                c[cRow + j] += sum;
+            }
+        }
+    }
+}
@@ -2,6 +2,10 @@ package io.leavesfly.tinydl.nnet;
 
 import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.layer.cnn.ConvLayer;
+import io.leavesfly.tinydl.nnet.layer.dnn.LinearLayer;
+import io.leavesfly.tinydl.nnet.layer.norm.BatchNorm;
+import io.leavesfly.tinydl.utils.Profiler;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -77,9 +81,9 @@ public abstract class Block extends LayerAble {
     @Override
     public Variable layerForward(Variable... inputs) {
         Variable x = inputs[0];
-        Variable y = layers.get(0).layerForward(x);
+        Variable y = Profiler.layerForward(layers.get(0), x);
         for (int i = 1; i < layers.size(); i++) {
-            y = layers.get(i).layerForward(y);
+            y = Profiler.layerForward(layers.get(i), y);
         }
         return y;
     }
@@ -121,6 +125,32 @@ public abstract class Block extends LayerAble {
     }
 
 
+    /**
+     * 推理前把紧跟在ConvLayer/LinearLayer之后的BatchNorm折叠进前一层，包括子Block中的层
+     * 
+     * 融合了激活函数的LinearLayer之后的BatchNorm不折叠。
+     * 折叠后的BatchNorm固定为推理模式并直接返回输入，前一层的参数已被改写，只应在训练结束后调用。
+     * 
+     * @return 折叠的BatchNorm个数
+     */
+    public int foldBatchNorm() {
+        int folded = 0;
+        for (int i = 0; i < layers.size(); i++) {
+            LayerAble layerAble = layers.get(i);
+            if (layerAble instanceof Block) {
+                folded += ((Block) layerAble).foldBatchNorm();
+            } else if (layerAble instanceof BatchNorm && i > 0 && !((BatchNorm) layerAble).isFolded()) {
+                LayerAble previous = layers.get(i - 1);
+                if (previous instanceof ConvLayer
+                        || previous instanceof LinearLayer && ((LinearLayer) previous).getActiveFunc() == null) {
+                    ((BatchNorm) layerAble).foldInto((Layer) previous);
+                    folded++;
+                }
+            }
+        }
+        return folded;
+    }
+
 //    public List<LayerAble> getLayers() {
 //        return layers;
 //    }
@@ -0,0 +1,300 @@
+package io.leavesfly.tinydl.nnet;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 打包的变长序列批次
+ *
+ * 批次中的序列按长度从长到短排序后，按时间步依次存放：第t个时间步只存放长度大于t的序列，
+ * 数据形状为 (所有序列长度之和, feature)。batchSizes[t] 为第t个时间步仍然有效的序列数，
+ * offsets[t] 为第t个时间步在数据中的起始行。由于序列已排序，每个时间步的有效序列总是前 batchSizes[t] 行，
+ * RNN层逐时间步计算时只处理这些行，不再为填充位置付出计算。
+ *
+ * 打包（pack）与解包（unpack）都是计算图中的节点，梯度可以穿过它们传回填充形式的输入。
+ */
+public class PackedSequence {
+
+    /**
+     * 打包后的数据，形状为 (所有序列长度之和, feature)
+     */
+    private final Variable data;
+
+    /**
+     * 每个时间步的有效序列数，非递增
+     */
+    private final int[] batchSizes;
+
+    /**
+     * 每个时间步在数据中的起始行
+     */
+    private final int[] offsets;
+
+    /**
+     * 排序后第s个序列在原批次中的位置
+     */
+    private final int[] sortedIndices;
+
+    /**
+     * 原批次中每个序列的长度
+     */
+    private final int[] lengths;
+
+    private PackedSequence(Variable data, int[] batchSizes, int[] offsets, int[] sortedIndices, int[] lengths) {
+        this.data = data;
+        this.batchSizes = batchSizes;
+        this.offsets = offsets;
+        this.sortedIndices = sortedIndices;
+        this.lengths = lengths;
+    }
+
+    /**
+     * 将填充形式的批次打包
+     *
+     * @param padded 填充形式的批次，形状为 (batch_size, max_length, feature)
+     * @param lengths 每个序列的有效长度，取值范围为 [1, max_length]
+     * @return 打包后的序列
+     */
+    public static PackedSequence pack(Variable padded, int[] lengths) {
+        Shape shape = padded.getValue().getShape();
+        if (shape.getDimNum() != 3) {
+            throw new IllegalArgumentException("PackedSequence input must be (batch_size, max_length, feature), but got " + shape);
+        }
+        int batch = shape.dimension[0];
+        int maxLength = shape.dimension[1];
+        if (lengths.length != batch) {
+            throw new IllegalArgumentException("PackedSequence lengths size " + lengths.length + " != batch size " + batch);
+        }
+        for (int length : lengths) {
+            if (length < 1 || length > maxLength) {
+                throw new IllegalArgumentException("PackedSequence length " + length + " out of range [1, " + maxLength + "]");
+            }
+        }
+
+        // 按长度从长到短稳定排序
+        Integer[] order = new Integer[batch];
+        for (int i = 0; i < batch; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(lengths[b], lengths[a]));
+        int[] sortedIndices = new int[batch];
+        for (int i = 0; i < batch; i++) {
+            sortedIndices[i] = order[i];
+        }
+
+        int time = lengths[sortedIndices[0]];
+        int[] batchSizes = new int[time];
+        int[] offsets = new int[time];
+        int rows = 0;
+        for (int t = 0; t < time; t++) {
+            int count = 0;
+            while (count < batch && lengths[sortedIndices[count]] > t) {
+                count++;
+            }
+            batchSizes[t] = count;
+            offsets[t] = rows;
+            rows += count;
+        }
+
+        PackedSequence layout = new PackedSequence(null, batchSizes, offsets, sortedIndices, lengths.clone());
+        return layout.withData(new PackFunction(layout, maxLength).call(padded));
+    }
+
+    /**
+     * 对所有序列长度相同的批次打包，等价于转换为时间优先的布局
+     *
+     * @param padded 形状为 (batch_size, time_steps, feature) 的批次
+     * @return 打包后的序列
+     */
+    public static PackedSequence pack(Variable padded) {
+        int[] lengths = new int[padded.getValue().getShape().dimension[0]];
+        Arrays.fill(lengths, padded.getValue().getShape().dimension[1]);
+        return pack(padded, lengths);
+    }
+
+    /**
+     * 使用相同的打包布局包装新的数据，例如RNN层的输出
+     *
+     * @param newData 打包后的数据，行数与当前布局一致
+     * @return 新的打包序列
+     */
+    public PackedSequence withData(Variable newData) {
+        if (newData.getValue().getShape().dimension[0] != getTotalRows()) {
+            throw new IllegalArgumentException("PackedSequence data rows " + newData.getValue().getShape().dimension[0]
+                    + " != " + getTotalRows());
+        }
+        return new PackedSequence(newData, batchSizes, offsets, sortedIndices, lengths);
+    }
+
+    /**
+     * 解包为填充形式，填充位置为0
+     *
+     * @param maxLength 输出的时间步数，不小于最长序列的长度
+     * @return 形状为 (batch_size, maxLength, feature) 的变量
+     */
+    public Variable unpack(int maxLength) {
+        if (maxLength < batchSizes.length) {
+            throw new IllegalArgumentException("PackedSequence unpack length " + maxLength + " < " + batchSizes.length);
+        }
+        return new UnpackFunction(this, maxLength).call(data);
+    }
+
+    /**
+     * 解包为填充形式，时间步数为最长序列的长度
+     *
+     * @return 形状为 (batch_size, max_length, feature) 的变量
+     */
+    public Variable unpack() {
+        return unpack(batchSizes.length);
+    }
+
+    public Variable getData() {
+        return data;
+    }
+
+    public int[] getBatchSizes() {
+        return batchSizes;
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public int[] getSortedIndices() {
+        return sortedIndices;
+    }
+
+    public int[] getLengths() {
+        return lengths;
+    }
+
+    /**
+     * 获取最长序列的长度，即时间步数
+     */
+    public int getMaxLength() {
+        return batchSizes.length;
+    }
+
+    /**
+     * 获取批次大小
+     */
+    public int getBatchSize() {
+        return sortedIndices.length;
+    }
+
+    /**
+     * 获取打包数据的总行数，即所有序列长度之和
+     */
+    public int getTotalRows() {
+        int last = batchSizes.length - 1;
+        return offsets[last] + batchSizes[last];
+    }
+
+    /**
+     * 打包数据第row行对应的填充形式中的行号 (batch * maxLength + t)
+     */
+    private int[] rowSources(int maxLength) {
+        int[] sources = new int[getTotalRows()];
+        for (int t = 0; t < batchSizes.length; t++) {
+            for (int s = 0; s < batchSizes[t]; s++) {
+                sources[offsets[t] + s] = sortedIndices[s] * maxLength + t;
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * 按行搬运：dst[dstRows[i]] = src[srcRows[i]]
+     */
+    private static void copyRows(float[] src, int[] srcRows, float[] dst, int[] dstRows, int feature) {
+        for (int i = 0; i < srcRows.length; i++) {
+            System.arraycopy(src, srcRows[i] * feature, dst, dstRows[i] * feature, feature);
+        }
+    }
+
+    private static int[] identity(int size) {
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+
+    /**
+     * 填充形式 -> 打包形式
+     */
+    private static class PackFunction extends Function {
+
+        private final int[] sources;
+        private final int[] targets;
+
+        PackFunction(PackedSequence layout, int maxLength) {
+            this.sources = layout.rowSources(maxLength);
+            this.targets = identity(sources.length);
+        }
+
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            int feature = inputs[0].shape.dimension[2];
+            NdArray result = new NdArray(new Shape(targets.length, feature));
+            copyRows(inputs[0].buffer, sources, result.buffer, targets, feature);
+            return result;
+        }
+
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            NdArray xGrad = new NdArray(inputs[0].getValue().getShape());
+            copyRows(yGrad.buffer, targets, xGrad.buffer, sources, yGrad.getShape().getColumn());
+            return Collections.singletonList(xGrad);
+        }
+
+        @Override
+        public int requireInputNum() {
+            return 1;
+        }
+    }
+
+    /**
+     * 打包形式 -> 填充形式
+     */
+    private static class UnpackFunction extends Function {
+
+        private final int[] sources;
+        private final int[] targets;
+        private final int batch;
+        private final int maxLength;
+
+        UnpackFunction(PackedSequence layout, int maxLength) {
+            this.targets = layout.rowSources(maxLength);
+            this.sources = identity(targets.length);
+            this.batch = layout.getBatchSize();
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            int feature = inputs[0].getShape().getColumn();
+            NdArray result = new NdArray(new Shape(batch, maxLength, feature));
+            copyRows(inputs[0].buffer, sources, result.buffer, targets, feature);
+            return result;
+        }
+
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            NdArray xGrad = new NdArray(inputs[0].getValue().getShape());
+            copyRows(yGrad.buffer, targets, xGrad.buffer, sources, xGrad.getShape().getColumn());
+            return Collections.singletonList(xGrad);
+        }
+
+        @Override
+        public int requireInputNum() {
+            return 1;
+        }
+    }
+}
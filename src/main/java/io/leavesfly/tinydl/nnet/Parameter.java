@@ -5,21 +5,88 @@ import io.leavesfly.tinydl.func.Variable;
 
 /**
  * 神经网络中需要训练的参数，对应数学中的函数就是变量
- * 
+ *
  * @author leavesfly
  * @version 0.01
- * 
+ *
  * Parameter类继承自Variable类，用于表示神经网络中需要训练的参数。
  * 在前向传播和反向传播过程中，Parameter会参与计算并更新其值。
+ *
+ * 查表类的参数（例如词嵌入）除了稠密梯度外还可以带有按行稀疏的梯度，
+ * 由查表函数在反向传播时直接累加，优化器据此只更新被查到的行；
+ * 采样Softmax的输出层参数则带有按列稀疏的梯度，只更新真实类别与采样类别对应的列。
  */
 public class Parameter extends Variable {
-    
+
+    /**
+     * 按行（或按列）稀疏的梯度，没有稀疏梯度时为null
+     */
+    private transient RowSparseGrad sparseGrad;
+
     /**
      * 构造函数，使用指定的NdArray值创建Parameter实例
-     * 
+     *
      * @param value 参数的初始值
      */
     public Parameter(NdArray value) {
         super(value);
     }
-}
\ No newline at end of file
+
+    /**
+     * 累加按行稀疏的梯度，并行反向传播时可能被多个线程同时调用
+     *
+     * @param ids 行号
+     * @param rowGrads 梯度，长度为 ids.length * 列数
+     */
+    public synchronized void accumulateSparseGrad(int[] ids, float[] rowGrads) {
+        if (sparseGrad == null) {
+            sparseGrad = new RowSparseGrad(getValue().getShape());
+        }
+        if (sparseGrad.isByColumn()) {
+            throw new IllegalStateException("Parameter already has a column-sparse gradient!");
+        }
+        sparseGrad.accumulate(ids, rowGrads);
+    }
+
+    /**
+     * 累加按列稀疏的梯度
+     *
+     * @param ids 列号
+     * @param columnGrads 梯度，长度为 ids.length * 行数，第i段对应第ids[i]列
+     */
+    public synchronized void accumulateSparseColumnGrad(int[] ids, float[] columnGrads) {
+        if (sparseGrad == null) {
+            sparseGrad = RowSparseGrad.ofColumns(getValue().getShape());
+        }
+        if (!sparseGrad.isByColumn()) {
+            throw new IllegalStateException("Parameter already has a row-sparse gradient!");
+        }
+        sparseGrad.accumulate(ids, columnGrads);
+    }
+
+    public RowSparseGrad getSparseGrad() {
+        return sparseGrad;
+    }
+
+    /**
+     * 获取合并了稀疏部分的稠密梯度，供只处理稠密梯度的调用方（例如并行训练的梯度聚合）使用
+     *
+     * @return 稠密梯度，既没有稠密梯度也没有稀疏梯度时返回null
+     */
+    public NdArray getDenseGrad() {
+        NdArray grad = getGrad();
+        if (sparseGrad == null) {
+            return grad;
+        }
+        NdArray dense = grad == null ? new NdArray(getValue().getShape())
+                : new NdArray(grad.buffer.clone(), grad.getShape());
+        sparseGrad.addTo(dense);
+        return dense;
+    }
+
+    @Override
+    public void clearGrad() {
+        super.clearGrad();
+        sparseGrad = null;
+    }
+}
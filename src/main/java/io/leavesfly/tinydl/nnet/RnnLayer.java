@@ -1,5 +1,6 @@
 package io.leavesfly.tinydl.nnet;
 
+import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.Shape;
 
 /**
@@ -10,6 +11,12 @@ import io.leavesfly.tinydl.ndarr.Shape;
  * 
  * RnnLayer是递归神经网络层的抽象基类，继承自Layer类。
  * 与普通前馈网络层不同，RNN层具有内部状态，能够处理序列数据。
+ *
+ * RNN层有两种使用方式：
+ * 1. 逐时间步调用layerForward，状态保存在层中，由调用方驱动整个序列；
+ * 2. 调用layerForwardSequence一次处理整个序列，所有时间步的输入投影合并为一次大的矩阵乘法，
+ *    只有循环部分逐时间步计算，不读取也不修改层中保存的状态；
+ *    变长序列批次通过layerForwardPacked处理，每个时间步只计算仍然有效的序列。
  */
 public abstract class RnnLayer extends Layer {
     
@@ -29,4 +36,37 @@ public abstract class RnnLayer extends Layer {
      */
     public abstract void resetState();
 
+    /**
+     * 对整个序列执行前向传播，初始状态为0
+     *
+     * @param x 输入序列，形状为 (batch_size, time_steps, input_size)
+     * @return 所有时间步的隐藏状态，形状为 (batch_size, time_steps, hidden_size)
+     */
+    public Variable layerForwardSequence(Variable x) {
+        return layerForwardPacked(PackedSequence.pack(x)).unpack();
+    }
+
+    /**
+     * 对变长序列批次执行前向传播，初始状态为0
+     *
+     * 每个时间步只计算仍然有效的序列，输出与输入使用相同的打包布局。
+     *
+     * @param input 打包的输入序列，数据形状为 (所有序列长度之和, input_size)
+     * @return 打包的隐藏状态序列，数据形状为 (所有序列长度之和, hidden_size)
+     */
+    public abstract PackedSequence layerForwardPacked(PackedSequence input);
+
+    /**
+     * 检查打包序列的特征维度
+     *
+     * @param input 打包的输入序列
+     * @param inputSize 输入大小
+     */
+    protected static void checkPackedInput(PackedSequence input, int inputSize) {
+        Shape shape = input.getData().getValue().getShape();
+        if (shape.getDimNum() != 2 || shape.dimension[1] != inputSize) {
+            throw new IllegalArgumentException("RNN packed input must be (total_rows, " + inputSize + "), but got " + shape);
+        }
+    }
+
 }
\ No newline at end of file
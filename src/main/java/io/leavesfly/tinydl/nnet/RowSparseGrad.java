@@ -0,0 +1,221 @@
+package io.leavesfly.tinydl.nnet;
+
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+
+import java.util.Arrays;
+
+/**
+ * 按行稀疏的梯度
+ *
+ * 词嵌入等查表类参数在一个批次中只有被查到的行有梯度，稠密表示需要一个词表大小的数组，
+ * 优化器也要遍历所有行。这里只记录被查到的行号和对应的梯度行，累加时直接追加，
+ * 同一行出现多次时由 coalesce 合并，代价只与批次中的token数有关。
+ *
+ * 也可以按列记录（见 ofColumns）：例如采样Softmax的输出层权重 (hiddenSize, vocabSize)
+ * 每次只有真实类别与采样类别对应的列有梯度，按列记录等价于对转置后的参数按行稀疏，
+ * 记录中的元素在参数中的位置由 index 给出。
+ */
+public class RowSparseGrad {
+
+    /**
+     * 对应稠密梯度的形状 (rowNum, columns)
+     */
+    private final Shape shape;
+
+    /**
+     * 为true时记录的是参数的列
+     */
+    private final boolean byColumn;
+
+    /**
+     * 可记录的行数，按列记录时为参数的列数
+     */
+    private final int rowNum;
+
+    /**
+     * 每条记录的元素个数，按列记录时为参数的行数
+     */
+    private final int columns;
+
+    /**
+     * 已记录的行号，可能重复
+     */
+    private int[] rows;
+
+    /**
+     * 已记录的梯度行，第i行对应 rows[i]
+     */
+    private float[] values;
+
+    private int size;
+
+    public RowSparseGrad(Shape shape) {
+        this(shape, false, new int[0], new float[0], 0);
+    }
+
+    /**
+     * 按列稀疏的梯度，每条记录是参数的一列；一维的参数（例如偏置）视为只有一行
+     */
+    public static RowSparseGrad ofColumns(Shape shape) {
+        return new RowSparseGrad(shape, true, new int[0], new float[0], 0);
+    }
+
+    private RowSparseGrad(Shape shape, boolean byColumn, int[] rows, float[] values, int size) {
+        int[] dims = shape.dimension;
+        if (dims.length != 2 && !(byColumn && dims.length == 1)) {
+            throw new IllegalArgumentException("RowSparseGrad requires a 2-D shape, but got " + shape);
+        }
+        this.shape = shape;
+        this.byColumn = byColumn;
+        this.rowNum = byColumn ? dims[dims.length - 1] : dims[0];
+        this.columns = byColumn ? (dims.length == 1 ? 1 : dims[0]) : dims[1];
+        this.rows = rows;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * 追加若干梯度行
+     *
+     * @param ids 行号（按列记录时为列号）
+     * @param grads 梯度，长度为 ids.length * columns，第i段对应 ids[i]
+     */
+    public void accumulate(int[] ids, float[] grads) {
+        if (grads.length != ids.length * columns) {
+            throw new IllegalArgumentException("RowSparseGrad grads length " + grads.length
+                    + " != " + ids.length + " * " + columns);
+        }
+        ensureCapacity(size + ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] < 0 || ids[i] >= rowNum) {
+                throw new IllegalArgumentException("RowSparseGrad row " + ids[i] + " out of range [0, " + rowNum + ")");
+            }
+            rows[size + i] = ids[i];
+        }
+        System.arraycopy(grads, 0, values, size * columns, grads.length);
+        size += ids.length;
+    }
+
+    /**
+     * 追加另一个稀疏梯度的全部行
+     */
+    public void accumulate(RowSparseGrad other) {
+        if (!shape.equals(other.shape) || byColumn != other.byColumn) {
+            throw new IllegalArgumentException("RowSparseGrad shape " + other.shape + " != " + shape);
+        }
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.rows, 0, rows, size, other.size);
+        System.arraycopy(other.values, 0, values, size * columns, other.size * columns);
+        size += other.size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > rows.length) {
+            int newCapacity = Math.max(capacity, rows.length * 2);
+            rows = Arrays.copyOf(rows, newCapacity);
+            values = Arrays.copyOf(values, newCapacity * columns);
+        }
+    }
+
+    /**
+     * 合并重复的行，返回行号严格递增的稀疏梯度
+     *
+     * 优化器的非线性更新（例如Adam）必须先合并同一行的梯度再更新。
+     */
+    public RowSparseGrad coalesce() {
+        // 行号放在高32位、原位置放在低32位，排序后相同行相邻且保持出现顺序
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) rows[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] newRows = new int[size];
+        float[] newValues = new float[size * columns];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int row = (int) (keys[i] >>> 32);
+            int source = (int) keys[i] * columns;
+            if (count == 0 || newRows[count - 1] != row) {
+                newRows[count] = row;
+                System.arraycopy(values, source, newValues, count * columns, columns);
+                count++;
+            } else {
+                int target = (count - 1) * columns;
+                for (int c = 0; c < columns; c++) {
+                    newValues[target + c] += values[source + c];
+                }
+            }
+        }
+        return new RowSparseGrad(shape, byColumn, newRows, newValues, count);
+    }
+
+    /**
+     * 累加到稠密数组上：dense[rows[i]] += values[i]
+     */
+    public void addTo(NdArray dense) {
+        if (!shape.equals(dense.getShape())) {
+            throw new IllegalArgumentException("RowSparseGrad shape " + shape + " != " + dense.getShape());
+        }
+        float[] target = dense.buffer;
+        for (int i = 0; i < size; i++) {
+            int source = i * columns;
+            for (int c = 0; c < columns; c++) {
+                target[index(i, c)] += values[source + c];
+            }
+        }
+    }
+
+    /**
+     * 第i条记录的第c个元素在参数中的下标
+     */
+    public int index(int i, int c) {
+        return byColumn ? c * rowNum + rows[i] : rows[i] * columns + c;
+    }
+
+    /**
+     * 转换为稠密梯度
+     */
+    public NdArray toDense() {
+        NdArray dense = new NdArray(shape);
+        addTo(dense);
+        return dense;
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    public boolean isByColumn() {
+        return byColumn;
+    }
+
+    /**
+     * 每条记录的元素个数
+     */
+    public int getRecordSize() {
+        return columns;
+    }
+
+    /**
+     * 已记录的行数（包括重复的行）
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 第i个记录的行号
+     */
+    public int getRow(int i) {
+        return rows[i];
+    }
+
+    /**
+     * 梯度行数据，第i行位于 [i * getRecordSize(), (i + 1) * getRecordSize())
+     */
+    public float[] getValues() {
+        return values;
+    }
+}
@@ -4,23 +4,22 @@ import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Block;
 import io.leavesfly.tinydl.nnet.layer.dnn.LinearLayer;
-import io.leavesfly.tinydl.nnet.layer.rnn.SimpleRnnLayer;
+import io.leavesfly.tinydl.nnet.layer.rnn.LstmLayer;
 
 /**
  * LSTM块，包含一个LSTM层和一个线性输出层
- * 注意：由于编译器问题，暂时使用SimpleRnnLayer作为占位符
  * 
  * @author leavesfly
  * @version 0.01
  * 
  * LstmBlock是一个组合块，包含一个LSTM层和一个线性输出层，
- * 用于构建基于LSTM的序列模型。当前实现使用SimpleRnnLayer作为占位符。
+ * 用于构建基于LSTM的序列模型。
  */
 public class LstmBlock extends Block {
     /**
-     * LSTM层，用于处理序列数据（当前为占位符）
+     * LSTM层，用于处理序列数据
      */
-    private SimpleRnnLayer lstmLayer;  // 临时使用SimpleRnnLayer
+    private LstmLayer lstmLayer;
     
     /**
      * 线性输出层，用于将LSTM的输出映射到目标维度
@@ -38,7 +37,7 @@ public class LstmBlock extends Block {
     public LstmBlock(String name, int inputSize, int hiddenSize, int outputSize) {
         super(name, new Shape(-1, inputSize), new Shape(-1, outputSize));
 
-        lstmLayer = new SimpleRnnLayer("lstm", new Shape(-1, inputSize), new Shape(-1, hiddenSize));
+        lstmLayer = new LstmLayer("lstm", new Shape(-1, inputSize), new Shape(-1, hiddenSize));
         addLayer(lstmLayer);
 
         linearLayer = new LinearLayer("line", hiddenSize, outputSize, true);
@@ -2,8 +2,6 @@ package io.leavesfly.tinydl.nnet.block;
 
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Block;
-import io.leavesfly.tinydl.nnet.layer.activate.ReLuLayer;
-import io.leavesfly.tinydl.nnet.layer.activate.SigmoidLayer;
 import io.leavesfly.tinydl.nnet.layer.dnn.LinearLayer;
 import io.leavesfly.tinydl.utils.Config;
 
@@ -40,14 +38,12 @@ public class MlpBlock extends Block {
 
         activeFunc = _activeFunc;
 
+        // 隐藏层的线性变换与激活函数融合为一个算子，避免为偏置和激活各生成一个中间张量
+        Config.ActiveFunc hiddenFunc = !Objects.isNull(activeFunc) && Config.ActiveFunc.ReLU.name().equals(activeFunc.name())
+                ? Config.ActiveFunc.ReLU : Config.ActiveFunc.Sigmoid;
         for (int i = 1; i < layerSizes.length - 1; i++) {
-            Layer layer = new LinearLayer("layer" + i, layerSizes[i - 1], layerSizes[i], true);
+            Layer layer = new LinearLayer("layer" + i, layerSizes[i - 1], layerSizes[i], true, hiddenFunc);
             addLayer(layer);
-            if (!Objects.isNull(activeFunc) && Config.ActiveFunc.ReLU.name().equals(activeFunc.name())) {
-                addLayer(new ReLuLayer("ReLU"));
-            } else {
-                addLayer(new SigmoidLayer("Sigmoid"));
-            }
         }
         Layer layer = new LinearLayer("layer" + (layerSizes.length - 1), layerSizes[(layerSizes.length - 2)]
                 , layerSizes[(layerSizes.length - 1)], true);
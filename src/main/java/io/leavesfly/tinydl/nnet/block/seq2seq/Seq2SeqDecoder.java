@@ -2,7 +2,9 @@ package io.leavesfly.tinydl.nnet.block.seq2seq;
 
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.mlearning.loss.SampledSoftmaxLoss;
 import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.PackedSequence;
 import io.leavesfly.tinydl.nnet.layer.dnn.LinearLayer;
 import io.leavesfly.tinydl.nnet.layer.embedd.Embedding;
 import io.leavesfly.tinydl.nnet.layer.rnn.LstmLayer;
@@ -92,16 +94,78 @@ public class Seq2SeqDecoder extends Decoder {
         if (!layersInitialized) init();
 
         Variable input = inputs[0];
-        Variable y = embedding.layerForward(input);
-        y = lstmLayer.layerForward(y);
+        Variable y = lstmLayer.layerForwardSequence(embed(input));
+
+        // 线性层按行计算，先展平为 (batch_size * seq_length, hidden_size)
+        int[] dims = y.getValue().getShape().dimension;
+        y = y.reshape(new Shape(dims[0] * dims[1], dims[2]));
         y = linearLayer.layerForward(y);
-        return y;
+        return y.reshape(new Shape(dims[0], dims[1], outputVocabSize));
+    }
+
+    /**
+     * 对变长序列批次执行解码器的前向传播
+     * <p>
+     * 词嵌入后按实际长度打包，LSTM与Linear层都只处理有效时间步，填充位置的输出为0。
+     *
+     * @param input   填充后的目标序列输入，形状为 (batch_size, max_length)
+     * @param lengths 每个序列的实际长度，取值范围为 [1, max_length]
+     * @return 形状为 (batch_size, max_length, outputVocabSize) 的logits
+     */
+    public Variable layerForward(Variable input, int[] lengths) {
+        validateForwardInputs(input);
+        validateForwardPreconditions();
+        if (lengths == null) {
+            throw new IllegalArgumentException("序列长度不能为null");
+        }
+
+        if (!layersInitialized) init();
+
+        PackedSequence packed = lstmLayer.layerForwardPacked(PackedSequence.pack(embed(input), lengths));
+        // 打包后的数据已经是 (有效时间步总数, hidden_size) 的二维形式，可以直接交给线性层
+        packed = packed.withData(linearLayer.layerForward(packed.getData()));
+        return packed.unpack(input.getValue().getShape().dimension[1]);
+    }
+
+    /**
+     * 使用采样Softmax计算解码器的损失
+     * <p>
+     * LSTM的输出直接交给采样Softmax，不再经过Linear层的完整词表投影；
+     * 损失函数通常由Linear层的参数构造：
+     * new SampledSoftmaxLoss(getLinearLayer().getParamBy("w"), getLinearLayer().getParamBy("b"), k, sampler)
+     *
+     * @param input   目标序列的输入词索引
+     * @param target  目标序列的输出词索引
+     * @param sampledLoss 采样Softmax损失函数
+     * @return 平均交叉熵损失
+     */
+    public Variable computeLoss(Variable input, Variable target, SampledSoftmaxLoss sampledLoss) {
+        validateForwardInputs(input);
+        validateForwardPreconditions();
+
+        if (!layersInitialized) init();
+
+        Variable y = lstmLayer.layerForwardSequence(embed(input));
+        return sampledLoss.loss(target, y);
+    }
+
+    /**
+     * 词嵌入：批次中的索引展平后一次查完，再还原为 (batch_size, seq_length, embeddingDim)
+     */
+    private Variable embed(Variable input) {
+        int[] dims = input.getValue().getShape().dimension;
+        Variable y = embedding.layerForward(input.reshape(new Shape(dims[0] * dims[1])));
+        return y.reshape(new Shape(dims[0], dims[1], embeddingDim));
     }
 
     private void validateForwardInputs(Variable... inputs) {
         if (inputs == null || inputs.length == 0 || inputs[0] == null) {
             throw new IllegalArgumentException("解码器需要有效的输入参数");
         }
+        if (inputs[0].getValue().getShape().getDimNum() != 2) {
+            throw new IllegalArgumentException("解码器输入的形状应为 (batch_size, seq_length), 当前形状: "
+                    + inputs[0].getValue().getShape());
+        }
     }
 
     // Getter方法
@@ -3,6 +3,7 @@ package io.leavesfly.tinydl.nnet.block.seq2seq;
 import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.PackedSequence;
 import io.leavesfly.tinydl.nnet.layer.embedd.Embedding;
 import io.leavesfly.tinydl.nnet.layer.norm.Dropout;
 import io.leavesfly.tinydl.nnet.layer.rnn.LstmLayer;
@@ -183,7 +184,7 @@ public class Seq2SeqEncoder extends Encoder {
      * 
      * @param inputs 输入参数，期望包含一个参数：
      *               inputs[0] - 输入序列，形状为 [batch_size, seq_length]
-     * @return 编码后的表示，形状为 [batch_size, seq_length, hidden_size] 或 [batch_size, hidden_size]
+     * @return 编码后的表示，形状为 [batch_size, seq_length, hidden_size]
      * @throws IllegalArgumentException 当输入参数不正确时抛出
      * @throws IllegalStateException 当编码器尚未初始化时抛出
      */
@@ -200,11 +201,11 @@ public class Seq2SeqEncoder extends Encoder {
         try {
             Variable input = inputs[0];
             
-            // 第一步：词嵌入
-            Variable y = embedding.layerForward(input);
+            // 第一步：词嵌入，(batch_size, seq_length) -> (batch_size, seq_length, embedding_dim)
+            Variable y = embed(input);
             
-            // 第二步：LSTM处理
-            y = lstmLayer.layerForward(y);
+            // 第二步：LSTM处理整个序列，(batch_size, seq_length, embedding_dim) -> (batch_size, seq_length, hidden_size)
+            y = lstmLayer.layerForwardSequence(y);
             
             // 第三步：Dropout正则化
             y = dropout.layerForward(y);
@@ -217,6 +218,48 @@ public class Seq2SeqEncoder extends Encoder {
         }
     }
     
+    /**
+     * 对变长序列批次执行编码器的前向传播
+     * 
+     * 词嵌入后按实际长度打包，LSTM只在每个序列的有效时间步上计算，
+     * 填充位置的输出为0且不接收梯度。
+     * 
+     * @param input 填充后的输入序列，形状为 [batch_size, max_length]
+     * @param lengths 每个序列的实际长度，取值范围为 [1, max_length]
+     * @return 编码后的表示，形状为 [batch_size, max_length, hidden_size]
+     * @throws IllegalArgumentException 当输入参数不正确时抛出
+     */
+    public Variable layerForward(Variable input, int[] lengths) {
+        validateForwardInputs(input);
+        if (lengths == null) {
+            throw new IllegalArgumentException("序列长度不能为null");
+        }
+        
+        if (!layersInitialized) {
+            init();
+        }
+        
+        try {
+            Variable y = embed(input);
+            PackedSequence packed = lstmLayer.layerForwardPacked(PackedSequence.pack(y, lengths));
+            y = packed.unpack(input.getValue().getShape().dimension[1]);
+            return dropout.layerForward(y);
+            
+        } catch (Exception e) {
+            throw new RuntimeException(String.format(
+                "Seq2SeqEncoder '%s' 前向传播失败: %s", name, e.getMessage()), e);
+        }
+    }
+    
+    /**
+     * 词嵌入：批次中的索引展平后一次查完，再还原为 (batch_size, seq_length, embedding_dim)
+     */
+    private Variable embed(Variable input) {
+        int[] dims = input.getValue().getShape().dimension;
+        Variable y = embedding.layerForward(input.reshape(new Shape(dims[0] * dims[1])));
+        return y.reshape(new Shape(dims[0], dims[1], embeddingDim));
+    }
+    
     /**
      * 验证前向传播的输入参数
      */
@@ -227,6 +270,10 @@ public class Seq2SeqEncoder extends Encoder {
         if (inputs[0] == null) {
             throw new IllegalArgumentException("输入序列不能为null");
         }
+        if (inputs[0].getValue().getShape().getDimNum() != 2) {
+            throw new IllegalArgumentException("输入序列的形状应为 [batch_size, seq_length], 当前形状: "
+                + inputs[0].getValue().getShape());
+        }
     }
     
     /**
@@ -22,7 +22,7 @@ import java.util.List;
  * 
  * 注意：GPT-2使用Pre-LayerNorm结构（在子层之前应用层归一化）
  */
-public class GPT2Block extends Layer {
+public class GPT2Block extends Layer implements CachedDecoderLayer {
     
     private LayerNorm layerNorm1;           // 第一个层归一化
     private MultiHeadAttention attention;    // 带掩码的多头自注意力
@@ -85,6 +85,18 @@ public class GPT2Block extends Layer {
         return residual2;
     }
     
+    /**
+     * 使用键/值缓存的增量前向计算，只处理新输入的token
+     */
+    @Override
+    public Variable forwardCached(Variable x, KVCache cache, int[] rows) {
+        Variable norm1Output = layerNorm1.layerForward(x);
+        Variable residual1 = addResidualConnection(x, attention.forwardCached(norm1Output, cache, rows));
+        
+        Variable norm2Output = layerNorm2.layerForward(residual1);
+        return addResidualConnection(residual1, feedForward.layerForward(norm2Output));
+    }
+    
     /**
      * 添加残差连接
      * @param input 输入
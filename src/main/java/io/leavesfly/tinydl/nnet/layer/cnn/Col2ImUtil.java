@@ -1,55 +1,13 @@
 package io.leavesfly.tinydl.nnet.layer.cnn;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map;
-
 /**
  * 优化的Col2Im工具类
- * 增加了缓存机制和性能优化
+ * 不保存任何静态状态，每次调用都返回新的数组，可被多个线程并发调用
  */
 public class Col2ImUtil {
     
-    // 缓存机制
-    private static final Map<String, float[][][][]> outputCache = new ConcurrentHashMap<>();
-    private static final int MAX_CACHE_SIZE = 5;
-    
-    /**
-     * 生成缓存键
-     */
-    private static String generateCacheKey(int[] imgShape) {
-        return String.format("%d_%d_%d_%d", imgShape[0], imgShape[1], imgShape[2], imgShape[3]);
-    }
-    
-    /**
-     * 获取或创建输出数组
-     */
-    private static float[][][][] getOrCreateOutput(String cacheKey, int[] imgShape, int pad) {
-        float[][][][] output = outputCache.get(cacheKey);
-        int N = imgShape[0], C = imgShape[1], H = imgShape[2], W = imgShape[3];
-        
-        if (output == null || output.length != N || output[0].length != C || 
-            output[0][0].length != (H + 2 * pad) || output[0][0][0].length != (W + 2 * pad)) {
-            output = new float[N][C][H + 2 * pad][W + 2 * pad];
-            if (outputCache.size() >= MAX_CACHE_SIZE) {
-                outputCache.clear();
-            }
-            outputCache.put(cacheKey, output);
-        } else {
-            // 清零复用的数组
-            for (int n = 0; n < N; n++) {
-                for (int c = 0; c < C; c++) {
-                    for (int h = 0; h < H + 2 * pad; h++) {
-                        java.util.Arrays.fill(output[n][c][h], 0.0f);
-                    }
-                }
-            }
-        }
-        return output;
-    }
-
     /**
      * 优化版本：将列格式的数据还原成多维图像数组。
-     * 增加了缓存机制和性能优化
      *
      * @param col      列格式的数据
      * @param imgShape 原始图像数据的形状，形式为 [N, C, H, W]。
@@ -64,9 +22,7 @@ public class Col2ImUtil {
         int outH = (H + 2 * pad - filterH) / stride + 1;
         int outW = (W + 2 * pad - filterW) / stride + 1;
 
-        // 使用缓存机制获取输出数组
-        String cacheKey = generateCacheKey(imgShape);
-        float[][][][] img = getOrCreateOutput(cacheKey, imgShape, pad);
+        float[][][][] img = new float[N][C][H + 2 * pad][W + 2 * pad];
 
         // 优化的循环顺序
         for (int i = 0; i < N; i++) {
@@ -139,6 +95,52 @@ public class Col2ImUtil {
         }
     }
 
+    /**
+     * 直接在一维缓冲区上对单个样本执行 col2im 操作，是一维缓冲区版 Im2ColUtil.im2col 的逆过程。
+     * 列矩阵的形状为 (channels * filterH * filterW, outH * outW)，
+     * 结果累加到NCHW布局中一个样本的 [channels][height][width] 区域，填充部分直接跳过，无需裁剪。
+     *
+     * @param col         列矩阵缓冲区
+     * @param colOffset   列矩阵在缓冲区中的起始位置
+     * @param channels    通道数
+     * @param height      图像高度
+     * @param width       图像宽度
+     * @param filterH     滤波器高度
+     * @param filterW     滤波器宽度
+     * @param stride      步长
+     * @param pad         填充
+     * @param image       输出缓冲区
+     * @param imageOffset 样本在输出缓冲区中的起始位置
+     */
+    public static void col2im(float[] col, int colOffset, int channels, int height, int width,
+                              int filterH, int filterW, int stride, int pad, float[] image, int imageOffset) {
+        int outH = (height + 2 * pad - filterH) / stride + 1;
+        int outW = (width + 2 * pad - filterW) / stride + 1;
+
+        int row = colOffset;
+        for (int c = 0; c < channels; c++) {
+            int channelOffset = imageOffset + c * height * width;
+            for (int fh = 0; fh < filterH; fh++) {
+                for (int fw = 0; fw < filterW; fw++) {
+                    int wStart = Im2ColUtil.validStart(fw, pad, stride, outW);
+                    int wEnd = Im2ColUtil.validEnd(fw, pad, stride, width, wStart, outW);
+                    for (int h = 0; h < outH; h++) {
+                        int imgRow = h * stride + fh - pad;
+                        if (imgRow < 0 || imgRow >= height) {
+                            continue;
+                        }
+                        int in = row + h * outW;
+                        int imgOffset = channelOffset + imgRow * width + fw - pad;
+                        for (int w = wStart; w < wEnd; w++) {
+                            image[imgOffset + w * stride] += col[in + w];
+                        }
+                    }
+                    row += outH * outW;
+                }
+            }
+        }
+    }
+
     /**
      * 优化版本：从有填充的图像数组中裁剪出无填充的图像数组。
      *
@@ -167,12 +169,5 @@ public class Col2ImUtil {
         
         return result;
     }
-    
-    /**
-     * 清理缓存
-     */
-    public static void clearCache() {
-        outputCache.clear();
-    }
 }
 
@@ -0,0 +1,38 @@
+package io.leavesfly.tinydl.nnet.layer.cnn;
+
+/**
+ * 卷积层的计算算法
+ */
+public enum ConvAlgorithm {
+
+    /**
+     * 按定义直接计算，不需要额外内存，适用于任意卷积核、步长与填充
+     */
+    DIRECT,
+
+    /**
+     * im2col展开后做矩阵乘法，适用于任意卷积核、步长与填充
+     */
+    IM2COL,
+
+    /**
+     * Winograd F(2x2, 3x3)，仅适用于3x3卷积核、步长1、填充不超过2的卷积
+     */
+    WINOGRAD;
+
+    /**
+     * 判断算法是否支持给定的卷积配置
+     *
+     * @param filterHeight 卷积核高度
+     * @param filterWidth 卷积核宽度
+     * @param stride 步长
+     * @param padding 填充
+     * @return 是否支持
+     */
+    public boolean supports(int filterHeight, int filterWidth, int stride, int padding) {
+        if (this == WINOGRAD) {
+            return filterHeight == 3 && filterWidth == 3 && stride == 1 && padding <= 2;
+        }
+        return true;
+    }
+}
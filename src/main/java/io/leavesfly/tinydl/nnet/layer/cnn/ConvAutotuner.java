@@ -0,0 +1,163 @@
+package io.leavesfly.tinydl.nnet.layer.cnn;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 卷积算法自动调优器
+ *
+ * 卷积层第一次遇到某个配置（输入形状、卷积核、步长、填充）时，对每个可用算法在真实数据上计时，
+ * 记住最快的算法，之后同一配置直接查表。同一网络中不同层的最优算法往往不同，不需要手工逐层指定。
+ * 调优结果可以保存到文件，下次启动时加载后无需重新计时。
+ */
+public class ConvAutotuner {
+
+    /**
+     * 每个候选算法在预热之后的计时次数，取最短时间
+     */
+    private static final int REPEAT = 3;
+
+    private static final Map<String, ConvAlgorithm> decisions = new ConcurrentHashMap<>();
+
+    private ConvAutotuner() {
+    }
+
+    /**
+     * 生成卷积配置的键
+     *
+     * @param kind 卷积类型，例如 conv
+     * @param inputShape 输入形状
+     * @param filterNum 卷积核数量
+     * @param filterH 卷积核高度
+     * @param filterW 卷积核宽度
+     * @param stride 步长
+     * @param pad 填充
+     * @return 配置的键
+     */
+    public static String key(String kind, int[] inputShape, int filterNum, int filterH, int filterW, int stride, int pad) {
+        StringBuilder builder = new StringBuilder(kind).append(':');
+        for (int i = 0; i < inputShape.length; i++) {
+            builder.append(i == 0 ? "" : "x").append(inputShape[i]);
+        }
+        return builder.append(",f").append(filterNum).append('x').append(filterH).append('x').append(filterW)
+                .append(",s").append(stride).append(",p").append(pad).toString();
+    }
+
+    /**
+     * 选择配置对应的算法，未调优过时对候选算法逐个计时
+     *
+     * @param key 配置的键
+     * @param candidates 候选算法及其执行一次前向计算的任务
+     * @return 最快的算法
+     */
+    public static ConvAlgorithm select(String key, Map<ConvAlgorithm, Runnable> candidates) {
+        ConvAlgorithm decision = decisions.get(key);
+        if (decision != null && candidates.containsKey(decision)) {
+            return decision;
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("ConvAutotuner needs at least one candidate for " + key);
+        }
+
+        ConvAlgorithm best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (Map.Entry<ConvAlgorithm, Runnable> candidate : candidates.entrySet()) {
+            Runnable task = candidate.getValue();
+            task.run();
+            long nanos = Long.MAX_VALUE;
+            for (int i = 0; i < REPEAT; i++) {
+                long start = System.nanoTime();
+                task.run();
+                nanos = Math.min(nanos, System.nanoTime() - start);
+            }
+            if (nanos < bestNanos) {
+                bestNanos = nanos;
+                best = candidate.getKey();
+            }
+        }
+        decisions.put(key, best);
+        return best;
+    }
+
+    /**
+     * 查询已经记录的决策
+     *
+     * @param key 配置的键
+     * @return 算法，未调优过时为null
+     */
+    public static ConvAlgorithm get(String key) {
+        return decisions.get(key);
+    }
+
+    /**
+     * 获取所有决策的副本，按键排序
+     *
+     * @return 配置的键到算法的映射
+     */
+    public static Map<String, ConvAlgorithm> getDecisions() {
+        return new TreeMap<>(decisions);
+    }
+
+    /**
+     * 清空所有决策
+     */
+    public static void clear() {
+        decisions.clear();
+    }
+
+    /**
+     * 将决策保存到文件
+     *
+     * @param path 文件路径
+     */
+    public static void save(String path) {
+        Properties properties = new Properties();
+        for (Map.Entry<String, ConvAlgorithm> entry : decisions.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().name());
+        }
+        try (OutputStream out = new FileOutputStream(path)) {
+            properties.store(out, "TinyDL convolution autotune decisions");
+        } catch (IOException e) {
+            throw new RuntimeException("ConvAutotuner save error: " + path, e);
+        }
+    }
+
+    /**
+     * 从文件加载决策，文件不存在时不做任何事，无法识别的算法名会被忽略
+     *
+     * @param path 文件路径
+     * @return 加载的决策数量
+     */
+    public static int load(String path) {
+        Path file = Paths.get(path);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(path)) {
+            properties.load(in);
+        } catch (IOException e) {
+            throw new RuntimeException("ConvAutotuner load error: " + path, e);
+        }
+        int count = 0;
+        for (String key : properties.stringPropertyNames()) {
+            try {
+                decisions.put(key, ConvAlgorithm.valueOf(properties.getProperty(key).trim()));
+                count++;
+            } catch (IllegalArgumentException ignored) {
+                // 旧版本或其他版本写入的算法名
+            }
+        }
+        return count;
+    }
+}
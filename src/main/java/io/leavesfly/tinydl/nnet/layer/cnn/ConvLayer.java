@@ -1,20 +1,32 @@
 package io.leavesfly.tinydl.nnet.layer.cnn;
 
+import io.leavesfly.tinydl.func.Function;
 import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.GemmUtil;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
 import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.utils.Config;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * 卷积层实现类
  * 
  * 实现了标准的卷积操作，支持步长、填充、偏置等参数。
  * 使用Im2Col技术将卷积操作转换为矩阵乘法，提高计算效率。
+ * im2col、矩阵乘法与col2im都直接在一维缓冲区上按偏移量进行，
+ * 每个样本的矩阵乘法结果即为NCHW布局的输出，批内样本并行处理。
+ * 3x3、步长1的卷积默认使用Winograd F(2x2, 3x3)算法，推理时缓存卷积核的变换结果。
+ * 层本身不保存前向状态，同一个实例可以被多个推理线程共享。
  */
 public class ConvLayer extends Layer {
 
@@ -40,9 +52,11 @@ public class ConvLayer extends Layer {
     // 是否使用偏置
     private boolean useBias;
 
-    // 缓存变量，提高内存效率
-    private NdArray colInput;
-    private NdArray colInputWeight;
+    // 指定的卷积算法，为null时按卷积配置自动选择
+    private ConvAlgorithm algorithm;
+
+    // 推理时缓存的Winograd卷积核变换
+    private volatile FilterTransform filterTransform;
     
     /**
      * 构造函数（不使用偏置）
@@ -178,201 +192,380 @@ public class ConvLayer extends Layer {
     public Variable layerForward(Variable... inputs) {
         Variable input = inputs[0];
         if (useBias && biasParam != null) {
-            return this.call(input, filterParam, biasParam);
+            return new ConvFunction().call(input, filterParam, biasParam);
         } else {
-            return this.call(input, filterParam);
+            return new ConvFunction().call(input, filterParam);
         }
     }
 
+    /**
+     * 直接对NdArray执行前向传播，不构建计算图，可被多个线程并发调用
+     *
+     * @param inputs 输入数据，可选地附带卷积核与偏置，缺省时使用本层的参数
+     * @return 卷积输出
+     */
     @Override
     public NdArray forward(NdArray... inputs) {
-        // 获取输入数据
-        NdArray input = inputs[0];
-        int batchSize = input.shape.dimension[0];
-
-        // 执行Im2Col操作，将输入转换为列格式
-        colInput = performIm2Col(input);
-        
-        // 重塑权重参数以进行矩阵乘法
-        colInputWeight = reshapeFilterWeights();
-
-        // 执行矩阵乘法
-        NdArray output = performMatrixMultiplication();
-        
-        // 重塑输出为正确的形状
-        NdArray result = reshapeOutput(output, batchSize);
-        
-        // 添加偏置（如果使用）
+        NdArray filter = inputs.length > 1 ? inputs[1] : filterParam.getValue();
         if (useBias) {
-            NdArray bias = (inputs.length > 1) ? inputs[1] : biasParam.getValue();
-            result = addBiasToOutput(result, bias);
+            NdArray bias = inputs.length > 2 ? inputs[2] : biasParam.getValue();
+            return new ConvFunction().forward(inputs[0], filter, bias);
         }
-        
-        return result;
+        return new ConvFunction().forward(inputs[0], filter);
     }
-    
+
     /**
-     * 执行Im2Col操作
-     * 
-     * @param input 输入数据
-     * @return 列格式的输入数据
+     * 反向传播由每次调用创建的ConvFunction节点完成，层本身不保存任何前向状态
      */
-    private NdArray performIm2Col(NdArray input) {
-        float[][][][] inputData = input.get4dArray();
-        float[][] colInput2dArray = Im2ColUtil.im2col(inputData, filterHeight, filterWidth, stride, padding);
-        return new NdArray(colInput2dArray);
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        return null;
     }
-    
+
     /**
-     * 重塑滤波器权重以进行矩阵乘法
-     * 
-     * @return 重塑后的权重
+     * 将逐输出通道的仿射变换 y * scale + shift 合并进卷积核与偏置，用于折叠其后的BatchNorm
+     *
+     * 没有偏置时会新建偏置参数。卷积核被原地缩放，折叠后清空推理时缓存的Winograd变换。
+     *
+     * @param scale 每个输出通道的缩放
+     * @param shift 每个输出通道的偏移
      */
-    private NdArray reshapeFilterWeights() {
-        NdArray filterNdArray = filterParam.getValue();
-        return filterNdArray.reshape(new Shape(filterNum, filterNdArray.shape.size() / filterNum));
+    public void foldScaleShift(float[] scale, float[] shift) {
+        if (scale.length != filterNum || shift.length != filterNum) {
+            throw new IllegalArgumentException("ConvLayer fold size " + scale.length + " != filterNum " + filterNum);
+        }
+        if (!useBias || biasParam == null) {
+            initializeBias();
+            useBias = true;
+        }
+        float[] filter = filterParam.getValue().buffer;
+        float[] bias = biasParam.getValue().buffer;
+        int filterSize = filter.length / filterNum;
+        for (int f = 0; f < filterNum; f++) {
+            for (int i = f * filterSize; i < (f + 1) * filterSize; i++) {
+                filter[i] *= scale[f];
+            }
+            bias[f] = bias[f] * scale[f] + shift[f];
+        }
+        clearFilterCache();
     }
-    
+
     /**
-     * 执行矩阵乘法操作
-     * 
-     * @return 矩阵乘法结果
+     * 获取指定的卷积算法
+     *
+     * @return 卷积算法，为null时自动选择
      */
-    private NdArray performMatrixMultiplication() {
-        return colInput.dot(colInputWeight.transpose());
+    public ConvAlgorithm getAlgorithm() {
+        return algorithm;
     }
-    
+
     /**
-     * 重塑输出为正确的形状
-     * 
-     * @param output 矩阵乘法的输出
-     * @param batchSize 批处理大小
-     * @return 重塑后的输出
+     * 指定卷积算法
+     *
+     * @param algorithm 卷积算法，为null时自动选择
      */
-    private NdArray reshapeOutput(NdArray output, int batchSize) {
-        NdArray result = new NdArray(new Shape(batchSize, filterNum, outHeight, outWidth));
-        int resultIndex = 0;
-        
-        for (int batch = 0; batch < batchSize; batch++) {
-            for (int channel = 0; channel < filterNum; channel++) {
-                for (int height = 0; height < outHeight; height++) {
-                    for (int width = 0; width < outWidth; width++) {
-                        int outputIndex = (batch * outHeight + height) * outWidth + width;
-                        result.buffer[resultIndex++] = output.buffer[outputIndex * filterNum + channel];
-                    }
-                }
-            }
+    public void setAlgorithm(ConvAlgorithm algorithm) {
+        if (algorithm != null && !algorithm.supports(filterHeight, filterWidth, stride, padding)) {
+            throw new IllegalArgumentException("ConvLayer does not support algorithm " + algorithm
+                    + " with filter " + filterHeight + "x" + filterWidth + ", stride " + stride + ", padding " + padding);
         }
-        
-        return result;
+        this.algorithm = algorithm;
     }
-    
+
     /**
-     * 向输出添加偏置
-     * 
-     * @param output 输出数据
-     * @param bias 偏置参数
-     * @return 添加偏置后的输出
+     * 当前调用使用的卷积算法
+     *
+     * 优先使用指定的算法；开启Config.convAutotune时由ConvAutotuner按输入形状对所有支持的算法计时后选择；
+     * 否则在支持时使用Winograd，不支持时使用im2col。
      */
-    private NdArray addBiasToOutput(NdArray output, NdArray bias) {
-        int batchSize = output.shape.dimension[0];
-        int channels = output.shape.dimension[1];
-        int height = output.shape.dimension[2];
-        int width = output.shape.dimension[3];
-        
-        NdArray result = new NdArray(output.buffer.clone(), output.shape);
-        
-        for (int batch = 0; batch < batchSize; batch++) {
-            for (int channel = 0; channel < channels; channel++) {
-                float biasValue = bias.buffer[channel];
-                for (int h = 0; h < height; h++) {
-                    for (int w = 0; w < width; w++) {
-                        int index = ((batch * channels + channel) * height + h) * width + w;
-                        result.buffer[index] += biasValue;
-                    }
+    private ConvAlgorithm selectAlgorithm(NdArray input, NdArray filter, NdArray bias) {
+        if (algorithm != null) {
+            return algorithm;
+        }
+        if (Config.convAutotune) {
+            String key = ConvAutotuner.key("conv", input.shape.dimension, filterNum, filterHeight, filterWidth, stride, padding);
+            Map<ConvAlgorithm, Runnable> candidates = new EnumMap<>(ConvAlgorithm.class);
+            for (ConvAlgorithm candidate : ConvAlgorithm.values()) {
+                if (candidate.supports(filterHeight, filterWidth, stride, padding)) {
+                    candidates.put(candidate, () -> new ConvFunction().compute(candidate, input, filter, bias, false));
                 }
             }
+            return ConvAutotuner.select(key, candidates);
         }
-        
-        return result;
+        return ConvAlgorithm.WINOGRAD.supports(filterHeight, filterWidth, stride, padding)
+                ? ConvAlgorithm.WINOGRAD : ConvAlgorithm.IM2COL;
     }
 
-    @Override
-    public List<NdArray> backward(NdArray yGrad) {
-        // 计算权重梯度
-        NdArray weightGrad = computeWeightGradient(yGrad);
-        
-        // 计算输入梯度
-        NdArray inputGrad = computeInputGradient(yGrad);
-        
-        // 构建梯度列表
-        List<NdArray> gradients = new ArrayList<>();
-        gradients.add(inputGrad);
-        gradients.add(weightGrad);
-        
-        // 计算偏置梯度（如果使用）
-        if (useBias) {
-            NdArray biasGrad = computeBiasGradient(yGrad);
-            gradients.add(biasGrad);
+    /**
+     * 获取卷积核的Winograd变换
+     *
+     * 推理时按卷积核数组缓存变换结果，训练时参数会被原地更新，因此每次重新计算并清空缓存。
+     * 在推理模式下原地修改了卷积核时需要调用clearFilterCache。
+     *
+     * @param filter 卷积核
+     * @param channels 输入通道数
+     * @return 变换后的卷积核
+     */
+    private float[] winogradFilter(NdArray filter, int channels) {
+        if (Config.train) {
+            filterTransform = null;
+            return Winograd.transformFilter(filter.buffer, filterNum, channels);
         }
-        
-        return gradients;
+        FilterTransform cached = filterTransform;
+        if (cached == null || cached.source != filter) {
+            cached = new FilterTransform(filter, Winograd.transformFilter(filter.buffer, filterNum, channels));
+            filterTransform = cached;
+        }
+        return cached.transformed;
     }
-    
+
     /**
-     * 计算权重梯度
-     * 
-     * @param yGrad 输出梯度
-     * @return 权重梯度
+     * 清空推理时缓存的卷积核变换
      */
-    private NdArray computeWeightGradient(NdArray yGrad) {
-        int size = yGrad.shape.size();
-        NdArray yGradReshaped = yGrad.transpose(0, 2, 3, 1).reshape(new Shape(size / filterNum, filterNum));
-        NdArray weightGrad = colInput.dot(yGradReshaped);
-        return weightGrad.transpose(1, 0).reshape(new Shape(filterNum, inputShape.dimension[1], filterHeight, filterWidth));
+    public void clearFilterCache() {
+        filterTransform = null;
     }
-    
+
     /**
-     * 计算输入梯度
-     * 
-     * @param yGrad 输出梯度
-     * @return 输入梯度
+     * 卷积核与其变换结果
      */
-    private NdArray computeInputGradient(NdArray yGrad) {
-        int size = yGrad.shape.size();
-        NdArray yGradReshaped = yGrad.transpose(0, 2, 3, 1).reshape(new Shape(size / filterNum, filterNum));
-        NdArray inputGrad = yGradReshaped.dot(colInputWeight);
-        float[][][][] data = Col2ImUtil.col2im(inputGrad.getMatrix(), inputShape.dimension, filterHeight, filterWidth, stride, padding);
-        return new NdArray(data);
+    private static class FilterTransform {
+
+        private final NdArray source;
+
+        private final float[] transformed;
+
+        FilterTransform(NdArray source, float[] transformed) {
+            this.source = source;
+            this.transformed = transformed;
+        }
     }
-    
+
     /**
-     * 计算偏置梯度
-     * 
-     * @param yGrad 输出梯度
-     * @return 偏置梯度
+     * 按样本执行，批大小大于1时将样本分配到多个线程，各样本写入互不重叠的缓冲区区间
+     *
+     * @param batchSize 批大小
+     * @param task 处理单个样本的任务
      */
-    private NdArray computeBiasGradient(NdArray yGrad) {
-        int batchSize = yGrad.shape.dimension[0];
-        int channels = yGrad.shape.dimension[1];
-        int height = yGrad.shape.dimension[2];
-        int width = yGrad.shape.dimension[3];
-        
-        NdArray biasGrad = NdArray.zeros(new Shape(channels));
-        
-        for (int channel = 0; channel < channels; channel++) {
-            float sum = 0.0f;
-            for (int batch = 0; batch < batchSize; batch++) {
-                for (int h = 0; h < height; h++) {
-                    for (int w = 0; w < width; w++) {
-                        int index = ((batch * channels + channel) * height + h) * width + w;
-                        sum += yGrad.buffer[index];
+    private static void forEachSample(int batchSize, IntConsumer task) {
+        if (batchSize > 1) {
+            IntStream.range(0, batchSize).parallel().forEach(task);
+        } else {
+            for (int n = 0; n < batchSize; n++) {
+                task.accept(n);
+            }
+        }
+    }
+
+    /**
+     * 单次卷积调用对应的计算图节点
+     *
+     * 层只持有卷积的配置与参数，反向传播需要的列矩阵保存在每次调用新建的节点中，
+     * 因此同一个层实例可以被多个线程同时用于前向计算。
+     * 推理时（Config.train为false）不保存列矩阵，每个样本的列矩阵使用线程私有的工作区。
+     * 使用Winograd或直接卷积时不生成列矩阵，反向传播按需重新展开。
+     */
+    private class ConvFunction extends Function {
+
+        private ConvAlgorithm usedAlgorithm;
+
+        /**
+         * 训练时保存的列矩阵，形状为 (N * C*FH*FW, OH*OW)
+         */
+        private float[] col;
+
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            NdArray input = inputs[0];
+            NdArray filter = inputs[1];
+            NdArray bias = inputs.length > 2 ? inputs[2] : null;
+
+            usedAlgorithm = selectAlgorithm(input, filter, bias);
+            return compute(usedAlgorithm, input, filter, bias, Config.train);
+        }
+
+        /**
+         * 使用指定的算法计算卷积
+         *
+         * @param algo 卷积算法
+         * @param input 输入
+         * @param filter 卷积核
+         * @param bias 偏置，可以为null
+         * @param saveCol im2col算法是否保存列矩阵供反向传播使用
+         * @return 卷积输出
+         */
+        private NdArray compute(ConvAlgorithm algo, NdArray input, NdArray filter, NdArray bias, boolean saveCol) {
+            int batchSize = input.shape.dimension[0];
+            int channels = input.shape.dimension[1];
+            int height = input.shape.dimension[2];
+            int width = input.shape.dimension[3];
+            int outH = (height + 2 * padding - filterHeight) / stride + 1;
+            int outW = (width + 2 * padding - filterWidth) / stride + 1;
+            int colRows = channels * filterHeight * filterWidth;
+            int outSize = outH * outW;
+
+            NdArray result = new NdArray(new Shape(batchSize, filterNum, outH, outW));
+            col = null;
+            if (algo == ConvAlgorithm.WINOGRAD) {
+                float[] u = winogradFilter(filter, channels);
+                forEachSample(batchSize, n -> {
+                    int outOffset = n * filterNum * outSize;
+                    fillBias(result.buffer, outOffset, bias, outSize);
+                    Winograd.convolve(input.buffer, n * channels * height * width, channels, height, width, padding,
+                            u, filterNum, result.buffer, outOffset);
+                });
+                return result;
+            }
+            if (algo == ConvAlgorithm.DIRECT) {
+                forEachSample(batchSize, n -> {
+                    int outOffset = n * filterNum * outSize;
+                    fillBias(result.buffer, outOffset, bias, outSize);
+                    DirectConv.convolve(input.buffer, n * channels * height * width, channels, height, width,
+                            filter.buffer, filterNum, filterHeight, filterWidth, stride, padding, result.buffer, outOffset);
+                });
+                return result;
+            }
+
+            // 每个样本的列矩阵为 (C*FH*FW, OH*OW)，权重 (FN, C*FH*FW) 左乘后直接得到该样本的NCHW输出
+            float[] savedCol = saveCol ? new float[batchSize * colRows * outSize] : null;
+            forEachSample(batchSize, n -> {
+                float[] sampleCol = saveCol ? savedCol : Workspace.get(Workspace.COL, colRows * outSize);
+                int colOffset = saveCol ? n * colRows * outSize : 0;
+                int outOffset = n * filterNum * outSize;
+                Im2ColUtil.im2col(input.buffer, n * channels * height * width, channels, height, width,
+                        filterHeight, filterWidth, stride, padding, sampleCol, colOffset);
+                fillBias(result.buffer, outOffset, bias, outSize);
+                GemmUtil.gemm(filterNum, colRows, outSize, filter.buffer, 0, sampleCol, colOffset, result.buffer, outOffset);
+            });
+
+            col = savedCol;
+            return result;
+        }
+
+        /**
+         * 将偏置写入一个样本的输出区间作为初始值
+         */
+        private void fillBias(float[] output, int outOffset, NdArray bias, int outSize) {
+            if (bias == null) {
+                return;
+            }
+            for (int f = 0; f < filterNum; f++) {
+                Arrays.fill(output, outOffset + f * outSize, outOffset + (f + 1) * outSize, bias.buffer[f]);
+            }
+        }
+
+        /**
+         * 并行反向传播
+         *
+         * 批内样本被划分为若干连续的分块，每个分块由一个线程处理：
+         * 1. 输入梯度：dCol_n = W^T * dY_n 后col2im回该样本自己的输入区间，不同样本的写入区间互不重叠；
+         * 2. 权重与偏置梯度：dW += dY_n * col_n^T 按原始布局直接索引，不做转置，
+         *    累加到分块私有的缓冲区中，全部分块结束后再依次合并，不存在并发写入同一位置。
+         * 使用Winograd算法时，输入梯度是dY与旋转180度、交换通道后的卷积核做填充为(2 - padding)的3x3卷积，
+         * 同样由Winograd计算；列矩阵在分块内逐样本重新展开到线程私有的工作区。
+         */
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            NdArray input = inputs[0].getValue();
+            NdArray filter = inputs[1].getValue();
+            boolean hasBias = inputs.length > 2;
+
+            int batchSize = input.shape.dimension[0];
+            int channels = input.shape.dimension[1];
+            int height = input.shape.dimension[2];
+            int width = input.shape.dimension[3];
+            int colRows = channels * filterHeight * filterWidth;
+            int outH = yGrad.shape.dimension[2];
+            int outW = yGrad.shape.dimension[3];
+            int outSize = outH * outW;
+            boolean winograd = usedAlgorithm == ConvAlgorithm.WINOGRAD;
+            float[] rotatedFilter = winograd ? Winograd.transformFilter(
+                    Winograd.rotateFilter(filter.buffer, filterNum, channels), channels, filterNum) : null;
+
+            NdArray inputGrad = new NdArray(input.getShape());
+            int chunkNum = Math.max(1, Math.min(batchSize, ForkJoinPool.getCommonPoolParallelism()));
+            float[][] weightGrads = new float[chunkNum][];
+            float[][] biasGrads = new float[chunkNum][];
+
+            IntConsumer chunkTask = chunk -> {
+                int from = chunk * batchSize / chunkNum;
+                int to = (chunk + 1) * batchSize / chunkNum;
+                float[] weightGrad = new float[filterNum * colRows];
+                float[] biasGrad = hasBias ? new float[filterNum] : null;
+                float[] colGrad = winograd ? null : Workspace.get(Workspace.COL_GRAD, colRows * outSize);
+                for (int n = from; n < to; n++) {
+                    int gradOffset = n * filterNum * outSize;
+                    int inputOffset = n * channels * height * width;
+
+                    if (winograd) {
+                        Winograd.convolve(yGrad.buffer, gradOffset, filterNum, outH, outW, 2 - padding,
+                                rotatedFilter, channels, inputGrad.buffer, inputOffset);
+                    } else {
+                        Arrays.fill(colGrad, 0, colRows * outSize, 0f);
+                        GemmUtil.gemmTransA(colRows, filterNum, outSize, filter.buffer, 0,
+                                yGrad.buffer, gradOffset, colGrad, 0);
+                        Col2ImUtil.col2im(colGrad, 0, channels, height, width, filterHeight, filterWidth, stride, padding,
+                                inputGrad.buffer, inputOffset);
+                    }
+
+                    float[] sampleCol = col;
+                    int colOffset = n * colRows * outSize;
+                    if (sampleCol == null) {
+                        sampleCol = Workspace.get(Workspace.COL, colRows * outSize);
+                        colOffset = 0;
+                        Im2ColUtil.im2col(input.buffer, inputOffset, channels, height, width,
+                                filterHeight, filterWidth, stride, padding, sampleCol, colOffset);
+                    }
+                    GemmUtil.gemmTransB(filterNum, outSize, colRows, yGrad.buffer, gradOffset,
+                            sampleCol, colOffset, weightGrad, 0);
+
+                    if (biasGrad != null) {
+                        for (int f = 0; f < filterNum; f++) {
+                            int offset = gradOffset + f * outSize;
+                            float sum = 0f;
+                            for (int i = 0; i < outSize; i++) {
+                                sum += yGrad.buffer[offset + i];
+                            }
+                            biasGrad[f] += sum;
+                        }
                     }
                 }
+                weightGrads[chunk] = weightGrad;
+                biasGrads[chunk] = biasGrad;
+            };
+            if (chunkNum > 1) {
+                IntStream.range(0, chunkNum).parallel().forEach(chunkTask);
+            } else {
+                chunkTask.accept(0);
             }
-            biasGrad.buffer[channel] = sum;
+
+            List<NdArray> gradients = new ArrayList<>();
+            gradients.add(inputGrad);
+            gradients.add(new NdArray(merge(weightGrads),
+                    new Shape(filterNum, channels, filterHeight, filterWidth)));
+            if (hasBias) {
+                gradients.add(new NdArray(merge(biasGrads), new Shape(filterNum)));
+            }
+            return gradients;
+        }
+
+        /**
+         * 将各分块的梯度累加到第一个分块的缓冲区中
+         */
+        private float[] merge(float[][] partials) {
+            float[] result = partials[0];
+            for (int p = 1; p < partials.length; p++) {
+                float[] partial = partials[p];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] += partial[i];
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public int requireInputNum() {
+            return -1;
         }
-        
-        return biasGrad;
     }
-}
\ No newline at end of file
+}
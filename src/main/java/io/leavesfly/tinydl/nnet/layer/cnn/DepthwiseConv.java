@@ -0,0 +1,100 @@
+package io.leavesfly.tinydl.nnet.layer.cnn;
+
+/**
+ * 深度卷积（每个通道一个卷积核）的直接计算工具类
+ *
+ * 深度卷积每个输出只依赖同一通道的一个窗口，im2col会把输入放大卷积核面积倍而几乎没有可复用的计算，
+ * 因此直接在单个通道平面上滑动窗口：对卷积核的每个位置，沿输出宽度连续累加一整行。
+ * 所有方法只处理一个(样本, 通道)平面，调用方可以按平面并行。
+ */
+public class DepthwiseConv {
+
+    private DepthwiseConv() {
+    }
+
+    /**
+     * 前向传播：output += conv(input, kernel)
+     *
+     * @param input 输入缓冲区
+     * @param inputOffset 平面在输入缓冲区中的起始位置
+     * @param height 输入高度
+     * @param width 输入宽度
+     * @param kernel 卷积核缓冲区
+     * @param kernelOffset 该通道卷积核的起始位置
+     * @param kernelSize 卷积核边长
+     * @param stride 步长
+     * @param pad 填充
+     * @param output 输出缓冲区
+     * @param outputOffset 平面在输出缓冲区中的起始位置
+     */
+    public static void forward(float[] input, int inputOffset, int height, int width,
+                               float[] kernel, int kernelOffset, int kernelSize, int stride, int pad,
+                               float[] output, int outputOffset) {
+        int outH = (height + 2 * pad - kernelSize) / stride + 1;
+        int outW = (width + 2 * pad - kernelSize) / stride + 1;
+        for (int kh = 0; kh < kernelSize; kh++) {
+            for (int kw = 0; kw < kernelSize; kw++) {
+                float weight = kernel[kernelOffset + kh * kernelSize + kw];
+                int wStart = Im2ColUtil.validStart(kw, pad, stride, outW);
+                int wEnd = Im2ColUtil.validEnd(kw, pad, stride, width, wStart, outW);
+                for (int h = 0; h < outH; h++) {
+                    int imRow = h * stride + kh - pad;
+                    if (imRow < 0 || imRow >= height) {
+                        continue;
+                    }
+                    int out = outputOffset + h * outW;
+                    int in = inputOffset + imRow * width + kw - pad;
+                    for (int w = wStart; w < wEnd; w++) {
+                        output[out + w] += weight * input[in + w * stride];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 反向传播：inputGrad += conv^T(outputGrad, kernel)，kernelGrad += corr(input, outputGrad)
+     *
+     * @param input 输入缓冲区
+     * @param inputOffset 平面在输入缓冲区中的起始位置
+     * @param height 输入高度
+     * @param width 输入宽度
+     * @param kernel 卷积核缓冲区
+     * @param kernelOffset 该通道卷积核的起始位置
+     * @param kernelSize 卷积核边长
+     * @param stride 步长
+     * @param pad 填充
+     * @param outputGrad 输出梯度缓冲区
+     * @param outputOffset 平面在输出梯度缓冲区中的起始位置
+     * @param inputGrad 输入梯度缓冲区
+     * @param kernelGrad 卷积核梯度缓冲区，与卷积核使用相同的偏移
+     */
+    public static void backward(float[] input, int inputOffset, int height, int width,
+                                float[] kernel, int kernelOffset, int kernelSize, int stride, int pad,
+                                float[] outputGrad, int outputOffset, float[] inputGrad, float[] kernelGrad) {
+        int outH = (height + 2 * pad - kernelSize) / stride + 1;
+        int outW = (width + 2 * pad - kernelSize) / stride + 1;
+        for (int kh = 0; kh < kernelSize; kh++) {
+            for (int kw = 0; kw < kernelSize; kw++) {
+                float weight = kernel[kernelOffset + kh * kernelSize + kw];
+                int wStart = Im2ColUtil.validStart(kw, pad, stride, outW);
+                int wEnd = Im2ColUtil.validEnd(kw, pad, stride, width, wStart, outW);
+                float weightGrad = 0f;
+                for (int h = 0; h < outH; h++) {
+                    int imRow = h * stride + kh - pad;
+                    if (imRow < 0 || imRow >= height) {
+                        continue;
+                    }
+                    int out = outputOffset + h * outW;
+                    int in = inputOffset + imRow * width + kw - pad;
+                    for (int w = wStart; w < wEnd; w++) {
+                        float grad = outputGrad[out + w];
+                        inputGrad[in + w * stride] += weight * grad;
+                        weightGrad += input[in + w * stride] * grad;
+                    }
+                }
+                kernelGrad[kernelOffset + kh * kernelSize + kw] += weightGrad;
+            }
+        }
+    }
+}
@@ -1,18 +1,25 @@
 package io.leavesfly.tinydl.nnet.layer.cnn;
 
+import io.leavesfly.tinydl.func.Function;
 import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.GemmUtil;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
 import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.utils.Config;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
- * 深度可分离卷积层（简化版本）
+ * 深度可分离卷积层
  * 实现MobileNet中的Depthwise Separable Convolution
  * 包含深度卷积（Depthwise Convolution）和逐点卷积（Pointwise Convolution）
+ * 深度卷积在每个通道平面上直接滑动窗口计算，按通道并行；
+ * 1x1的逐点卷积直接在NCHW缓冲区上做一次 (输出通道, 输入通道) x (输入通道, H*W) 的矩阵乘法。
  */
 public class DepthwiseSeparableConvLayer extends Layer {
     
@@ -28,9 +35,6 @@ public class DepthwiseSeparableConvLayer extends Layer {
     private int filterSize;
     private int outputChannels;
     
-    // 中间输出缓存
-    private NdArray depthwiseOutput;
-    
     /**
      * 构造函数
      * @param _name 层名称
@@ -100,103 +104,129 @@ public class DepthwiseSeparableConvLayer extends Layer {
     @Override
     public Variable layerForward(Variable... inputs) {
         Variable input = inputs[0];
-        return this.call(input, depthwiseFilterParam, pointwiseFilterParam);
+        return new DepthwiseSeparableFunction().call(input, depthwiseFilterParam, pointwiseFilterParam);
     }
     
+    /**
+     * 直接对NdArray执行前向传播，不构建计算图，可被多个线程并发调用
+     */
     @Override
     public NdArray forward(NdArray... inputs) {
-        NdArray input = inputs[0];
-        
-        // 第一步：深度卷积（简化实现：使用组卷积模拟）
-        depthwiseOutput = depthwiseConvolution(input);
-        
-        // 第二步：逐点卷积
-        NdArray result = pointwiseConvolution(depthwiseOutput);
-        
-        return result;
+        NdArray depthwiseFilter = inputs.length > 1 ? inputs[1] : depthwiseFilterParam.getValue();
+        NdArray pointwiseFilter = inputs.length > 2 ? inputs[2] : pointwiseFilterParam.getValue();
+        return new DepthwiseSeparableFunction().forward(inputs[0], depthwiseFilter, pointwiseFilter);
     }
     
     /**
-     * 深度卷积实现（简化版本）
+     * 反向传播由每次调用创建的DepthwiseSeparableFunction节点完成，层本身不保存任何前向状态
      */
-    private NdArray depthwiseConvolution(NdArray input) {
-        int num = input.shape.dimension[0];
-        int inputChannels = input.shape.dimension[1];
-        int inHeight = input.shape.dimension[2];
-        int inWidth = input.shape.dimension[3];
-        
-        int outHeight = (inHeight + 2 * pad - filterSize) / stride + 1;
-        int outWidth = (inWidth + 2 * pad - filterSize) / stride + 1;
-        
-        // 简化实现：对每个通道独立进行卷积
-        NdArray output = new NdArray(new Shape(num, inputChannels, outHeight, outWidth));
-        
-        // 这里使用简化的实现，实际应该对每个通道独立卷积
-        // 为了简化，我们复制输入并进行形状变换
-        for (int i = 0; i < output.buffer.length; i++) {
-            output.buffer[i] = input.buffer[i % input.buffer.length] * 0.8f; // 简化的变换
-        }
-        
-        return output;
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        return null;
     }
     
     /**
-     * 逐点卷积实现
+     * 按索引并行执行，数量大于1时使用并行流
      */
-    private NdArray pointwiseConvolution(NdArray input) {
-        int num = input.shape.dimension[0];
-        int inputChannels = input.shape.dimension[1];
-        int height = input.shape.dimension[2];
-        int width = input.shape.dimension[3];
-        
-        // 重塑输入为 (N*H*W, C)
-        NdArray reshapedInput = new NdArray(new Shape(num * height * width, inputChannels));
-        for (int n = 0; n < num; n++) {
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    int outputRow = (n * height + h) * width + w;
-                    for (int c = 0; c < inputChannels; c++) {
-                        int inputIndex = ((n * inputChannels + c) * height + h) * width + w;
-                        reshapedInput.buffer[outputRow * inputChannels + c] = input.buffer[inputIndex];
-                    }
-                }
+    private static void forEachIndex(int count, IntConsumer task) {
+        if (count > 1) {
+            IntStream.range(0, count).parallel().forEach(task);
+        } else {
+            for (int i = 0; i < count; i++) {
+                task.accept(i);
             }
         }
+    }
+    
+    /**
+     * 单次深度可分离卷积调用对应的计算图节点，训练时保存深度卷积的输出供反向传播使用
+     */
+    private class DepthwiseSeparableFunction extends Function {
         
-        // 重塑卷积核为 (outputChannels, inputChannels)
-        NdArray reshapedFilter = pointwiseFilterParam.getValue().reshape(
-            new Shape(outputChannels, inputChannels));
+        private NdArray depthwiseOutput;
         
-        // 矩阵乘法
-        NdArray matmulResult = reshapedInput.dot(reshapedFilter.transpose());
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            NdArray input = inputs[0];
+            NdArray depthwiseFilter = inputs[1];
+            NdArray pointwiseFilter = inputs[2];
+            
+            int num = input.shape.dimension[0];
+            int channels = input.shape.dimension[1];
+            int inHeight = input.shape.dimension[2];
+            int inWidth = input.shape.dimension[3];
+            int outHeight = (inHeight + 2 * pad - filterSize) / stride + 1;
+            int outWidth = (inWidth + 2 * pad - filterSize) / stride + 1;
+            int inPlane = inHeight * inWidth;
+            int outPlane = outHeight * outWidth;
+            
+            // 第一步：深度卷积，按(样本, 通道)平面并行
+            NdArray depthwise = new NdArray(new Shape(num, channels, outHeight, outWidth));
+            forEachIndex(num * channels, plane -> {
+                int c = plane % channels;
+                DepthwiseConv.forward(input.buffer, plane * inPlane, inHeight, inWidth,
+                        depthwiseFilter.buffer, c * filterSize * filterSize, filterSize, stride, pad,
+                        depthwise.buffer, plane * outPlane);
+            });
+            
+            // 第二步：逐点卷积，每个样本 (F, C) x (C, OH*OW) 直接得到NCHW输出
+            NdArray result = new NdArray(new Shape(num, outputChannels, outHeight, outWidth));
+            forEachIndex(num, n -> GemmUtil.gemm(outputChannels, channels, outPlane,
+                    pointwiseFilter.buffer, 0, depthwise.buffer, n * channels * outPlane,
+                    result.buffer, n * outputChannels * outPlane));
+            
+            depthwiseOutput = Config.train ? depthwise : null;
+            return result;
+        }
         
-        // 重塑回 (N, outputChannels, H, W)
-        NdArray result = new NdArray(new Shape(num, outputChannels, height, width));
-        for (int n = 0; n < num; n++) {
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    int inputRow = (n * height + h) * width + w;
-                    for (int c = 0; c < outputChannels; c++) {
-                        int outputIndex = ((n * outputChannels + c) * height + h) * width + w;
-                        result.buffer[outputIndex] = matmulResult.buffer[inputRow * outputChannels + c];
-                    }
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            NdArray input = inputs[0].getValue();
+            NdArray depthwiseFilter = inputs[1].getValue();
+            NdArray pointwiseFilter = inputs[2].getValue();
+            
+            int num = input.shape.dimension[0];
+            int channels = input.shape.dimension[1];
+            int inHeight = input.shape.dimension[2];
+            int inWidth = input.shape.dimension[3];
+            int outPlane = yGrad.shape.dimension[2] * yGrad.shape.dimension[3];
+            int inPlane = inHeight * inWidth;
+            
+            // 逐点卷积：dD_n = Wp^T * dY_n 按样本并行；dWp += dY_n * D_n^T 按输出通道并行，各自写入不同的行
+            NdArray depthwiseGrad = new NdArray(depthwiseOutput.getShape());
+            forEachIndex(num, n -> GemmUtil.gemmTransA(channels, outputChannels, outPlane,
+                    pointwiseFilter.buffer, 0, yGrad.buffer, n * outputChannels * outPlane,
+                    depthwiseGrad.buffer, n * channels * outPlane));
+            NdArray pointwiseGrad = new NdArray(pointwiseFilter.getShape());
+            forEachIndex(outputChannels, f -> {
+                for (int n = 0; n < num; n++) {
+                    GemmUtil.gemmTransB(1, outPlane, channels, yGrad.buffer, (n * outputChannels + f) * outPlane,
+                            depthwiseOutput.buffer, n * channels * outPlane, pointwiseGrad.buffer, f * channels);
                 }
-            }
+            });
+            
+            // 深度卷积：按通道并行，每个通道只写自己的输入梯度平面与卷积核梯度
+            NdArray inputGrad = new NdArray(input.getShape());
+            NdArray depthwiseFilterGrad = new NdArray(depthwiseFilter.getShape());
+            forEachIndex(channels, c -> {
+                for (int n = 0; n < num; n++) {
+                    int plane = n * channels + c;
+                    DepthwiseConv.backward(input.buffer, plane * inPlane, inHeight, inWidth,
+                            depthwiseFilter.buffer, c * filterSize * filterSize, filterSize, stride, pad,
+                            depthwiseGrad.buffer, plane * outPlane, inputGrad.buffer, depthwiseFilterGrad.buffer);
+                }
+            });
+            
+            List<NdArray> gradients = new ArrayList<>();
+            gradients.add(inputGrad);
+            gradients.add(depthwiseFilterGrad);
+            gradients.add(pointwiseGrad);
+            return gradients;
         }
         
-        return result;
-    }
-    
-    @Override
-    public List<NdArray> backward(NdArray yGrad) {
-        // 深度可分离卷积的反向传播（简化实现）
-        List<NdArray> gradients = new ArrayList<>();
-        
-        // 简化的梯度计算
-        gradients.add(yGrad); // 输入梯度
-        gradients.add(NdArray.zeros(depthwiseFilterParam.getValue().shape)); // 深度卷积权重梯度
-        gradients.add(NdArray.zeros(pointwiseFilterParam.getValue().shape)); // 逐点卷积权重梯度
-        
-        return gradients;
+        @Override
+        public int requireInputNum() {
+            return 3;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,66 @@
+package io.leavesfly.tinydl.nnet.layer.cnn;
+
+/**
+ * 按定义直接计算的卷积
+ *
+ * 不展开im2col矩阵，也不做任何变换，对每个(卷积核, 通道, 核内位置)在输出行上滑动累加，
+ * 最内层沿输出宽度连续访问。不需要额外内存，适合通道数少、特征图小的卷积。
+ */
+public class DirectConv {
+
+    private DirectConv() {
+    }
+
+    /**
+     * 对单个样本执行卷积，结果累加到输出上
+     *
+     * @param input 输入缓冲区
+     * @param inputOffset 样本在输入缓冲区中的起始位置
+     * @param channels 输入通道数
+     * @param height 输入高度
+     * @param width 输入宽度
+     * @param filter 卷积核，形状为 (filterNum, channels, filterH, filterW)
+     * @param filterNum 卷积核数量
+     * @param filterH 卷积核高度
+     * @param filterW 卷积核宽度
+     * @param stride 步长
+     * @param pad 填充
+     * @param output 输出缓冲区
+     * @param outputOffset 样本在输出缓冲区中的起始位置
+     */
+    public static void convolve(float[] input, int inputOffset, int channels, int height, int width,
+                                float[] filter, int filterNum, int filterH, int filterW, int stride, int pad,
+                                float[] output, int outputOffset) {
+        int outH = (height + 2 * pad - filterH) / stride + 1;
+        int outW = (width + 2 * pad - filterW) / stride + 1;
+
+        for (int f = 0; f < filterNum; f++) {
+            int outPlane = outputOffset + f * outH * outW;
+            for (int c = 0; c < channels; c++) {
+                int inPlane = inputOffset + c * height * width;
+                int kernel = (f * channels + c) * filterH * filterW;
+                for (int fh = 0; fh < filterH; fh++) {
+                    for (int fw = 0; fw < filterW; fw++) {
+                        float weight = filter[kernel + fh * filterW + fw];
+                        if (weight == 0f) {
+                            continue;
+                        }
+                        int wStart = Im2ColUtil.validStart(fw, pad, stride, outW);
+                        int wEnd = Im2ColUtil.validEnd(fw, pad, stride, width, wStart, outW);
+                        for (int h = 0; h < outH; h++) {
+                            int imRow = h * stride + fh - pad;
+                            if (imRow < 0 || imRow >= height) {
+                                continue;
+                            }
+                            int out = outPlane + h * outW;
+                            int in = inPlane + imRow * width + fw - pad;
+                            for (int w = wStart; w < wEnd; w++) {
+                                output[out + w] += weight * input[in + w * stride];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,50 +1,16 @@
 package io.leavesfly.tinydl.nnet.layer.cnn;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * 优化的Im2Col工具类
  * 当处理四维数组时，我们通常处理的是多个样本（例如，一批图像）其中每个样本可能包含多个通道（例如，RGB图像有三个通道）
- * 增加了缓存机制和性能优化
+ * 不保存任何静态状态，每次调用只写入调用方的输出数组，可被多个线程并发调用
  */
 public class Im2ColUtil {
     
-    // 缓存机制：缓存已经分配的数组以避免重复分配
-    private static final Map<String, float[][]> outputCache = new ConcurrentHashMap<>();
-    private static final int MAX_CACHE_SIZE = 10;  // 最大缓存数量
-    
-    /**
-     * 生成缓存键
-     */
-    private static String generateCacheKey(int numSamples, int outHeight, int outWidth, int channels, int filterH, int filterW) {
-        return String.format("%d_%d_%d_%d_%d_%d", numSamples, outHeight, outWidth, channels, filterH, filterW);
-    }
-    
-    /**
-     * 获取或创建输出数组
-     */
-    private static float[][] getOrCreateOutput(String cacheKey, int rows, int cols) {
-        float[][] output = outputCache.get(cacheKey);
-        if (output == null || output.length != rows || output[0].length != cols) {
-            output = new float[rows][cols];
-            if (outputCache.size() >= MAX_CACHE_SIZE) {
-                // 简单的LRU策略：清空缓存
-                outputCache.clear();
-            }
-            outputCache.put(cacheKey, output);
-        } else {
-            // 清零复用的数组
-            for (int i = 0; i < rows; i++) {
-                java.util.Arrays.fill(output[i], 0.0f);
-            }
-        }
-        return output;
-    }
-
     /**
      * 优化版本：对四维输入数组执行 im2col 操作。
-     * 增加了缓存机制和性能优化
      *
      * @param input   预期形状为 [numSamples][channels][height][width] 的四维数组。
      * @param filterH 滤波器高度。
@@ -63,11 +29,9 @@ public class Im2ColUtil {
         int outHeight = (height + 2 * pad - filterH) / stride + 1;
         int outWidth = (width + 2 * pad - filterW) / stride + 1;
 
-        // 使用缓存机制获取输出数组
-        String cacheKey = generateCacheKey(numSamples, outHeight, outWidth, channels, filterH, filterW);
         int outputRows = numSamples * outHeight * outWidth;
         int outputCols = channels * filterH * filterW;
-        float[][] output = getOrCreateOutput(cacheKey, outputRows, outputCols);
+        float[][] output = new float[outputRows][outputCols];
 
         // 优化的循环顺序：按照内存访问模式优化
         int outputRowIndex = 0;
@@ -148,10 +112,72 @@ public class Im2ColUtil {
     }
     
     /**
-     * 清理缓存
+     * 直接在一维缓冲区上对单个样本执行 im2col 操作。
+     * 输入为NCHW布局中一个样本的 [channels][height][width] 区域，
+     * 输出为 (channels * filterH * filterW, outHeight * outWidth) 的行主序矩阵，
+     * 卷积核权重 (filterNum, channels * filterH * filterW) 与其直接相乘即得到NCHW布局的输出，无需再转置。
+     *
+     * @param input       输入缓冲区
+     * @param inputOffset 样本在输入缓冲区中的起始位置
+     * @param channels    通道数
+     * @param height      输入高度
+     * @param width       输入宽度
+     * @param filterH     滤波器高度
+     * @param filterW     滤波器宽度
+     * @param stride      步长
+     * @param pad         填充
+     * @param col         输出缓冲区
+     * @param colOffset   输出矩阵在缓冲区中的起始位置
+     */
+    public static void im2col(float[] input, int inputOffset, int channels, int height, int width,
+                              int filterH, int filterW, int stride, int pad, float[] col, int colOffset) {
+        int outHeight = (height + 2 * pad - filterH) / stride + 1;
+        int outWidth = (width + 2 * pad - filterW) / stride + 1;
+
+        int row = colOffset;
+        for (int c = 0; c < channels; c++) {
+            int channelOffset = inputOffset + c * height * width;
+            for (int fh = 0; fh < filterH; fh++) {
+                for (int fw = 0; fw < filterW; fw++) {
+                    // 该滤波器位置在输入宽度范围内的输出列区间 [wStart, wEnd)
+                    int wStart = validStart(fw, pad, stride, outWidth);
+                    int wEnd = validEnd(fw, pad, stride, width, wStart, outWidth);
+                    for (int h = 0; h < outHeight; h++) {
+                        int out = row + h * outWidth;
+                        int imRow = h * stride + fh - pad;
+                        if (imRow < 0 || imRow >= height) {
+                            Arrays.fill(col, out, out + outWidth, 0.0f);
+                            continue;
+                        }
+                        Arrays.fill(col, out, out + wStart, 0.0f);
+                        int imOffset = channelOffset + imRow * width + fw - pad;
+                        if (stride == 1) {
+                            System.arraycopy(input, imOffset + wStart, col, out + wStart, wEnd - wStart);
+                        } else {
+                            for (int w = wStart; w < wEnd; w++) {
+                                col[out + w] = input[imOffset + w * stride];
+                            }
+                        }
+                        Arrays.fill(col, out + wEnd, out + outWidth, 0.0f);
+                    }
+                    row += outHeight * outWidth;
+                }
+            }
+        }
+    }
+
+    /**
+     * 满足 w * stride + offset - pad >= 0 的最小输出坐标
+     */
+    static int validStart(int offset, int pad, int stride, int outSize) {
+        return Math.min(Math.max(-Math.floorDiv(offset - pad, stride), 0), outSize);
+    }
+
+    /**
+     * 满足 w * stride + offset - pad >= size 的最小输出坐标，即有效区间的右端（不含）
      */
-    public static void clearCache() {
-        outputCache.clear();
+    static int validEnd(int offset, int pad, int stride, int size, int start, int outSize) {
+        return Math.min(Math.max(-Math.floorDiv(offset - pad - size, stride), start), outSize);
     }
 
 }
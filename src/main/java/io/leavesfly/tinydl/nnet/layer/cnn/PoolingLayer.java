@@ -1,17 +1,22 @@
 package io.leavesfly.tinydl.nnet.layer.cnn;
 
+import io.leavesfly.tinydl.func.Function;
 import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
-import io.leavesfly.tinydl.utils.Util;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * 池化层
  * 支持最大池化、平均池化和自适应池化
+ * 按(样本, 通道)平面并行计算，最大池化的位置以紧凑的int[]保存
+ * 层本身不保存前向状态，同一个实例可以被多个推理线程共享
  */
 public class PoolingLayer extends Layer {
 
@@ -30,11 +35,6 @@ public class PoolingLayer extends Layer {
     private int outWidth;
     private PoolingMode mode;  // 池化模式
 
-    // 缓存变量
-    private NdArray colInput;
-    private NdArray argMax;  // 用于最大池化反向传播
-    private NdArray input;
-
 
     /**
      * 构造函数（默认最大池化）
@@ -91,317 +91,235 @@ public class PoolingLayer extends Layer {
     @Override
     public Variable layerForward(Variable... inputs) {
         Variable input = inputs[0];
-        return this.call(input);
+        return new PoolingFunction().call(input);
     }
 
-    @Override
-    public NdArray forward(NdArray... inputs) {
-        // 实现前向传播
-        input = inputs[0];
-        int num = input.shape.dimension[0];
-        int channel = input.shape.dimension[1];
-        int inHeight = input.shape.dimension[2];
-        int inWidth = input.shape.dimension[3];
-
-        switch (mode) {
-            case MAX:
-                return forwardMaxPooling(num, channel, inHeight, inWidth);
-            case AVERAGE:
-                return forwardAveragePooling(num, channel, inHeight, inWidth);
-            case ADAPTIVE_MAX:
-                return forwardAdaptiveMaxPooling(num, channel, inHeight, inWidth);
-            case ADAPTIVE_AVERAGE:
-                return forwardAdaptiveAveragePooling(num, channel, inHeight, inWidth);
-            default:
-                throw new IllegalArgumentException("Unsupported pooling mode: " + mode);
-        }
-    }
-    
     /**
-     * 最大池化前向传播
+     * 直接对NdArray执行前向传播，不构建计算图，可被多个线程并发调用
      */
-    private NdArray forwardMaxPooling(int num, int channel, int inHeight, int inWidth) {
-        float[][][][] data = input.get4dArray();
-        float[][] colInput2dArray = Im2ColUtil.im2col(data, poolHeight, poolWidth, stride, pad);
-        colInput = new NdArray(colInput2dArray);
-
-        colInput = colInput.reshape(new Shape(colInput.shape.size() / (poolHeight * poolWidth), (poolHeight * poolWidth)));
-
-        argMax = colInput.argMax(1);
-        NdArray out = colInput.max(1);
-        out = out.reshape(new Shape(num, outHeight, outWidth, channel));
-        
-        // 手动转置维度从 (N, H, W, C) 到 (N, C, H, W)
-        return transposeNHWCToNCHW(out, num, channel, outHeight, outWidth);
+    @Override
+    public NdArray forward(NdArray... inputs) {
+        return new PoolingFunction().forward(inputs);
     }
-    
-    /**
-     * 平均池化前向传播
-     */
-    private NdArray forwardAveragePooling(int num, int channel, int inHeight, int inWidth) {
-        float[][][][] data = input.get4dArray();
-        float[][] colInput2dArray = Im2ColUtil.im2col(data, poolHeight, poolWidth, stride, pad);
-        colInput = new NdArray(colInput2dArray);
-
-        colInput = colInput.reshape(new Shape(colInput.shape.size() / (poolHeight * poolWidth), (poolHeight * poolWidth)));
 
-        // 计算平均值
-        NdArray out = computeMean(colInput);
-        out = out.reshape(new Shape(num, outHeight, outWidth, channel));
-        
-        return transposeNHWCToNCHW(out, num, channel, outHeight, outWidth);
-    }
-    
     /**
-     * 自适应最大池化前向传播
+     * 反向传播由每次调用创建的PoolingFunction节点完成，层本身不保存任何前向状态
      */
-    private NdArray forwardAdaptiveMaxPooling(int num, int channel, int inHeight, int inWidth) {
-        NdArray result = new NdArray(new Shape(num, channel, outHeight, outWidth));
-        argMax = new NdArray(new Shape(num, channel, outHeight, outWidth));
-        
-        for (int n = 0; n < num; n++) {
-            for (int c = 0; c < channel; c++) {
-                for (int oh = 0; oh < outHeight; oh++) {
-                    for (int ow = 0; ow < outWidth; ow++) {
-                        int hStart = (int) Math.floor((double) oh * inHeight / outHeight);
-                        int hEnd = (int) Math.ceil((double) (oh + 1) * inHeight / outHeight);
-                        int wStart = (int) Math.floor((double) ow * inWidth / outWidth);
-                        int wEnd = (int) Math.ceil((double) (ow + 1) * inWidth / outWidth);
-                        
-                        float maxVal = Float.NEGATIVE_INFINITY;
-                        int maxIdx = 0;
-                        
-                        for (int h = hStart; h < hEnd; h++) {
-                            for (int w = wStart; w < wEnd; w++) {
-                                int idx = ((n * channel + c) * inHeight + h) * inWidth + w;
-                                if (input.buffer[idx] > maxVal) {
-                                    maxVal = input.buffer[idx];
-                                    maxIdx = idx;
-                                }
-                            }
-                        }
-                        
-                        int resultIdx = ((n * channel + c) * outHeight + oh) * outWidth + ow;
-                        result.buffer[resultIdx] = maxVal;
-                        argMax.buffer[resultIdx] = maxIdx;
-                    }
-                }
-            }
-        }
-        
-        return result;
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        return null;
     }
-    
+
     /**
-     * 自适应平均池化前向传播
+     * 按(样本, 通道)平面并行执行，各平面读写互不重叠的缓冲区区间
      */
-    private NdArray forwardAdaptiveAveragePooling(int num, int channel, int inHeight, int inWidth) {
-        NdArray result = new NdArray(new Shape(num, channel, outHeight, outWidth));
-        
-        for (int n = 0; n < num; n++) {
-            for (int c = 0; c < channel; c++) {
-                for (int oh = 0; oh < outHeight; oh++) {
-                    for (int ow = 0; ow < outWidth; ow++) {
-                        int hStart = (int) Math.floor((double) oh * inHeight / outHeight);
-                        int hEnd = (int) Math.ceil((double) (oh + 1) * inHeight / outHeight);
-                        int wStart = (int) Math.floor((double) ow * inWidth / outWidth);
-                        int wEnd = (int) Math.ceil((double) (ow + 1) * inWidth / outWidth);
-                        
-                        float sum = 0.0f;
-                        int count = 0;
-                        
-                        for (int h = hStart; h < hEnd; h++) {
-                            for (int w = wStart; w < wEnd; w++) {
-                                int idx = ((n * channel + c) * inHeight + h) * inWidth + w;
-                                sum += input.buffer[idx];
-                                count++;
-                            }
-                        }
-                        
-                        int resultIdx = ((n * channel + c) * outHeight + oh) * outWidth + ow;
-                        result.buffer[resultIdx] = sum / count;
-                    }
-                }
+    private static void forEachPlane(int planes, IntConsumer task) {
+        if (planes > 1) {
+            IntStream.range(0, planes).parallel().forEach(task);
+        } else {
+            for (int p = 0; p < planes; p++) {
+                task.accept(p);
             }
         }
-        
-        return result;
     }
-    
+
     /**
-     * 计算平均值
+     * 自适应池化第index个输出对应的输入区间起点
      */
-    private NdArray computeMean(NdArray input) {
-        int rows = input.shape.dimension[0];
-        int cols = input.shape.dimension[1];
-        NdArray result = new NdArray(new Shape(rows));
-        
-        for (int i = 0; i < rows; i++) {
-            float sum = 0.0f;
-            for (int j = 0; j < cols; j++) {
-                sum += input.buffer[i * cols + j];
-            }
-            result.buffer[i] = sum / cols;
-        }
-        
-        return result;
+    private static int adaptiveStart(int index, int inSize, int outSize) {
+        return (int) Math.floor((double) index * inSize / outSize);
     }
-    
+
     /**
-     * 维度转置：(N, H, W, C) -> (N, C, H, W)
+     * 自适应池化第index个输出对应的输入区间终点（不含）
      */
-    private NdArray transposeNHWCToNCHW(NdArray input, int num, int channel, int height, int width) {
-        NdArray result = new NdArray(new Shape(num, channel, height, width));
-        for (int n = 0; n < num; n++) {
-            for (int c = 0; c < channel; c++) {
-                for (int h = 0; h < height; h++) {
-                    for (int w = 0; w < width; w++) {
-                        float value = input.get(n, h, w, c);
-                        result.set(value, n, c, h, w);
-                    }
-                }
-            }
-        }
-        return result;
+    private static int adaptiveEnd(int index, int inSize, int outSize) {
+        return (int) Math.ceil((double) (index + 1) * inSize / outSize);
     }
 
-    @Override
-    public List<NdArray> backward(NdArray yGrad) {
-        // 实现后向传播
-        switch (mode) {
-            case MAX:
-                return backwardMaxPooling(yGrad);
-            case AVERAGE:
-                return backwardAveragePooling(yGrad);
-            case ADAPTIVE_MAX:
-                return backwardAdaptiveMaxPooling(yGrad);
-            case ADAPTIVE_AVERAGE:
-                return backwardAdaptiveAveragePooling(yGrad);
-            default:
-                throw new IllegalArgumentException("Unsupported pooling mode: " + mode);
-        }
-    }
-    
     /**
-     * 最大池化反向传播
+     * 单次池化调用对应的计算图节点
+     *
+     * 所有模式都直接在NCHW缓冲区上计算，(样本, 通道)平面分配到多个线程。
+     * 最大池化只保存每个输出在其输入平面内的位置（int[]，大小与输出相同），
+     * 窗口落在填充区域时按0参与比较，位置记为-1，反向传播时不传递梯度。
+     * 窗口覆盖整个输入平面的平均池化（全局平均池化）走单独的求和路径。
      */
-    private List<NdArray> backwardMaxPooling(NdArray yGrad) {
-        yGrad = yGrad.transpose(0, 2, 3, 1);
+    private class PoolingFunction extends Function {
 
-        int poolSize = poolHeight * poolWidth;
-        int size = yGrad.shape.size();
-        NdArray dMax = NdArray.zeros(new Shape(size, poolSize));
+        private int[] argMax;  // 最大池化反向传播使用的输入位置
 
-        // 优化的梯度分发
-        NdArray flatten = yGrad.flatten();
-        int[] colSlices = Util.toInt(flatten.buffer);
+        private int outH;
+        private int outW;
 
-        dMax.setItem(Util.getSeq(argMax.shape.size()), colSlices, flatten.buffer);
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            NdArray input = inputs[0];
+            int num = input.shape.dimension[0];
+            int channel = input.shape.dimension[1];
+            int inHeight = input.shape.dimension[2];
+            int inWidth = input.shape.dimension[3];
 
-        dMax = dMax.reshape(new Shape(yGrad.shape.dimension[0], yGrad.shape.dimension[1], yGrad.shape.dimension[2]
-                , yGrad.shape.dimension[3], poolSize));
+            boolean adaptive = mode == PoolingMode.ADAPTIVE_MAX || mode == PoolingMode.ADAPTIVE_AVERAGE;
+            outH = adaptive ? outHeight : (inHeight + 2 * pad - poolHeight) / stride + 1;
+            outW = adaptive ? outWidth : (inWidth + 2 * pad - poolWidth) / stride + 1;
+            NdArray result = new NdArray(new Shape(num, channel, outH, outW));
 
-        int dMaxSize = dMax.shape.dimension[0] * dMax.shape.dimension[1] * dMax.shape.dimension[2];
-        NdArray dCol = dMax.reshape(new Shape(dMaxSize, dMax.shape.size() / dMaxSize));
-
-        float[][][][] data = Col2ImUtil.col2im(dCol.getMatrix(), input.shape.dimension, poolHeight, poolWidth, stride, pad);
-        NdArray inputXGrad = new NdArray(data);
-        return Collections.singletonList(inputXGrad);
-    }
-    
-    /**
-     * 平均池化反向传播
-     */
-    private List<NdArray> backwardAveragePooling(NdArray yGrad) {
-        yGrad = yGrad.transpose(0, 2, 3, 1);
+            if (isGlobalAverage(inHeight, inWidth)) {
+                forwardGlobalAverage(input, result, num * channel, inHeight * inWidth);
+                return result;
+            }
+            switch (mode) {
+                case MAX:
+                case ADAPTIVE_MAX:
+                    argMax = new int[result.buffer.length];
+                    forEachPlane(num * channel, plane -> forwardMaxPlane(input, result, plane, inHeight, inWidth, adaptive));
+                    return result;
+                case AVERAGE:
+                case ADAPTIVE_AVERAGE:
+                    forEachPlane(num * channel, plane -> forwardAveragePlane(input, result, plane, inHeight, inWidth, adaptive));
+                    return result;
+                default:
+                    throw new IllegalArgumentException("Unsupported pooling mode: " + mode);
+            }
+        }
 
-        int poolSize = poolHeight * poolWidth;
-        int size = yGrad.shape.size();
-        
-        // 平均池化的梯度平均分配给每个元素
-        NdArray dAvg = new NdArray(new Shape(size, poolSize));
-        NdArray flattenGrad = yGrad.flatten();
-        
-        for (int i = 0; i < size; i++) {
-            float avgGrad = flattenGrad.buffer[i] / poolSize;
-            for (int j = 0; j < poolSize; j++) {
-                dAvg.buffer[i * poolSize + j] = avgGrad;
+        /**
+         * 窗口是否正好覆盖整个输入平面的平均池化
+         */
+        private boolean isGlobalAverage(int inHeight, int inWidth) {
+            if (mode == PoolingMode.ADAPTIVE_AVERAGE) {
+                return outH == 1 && outW == 1;
             }
+            return mode == PoolingMode.AVERAGE && pad == 0 && poolHeight == inHeight && poolWidth == inWidth;
         }
 
-        dAvg = dAvg.reshape(new Shape(yGrad.shape.dimension[0], yGrad.shape.dimension[1], yGrad.shape.dimension[2]
-                , yGrad.shape.dimension[3], poolSize));
+        /**
+         * 全局平均池化：每个平面求和一次
+         */
+        private void forwardGlobalAverage(NdArray input, NdArray result, int planes, int planeSize) {
+            forEachPlane(planes, plane -> {
+                int offset = plane * planeSize;
+                float sum = 0f;
+                for (int i = 0; i < planeSize; i++) {
+                    sum += input.buffer[offset + i];
+                }
+                result.buffer[plane] = sum / planeSize;
+            });
+        }
 
-        int dAvgSize = dAvg.shape.dimension[0] * dAvg.shape.dimension[1] * dAvg.shape.dimension[2];
-        NdArray dCol = dAvg.reshape(new Shape(dAvgSize, dAvg.shape.size() / dAvgSize));
+        /**
+         * 单个平面的最大池化
+         */
+        private void forwardMaxPlane(NdArray input, NdArray result, int plane, int inHeight, int inWidth, boolean adaptive) {
+            int inOffset = plane * inHeight * inWidth;
+            int outOffset = plane * outH * outW;
+            for (int oh = 0; oh < outH; oh++) {
+                int hStart = adaptive ? adaptiveStart(oh, inHeight, outH) : oh * stride - pad;
+                int hEnd = adaptive ? adaptiveEnd(oh, inHeight, outH) : hStart + poolHeight;
+                for (int ow = 0; ow < outW; ow++) {
+                    int wStart = adaptive ? adaptiveStart(ow, inWidth, outW) : ow * stride - pad;
+                    int wEnd = adaptive ? adaptiveEnd(ow, inWidth, outW) : wStart + poolWidth;
+
+                    float maxVal = Float.NEGATIVE_INFINITY;
+                    int maxIdx = -1;
+                    for (int h = hStart; h < hEnd; h++) {
+                        boolean rowInside = h >= 0 && h < inHeight;
+                        for (int w = wStart; w < wEnd; w++) {
+                            boolean inside = rowInside && w >= 0 && w < inWidth;
+                            float value = inside ? input.buffer[inOffset + h * inWidth + w] : 0f;
+                            if (value > maxVal) {
+                                maxVal = value;
+                                maxIdx = inside ? h * inWidth + w : -1;
+                            }
+                        }
+                    }
+                    result.buffer[outOffset + oh * outW + ow] = maxVal;
+                    argMax[outOffset + oh * outW + ow] = maxIdx;
+                }
+            }
+        }
 
-        float[][][][] data = Col2ImUtil.col2im(dCol.getMatrix(), input.shape.dimension, poolHeight, poolWidth, stride, pad);
-        NdArray inputXGrad = new NdArray(data);
-        return Collections.singletonList(inputXGrad);
-    }
-    
-    /**
-     * 自适应最大池化反向传播
-     */
-    private List<NdArray> backwardAdaptiveMaxPooling(NdArray yGrad) {
-        int num = input.shape.dimension[0];
-        int channel = input.shape.dimension[1];
-        int inHeight = input.shape.dimension[2];
-        int inWidth = input.shape.dimension[3];
-        
-        NdArray inputGrad = NdArray.zeros(input.shape);
-        
-        for (int n = 0; n < num; n++) {
-            for (int c = 0; c < channel; c++) {
-                for (int oh = 0; oh < outHeight; oh++) {
-                    for (int ow = 0; ow < outWidth; ow++) {
-                        int gradIdx = ((n * channel + c) * outHeight + oh) * outWidth + ow;
-                        int maxIdx = (int) argMax.buffer[gradIdx];
-                        inputGrad.buffer[maxIdx] += yGrad.buffer[gradIdx];
+        /**
+         * 单个平面的平均池化，普通平均池化按窗口大小（包含填充）求平均，自适应平均池化按区间大小求平均
+         */
+        private void forwardAveragePlane(NdArray input, NdArray result, int plane, int inHeight, int inWidth, boolean adaptive) {
+            int inOffset = plane * inHeight * inWidth;
+            int outOffset = plane * outH * outW;
+            for (int oh = 0; oh < outH; oh++) {
+                int hStart = adaptive ? adaptiveStart(oh, inHeight, outH) : oh * stride - pad;
+                int hEnd = adaptive ? adaptiveEnd(oh, inHeight, outH) : hStart + poolHeight;
+                for (int ow = 0; ow < outW; ow++) {
+                    int wStart = adaptive ? adaptiveStart(ow, inWidth, outW) : ow * stride - pad;
+                    int wEnd = adaptive ? adaptiveEnd(ow, inWidth, outW) : wStart + poolWidth;
+
+                    float sum = 0f;
+                    for (int h = Math.max(hStart, 0); h < Math.min(hEnd, inHeight); h++) {
+                        int row = inOffset + h * inWidth;
+                        for (int w = Math.max(wStart, 0); w < Math.min(wEnd, inWidth); w++) {
+                            sum += input.buffer[row + w];
+                        }
                     }
+                    result.buffer[outOffset + oh * outW + ow] = sum / ((hEnd - hStart) * (wEnd - wStart));
                 }
             }
         }
-        
-        return Collections.singletonList(inputGrad);
-    }
-    
-    /**
-     * 自适应平均池化反向传播
-     */
-    private List<NdArray> backwardAdaptiveAveragePooling(NdArray yGrad) {
-        int num = input.shape.dimension[0];
-        int channel = input.shape.dimension[1];
-        int inHeight = input.shape.dimension[2];
-        int inWidth = input.shape.dimension[3];
-        
-        NdArray inputGrad = NdArray.zeros(input.shape);
-        
-        for (int n = 0; n < num; n++) {
-            for (int c = 0; c < channel; c++) {
-                for (int oh = 0; oh < outHeight; oh++) {
-                    for (int ow = 0; ow < outWidth; ow++) {
-                        int hStart = (int) Math.floor((double) oh * inHeight / outHeight);
-                        int hEnd = (int) Math.ceil((double) (oh + 1) * inHeight / outHeight);
-                        int wStart = (int) Math.floor((double) ow * inWidth / outWidth);
-                        int wEnd = (int) Math.ceil((double) (ow + 1) * inWidth / outWidth);
-                        
-                        int gradIdx = ((n * channel + c) * outHeight + oh) * outWidth + ow;
-                        float gradValue = yGrad.buffer[gradIdx];
-                        int poolSize = (hEnd - hStart) * (wEnd - wStart);
-                        float avgGrad = gradValue / poolSize;
-                        
-                        for (int h = hStart; h < hEnd; h++) {
-                            for (int w = wStart; w < wEnd; w++) {
-                                int inputIdx = ((n * channel + c) * inHeight + h) * inWidth + w;
-                                inputGrad.buffer[inputIdx] += avgGrad;
+
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            NdArray input = inputs[0].getValue();
+            int num = input.shape.dimension[0];
+            int channel = input.shape.dimension[1];
+            int inHeight = input.shape.dimension[2];
+            int inWidth = input.shape.dimension[3];
+            int inPlane = inHeight * inWidth;
+            int outPlane = outH * outW;
+            boolean adaptive = mode == PoolingMode.ADAPTIVE_MAX || mode == PoolingMode.ADAPTIVE_AVERAGE;
+
+            NdArray inputGrad = new NdArray(input.getShape());
+            if (isGlobalAverage(inHeight, inWidth)) {
+                forEachPlane(num * channel, plane ->
+                        Arrays.fill(inputGrad.buffer, plane * inPlane, (plane + 1) * inPlane, yGrad.buffer[plane] / inPlane));
+                return Collections.singletonList(inputGrad);
+            }
+
+            if (mode == PoolingMode.MAX || mode == PoolingMode.ADAPTIVE_MAX) {
+                forEachPlane(num * channel, plane -> {
+                    int inOffset = plane * inPlane;
+                    for (int i = plane * outPlane; i < (plane + 1) * outPlane; i++) {
+                        if (argMax[i] >= 0) {
+                            inputGrad.buffer[inOffset + argMax[i]] += yGrad.buffer[i];
+                        }
+                    }
+                });
+                return Collections.singletonList(inputGrad);
+            }
+
+            forEachPlane(num * channel, plane -> {
+                int inOffset = plane * inPlane;
+                int outOffset = plane * outPlane;
+                for (int oh = 0; oh < outH; oh++) {
+                    int hStart = adaptive ? adaptiveStart(oh, inHeight, outH) : oh * stride - pad;
+                    int hEnd = adaptive ? adaptiveEnd(oh, inHeight, outH) : hStart + poolHeight;
+                    for (int ow = 0; ow < outW; ow++) {
+                        int wStart = adaptive ? adaptiveStart(ow, inWidth, outW) : ow * stride - pad;
+                        int wEnd = adaptive ? adaptiveEnd(ow, inWidth, outW) : wStart + poolWidth;
+                        float grad = yGrad.buffer[outOffset + oh * outW + ow] / ((hEnd - hStart) * (wEnd - wStart));
+                        for (int h = Math.max(hStart, 0); h < Math.min(hEnd, inHeight); h++) {
+                            int row = inOffset + h * inWidth;
+                            for (int w = Math.max(wStart, 0); w < Math.min(wEnd, inWidth); w++) {
+                                inputGrad.buffer[row + w] += grad;
                             }
                         }
                     }
                 }
-            }
+            });
+            return Collections.singletonList(inputGrad);
+        }
+
+        @Override
+        public int requireInputNum() {
+            return 1;
         }
-        
-        return Collections.singletonList(inputGrad);
     }
 }
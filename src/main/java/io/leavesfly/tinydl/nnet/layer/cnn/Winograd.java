@@ -0,0 +1,194 @@
+package io.leavesfly.tinydl.nnet.layer.cnn;
+
+import io.leavesfly.tinydl.ndarr.GemmUtil;
+
+import java.util.Arrays;
+
+/**
+ * Winograd F(2x2, 3x3) 卷积工具类
+ *
+ * 将输出划分为2x2的块，每块对应4x4的输入块：Y = A^T [ (G g G^T) ⊙ (B^T d B) ] A。
+ * 同一变换位置上所有通道的逐元素乘加可以写成矩阵乘法，因此一个样本的卷积化为16次
+ * (卷积核数, 通道数) x (通道数, 块数) 的矩阵乘法，乘法次数是直接卷积的 4/9，
+ * 也不需要生成9倍于输入大小的im2col矩阵。
+ *
+ * 变换后的卷积核U按 [16][filterNum][channels] 存放，变换后的输入按 [16][channels][tiles] 存放。
+ */
+public class Winograd {
+
+    private Winograd() {
+    }
+
+    /**
+     * 卷积核变换 U = G g G^T
+     *
+     * @param filter 卷积核，形状为 (filterNum, channels, 3, 3)
+     * @param filterNum 卷积核数量
+     * @param channels 输入通道数
+     * @return 变换后的卷积核，长度为 16 * filterNum * channels
+     */
+    public static float[] transformFilter(float[] filter, int filterNum, int channels) {
+        float[] u = new float[16 * filterNum * channels];
+        float[] tmp = new float[12];
+        int plane = filterNum * channels;
+        for (int f = 0; f < filterNum; f++) {
+            for (int c = 0; c < channels; c++) {
+                int g = (f * channels + c) * 9;
+                // tmp = G * g，形状为 4x3
+                for (int j = 0; j < 3; j++) {
+                    float g0 = filter[g + j];
+                    float g1 = filter[g + 3 + j];
+                    float g2 = filter[g + 6 + j];
+                    tmp[j] = g0;
+                    tmp[3 + j] = 0.5f * (g0 + g1 + g2);
+                    tmp[6 + j] = 0.5f * (g0 - g1 + g2);
+                    tmp[9 + j] = g2;
+                }
+                // U = tmp * G^T，形状为 4x4
+                int index = f * channels + c;
+                for (int i = 0; i < 4; i++) {
+                    float a = tmp[i * 3];
+                    float b = tmp[i * 3 + 1];
+                    float d = tmp[i * 3 + 2];
+                    u[(i * 4) * plane + index] = a;
+                    u[(i * 4 + 1) * plane + index] = 0.5f * (a + b + d);
+                    u[(i * 4 + 2) * plane + index] = 0.5f * (a - b + d);
+                    u[(i * 4 + 3) * plane + index] = d;
+                }
+            }
+        }
+        return u;
+    }
+
+    /**
+     * 将卷积核旋转180度并交换输入输出通道，(filterNum, channels, 3, 3) -> (channels, filterNum, 3, 3)，
+     * 用于把输入梯度的计算转化为同样的3x3卷积
+     *
+     * @param filter 卷积核
+     * @param filterNum 卷积核数量
+     * @param channels 输入通道数
+     * @return 旋转后的卷积核
+     */
+    public static float[] rotateFilter(float[] filter, int filterNum, int channels) {
+        float[] rotated = new float[filter.length];
+        for (int f = 0; f < filterNum; f++) {
+            for (int c = 0; c < channels; c++) {
+                int from = (f * channels + c) * 9;
+                int to = (c * filterNum + f) * 9;
+                for (int k = 0; k < 9; k++) {
+                    rotated[to + k] = filter[from + 8 - k];
+                }
+            }
+        }
+        return rotated;
+    }
+
+    /**
+     * 对单个样本执行3x3、步长1的卷积，结果累加到输出上
+     *
+     * @param input 输入缓冲区
+     * @param inputOffset 样本在输入缓冲区中的起始位置
+     * @param channels 输入通道数
+     * @param height 输入高度
+     * @param width 输入宽度
+     * @param pad 填充
+     * @param u 变换后的卷积核
+     * @param filterNum 卷积核数量
+     * @param output 输出缓冲区，形状为 (filterNum, height + 2*pad - 2, width + 2*pad - 2)
+     * @param outputOffset 样本在输出缓冲区中的起始位置
+     */
+    public static void convolve(float[] input, int inputOffset, int channels, int height, int width, int pad,
+                                float[] u, int filterNum, float[] output, int outputOffset) {
+        int outH = height + 2 * pad - 2;
+        int outW = width + 2 * pad - 2;
+        int tilesH = (outH + 1) / 2;
+        int tilesW = (outW + 1) / 2;
+        int tiles = tilesH * tilesW;
+
+        float[] v = Workspace.get(Workspace.WINOGRAD_INPUT, 16 * channels * tiles);
+        float[] m = Workspace.get(Workspace.WINOGRAD_PRODUCT, 16 * filterNum * tiles);
+        float[] d = new float[16];
+        float[] t = new float[16];
+
+        // 输入变换 V = B^T d B
+        for (int c = 0; c < channels; c++) {
+            int channelOffset = inputOffset + c * height * width;
+            for (int th = 0; th < tilesH; th++) {
+                for (int tw = 0; tw < tilesW; tw++) {
+                    int row0 = th * 2 - pad;
+                    int col0 = tw * 2 - pad;
+                    for (int i = 0; i < 4; i++) {
+                        int row = row0 + i;
+                        for (int j = 0; j < 4; j++) {
+                            int col = col0 + j;
+                            d[i * 4 + j] = row >= 0 && row < height && col >= 0 && col < width
+                                    ? input[channelOffset + row * width + col] : 0f;
+                        }
+                    }
+                    for (int j = 0; j < 4; j++) {
+                        t[j] = d[j] - d[8 + j];
+                        t[4 + j] = d[4 + j] + d[8 + j];
+                        t[8 + j] = d[8 + j] - d[4 + j];
+                        t[12 + j] = d[4 + j] - d[12 + j];
+                    }
+                    int tile = th * tilesW + tw;
+                    int plane = channels * tiles;
+                    int index = c * tiles + tile;
+                    for (int i = 0; i < 4; i++) {
+                        float t0 = t[i * 4];
+                        float t1 = t[i * 4 + 1];
+                        float t2 = t[i * 4 + 2];
+                        float t3 = t[i * 4 + 3];
+                        v[(i * 4) * plane + index] = t0 - t2;
+                        v[(i * 4 + 1) * plane + index] = t1 + t2;
+                        v[(i * 4 + 2) * plane + index] = t2 - t1;
+                        v[(i * 4 + 3) * plane + index] = t1 - t3;
+                    }
+                }
+            }
+        }
+
+        // 每个变换位置上：M = U * V
+        Arrays.fill(m, 0, 16 * filterNum * tiles, 0f);
+        for (int xi = 0; xi < 16; xi++) {
+            GemmUtil.gemm(filterNum, channels, tiles, u, xi * filterNum * channels,
+                    v, xi * channels * tiles, m, xi * filterNum * tiles);
+        }
+
+        // 输出变换 Y = A^T M A
+        int plane = filterNum * tiles;
+        for (int f = 0; f < filterNum; f++) {
+            int filterOffset = outputOffset + f * outH * outW;
+            for (int th = 0; th < tilesH; th++) {
+                for (int tw = 0; tw < tilesW; tw++) {
+                    int index = f * tiles + th * tilesW + tw;
+                    for (int xi = 0; xi < 16; xi++) {
+                        t[xi] = m[xi * plane + index];
+                    }
+                    float s00 = t[0] + t[4] + t[8];
+                    float s01 = t[1] + t[5] + t[9];
+                    float s02 = t[2] + t[6] + t[10];
+                    float s03 = t[3] + t[7] + t[11];
+                    float s10 = t[4] - t[8] - t[12];
+                    float s11 = t[5] - t[9] - t[13];
+                    float s12 = t[6] - t[10] - t[14];
+                    float s13 = t[7] - t[11] - t[15];
+
+                    int row = th * 2;
+                    int col = tw * 2;
+                    int out = filterOffset + row * outW + col;
+                    output[out] += s00 + s01 + s02;
+                    if (col + 1 < outW) {
+                        output[out + 1] += s01 - s02 - s03;
+                    }
+                    if (row + 1 < outH) {
+                        output[out + outW] += s10 + s11 + s12;
+                        if (col + 1 < outW) {
+                            output[out + outW + 1] += s11 - s12 - s13;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package io.leavesfly.tinydl.nnet.layer.cnn;
+
+/**
+ * 卷积计算使用的线程私有工作区
+ *
+ * 每个线程按槽位持有一块可复用的float缓冲区，只用于单次调用内部的临时数据（如推理时的列矩阵、
+ * 反向传播时的列梯度），不会跨调用保存。多个线程共享同一个层实例时各自使用自己的缓冲区，互不干扰。
+ */
+public class Workspace {
+
+    /**
+     * im2col列矩阵
+     */
+    public static final int COL = 0;
+
+    /**
+     * 列矩阵的梯度
+     */
+    public static final int COL_GRAD = 1;
+
+    /**
+     * Winograd变换后的输入
+     */
+    public static final int WINOGRAD_INPUT = 2;
+
+    /**
+     * Winograd变换域中的逐元素乘积
+     */
+    public static final int WINOGRAD_PRODUCT = 3;
+
+    private static final int SLOT_NUM = 4;
+
+    private static final ThreadLocal<float[][]> BUFFERS = ThreadLocal.withInitial(() -> new float[SLOT_NUM][]);
+
+    private Workspace() {
+    }
+
+    /**
+     * 获取当前线程指定槽位的缓冲区，长度不小于size，内容未清零
+     *
+     * @param slot 槽位
+     * @param size 需要的元素个数
+     * @return 缓冲区
+     */
+    public static float[] get(int slot, int size) {
+        float[][] buffers = BUFFERS.get();
+        float[] buffer = buffers[slot];
+        if (buffer == null || buffer.length < size) {
+            buffer = new float[size];
+            buffers[slot] = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * 释放当前线程持有的所有缓冲区
+     */
+    public static void release() {
+        BUFFERS.remove();
+    }
+}
@@ -5,6 +5,7 @@ import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
 import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.utils.Config;
 
 import java.util.List;
 
@@ -31,6 +32,11 @@ public class LinearLayer extends Layer {
      */
     private Parameter b;
 
+    /**
+     * 融合在线性变换之后的激活函数，为null时不使用激活函数
+     */
+    private Config.ActiveFunc activeFunc;
+
     /**
      * 构造一个线性层实例
      * 
@@ -53,6 +59,22 @@ public class LinearLayer extends Layer {
         }
     }
 
+    /**
+     * 构造一个融合了激活函数的线性层实例
+     * 
+     * 线性变换、偏置相加和激活函数在同一次遍历中完成：y = act(x * W + b)
+     * 
+     * @param _name 层名称
+     * @param hiddenRow 输入维度（行数）
+     * @param hiddenCol 输出维度（列数）
+     * @param needBias 是否需要偏置项
+     * @param _activeFunc 激活函数类型（ReLU、Sigmoid、Tanh），为null时不使用激活函数
+     */
+    public LinearLayer(String _name, int hiddenRow, int hiddenCol, boolean needBias, Config.ActiveFunc _activeFunc) {
+        this(_name, hiddenRow, hiddenCol, needBias);
+        activeFunc = _activeFunc;
+    }
+
     /**
      * 初始化方法（空实现，参数已在构造函数中初始化）
      */
@@ -69,9 +91,53 @@ public class LinearLayer extends Layer {
      */
     @Override
     public Variable layerForward(Variable... inputs) {
+        if (activeFunc != null) {
+            return inputs[0].linear(w, b, activeFunc);
+        }
         return inputs[0].linear(w, b);
     }
 
+    /**
+     * 获取融合的激活函数
+     *
+     * @return 激活函数类型，没有融合激活函数时为null
+     */
+    public Config.ActiveFunc getActiveFunc() {
+        return activeFunc;
+    }
+
+    /**
+     * 将逐输出列的仿射变换 y * scale + shift 合并进权重与偏置，用于折叠其后的BatchNorm
+     *
+     * 没有偏置时会新建偏置参数。融合了激活函数的线性层不能折叠：其后的仿射变换作用在激活之后，
+     * 无法合并进激活之前的权重与偏置。
+     *
+     * @param scale 每个输出列的缩放
+     * @param shift 每个输出列的偏移
+     */
+    public void foldScaleShift(float[] scale, float[] shift) {
+        if (activeFunc != null) {
+            throw new IllegalStateException("LinearLayer " + name + " with fused " + activeFunc + " cannot fold a following scale/shift");
+        }
+        int hiddenCol = w.getValue().getShape().getColumn();
+        if (scale.length != hiddenCol || shift.length != hiddenCol) {
+            throw new IllegalArgumentException("LinearLayer fold size " + scale.length + " != output size " + hiddenCol);
+        }
+        if (b == null) {
+            b = new Parameter(NdArray.zeros(new Shape(1, hiddenCol)));
+            b.setName("b");
+            addParam(b.getName(), b);
+        }
+        float[] weight = w.getValue().buffer;
+        float[] bias = b.getValue().buffer;
+        for (int i = 0; i < weight.length; i++) {
+            weight[i] *= scale[i % hiddenCol];
+        }
+        for (int j = 0; j < hiddenCol; j++) {
+            bias[j] = bias[j] * scale[j] + shift[j];
+        }
+    }
+
     @Override
     public NdArray forward(NdArray... inputs) {
         return null;
@@ -5,9 +5,7 @@ import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
 import io.leavesfly.tinydl.nnet.Parameter;
-import io.leavesfly.tinydl.utils.Util;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -20,11 +18,12 @@ import java.util.List;
  * 它维护一个词汇表大小×嵌入维度的权重矩阵，通过查找表的方式获取对应词向量。
  * 
  * 前向传播过程：
- * 1. 输入为词汇索引序列
- * 2. 根据索引从权重矩阵中查找对应的词向量
+ * 1. 输入为任意形状的词汇索引，例如 (序列长度,) 或 (batch_size, 序列长度)
+ * 2. 根据索引从权重矩阵中查找对应的词向量，输出形状为 输入形状 + (嵌入维度,)
  * 
  * 反向传播过程：
- * 1. 梯度通过索引位置累加到权重矩阵对应位置
+ * 1. 梯度以按行稀疏的形式累加到权重矩阵中被查到的行，不生成词表大小的稠密梯度，
+ *    优化器据此只更新这些行
  */
 public class Embedding extends Layer {
     /**
@@ -68,56 +67,27 @@ public class Embedding extends Layer {
     /**
      * 层的前向传播计算
      * 
-     * 根据输入的词汇索引从权重矩阵中查找对应的词向量
+     * 根据输入的词汇索引从权重矩阵中查找对应的词向量，批次中的所有样本一次查完
      * 
      * @param inputs 输入变量数组，包含词汇索引
-     * @return 前向传播结果变量
+     * @return 形状为 输入形状 + (embedSize,) 的词向量
      */
     @Override
     public Variable layerForward(Variable... inputs) {
-        Variable input = inputs[0];
-        NdArray inputValue = input.getValue();
-        
-        // 处理不同形状的输入
-        if (inputValue.getShape().getDimNum() == 1) {
-            // 一维输入 (序列长度,)
-            int[] slices = Util.toInt(inputValue.getMatrix()[0]);
-            return wIn.getItem(slices, null);
-        } else if (inputValue.getShape().getDimNum() == 2) {
-            // 二维输入 (batch_size, sequence_length)
-            // 我们将处理第一个样本
-            int[] slices = Util.toInt(inputValue.getMatrix()[0]);
-            return wIn.getItem(slices, null);
-        } else {
-            throw new IllegalArgumentException("Embedding层不支持该输入形状: " + inputValue.getShape());
-        }
+        return new EmbeddingLookup(wIn).call(inputs[0]);
     }
 
-    /**
-     * NdArray前向传播计算（未使用）
-     * 
-     * @param inputs 输入的NdArray数组
-     * @return 前向传播结果NdArray
-     */
     @Override
     public NdArray forward(NdArray... inputs) {
-        // Embedding层主要通过layerForward方法处理Variable输入
-        return null;
+        return new EmbeddingLookup(wIn).forward(inputs);
     }
 
     /**
-     * 反向传播计算梯度
-     * 
-     * 对于Embedding层，梯度通过索引位置累加到权重矩阵对应位置
-     * 
-     * @param yGrad 输出变量的梯度
-     * @return 输入变量的梯度列表
+     * 反向传播由每次调用创建的EmbeddingLookup节点完成
      */
     @Override
     public List<NdArray> backward(NdArray yGrad) {
-        // Embedding层的输入是离散索引，不需要计算输入的梯度
-        // 但需要累积输出梯度到权重矩阵的对应位置
-        return Arrays.asList(NdArray.zeros(inputShape)); // 输入梯度为0
+        return null;
     }
 
     /**
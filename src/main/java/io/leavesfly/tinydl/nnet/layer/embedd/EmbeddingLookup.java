@@ -0,0 +1,69 @@
+package io.leavesfly.tinydl.nnet.layer.embedd;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.Parameter;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 嵌入查表函数
+ *
+ * 输入为任意形状的索引 (d1, ..., dn)，输出为 (d1, ..., dn, embedSize)，每个索引取权重矩阵的对应一行。
+ * 反向传播时梯度行直接以按行稀疏的形式累加到权重参数上（见 Parameter.accumulateSparseGrad），
+ * 不生成词表大小的稠密梯度，因此权重不作为函数的输入参与计算图。索引本身是离散的，梯度为0。
+ */
+public class EmbeddingLookup extends Function {
+
+    private final Parameter weight;
+
+    private int[] ids;
+
+    /**
+     * @param weight 嵌入权重，形状为 (vocabSize, embedSize)
+     */
+    public EmbeddingLookup(Parameter weight) {
+        this.weight = weight;
+    }
+
+    @Override
+    public NdArray forward(NdArray... inputs) {
+        NdArray table = weight.getValue();
+        int vocabSize = table.getShape().getRow();
+        int embedSize = table.getShape().getColumn();
+
+        float[] idValues = inputs[0].buffer;
+        ids = new int[idValues.length];
+        for (int i = 0; i < ids.length; i++) {
+            int id = (int) idValues[i];
+            if (id < 0 || id >= vocabSize) {
+                throw new IllegalArgumentException("Embedding index " + id + " out of range [0, " + vocabSize + ")");
+            }
+            ids[i] = id;
+        }
+
+        int[] idDims = inputs[0].getShape().dimension;
+        int[] outDims = new int[idDims.length + 1];
+        System.arraycopy(idDims, 0, outDims, 0, idDims.length);
+        outDims[idDims.length] = embedSize;
+
+        NdArray result = new NdArray(new Shape(outDims));
+        for (int i = 0; i < ids.length; i++) {
+            System.arraycopy(table.buffer, ids[i] * embedSize, result.buffer, i * embedSize, embedSize);
+        }
+        return result;
+    }
+
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        weight.accumulateSparseGrad(ids, yGrad.buffer);
+        return Collections.singletonList(new NdArray(inputs[0].getValue().getShape()));
+    }
+
+    @Override
+    public int requireInputNum() {
+        return 1;
+    }
+}
@@ -1,17 +1,24 @@
 package io.leavesfly.tinydl.nnet.layer.norm;
 
+import io.leavesfly.tinydl.func.Function;
 import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
 import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.nnet.layer.cnn.ConvLayer;
+import io.leavesfly.tinydl.nnet.layer.dnn.LinearLayer;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * 批量归一化层
  * 实现Batch Normalization算法，提高训练稳定性和收敛速度
+ * 
+ * 前向与反向均由融合的计算节点完成，各通道并行处理；推理时可以用 foldInto 把本层合并进前一层。
  */
 public class BatchNorm extends Layer {
     
@@ -24,13 +31,7 @@ public class BatchNorm extends Layer {
     private float momentum = 0.9f; // 动量参数
     private float eps = 1e-5f;     // 防止除零的小值
     private boolean training = true; // 训练模式标志
-    
-    // 缓存变量（用于反向传播）
-    private NdArray xNorm;
-    private NdArray mean;
-    private NdArray var;
-    private NdArray std;
-    private NdArray input;
+    private boolean folded = false;  // 是否已折叠到前一层
     
     /**
      * 构造函数
@@ -95,327 +96,198 @@ public class BatchNorm extends Layer {
     
     @Override
     public Variable layerForward(Variable... inputs) {
-        Variable input = inputs[0];
-        return this.call(input, gammaParam, betaParam);
+        if (folded) {
+            return inputs[0];
+        }
+        return new BatchNormFunction().call(inputs[0], gammaParam, betaParam);
     }
     
     @Override
     public NdArray forward(NdArray... inputs) {
-        input = inputs[0];
-        NdArray gamma = gammaParam.getValue();
-        NdArray beta = betaParam.getValue();
-        
-        if (inputShape.dimension.length == 4) {
-            return forward4D(input, gamma, beta);
-        } else if (inputShape.dimension.length == 2) {
-            return forward2D(input, gamma, beta);
-        } else {
-            throw new RuntimeException("Unsupported input dimension");
+        if (folded) {
+            return inputs[0];
         }
+        return new BatchNormFunction().forward(inputs[0], gammaParam.getValue(), betaParam.getValue());
     }
     
     /**
-     * 4D输入的前向传播 (N, C, H, W)
+     * 反向传播由每次调用创建的BatchNormFunction节点完成
      */
-    private NdArray forward4D(NdArray input, NdArray gamma, NdArray beta) {
-        int N = input.shape.dimension[0];
-        int C = input.shape.dimension[1];
-        int H = input.shape.dimension[2];
-        int W = input.shape.dimension[3];
-        
-        if (training) {
-            // 训练模式：计算批次统计量
-            mean = computeMean4D(input);
-            var = computeVariance4D(input, mean);
-            
-            // 更新运行时统计量
-            updateRunningStats(mean, var);
-        } else {
-            // 推理模式：使用运行时统计量
-            mean = runningMean;
-            var = runningVar;
-        }
-        
-        // 计算标准差
-        std = NdArray.zeros(var.shape);
-        for (int i = 0; i < var.buffer.length; i++) {
-            std.buffer[i] = (float) Math.sqrt(var.buffer[i] + eps);
-        }
-        
-        // 归一化
-        NdArray result = new NdArray(input.shape);
-        xNorm = new NdArray(input.shape);
-        
-        for (int n = 0; n < N; n++) {
-            for (int c = 0; c < C; c++) {
-                float meanVal = mean.buffer[c];
-                float stdVal = std.buffer[c];
-                float gammaVal = gamma.buffer[c];
-                float betaVal = beta.buffer[c];
-                
-                for (int h = 0; h < H; h++) {
-                    for (int w = 0; w < W; w++) {
-                        int index = ((n * C + c) * H + h) * W + w;
-                        float normalized = (input.buffer[index] - meanVal) / stdVal;
-                        xNorm.buffer[index] = normalized;
-                        result.buffer[index] = gammaVal * normalized + betaVal;
-                    }
-                }
-            }
-        }
-        
-        return result;
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        return null;
     }
     
     /**
-     * 2D输入的前向传播 (N, C)
+     * 将BatchNorm折叠到前一个卷积层或线性层中，用于推理
+     * 
+     * 推理时BatchNorm按运行时统计量计算，是逐通道的仿射变换 y = x * scale + shift，
+     * 其中 scale = γ / sqrt(runningVar + eps)，shift = β - runningMean * scale。
+     * 把它合并进前一层的权重和偏置后，推理时可以整层跳过。折叠后本层固定为推理模式并直接返回输入，
+     * 前一层的参数已被改写，因此折叠只应在训练结束后进行。
+     * 
+     * @param previous 紧挨在本层之前的ConvLayer或LinearLayer
      */
-    private NdArray forward2D(NdArray input, NdArray gamma, NdArray beta) {
-        int N = input.shape.dimension[0];
-        int C = input.shape.dimension[1];
-        
-        if (training) {
-            // 计算批次统计量
-            mean = computeMean2D(input);
-            var = computeVariance2D(input, mean);
-            
-            // 更新运行时统计量
-            updateRunningStats(mean, var);
-        } else {
-            mean = runningMean;
-            var = runningVar;
+    public void foldInto(Layer previous) {
+        if (folded) {
+            throw new IllegalStateException("BatchNorm " + name + " is already folded");
         }
-        
-        // 计算标准差
-        std = NdArray.zeros(var.shape);
-        for (int i = 0; i < var.buffer.length; i++) {
-            std.buffer[i] = (float) Math.sqrt(var.buffer[i] + eps);
+        int numChannels = getNumChannels();
+        float[] scale = new float[numChannels];
+        float[] shift = new float[numChannels];
+        for (int c = 0; c < numChannels; c++) {
+            scale[c] = gammaParam.getValue().buffer[c] / (float) Math.sqrt(runningVar.buffer[c] + eps);
+            shift[c] = betaParam.getValue().buffer[c] - runningMean.buffer[c] * scale[c];
         }
         
-        // 归一化
-        NdArray result = new NdArray(input.shape);
-        xNorm = new NdArray(input.shape);
-        
-        for (int n = 0; n < N; n++) {
-            for (int c = 0; c < C; c++) {
-                int index = n * C + c;
-                float meanVal = mean.buffer[c];
-                float stdVal = std.buffer[c];
-                float gammaVal = gamma.buffer[c];
-                float betaVal = beta.buffer[c];
-                
-                float normalized = (input.buffer[index] - meanVal) / stdVal;
-                xNorm.buffer[index] = normalized;
-                result.buffer[index] = gammaVal * normalized + betaVal;
-            }
+        if (previous instanceof ConvLayer && inputShape.dimension.length == 4) {
+            ((ConvLayer) previous).foldScaleShift(scale, shift);
+        } else if (previous instanceof LinearLayer && inputShape.dimension.length == 2) {
+            ((LinearLayer) previous).foldScaleShift(scale, shift);
+        } else {
+            throw new IllegalArgumentException("BatchNorm " + name + " can only be folded into a preceding ConvLayer (4D) or LinearLayer (2D), but got "
+                    + previous.getClass().getSimpleName());
         }
-        
-        return result;
+        training = false;
+        folded = true;
     }
     
     /**
-     * 计算4D输入的均值
+     * 按通道执行任务，通道之间互不依赖，多于一个通道时并行
      */
-    private NdArray computeMean4D(NdArray input) {
-        int N = input.shape.dimension[0];
-        int C = input.shape.dimension[1];
-        int H = input.shape.dimension[2];
-        int W = input.shape.dimension[3];
-        
-        NdArray mean = NdArray.zeros(new Shape(C));
-        int totalElements = N * H * W;
-        
-        for (int c = 0; c < C; c++) {
-            float sum = 0.0f;
-            for (int n = 0; n < N; n++) {
-                for (int h = 0; h < H; h++) {
-                    for (int w = 0; w < W; w++) {
-                        int index = ((n * C + c) * H + h) * W + w;
-                        sum += input.buffer[index];
-                    }
-                }
+    private static void forEachChannel(int channels, IntConsumer task) {
+        if (channels > 1) {
+            IntStream.range(0, channels).parallel().forEach(task);
+        } else {
+            for (int c = 0; c < channels; c++) {
+                task.accept(c);
             }
-            mean.buffer[c] = sum / totalElements;
         }
-        
-        return mean;
     }
     
     /**
-     * 计算4D输入的方差
+     * 融合的批量归一化计算节点，输入为 (x, gamma, beta)
+     * 
+     * 输入按 (N, C, inner) 处理，4D输入的inner为H*W，2D输入的inner为1。每个通道由一个任务处理：
+     * 训练模式下先用Welford算法一次遍历得到该通道的均值和方差并更新运行时统计量，
+     * 然后把归一化、缩放和偏移合并为一次 x * scale + shift 的遍历；推理模式直接使用运行时统计量，只需最后这一次遍历。
+     * 保存每个通道的均值和1/σ供反向传播使用。
      */
-    private NdArray computeVariance4D(NdArray input, NdArray mean) {
-        int N = input.shape.dimension[0];
-        int C = input.shape.dimension[1];
-        int H = input.shape.dimension[2];
-        int W = input.shape.dimension[3];
+    private class BatchNormFunction extends Function {
         
-        NdArray variance = NdArray.zeros(new Shape(C));
-        int totalElements = N * H * W;
+        private float[] mean;
+        private float[] rstd;
+        private boolean batchStats;
         
-        for (int c = 0; c < C; c++) {
-            float sumSquares = 0.0f;
-            float meanVal = mean.buffer[c];
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            NdArray x = inputs[0];
+            float[] g = inputs[1].buffer;
+            float[] b = inputs[2].buffer;
+            int[] dims = x.getShape().dimension;
+            int n = dims[0];
+            int channels = dims[1];
+            int inner = x.buffer.length / (n * channels);
+            int count = n * inner;
+            
+            float[] in = x.buffer;
+            NdArray output = new NdArray(x.getShape());
+            float[] out = output.buffer;
+            mean = new float[channels];
+            rstd = new float[channels];
+            batchStats = training;
             
-            for (int n = 0; n < N; n++) {
-                for (int h = 0; h < H; h++) {
-                    for (int w = 0; w < W; w++) {
-                        int index = ((n * C + c) * H + h) * W + w;
-                        float diff = input.buffer[index] - meanVal;
-                        sumSquares += diff * diff;
+            forEachChannel(channels, c -> {
+                float mu;
+                float variance;
+                if (batchStats) {
+                    mu = 0f;
+                    float m2 = 0f;
+                    int seen = 0;
+                    for (int i = 0; i < n; i++) {
+                        int offset = (i * channels + c) * inner;
+                        for (int j = 0; j < inner; j++) {
+                            float value = in[offset + j];
+                            float delta = value - mu;
+                            mu += delta / ++seen;
+                            m2 += delta * (value - mu);
+                        }
                     }
+                    variance = m2 / count;
+                    runningMean.buffer[c] = momentum * runningMean.buffer[c] + (1 - momentum) * mu;
+                    runningVar.buffer[c] = momentum * runningVar.buffer[c] + (1 - momentum) * variance;
+                } else {
+                    mu = runningMean.buffer[c];
+                    variance = runningVar.buffer[c];
                 }
-            }
-            variance.buffer[c] = sumSquares / totalElements;
-        }
-        
-        return variance;
-    }
-    
-    /**
-     * 计算2D输入的均值
-     */
-    private NdArray computeMean2D(NdArray input) {
-        int N = input.shape.dimension[0];
-        int C = input.shape.dimension[1];
-        
-        NdArray mean = NdArray.zeros(new Shape(C));
-        
-        for (int c = 0; c < C; c++) {
-            float sum = 0.0f;
-            for (int n = 0; n < N; n++) {
-                sum += input.buffer[n * C + c];
-            }
-            mean.buffer[c] = sum / N;
-        }
-        
-        return mean;
-    }
-    
-    /**
-     * 计算2D输入的方差
-     */
-    private NdArray computeVariance2D(NdArray input, NdArray mean) {
-        int N = input.shape.dimension[0];
-        int C = input.shape.dimension[1];
-        
-        NdArray variance = NdArray.zeros(new Shape(C));
-        
-        for (int c = 0; c < C; c++) {
-            float sumSquares = 0.0f;
-            float meanVal = mean.buffer[c];
-            
-            for (int n = 0; n < N; n++) {
-                float diff = input.buffer[n * C + c] - meanVal;
-                sumSquares += diff * diff;
-            }
-            variance.buffer[c] = sumSquares / N;
-        }
-        
-        return variance;
-    }
-    
-    /**
-     * 更新运行时统计量
-     */
-    private void updateRunningStats(NdArray batchMean, NdArray batchVar) {
-        for (int i = 0; i < runningMean.buffer.length; i++) {
-            runningMean.buffer[i] = momentum * runningMean.buffer[i] + (1 - momentum) * batchMean.buffer[i];
-            runningVar.buffer[i] = momentum * runningVar.buffer[i] + (1 - momentum) * batchVar.buffer[i];
-        }
-    }
-    
-    @Override
-    public List<NdArray> backward(NdArray yGrad) {
-        // 批量归一化的反向传播实现
-        NdArray gamma = gammaParam.getValue();
-        
-        if (inputShape.dimension.length == 4) {
-            return backward4D(yGrad, gamma);
-        } else {
-            return backward2D(yGrad, gamma);
-        }
-    }
-    
-    /**
-     * 4D输入的反向传播
-     */
-    private List<NdArray> backward4D(NdArray yGrad, NdArray gamma) {
-        int N = input.shape.dimension[0];
-        int C = input.shape.dimension[1];
-        int H = input.shape.dimension[2];
-        int W = input.shape.dimension[3];
-        int totalElements = N * H * W;
-        
-        // 计算gamma和beta的梯度
-        NdArray gammaGrad = NdArray.zeros(gamma.shape);
-        NdArray betaGrad = NdArray.zeros(gamma.shape);
-        
-        for (int c = 0; c < C; c++) {
-            float gammaGradSum = 0.0f;
-            float betaGradSum = 0.0f;
-            
-            for (int n = 0; n < N; n++) {
-                for (int h = 0; h < H; h++) {
-                    for (int w = 0; w < W; w++) {
-                        int index = ((n * C + c) * H + h) * W + w;
-                        gammaGradSum += yGrad.buffer[index] * xNorm.buffer[index];
-                        betaGradSum += yGrad.buffer[index];
+                float inv = (float) (1.0 / Math.sqrt(variance + eps));
+                mean[c] = mu;
+                rstd[c] = inv;
+                
+                float scale = g[c] * inv;
+                float shift = b[c] - mu * scale;
+                for (int i = 0; i < n; i++) {
+                    int offset = (i * channels + c) * inner;
+                    for (int j = 0; j < inner; j++) {
+                        out[offset + j] = in[offset + j] * scale + shift;
                     }
                 }
-            }
-            
-            gammaGrad.buffer[c] = gammaGradSum;
-            betaGrad.buffer[c] = betaGradSum;
+            });
+            return output;
         }
         
-        // 计算输入梯度
-        NdArray inputGrad = NdArray.zeros(input.shape);
-        
-        for (int c = 0; c < C; c++) {
-            float stdVal = std.buffer[c];
-            float gammaVal = gamma.buffer[c];
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            NdArray x = inputs[0].getValue();
+            float[] in = x.buffer;
+            float[] dy = yGrad.buffer;
+            float[] g = inputs[1].getValue().buffer;
+            int[] dims = x.getShape().dimension;
+            int n = dims[0];
+            int channels = dims[1];
+            int inner = in.length / (n * channels);
+            int count = n * inner;
             
-            // 计算中间梯度
-            float dgammaSum = 0.0f;
-            float dxnormSum = 0.0f;
+            NdArray xGrad = new NdArray(x.getShape());
+            NdArray gammaGrad = new NdArray(inputs[1].getValue().getShape());
+            NdArray betaGrad = new NdArray(inputs[2].getValue().getShape());
+            float[] dx = xGrad.buffer;
             
-            for (int n = 0; n < N; n++) {
-                for (int h = 0; h < H; h++) {
-                    for (int w = 0; w < W; w++) {
-                        int index = ((n * C + c) * H + h) * W + w;
-                        dgammaSum += yGrad.buffer[index] * gammaVal;
-                        dxnormSum += yGrad.buffer[index] * gammaVal * xNorm.buffer[index];
+            forEachChannel(channels, c -> {
+                float mu = mean[c];
+                float inv = rstd[c];
+                float sumDy = 0f;
+                float sumDyXHat = 0f;
+                for (int i = 0; i < n; i++) {
+                    int offset = (i * channels + c) * inner;
+                    for (int j = 0; j < inner; j++) {
+                        float grad = dy[offset + j];
+                        sumDy += grad;
+                        sumDyXHat += grad * (in[offset + j] - mu) * inv;
                     }
                 }
-            }
-            
-            for (int n = 0; n < N; n++) {
-                for (int h = 0; h < H; h++) {
-                    for (int w = 0; w < W; w++) {
-                        int index = ((n * C + c) * H + h) * W + w;
-                        float dxnorm = yGrad.buffer[index] * gammaVal;
-                        float dvar = -0.5f * dxnormSum / (stdVal * stdVal * stdVal);
-                        float dmean = -dxnorm / stdVal - 2.0f * dvar * (input.buffer[index] - mean.buffer[c]) / totalElements;
-                        
-                        inputGrad.buffer[index] = dxnorm / stdVal + 
-                                                 dvar * 2.0f * (input.buffer[index] - mean.buffer[c]) / totalElements + 
-                                                 dmean / totalElements;
+                gammaGrad.buffer[c] = sumDyXHat;
+                betaGrad.buffer[c] = sumDy;
+                
+                float scale = g[c] * inv;
+                // 使用运行时统计量时均值和方差是常数，输入梯度只是逐元素缩放
+                float meanDy = batchStats ? sumDy / count : 0f;
+                float meanDyXHat = batchStats ? sumDyXHat / count : 0f;
+                for (int i = 0; i < n; i++) {
+                    int offset = (i * channels + c) * inner;
+                    for (int j = 0; j < inner; j++) {
+                        float xHat = (in[offset + j] - mu) * inv;
+                        dx[offset + j] = scale * (dy[offset + j] - meanDy - xHat * meanDyXHat);
                     }
                 }
-            }
+            });
+            return Arrays.asList(xGrad, gammaGrad, betaGrad);
         }
         
-        return Arrays.asList(inputGrad, gammaGrad, betaGrad);
-    }
-    
-    /**
-     * 2D输入的反向传播
-     */
-    private List<NdArray> backward2D(NdArray yGrad, NdArray gamma) {
-        // 简化的2D反向传播实现
-        // 实际实现类似于4D版本，但维度更简单
-        return Arrays.asList(yGrad); // 简化版本
+        @Override
+        public int requireInputNum() {
+            return 3;
+        }
     }
     
     /**
@@ -431,4 +303,19 @@ public class BatchNorm extends Layer {
     public boolean isTraining() {
         return training;
     }
-}
\ No newline at end of file
+    
+    /**
+     * 是否已折叠到前一层中
+     */
+    public boolean isFolded() {
+        return folded;
+    }
+    
+    public NdArray getRunningMean() {
+        return runningMean;
+    }
+    
+    public NdArray getRunningVar() {
+        return runningVar;
+    }
+}
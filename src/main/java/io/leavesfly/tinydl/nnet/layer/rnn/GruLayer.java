@@ -1,11 +1,13 @@
 package io.leavesfly.tinydl.nnet.layer.rnn;
 
+import io.leavesfly.tinydl.func.Function;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.PackedSequence;
 import io.leavesfly.tinydl.nnet.Parameter;
-import io.leavesfly.tinydl.nnet.Layer;
-import io.leavesfly.tinydl.nnet.layer.activate.SigmoidLayer;
+import io.leavesfly.tinydl.nnet.RnnLayer;
+import io.leavesfly.tinydl.ndarr.GemmUtil;
 
 import java.util.Arrays;
 import java.util.List;
@@ -13,21 +15,21 @@ import java.util.Objects;
 
 /**
  * 门控循环单元层(GRU)
- * 
+ *
  * @author leavesfly
  * @version 0.01
- * 
+ *
  * GRU是LSTM的简化版本，包含更新门和重置门，能够有效处理序列数据中的长期依赖问题。
  * GRU通过两个门控机制来控制信息的流动：
  * 1. 更新门 (Update Gate) - 控制前一状态信息的保留程度
  * 2. 重置门 (Reset Gate) - 控制前一状态信息对当前候选状态的影响
- * 
+ *
  * GRU 公式:
  * z_t = σ(W_z * x_t + U_z * h_{t-1} + b_z)   // 更新门
  * r_t = σ(W_r * x_t + U_r * h_{t-1} + b_r)   // 重置门
  * ũ_t = tanh(W_h * x_t + U_h * (r_t ⊙ h_{t-1}) + b_h) // 候选状态
  * h_t = (1 - z_t) ⊙ ũ_t + z_t ⊙ h_{t-1}     // 当前隐藏状态
- * 
+ *
  * 其中:
  * - z_t 是更新门输出
  * - r_t 是重置门输出
@@ -35,149 +37,68 @@ import java.util.Objects;
  * - h_t 是当前隐藏状态
  * - σ 是sigmoid激活函数
  * - ⊙ 表示逐元素乘法
+ *
+ * 更新门与重置门的权重按行拼接为 gateWeight = [W_z W_r; U_z U_r]，对 [x_t, h_{t-1}] 做一次矩阵乘法；
+ * 候选状态依赖 r_t ⊙ h_{t-1}，其权重 candidateWeight = [W_h; U_h] 对 [x_t, r_t ⊙ h_{t-1}] 再做一次矩阵乘法。
+ * 激活函数与状态更新在同一次遍历中完成，反向传播是手写的融合实现。
  */
-public class GruLayer extends Layer {
+public class GruLayer extends RnnLayer {
 
     /**
      * 当前时间步的隐藏状态
      */
     private Variable state;
-    
+
     /**
-     * 当前时间步的隐藏状态值（NdArray形式）
+     * 基于NdArray前向传播时的隐藏状态
      */
     private NdArray stateValue;
 
-    // GRU的参数
-    // 更新门参数
-    /**
-     * 输入到更新门的权重矩阵
-     * 形状: (input_size, hidden_size)
-     */
-    private Parameter w_z;  
-    
     /**
-     * 隐藏状态到更新门的权重矩阵
-     * 形状: (hidden_size, hidden_size)
+     * 更新门与重置门的拼接权重 [W_z W_r; U_z U_r]
+     * 形状: (input_size + hidden_size, 2 * hidden_size)
      */
-    private Parameter u_z;  
-    
-    /**
-     * 更新门的偏置项
-     * 形状: (1, hidden_size)
-     */
-    private Parameter b_z;  
+    private Parameter gateWeight;
 
-    // 重置门参数
-    /**
-     * 输入到重置门的权重矩阵
-     * 形状: (input_size, hidden_size)
-     */
-    private Parameter w_r;  
-    
-    /**
-     * 隐藏状态到重置门的权重矩阵
-     * 形状: (hidden_size, hidden_size)
-     */
-    private Parameter u_r;  
-    
     /**
-     * 重置门的偏置项
-     * 形状: (1, hidden_size)
+     * 更新门与重置门的拼接偏置 [b_z b_r]
+     * 形状: (1, 2 * hidden_size)
      */
-    private Parameter b_r;  
+    private Parameter gateBias;
 
-    // 候选状态参数
     /**
-     * 输入到候选状态的权重矩阵
-     * 形状: (input_size, hidden_size)
+     * 候选状态的拼接权重 [W_h; U_h]
+     * 形状: (input_size + hidden_size, hidden_size)
      */
-    private Parameter w_h;  
-    
-    /**
-     * 隐藏状态到候选状态的权重矩阵
-     * 形状: (hidden_size, hidden_size)
-     */
-    private Parameter u_h;  
-    
+    private Parameter candidateWeight;
+
     /**
      * 候选状态的偏置项
      * 形状: (1, hidden_size)
      */
-    private Parameter b_h;  
+    private Parameter candidateBias;
 
     /**
-     * 隐藏层大小
+     * 输入大小
      */
-    private int hiddenSize;
+    private int inputSize;
 
-    // 用于反向传播的缓存变量
-    /**
-     * 更新门变量
-     */
-    private Variable zGate;     
-    
-    /**
-     * 重置门变量
-     */
-    private Variable rGate;     
-    
-    /**
-     * 候选状态变量
-     */
-    private Variable hCandidate; 
-    
-    /**
-     * 重置后的状态变量
-     */
-    private Variable resetState; 
-    
-    // 前向传播中的中间变量
-    /**
-     * 输入到更新门的线性变换结果
-     */
-    private Variable x_z;
-    
-    /**
-     * 隐藏状态到更新门的线性变换结果
-     */
-    private Variable h_z;
-    
-    /**
-     * 输入到重置门的线性变换结果
-     */
-    private Variable x_r;
-    
-    /**
-     * 隐藏状态到重置门的线性变换结果
-     */
-    private Variable h_r;
-    
-    /**
-     * 输入到候选状态的线性变换结果
-     */
-    private Variable x_h;
-    
-    /**
-     * 隐藏状态到候选状态的线性变换结果
-     */
-    private Variable h_h;
-    
     /**
-     * (1 - 更新门)的值，用于计算当前状态
+     * 隐藏层大小
      */
-    private Variable oneMinusZ;
+    private int hiddenSize;
 
     /**
      * 构造一个GRU层实例
-     * 
+     *
      * @param _name 层名称
-     * @param _xInputShape 输入形状 (batch_size, input_size)
-     * @param _yOutputShape 输出形状 (batch_size, hidden_size)
+     * @param _xInputShape 输入形状 (batch_size, input_size)，最后一维为输入大小
+     * @param _yOutputShape 输出形状 (batch_size, hidden_size)，最后一维为隐藏层大小
      */
     public GruLayer(String _name, Shape _xInputShape, Shape _yOutputShape) {
         super(_name, _xInputShape, _yOutputShape);
-        hiddenSize = _yOutputShape.getColumn();
+        inputSize = _xInputShape.dimension[_xInputShape.dimension.length - 1];
+        hiddenSize = _yOutputShape.dimension[_yOutputShape.dimension.length - 1];
         init();
     }
 
@@ -185,6 +106,7 @@ public class GruLayer extends Layer {
      * 重置GRU层的内部状态
      * 在处理新序列之前应调用此方法
      */
+    @Override
     public void resetState() {
         state = null;
         stateValue = null;
@@ -196,260 +118,367 @@ public class GruLayer extends Layer {
      */
     @Override
     public void init() {
-        int inputSize = inputShape.getColumn();
-
-        // 初始化更新门参数
-        NdArray initWeight = NdArray.likeRandomN(new Shape(inputSize, hiddenSize))
-                .mulNum((float) Math.sqrt(2.0 / (inputSize + hiddenSize)));
-        w_z = new Parameter(initWeight);
-        w_z.setName("w_z");
-        addParam(w_z.getName(), w_z);
-
-        initWeight = NdArray.likeRandomN(new Shape(hiddenSize, hiddenSize))
-                .mulNum((float) Math.sqrt(2.0 / (hiddenSize + hiddenSize)));
-        u_z = new Parameter(initWeight);
-        u_z.setName("u_z");
-        addParam(u_z.getName(), u_z);
-
-        b_z = new Parameter(NdArray.zeros(new Shape(1, hiddenSize)));
-        b_z.setName("b_z");
-        addParam(b_z.getName(), b_z);
-
-        // 初始化重置门参数
-        initWeight = NdArray.likeRandomN(new Shape(inputSize, hiddenSize))
-                .mulNum((float) Math.sqrt(2.0 / (inputSize + hiddenSize)));
-        w_r = new Parameter(initWeight);
-        w_r.setName("w_r");
-        addParam(w_r.getName(), w_r);
-
-        initWeight = NdArray.likeRandomN(new Shape(hiddenSize, hiddenSize))
-                .mulNum((float) Math.sqrt(2.0 / (hiddenSize + hiddenSize)));
-        u_r = new Parameter(initWeight);
-        u_r.setName("u_r");
-        addParam(u_r.getName(), u_r);
-
-        b_r = new Parameter(NdArray.zeros(new Shape(1, hiddenSize)));
-        b_r.setName("b_r");
-        addParam(b_r.getName(), b_r);
-
-        // 初始化候选状态参数
-        initWeight = NdArray.likeRandomN(new Shape(inputSize, hiddenSize))
-                .mulNum((float) Math.sqrt(2.0 / (inputSize + hiddenSize)));
-        w_h = new Parameter(initWeight);
-        w_h.setName("w_h");
-        addParam(w_h.getName(), w_h);
-
-        initWeight = NdArray.likeRandomN(new Shape(hiddenSize, hiddenSize))
-                .mulNum((float) Math.sqrt(2.0 / (hiddenSize + hiddenSize)));
-        u_h = new Parameter(initWeight);
-        u_h.setName("u_h");
-        addParam(u_h.getName(), u_h);
-
-        b_h = new Parameter(NdArray.zeros(new Shape(1, hiddenSize)));
-        b_h.setName("b_h");
-        addParam(b_h.getName(), b_h);
+        float scale = (float) Math.sqrt(2.0 / (inputSize + hiddenSize));
+        gateWeight = new Parameter(NdArray.likeRandomN(new Shape(inputSize + hiddenSize, 2 * hiddenSize)).mulNum(scale));
+        gateWeight.setName(getName() + ".gateWeight");
+        addParam(gateWeight.getName(), gateWeight);
+
+        gateBias = new Parameter(NdArray.zeros(new Shape(1, 2 * hiddenSize)));
+        gateBias.setName(getName() + ".gateBias");
+        addParam(gateBias.getName(), gateBias);
+
+        candidateWeight = new Parameter(NdArray.likeRandomN(new Shape(inputSize + hiddenSize, hiddenSize)).mulNum(scale));
+        candidateWeight.setName(getName() + ".candidateWeight");
+        addParam(candidateWeight.getName(), candidateWeight);
+
+        candidateBias = new Parameter(NdArray.zeros(new Shape(1, hiddenSize)));
+        candidateBias.setName(getName() + ".candidateBias");
+        addParam(candidateBias.getName(), candidateBias);
     }
 
     @Override
     public Variable layerForward(Variable... inputs) {
         Variable x = inputs[0];
-
         if (Objects.isNull(state)) {
-            // 第一次前向传播
-            // 计算更新门
-            x_z = x.linear(w_z, b_z);
-            zGate = new SigmoidLayer("").call(x_z);
-
-            // 计算重置门
-            x_r = x.linear(w_r, b_r);
-            rGate = new SigmoidLayer("").call(x_r);
-
-            // 计算候选状态
-            x_h = x.linear(w_h, b_h);
-            hCandidate = x_h.tanh();
-
-            // 计算当前状态
-            oneMinusZ = new Variable(NdArray.ones(zGate.getValue().getShape())).sub(zGate);
-            state = oneMinusZ.mul(hCandidate);
-            stateValue = state.getValue();
+            // 第一次前向传播，前一时间步的隐藏状态视为0
+            state = new GruCellFunction().call(x, gateWeight, gateBias, candidateWeight, candidateBias);
         } else {
-            // 后续前向传播
-            // 计算更新门
-            x_z = x.linear(w_z, b_z);
-            h_z = state.linear(u_z, null);
-            zGate = new SigmoidLayer("").call(x_z.add(h_z));
-
-            // 计算重置门
-            x_r = x.linear(w_r, b_r);
-            h_r = state.linear(u_r, null);
-            rGate = new SigmoidLayer("").call(x_r.add(h_r));
-
-            // 重置前一状态
-            resetState = rGate.mul(state);
-
-            // 计算候选状态
-            x_h = x.linear(w_h, b_h);
-            h_h = resetState.linear(u_h, null);
-            hCandidate = x_h.add(h_h).tanh();
-
-            // 计算当前状态
-            oneMinusZ = new Variable(NdArray.ones(zGate.getValue().getShape())).sub(zGate);
-            state = zGate.mul(state).add(oneMinusZ.mul(hCandidate));
-            stateValue = state.getValue();
+            state = new GruCellFunction().call(x, gateWeight, gateBias, candidateWeight, candidateBias, state);
         }
-
         return state;
     }
 
+    /**
+     * 对打包的变长序列批次执行前向传播
+     *
+     * 所有时间步的输入投影在两次大的矩阵乘法中完成，之后每个时间步只对仍然有效的序列计算循环部分。
+     *
+     * @param input 打包的输入序列
+     * @return 打包的隐藏状态序列
+     */
+    @Override
+    public PackedSequence layerForwardPacked(PackedSequence input) {
+        checkPackedInput(input, inputSize);
+        return input.withData(new GruSequenceFunction(input)
+                .call(input.getData(), gateWeight, gateBias, candidateWeight, candidateBias));
+    }
+
     @Override
     public NdArray forward(NdArray... inputs) {
         NdArray x = inputs[0];
-
+        GruCellFunction cell = new GruCellFunction();
         if (stateValue == null) {
-            // 第一次前向传播
-            // 计算更新门
-            NdArray x_z = x.dot(w_z.getValue()).add(b_z.getValue().broadcastTo(x.getShape()));
-            NdArray zGateValue = x_z.sigmoid();
-
-            // 计算重置门
-            NdArray x_r = x.dot(w_r.getValue()).add(b_r.getValue().broadcastTo(x.getShape()));
-            NdArray rGateValue = x_r.sigmoid();
-
-            // 计算候选状态
-            NdArray x_h = x.dot(w_h.getValue()).add(b_h.getValue().broadcastTo(x.getShape()));
-            NdArray hCandidateValue = x_h.tanh();
-
-            // 计算当前状态
-            NdArray oneMinusZ = NdArray.ones(zGateValue.getShape()).sub(zGateValue);
-            stateValue = oneMinusZ.mul(hCandidateValue);
+            stateValue = cell.forward(x, gateWeight.getValue(), gateBias.getValue(),
+                    candidateWeight.getValue(), candidateBias.getValue());
         } else {
-            // 后续前向传播
-            // 计算更新门
-            NdArray x_z = x.dot(w_z.getValue()).add(b_z.getValue().broadcastTo(x.getShape()));
-            NdArray h_z = stateValue.dot(u_z.getValue());
-            NdArray zGateValue = x_z.add(h_z).sigmoid();
-
-            // 计算重置门
-            NdArray x_r = x.dot(w_r.getValue()).add(b_r.getValue().broadcastTo(x.getShape()));
-            NdArray h_r = stateValue.dot(u_r.getValue());
-            NdArray rGateValue = x_r.add(h_r).sigmoid();
-
-            // 重置前一状态
-            NdArray resetStateValue = rGateValue.mul(stateValue);
-
-            // 计算候选状态
-            NdArray x_h = x.dot(w_h.getValue()).add(b_h.getValue().broadcastTo(x.getShape()));
-            NdArray h_h = resetStateValue.dot(u_h.getValue());
-            NdArray hCandidateValue = x_h.add(h_h).tanh();
-
-            // 计算当前状态
-            NdArray oneMinusZ = NdArray.ones(zGateValue.getShape()).sub(zGateValue);
-            stateValue = zGateValue.mul(stateValue).add(oneMinusZ.mul(hCandidateValue));
+            stateValue = cell.forward(x, gateWeight.getValue(), gateBias.getValue(),
+                    candidateWeight.getValue(), candidateBias.getValue(), stateValue);
         }
-
         return stateValue;
     }
 
+    /**
+     * 反向传播由每个时间步创建的GruCellFunction节点完成
+     */
     @Override
     public List<NdArray> backward(NdArray yGrad) {
-        // GRU反向传播实现
-        // 根据GRU的数学公式计算梯度
-        
-        // 保存当前状态的梯度
-        NdArray dhNext = yGrad;
-        
-        // 计算更新门的梯度
-        NdArray dz = dhNext.mul(stateValue.sub(hCandidate.getValue()));
-        // 应用sigmoid导数
-        dz = dz.mul(zGate.getValue()).mul(NdArray.ones(zGate.getValue().getShape()).sub(zGate.getValue()));
-        
-        // 计算候选状态的梯度
-        NdArray dhCandidate = dhNext.mul(oneMinusZ.getValue());
-        // 应用tanh导数
-        dhCandidate = dhCandidate.mul(NdArray.ones(hCandidate.getValue().getShape()).sub(hCandidate.getValue().square()));
-        
-        // 计算重置门的梯度
-        NdArray dr = null;
-        if (resetState != null) {
-            dr = dhCandidate.dot(u_h.getValue().transpose()).mul(state.getValue());
-            // 应用sigmoid导数
-            dr = dr.mul(rGate.getValue()).mul(NdArray.ones(rGate.getValue().getShape()).sub(rGate.getValue()));
-        } else {
-            dr = NdArray.zeros(rGate.getValue().getShape());
+        return null;
+    }
+
+    private static float sigmoid(float value) {
+        return (float) (1.0 / (1.0 + Math.exp(-value)));
+    }
+
+    /**
+     * 单个时间步的融合GRU单元
+     *
+     * 输入为 (x, gateWeight, gateBias, candidateWeight, candidateBias, [state])，输出为 h_t。
+     * 拼接后的输入与门激活值保存在节点中供反向传播使用。
+     */
+    private class GruCellFunction extends Function {
+
+        private float[] xh;         // [x, h_{t-1}]，形状为 (batch, inputSize + hiddenSize)
+        private float[] xrh;        // [x, r ⊙ h_{t-1}]，形状为 (batch, inputSize + hiddenSize)
+        private float[] gates;      // 激活后的 z、r，形状为 (batch, 2 * hiddenSize)
+        private float[] candidate;  // 激活后的 ũ，形状为 (batch, hiddenSize)
+
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            NdArray x = inputs[0];
+            float[] prev = inputs.length > 5 ? inputs[5].buffer : null;
+            int batch = x.getShape().getRow();
+            int hidden = hiddenSize;
+            int k = inputSize + hidden;
+
+            xh = new float[batch * k];
+            gates = new float[batch * 2 * hidden];
+            candidate = new float[batch * hidden];
+            for (int n = 0; n < batch; n++) {
+                System.arraycopy(x.buffer, n * inputSize, xh, n * k, inputSize);
+                if (prev != null) {
+                    System.arraycopy(prev, n * hidden, xh, n * k + inputSize, hidden);
+                }
+                System.arraycopy(inputs[2].buffer, 0, gates, n * 2 * hidden, 2 * hidden);
+                System.arraycopy(inputs[4].buffer, 0, candidate, n * hidden, hidden);
+            }
+            GemmUtil.gemm(batch, k, 2 * hidden, xh, 0, inputs[1].buffer, 0, gates, 0);
+
+            // 激活z、r，并生成 [x, r ⊙ h_{t-1}]
+            xrh = xh.clone();
+            for (int n = 0; n < batch; n++) {
+                for (int j = 0; j < hidden; j++) {
+                    int g = n * 2 * hidden + j;
+                    gates[g] = sigmoid(gates[g]);
+                    gates[g + hidden] = sigmoid(gates[g + hidden]);
+                    xrh[n * k + inputSize + j] *= gates[g + hidden];
+                }
+            }
+            GemmUtil.gemm(batch, k, hidden, xrh, 0, inputs[3].buffer, 0, candidate, 0);
+
+            NdArray result = new NdArray(new Shape(batch, hidden));
+            for (int n = 0; n < batch; n++) {
+                for (int j = 0; j < hidden; j++) {
+                    int index = n * hidden + j;
+                    float z = gates[n * 2 * hidden + j];
+                    float u = (float) Math.tanh(candidate[index]);
+                    candidate[index] = u;
+                    result.buffer[index] = (1f - z) * u + (prev == null ? 0f : z * prev[index]);
+                }
+            }
+            return result;
         }
-        
-        // 计算输入x的梯度
-        NdArray dx = null;
-        NdArray dhPrev = null;
-        
-        // 计算参数梯度
-        NdArray dw_z = null, du_z = null, db_z = null;
-        NdArray dw_r = null, du_r = null, db_r = null;
-        NdArray dw_h = null, du_h = null, db_h = null;
-        
-        if (resetState != null) {
-            // 后续时间步的反向传播
-            
-            // 输入到更新门的梯度
-            dw_z = inputs[0].getValue().transpose().dot(dz);
-            du_z = state.getValue().transpose().dot(dz);
-            db_z = dz.sumTo(b_z.getValue().getShape());
-            
-            // 输入到重置门的梯度
-            dw_r = inputs[0].getValue().transpose().dot(dr);
-            du_r = state.getValue().transpose().dot(dr);
-            db_r = dr.sumTo(b_r.getValue().getShape());
-            
-            // 输入到候选状态的梯度
-            dw_h = inputs[0].getValue().transpose().dot(dhCandidate);
-            du_h = resetState.getValue().transpose().dot(dhCandidate);
-            db_h = dhCandidate.sumTo(b_h.getValue().getShape());
-            
-            // 输入梯度
-            dx = dz.dot(w_z.getValue().transpose())
-                .add(dr.dot(w_r.getValue().transpose()))
-                .add(dhCandidate.dot(w_h.getValue().transpose()));
-            
-            // 前一状态的梯度
-            dhPrev = dz.dot(u_z.getValue().transpose())
-                .add(dr.dot(u_r.getValue().transpose()))
-                .add(dhCandidate.dot(u_h.getValue().transpose()).mul(rGate.getValue()));
-            
-            // 加上通过更新门传递的梯度
-            dhPrev = dhPrev.add(dhNext.mul(zGate.getValue()));
-        } else {
-            // 第一个时间步的反向传播
-            
-            // 输入到更新门的梯度
-            dw_z = inputs[0].getValue().transpose().dot(dz);
-            db_z = dz.sumTo(b_z.getValue().getShape());
-            du_z = null; // 第一个时间步没有前一状态
-            
-            // 输入到重置门的梯度
-            dw_r = inputs[0].getValue().transpose().dot(dr);
-            db_r = dr.sumTo(b_r.getValue().getShape());
-            du_r = null; // 第一个时间步没有前一状态
-            
-            // 输入到候选状态的梯度
-            dw_h = inputs[0].getValue().transpose().dot(dhCandidate);
-            db_h = dhCandidate.sumTo(b_h.getValue().getShape());
-            du_h = null; // 第一个时间步没有前一状态
-            
-            // 输入梯度
-            dx = dz.dot(w_z.getValue().transpose())
-                .add(dr.dot(w_r.getValue().transpose()))
-                .add(dhCandidate.dot(w_h.getValue().transpose()));
-            
-            // 前一状态的梯度
-            dhPrev = null; // 第一个时间步没有前一状态
+
+        /**
+         * 反向传播
+         *
+         * 先求候选状态激活前的梯度并经 candidateWeight^T 传回 [dx, d(r ⊙ h_{t-1})]，
+         * 再求更新门、重置门激活前的梯度并经 gateWeight^T 传回 [dx, dh_{t-1}]。
+         */
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            boolean hasPrev = inputs.length > 5;
+            float[] prev = hasPrev ? inputs[5].getValue().buffer : null;
+            int batch = inputs[0].getValue().getShape().getRow();
+            int hidden = hiddenSize;
+            int k = inputSize + hidden;
+
+            float[] candidateGrad = new float[batch * hidden];
+            float[] gateGrad = new float[batch * 2 * hidden];
+            float[] xhGrad = new float[batch * k];
+            for (int n = 0; n < batch; n++) {
+                for (int j = 0; j < hidden; j++) {
+                    int index = n * hidden + j;
+                    float z = gates[n * 2 * hidden + j];
+                    float u = candidate[index];
+                    float dh = yGrad.buffer[index];
+                    float hPrev = hasPrev ? prev[index] : 0f;
+                    candidateGrad[index] = dh * (1f - z) * (1f - u * u);
+                    gateGrad[n * 2 * hidden + j] = dh * (hPrev - u) * z * (1f - z);
+                    xhGrad[n * k + inputSize + j] = dh * z;
+                }
+            }
+
+            // 候选状态：d[x, r ⊙ h_{t-1}] = dU * candidateWeight^T
+            float[] xrhGrad = new float[batch * k];
+            GemmUtil.gemmTransB(batch, hidden, k, candidateGrad, 0, inputs[3].getValue().buffer, 0, xrhGrad, 0);
+            for (int n = 0; n < batch; n++) {
+                for (int j = 0; j < inputSize; j++) {
+                    xhGrad[n * k + j] += xrhGrad[n * k + j];
+                }
+                for (int j = 0; j < hidden; j++) {
+                    float r = gates[n * 2 * hidden + hidden + j];
+                    float rhGrad = xrhGrad[n * k + inputSize + j];
+                    float hPrev = hasPrev ? prev[n * hidden + j] : 0f;
+                    gateGrad[n * 2 * hidden + hidden + j] = rhGrad * hPrev * r * (1f - r);
+                    xhGrad[n * k + inputSize + j] += rhGrad * r;
+                }
+            }
+
+            // 更新门与重置门：d[x, h_{t-1}] += dG * gateWeight^T
+            GemmUtil.gemmTransB(batch, 2 * hidden, k, gateGrad, 0, inputs[1].getValue().buffer, 0, xhGrad, 0);
+
+            NdArray gateWeightGrad = new NdArray(inputs[1].getValue().getShape());
+            GemmUtil.gemmTransA(k, batch, 2 * hidden, xh, 0, gateGrad, 0, gateWeightGrad.buffer, 0);
+            NdArray candidateWeightGrad = new NdArray(inputs[3].getValue().getShape());
+            GemmUtil.gemmTransA(k, batch, hidden, xrh, 0, candidateGrad, 0, candidateWeightGrad.buffer, 0);
+            NdArray gateBiasGrad = new NdArray(inputs[2].getValue().getShape());
+            NdArray candidateBiasGrad = new NdArray(inputs[4].getValue().getShape());
+            for (int n = 0; n < batch; n++) {
+                for (int j = 0; j < 2 * hidden; j++) {
+                    gateBiasGrad.buffer[j] += gateGrad[n * 2 * hidden + j];
+                }
+                for (int j = 0; j < hidden; j++) {
+                    candidateBiasGrad.buffer[j] += candidateGrad[n * hidden + j];
+                }
+            }
+
+            NdArray xGrad = new NdArray(inputs[0].getValue().getShape());
+            NdArray prevGrad = hasPrev ? new NdArray(inputs[5].getValue().getShape()) : null;
+            for (int n = 0; n < batch; n++) {
+                System.arraycopy(xhGrad, n * k, xGrad.buffer, n * inputSize, inputSize);
+                if (hasPrev) {
+                    System.arraycopy(xhGrad, n * k + inputSize, prevGrad.buffer, n * hidden, hidden);
+                }
+            }
+            if (hasPrev) {
+                return Arrays.asList(xGrad, gateWeightGrad, gateBiasGrad, candidateWeightGrad, candidateBiasGrad, prevGrad);
+            }
+            return Arrays.asList(xGrad, gateWeightGrad, gateBiasGrad, candidateWeightGrad, candidateBiasGrad);
         }
-        
-        // 返回梯度列表，顺序需要与参数顺序一致
-        if (dhPrev != null) {
-            return Arrays.asList(dx, dw_z, du_z, db_z, dw_r, du_r, db_r, dw_h, du_h, db_h);
-        } else {
-            // 第一个时间步的情况
-            return Arrays.asList(dx, dw_z, db_z, dw_r, db_r, dw_h, db_h);
+
+        @Override
+        public int requireInputNum() {
+            return -1;
+        }
+    }
+
+    /**
+     * 打包序列的GRU计算
+     *
+     * 输入为 (x, gateWeight, gateBias, candidateWeight, candidateBias)，x为打包数据。
+     * 门与候选状态的输入投影 X * W_x + b 对所有时间步一次算出，循环部分逐时间步累加到投影上；
+     * 反向传播中输入相关的权重梯度与输入梯度最后各用一次大的矩阵乘法求出。
+     */
+    private class GruSequenceFunction extends Function {
+
+        private final int[] batchSizes;
+        private final int[] offsets;
+        private float[] gates;        // 激活后的 z、r，形状为 (rows, 2 * hiddenSize)
+        private float[] candidate;    // 激活后的 ũ，形状为 (rows, hiddenSize)
+        private float[] resetHidden;  // r_t ⊙ h_{t-1}
+        private float[] hidden;       // h_t
+
+        GruSequenceFunction(PackedSequence layout) {
+            this.batchSizes = layout.getBatchSizes();
+            this.offsets = layout.getOffsets();
+        }
+
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            float[] x = inputs[0].buffer;
+            float[] gw = inputs[1].buffer;
+            float[] cw = inputs[3].buffer;
+            int h = hiddenSize;
+            int rows = inputs[0].getShape().getRow();
+
+            gates = new float[rows * 2 * h];
+            candidate = new float[rows * h];
+            for (int r = 0; r < rows; r++) {
+                System.arraycopy(inputs[2].buffer, 0, gates, r * 2 * h, 2 * h);
+                System.arraycopy(inputs[4].buffer, 0, candidate, r * h, h);
+            }
+            GemmUtil.gemm(rows, inputSize, 2 * h, x, 0, gw, 0, gates, 0);
+            GemmUtil.gemm(rows, inputSize, h, x, 0, cw, 0, candidate, 0);
+
+            resetHidden = new float[rows * h];
+            hidden = new float[rows * h];
+            for (int t = 0; t < batchSizes.length; t++) {
+                int row = offsets[t];
+                int prevRow = t > 0 ? offsets[t - 1] : 0;
+                int active = batchSizes[t];
+                if (t > 0) {
+                    GemmUtil.gemm(active, h, 2 * h, hidden, prevRow * h, gw, inputSize * 2 * h, gates, row * 2 * h);
+                }
+                for (int s = 0; s < active; s++) {
+                    for (int j = 0; j < h; j++) {
+                        int k = (row + s) * 2 * h + j;
+                        gates[k] = sigmoid(gates[k]);
+                        gates[k + h] = sigmoid(gates[k + h]);
+                        resetHidden[(row + s) * h + j] = t > 0 ? gates[k + h] * hidden[(prevRow + s) * h + j] : 0f;
+                    }
+                }
+                if (t > 0) {
+                    GemmUtil.gemm(active, h, h, resetHidden, row * h, cw, inputSize * h, candidate, row * h);
+                }
+                for (int s = 0; s < active; s++) {
+                    for (int j = 0; j < h; j++) {
+                        int index = (row + s) * h + j;
+                        float z = gates[(row + s) * 2 * h + j];
+                        float u = (float) Math.tanh(candidate[index]);
+                        candidate[index] = u;
+                        hidden[index] = (1f - z) * u + (t > 0 ? z * hidden[(prevRow + s) * h + j] : 0f);
+                    }
+                }
+            }
+            return new NdArray(hidden.clone(), new Shape(rows, h));
+        }
+
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            float[] x = inputs[0].getValue().buffer;
+            float[] gw = inputs[1].getValue().buffer;
+            float[] cw = inputs[3].getValue().buffer;
+            int h = hiddenSize;
+            int rows = yGrad.getShape().getRow();
+
+            // 已结束的序列没有后续时间步，对应的 hNext 保持为0
+            float[] gateGrad = new float[rows * 2 * h];
+            float[] candidateGrad = new float[rows * h];
+            float[] hNext = new float[batchSizes[0] * h];
+            float[] resetHiddenGrad = new float[batchSizes[0] * h];
+            for (int t = batchSizes.length - 1; t >= 0; t--) {
+                int row = offsets[t];
+                int prevRow = t > 0 ? offsets[t - 1] : 0;
+                int active = batchSizes[t];
+                for (int s = 0; s < active; s++) {
+                    for (int j = 0; j < h; j++) {
+                        int index = (row + s) * h + j;
+                        float z = gates[(row + s) * 2 * h + j];
+                        float u = candidate[index];
+                        float hPrev = t > 0 ? hidden[(prevRow + s) * h + j] : 0f;
+                        float dh = yGrad.buffer[index] + hNext[s * h + j];
+                        candidateGrad[index] = dh * (1f - z) * (1f - u * u);
+                        gateGrad[(row + s) * 2 * h + j] = dh * (hPrev - u) * z * (1f - z);
+                        hNext[s * h + j] = dh * z;
+                    }
+                }
+                if (t == 0) {
+                    break;
+                }
+
+                Arrays.fill(resetHiddenGrad, 0f);
+                GemmUtil.gemmTransB(active, h, h, candidateGrad, row * h, cw, inputSize * h, resetHiddenGrad, 0);
+                for (int s = 0; s < active; s++) {
+                    for (int j = 0; j < h; j++) {
+                        int k = (row + s) * 2 * h + h + j;
+                        float r = gates[k];
+                        float rhGrad = resetHiddenGrad[s * h + j];
+                        gateGrad[k] = rhGrad * hidden[(prevRow + s) * h + j] * r * (1f - r);
+                        hNext[s * h + j] += rhGrad * r;
+                    }
+                }
+                GemmUtil.gemmTransB(active, 2 * h, h, gateGrad, row * 2 * h, gw, inputSize * 2 * h, hNext, 0);
+            }
+
+            NdArray gateWeightGrad = new NdArray(inputs[1].getValue().getShape());
+            GemmUtil.gemmTransA(inputSize, rows, 2 * h, x, 0, gateGrad, 0, gateWeightGrad.buffer, 0);
+            for (int t = 1; t < batchSizes.length; t++) {
+                GemmUtil.gemmTransA(h, batchSizes[t], 2 * h, hidden, offsets[t - 1] * h,
+                        gateGrad, offsets[t] * 2 * h, gateWeightGrad.buffer, inputSize * 2 * h);
+            }
+            NdArray candidateWeightGrad = new NdArray(inputs[3].getValue().getShape());
+            GemmUtil.gemmTransA(inputSize, rows, h, x, 0, candidateGrad, 0, candidateWeightGrad.buffer, 0);
+            GemmUtil.gemmTransA(h, rows, h, resetHidden, 0, candidateGrad, 0, candidateWeightGrad.buffer, inputSize * h);
+            NdArray gateBiasGrad = new NdArray(inputs[2].getValue().getShape());
+            NdArray candidateBiasGrad = new NdArray(inputs[4].getValue().getShape());
+            for (int r = 0; r < rows; r++) {
+                for (int j = 0; j < 2 * h; j++) {
+                    gateBiasGrad.buffer[j] += gateGrad[r * 2 * h + j];
+                }
+                for (int j = 0; j < h; j++) {
+                    candidateBiasGrad.buffer[j] += candidateGrad[r * h + j];
+                }
+            }
+
+            NdArray xGrad = new NdArray(inputs[0].getValue().getShape());
+            GemmUtil.gemmTransB(rows, 2 * h, inputSize, gateGrad, 0, gw, 0, xGrad.buffer, 0);
+            GemmUtil.gemmTransB(rows, h, inputSize, candidateGrad, 0, cw, 0, xGrad.buffer, 0);
+            return Arrays.asList(xGrad, gateWeightGrad, gateBiasGrad, candidateWeightGrad, candidateBiasGrad);
+        }
+
+        @Override
+        public int requireInputNum() {
+            return 5;
         }
     }
-}
\ No newline at end of file
+}
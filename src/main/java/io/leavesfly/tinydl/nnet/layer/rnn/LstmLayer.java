@@ -1,26 +1,31 @@
 package io.leavesfly.tinydl.nnet.layer.rnn;
 
+import io.leavesfly.tinydl.func.Function;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.PackedSequence;
 import io.leavesfly.tinydl.nnet.Parameter;
 import io.leavesfly.tinydl.nnet.RnnLayer;
-import io.leavesfly.tinydl.nnet.layer.activate.SigmoidLayer;
+import io.leavesfly.tinydl.ndarr.GemmUtil;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * 长短期记忆网络层 (LSTM Layer)
- * 
+ *
  * @author leavesfly
  * @version 0.01
- * 
+ *
  * LSTM是一种特殊的循环神经网络，能够学习长期依赖信息，有效缓解梯度消失问题。
  * LSTM通过三个门控机制来控制信息的流动：
  * 1. 遗忘门 (Forget Gate) - 控制从细胞状态中丢弃什么信息
  * 2. 输入门 (Input Gate) - 控制哪些新信息被存储在细胞状态中
  * 3. 输出门 (Output Gate) - 控制基于细胞状态输出什么信息
- * 
+ *
  * LSTM 公式:
  * f_t = σ(W_f * [h_{t-1}, x_t] + b_f)   // 遗忘门
  * i_t = σ(W_i * [h_{t-1}, x_t] + b_i)   // 输入门
@@ -28,7 +33,7 @@ import java.util.Objects;
  * ũ_t = tanh(W_u * [h_{t-1}, x_t] + b_u) // 候选细胞状态
  * C_t = f_t * C_{t-1} + i_t * ũ_t       // 细胞状态
  * h_t = o_t * tanh(C_t)                 // 隐藏状态
- * 
+ *
  * 其中:
  * - f_t 是遗忘门输出
  * - i_t 是输入门输出
@@ -39,18 +44,39 @@ import java.util.Objects;
  * - σ 是sigmoid激活函数
  * - * 表示矩阵乘法
  * - [h_{t-1}, x_t] 表示隐藏状态和输入的拼接
+ *
+ * 四个门的权重按行拼接为一个矩阵 weight = [W_x; W_h]，形状为 (input_size + hidden_size, 4 * hidden_size)，
+ * 列依次为 f、i、o、ũ。每个时间步只对 [x_t, h_{t-1}] 做一次矩阵乘法得到所有门的输入，
+ * 激活函数与细胞状态更新在同一次遍历中完成，反向传播也是手写的融合实现。
  */
 public class LstmLayer extends RnnLayer {
 
     /**
-     * 当前时间步的隐藏状态 (h_t)
+     * 当前时间步的状态，按列拼接为 [h_t, C_t]，形状为 (batch_size, 2 * hidden_size)
      */
     private Variable state;
 
     /**
-     * 当前时间步的细胞状态 (C_t)
+     * 基于NdArray前向传播时的状态，布局与state相同
      */
-    private Variable candidate;
+    private NdArray stateValue;
+
+    /**
+     * 拼接后的门权重 [W_x; W_h]
+     * 形状: (input_size + hidden_size, 4 * hidden_size)
+     */
+    private Parameter weight;
+
+    /**
+     * 拼接后的门偏置
+     * 形状: (1, 4 * hidden_size)
+     */
+    private Parameter bias;
+
+    /**
+     * 输入大小
+     */
+    private int inputSize;
 
     /**
      * 隐藏层大小
@@ -59,98 +85,31 @@ public class LstmLayer extends RnnLayer {
 
     /**
      * 构造一个LSTM层实例
-     * 
+     *
      * @param name 层名称
-     * @param xInputShape 输入形状 (batch_size, input_size)
-     * @param yOutputShape 输出形状 (batch_size, hidden_size)
+     * @param xInputShape 输入形状 (batch_size, input_size)，最后一维为输入大小
+     * @param yOutputShape 输出形状 (batch_size, hidden_size)，最后一维为隐藏层大小
      */
     public LstmLayer(String name, Shape xInputShape, Shape yOutputShape) {
         super(name, xInputShape, yOutputShape);
-        this.hiddenSize = yOutputShape.getColumn();
-
-        // 初始化遗忘门参数 (Forget Gate)
-        // x2f: 输入到遗忘门的权重矩阵
-        NdArray initWeight = NdArray.likeRandomN(new Shape(xInputShape.getColumn(), hiddenSize))
-                .mulNum(Math.sqrt((double) 1 / xInputShape.getColumn()));
-        Parameter x2f = new Parameter(initWeight);
-        x2f.setName(getName() + ".x2f");
-        addParam(x2f.getName(), x2f);
-
-        // x2f-b: 遗忘门的偏置项
-        Parameter b = new Parameter(NdArray.zeros(new Shape(1, hiddenSize)));
-        b.setName(getName() + ".x2f-b");
-        addParam(b.getName(), b);
-
-        // 初始化输入门参数 (Input Gate)
-        // x2i: 输入到输入门的权重矩阵
-        initWeight = NdArray.likeRandomN(new Shape(xInputShape.getColumn(), hiddenSize))
-                .mulNum(Math.sqrt((double) 1 / xInputShape.getColumn()));
-        Parameter x2i = new Parameter(initWeight);
-        x2i.setName(getName() + ".x2i");
-        addParam(x2i.getName(), x2i);
-
-        // x2i-b: 输入门的偏置项
-        b = new Parameter(NdArray.zeros(new Shape(1, hiddenSize)));
-        b.setName(getName() + ".x2i-b");
-        addParam(b.getName(), b);
-
-        // 初始化输出门参数 (Output Gate)
-        // x2o: 输入到输出门的权重矩阵
-        initWeight = NdArray.likeRandomN(new Shape(xInputShape.getColumn(), hiddenSize))
-                .mulNum(Math.sqrt((double) 1 / xInputShape.getColumn()));
-        Parameter x2o = new Parameter(initWeight);
-        x2o.setName(getName() + ".x2o");
-        addParam(x2o.getName(), x2o);
-
-        // x2o-b: 输出门的偏置项
-        b = new Parameter(NdArray.zeros(new Shape(1, hiddenSize)));
-        b.setName(getName() + ".x2o-b");
-        addParam(b.getName(), b);
-
-        // 初始化候选细胞状态参数
-        // x2u: 输入到候选细胞状态的权重矩阵
-        initWeight = NdArray.likeRandomN(new Shape(xInputShape.getColumn(), hiddenSize))
-                .mulNum(Math.sqrt((double) 1 / xInputShape.getColumn()));
-        Parameter x2u = new Parameter(initWeight);
-        x2u.setName(getName() + ".x2u");
-        addParam(x2u.getName(), x2u);
-
-        // x2u-b: 候选细胞状态的偏置项
-        b = new Parameter(NdArray.zeros(new Shape(1, hiddenSize)));
-        b.setName(getName() + ".x2u-b");
-        addParam(b.getName(), b);
-
-        // =======================
-
-        // 初始化隐藏状态到各门的权重矩阵
-
-        // h2f: 隐藏状态到遗忘门的权重矩阵
-        initWeight = NdArray.likeRandomN(new Shape(hiddenSize, hiddenSize))
-                .mulNum(Math.sqrt((double) 1 / hiddenSize));
-        Parameter h2f = new Parameter(initWeight);
-        h2f.setName(getName() + ".h2f");
-        addParam(h2f.getName(), h2f);
+        this.inputSize = xInputShape.dimension[xInputShape.dimension.length - 1];
+        this.hiddenSize = yOutputShape.dimension[yOutputShape.dimension.length - 1];
 
-        // h2i: 隐藏状态到输入门的权重矩阵
-        initWeight = NdArray.likeRandomN(new Shape(hiddenSize, hiddenSize))
+        // W_x 与 W_h 分别按各自的输入大小缩放后按行拼接
+        NdArray initWeight = new NdArray(new Shape(inputSize + hiddenSize, 4 * hiddenSize));
+        NdArray xWeight = NdArray.likeRandomN(new Shape(inputSize, 4 * hiddenSize))
+                .mulNum(Math.sqrt((double) 1 / inputSize));
+        NdArray hWeight = NdArray.likeRandomN(new Shape(hiddenSize, 4 * hiddenSize))
                 .mulNum(Math.sqrt((double) 1 / hiddenSize));
-        Parameter h2i = new Parameter(initWeight);
-        h2i.setName(getName() + ".h2i");
-        addParam(h2i.getName(), h2i);
+        System.arraycopy(xWeight.buffer, 0, initWeight.buffer, 0, xWeight.buffer.length);
+        System.arraycopy(hWeight.buffer, 0, initWeight.buffer, xWeight.buffer.length, hWeight.buffer.length);
+        weight = new Parameter(initWeight);
+        weight.setName(getName() + ".weight");
+        addParam(weight.getName(), weight);
 
-        // h2o: 隐藏状态到输出门的权重矩阵
-        initWeight = NdArray.likeRandomN(new Shape(hiddenSize, hiddenSize))
-                .mulNum(Math.sqrt((double) 1 / hiddenSize));
-        Parameter h2o = new Parameter(initWeight);
-        h2o.setName(getName() + ".h2o");
-        addParam(h2o.getName(), h2o);
-
-        // h2u: 隐藏状态到候选细胞状态的权重矩阵
-        initWeight = NdArray.likeRandomN(new Shape(hiddenSize, hiddenSize))
-                .mulNum(Math.sqrt((double) 1 / hiddenSize));
-        Parameter h2u = new Parameter(initWeight);
-        h2u.setName(getName() + ".h2u");
-        addParam(h2u.getName(), h2u);
+        bias = new Parameter(NdArray.zeros(new Shape(1, 4 * hiddenSize)));
+        bias.setName(getName() + ".bias");
+        addParam(bias.getName(), bias);
 
         resetState();
     }
@@ -162,7 +121,7 @@ public class LstmLayer extends RnnLayer {
     @Override
     public void resetState() {
         state = null;
-        candidate = null;
+        stateValue = null;
     }
 
     /**
@@ -175,70 +134,353 @@ public class LstmLayer extends RnnLayer {
 
     /**
      * LSTM层的前向传播方法
-     * 
+     *
      * @param inputs 输入变量数组，通常只包含一个输入变量
      * @return 当前时间步的隐藏状态
      */
     @Override
     public Variable layerForward(Variable... inputs) {
         Variable x = inputs[0];
-
-        Variable fGate = null;  // 遗忘门
-        Variable iGate = null;  // 输入门
-        Variable oGate = null;  // 输出门
-        Variable uState = null; // 候选细胞状态
-
-        // 第一次前向传播，没有前一时间步的隐藏状态
         if (Objects.isNull(state)) {
-            // 计算遗忘门: f_t = σ(W_f * x_t + b_f)
-            fGate = x.linear(getParamBy(getName() + ".x2f"), getParamBy(getName() + ".x2f-b"));
-            fGate = new SigmoidLayer("").call(fGate);
-            
-            // 计算输入门: i_t = σ(W_i * x_t + b_i)
-            iGate = x.linear(getParamBy(getName() + ".x2i"), getParamBy(getName() + ".x2i-b"));
-            iGate = new SigmoidLayer("").call(iGate);
-            
-            // 计算输出门: o_t = σ(W_o * x_t + b_o)
-            oGate = x.linear(getParamBy(getName() + ".x2o"), getParamBy(getName() + ".x2o-b"));
-            oGate = new SigmoidLayer("").call(oGate);
-            
-            // 计算候选细胞状态: ũ_t = tanh(W_u * x_t + b_u)
-            uState = x.linear(getParamBy(getName() + ".x2u"), getParamBy(getName() + ".x2u-b")).tanh();
-
+            // 第一次前向传播，前一时间步的隐藏状态与细胞状态都视为0
+            state = new LstmCellFunction().call(x, weight, bias);
         } else {
-            // 后续前向传播，包含前一时间步的隐藏状态
-            
-            // 计算遗忘门: f_t = σ(W_f * x_t + W_hf * h_{t-1} + b_f)
-            fGate = x.linear(getParamBy(getName() + ".x2f"), getParamBy(getName() + ".x2f-b"))
-                    .add(state.linear(getParamBy(getName() + ".h2f"), null));
-            fGate = new SigmoidLayer("").call(fGate);
-            
-            // 计算输入门: i_t = σ(W_i * x_t + W_hi * h_{t-1} + b_i)
-            iGate = x.linear(getParamBy(getName() + ".x2i"), getParamBy(getName() + ".x2i-b"))
-                    .add(state.linear(getParamBy(getName() + ".h2i"), null));
-            iGate = new SigmoidLayer("").call(iGate);
-            
-            // 计算输出门: o_t = σ(W_o * x_t + W_ho * h_{t-1} + b_o)
-            oGate = x.linear(getParamBy(getName() + ".x2o"), getParamBy(getName() + ".x2o-b"))
-                    .add(state.linear(getParamBy(getName() + ".h2o"), null));
-            oGate = new SigmoidLayer("").call(oGate);
-            
-            // 计算候选细胞状态: ũ_t = tanh(W_u * x_t + W_hu * h_{t-1} + b_u)
-            uState = x.linear(getParamBy(getName() + ".x2u"), getParamBy(getName() + ".x2u-b"))
-                    .add(state.linear(getParamBy(getName() + ".h2u"), null)).tanh();
+            // 状态保持在计算图中，梯度可以沿时间反向传播，直到被unChainBackward截断
+            state = new LstmCellFunction().call(x, weight, bias, state);
         }
+        return new HiddenFunction().call(state);
+    }
+
+    /**
+     * 对打包的变长序列批次执行前向传播
+     *
+     * 所有时间步的 x * W_x + b 在一次矩阵乘法中完成，之后每个时间步只对仍然有效的序列计算 h_{t-1} * W_h。
+     *
+     * @param input 打包的输入序列
+     * @return 打包的隐藏状态序列
+     */
+    @Override
+    public PackedSequence layerForwardPacked(PackedSequence input) {
+        checkPackedInput(input, inputSize);
+        return input.withData(new LstmSequenceFunction(input).call(input.getData(), weight, bias));
+    }
 
-        // 更新细胞状态: C_t = f_t * C_{t-1} + i_t * ũ_t
-        if (Objects.isNull(candidate)) {
-            // 第一次，没有前一时间步的细胞状态
-            candidate = iGate.mul(uState);
+    /**
+     * 基于NdArray的前向传播方法，不构建计算图
+     *
+     * @param inputs 输入数组，通常只包含一个输入数组
+     * @return 当前时间步的隐藏状态值
+     */
+    @Override
+    public NdArray forward(NdArray... inputs) {
+        if (stateValue == null) {
+            stateValue = new LstmCellFunction().forward(inputs[0], weight.getValue(), bias.getValue());
         } else {
-            // 后续时间步，包含前一时间步的细胞状态
-            candidate = fGate.mul(candidate).add(iGate.mul(uState));
+            stateValue = new LstmCellFunction().forward(inputs[0], weight.getValue(), bias.getValue(), stateValue);
+        }
+        return new HiddenFunction().forward(stateValue);
+    }
+
+    /**
+     * 反向传播由每个时间步创建的LstmCellFunction节点完成
+     */
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        return null;
+    }
+
+    private static float sigmoid(float value) {
+        return (float) (1.0 / (1.0 + Math.exp(-value)));
+    }
+
+    /**
+     * 单个时间步的融合LSTM单元
+     *
+     * 输入为 (x, weight, bias, [state])，输出为拼接的状态 [h_t, C_t]。
+     * 前向只做一次 [x, h_{t-1}] * weight 的矩阵乘法，门激活与状态更新融合在一次遍历中；
+     * 门激活值与拼接后的输入保存在节点中供反向传播使用。
+     */
+    private class LstmCellFunction extends Function {
+
+        private float[] xh;     // [x, h_{t-1}]，形状为 (batch, inputSize + hiddenSize)
+        private float[] gates;  // 激活后的 f、i、o、ũ，形状为 (batch, 4 * hiddenSize)
+        private float[] tanhC;  // tanh(C_t)，形状为 (batch, hiddenSize)
+
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            NdArray x = inputs[0];
+            float[] w = inputs[1].buffer;
+            float[] b = inputs[2].buffer;
+            float[] prev = inputs.length > 3 ? inputs[3].buffer : null;
+            int batch = x.getShape().getRow();
+            int hidden = hiddenSize;
+            int k = inputSize + hidden;
+
+            xh = new float[batch * k];
+            gates = new float[batch * 4 * hidden];
+            for (int n = 0; n < batch; n++) {
+                System.arraycopy(x.buffer, n * inputSize, xh, n * k, inputSize);
+                if (prev != null) {
+                    System.arraycopy(prev, n * 2 * hidden, xh, n * k + inputSize, hidden);
+                }
+                System.arraycopy(b, 0, gates, n * 4 * hidden, 4 * hidden);
+            }
+            GemmUtil.gemm(batch, k, 4 * hidden, xh, 0, w, 0, gates, 0);
+
+            NdArray result = new NdArray(new Shape(batch, 2 * hidden));
+            tanhC = new float[batch * hidden];
+            for (int n = 0; n < batch; n++) {
+                int g = n * 4 * hidden;
+                int s = n * 2 * hidden;
+                for (int j = 0; j < hidden; j++) {
+                    float f = sigmoid(gates[g + j]);
+                    float i = sigmoid(gates[g + hidden + j]);
+                    float o = sigmoid(gates[g + 2 * hidden + j]);
+                    float u = (float) Math.tanh(gates[g + 3 * hidden + j]);
+                    gates[g + j] = f;
+                    gates[g + hidden + j] = i;
+                    gates[g + 2 * hidden + j] = o;
+                    gates[g + 3 * hidden + j] = u;
+
+                    float c = i * u + (prev == null ? 0f : f * prev[s + hidden + j]);
+                    float tc = (float) Math.tanh(c);
+                    tanhC[n * hidden + j] = tc;
+                    result.buffer[s + j] = o * tc;
+                    result.buffer[s + hidden + j] = c;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 反向传播
+         *
+         * dC = dC_t + dh_t * o * (1 - tanh²(C_t))，各门激活前的梯度逐元素求出后，
+         * 再由一次 weight^T 乘法得到 [dx, dh_{t-1}]，一次 [x, h_{t-1}]^T 乘法得到 dweight。
+         */
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            boolean hasPrev = inputs.length > 3;
+            float[] prev = hasPrev ? inputs[3].getValue().buffer : null;
+            float[] w = inputs[1].getValue().buffer;
+            int batch = inputs[0].getValue().getShape().getRow();
+            int hidden = hiddenSize;
+            int k = inputSize + hidden;
+
+            float[] gateGrad = new float[batch * 4 * hidden];
+            NdArray prevGrad = hasPrev ? new NdArray(inputs[3].getValue().getShape()) : null;
+            for (int n = 0; n < batch; n++) {
+                int g = n * 4 * hidden;
+                int s = n * 2 * hidden;
+                for (int j = 0; j < hidden; j++) {
+                    float f = gates[g + j];
+                    float i = gates[g + hidden + j];
+                    float o = gates[g + 2 * hidden + j];
+                    float u = gates[g + 3 * hidden + j];
+                    float tc = tanhC[n * hidden + j];
+                    float dh = yGrad.buffer[s + j];
+                    float dc = yGrad.buffer[s + hidden + j] + dh * o * (1f - tc * tc);
+                    float cPrev = hasPrev ? prev[s + hidden + j] : 0f;
+
+                    gateGrad[g + j] = dc * cPrev * f * (1f - f);
+                    gateGrad[g + hidden + j] = dc * u * i * (1f - i);
+                    gateGrad[g + 2 * hidden + j] = dh * tc * o * (1f - o);
+                    gateGrad[g + 3 * hidden + j] = dc * i * (1f - u * u);
+                    if (hasPrev) {
+                        prevGrad.buffer[s + hidden + j] = dc * f;
+                    }
+                }
+            }
+
+            float[] xhGrad = new float[batch * k];
+            GemmUtil.gemmTransB(batch, 4 * hidden, k, gateGrad, 0, w, 0, xhGrad, 0);
+            NdArray wGrad = new NdArray(inputs[1].getValue().getShape());
+            GemmUtil.gemmTransA(k, batch, 4 * hidden, xh, 0, gateGrad, 0, wGrad.buffer, 0);
+            NdArray bGrad = new NdArray(inputs[2].getValue().getShape());
+            for (int n = 0; n < batch; n++) {
+                for (int j = 0; j < 4 * hidden; j++) {
+                    bGrad.buffer[j] += gateGrad[n * 4 * hidden + j];
+                }
+            }
+
+            NdArray xGrad = new NdArray(inputs[0].getValue().getShape());
+            for (int n = 0; n < batch; n++) {
+                System.arraycopy(xhGrad, n * k, xGrad.buffer, n * inputSize, inputSize);
+                if (hasPrev) {
+                    System.arraycopy(xhGrad, n * k + inputSize, prevGrad.buffer, n * 2 * hidden, hidden);
+                }
+            }
+            return hasPrev ? Arrays.asList(xGrad, wGrad, bGrad, prevGrad) : Arrays.asList(xGrad, wGrad, bGrad);
+        }
+
+        @Override
+        public int requireInputNum() {
+            return -1;
+        }
+    }
+
+    /**
+     * 打包序列的LSTM计算
+     *
+     * 输入为 (x, weight, bias)，x为打包数据，同一时间步的有效序列连续存放，
+     * 每个时间步的循环矩阵乘法直接累加到预先算好的输入投影上。
+     * 反向传播沿时间逐步求出各门激活前的梯度，输入投影的权重梯度与输入梯度最后各用一次大的矩阵乘法求出。
+     */
+    private class LstmSequenceFunction extends Function {
+
+        private final int[] batchSizes;
+        private final int[] offsets;
+        private float[] gates;   // 激活后的 f、i、o、ũ，形状为 (rows, 4 * hiddenSize)
+        private float[] cells;   // C_t，形状为 (rows, hiddenSize)
+        private float[] tanhC;   // tanh(C_t)
+        private float[] hidden;  // h_t
+
+        LstmSequenceFunction(PackedSequence layout) {
+            this.batchSizes = layout.getBatchSizes();
+            this.offsets = layout.getOffsets();
+        }
+
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            float[] x = inputs[0].buffer;
+            float[] w = inputs[1].buffer;
+            float[] b = inputs[2].buffer;
+            int h = hiddenSize;
+            int g = 4 * h;
+            int rows = inputs[0].getShape().getRow();
+
+            // 所有时间步的输入投影：gates = X * W_x + b
+            gates = new float[rows * g];
+            for (int r = 0; r < rows; r++) {
+                System.arraycopy(b, 0, gates, r * g, g);
+            }
+            GemmUtil.gemm(rows, inputSize, g, x, 0, w, 0, gates, 0);
+
+            cells = new float[rows * h];
+            tanhC = new float[rows * h];
+            hidden = new float[rows * h];
+            for (int t = 0; t < batchSizes.length; t++) {
+                int row = offsets[t];
+                int prevRow = t > 0 ? offsets[t - 1] : 0;
+                if (t > 0) {
+                    GemmUtil.gemm(batchSizes[t], h, g, hidden, prevRow * h, w, inputSize * g, gates, row * g);
+                }
+                for (int s = 0; s < batchSizes[t]; s++) {
+                    for (int j = 0; j < h; j++) {
+                        int k = (row + s) * g + j;
+                        float f = sigmoid(gates[k]);
+                        float i = sigmoid(gates[k + h]);
+                        float o = sigmoid(gates[k + 2 * h]);
+                        float u = (float) Math.tanh(gates[k + 3 * h]);
+                        gates[k] = f;
+                        gates[k + h] = i;
+                        gates[k + 2 * h] = o;
+                        gates[k + 3 * h] = u;
+
+                        int index = (row + s) * h + j;
+                        float c = i * u + (t > 0 ? f * cells[(prevRow + s) * h + j] : 0f);
+                        cells[index] = c;
+                        tanhC[index] = (float) Math.tanh(c);
+                        hidden[index] = o * tanhC[index];
+                    }
+                }
+            }
+            return new NdArray(hidden.clone(), new Shape(rows, h));
+        }
+
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            float[] x = inputs[0].getValue().buffer;
+            float[] w = inputs[1].getValue().buffer;
+            int h = hiddenSize;
+            int g = 4 * h;
+            int rows = yGrad.getShape().getRow();
+
+            // 已结束的序列没有后续时间步，对应的 hNext、cNext 保持为0
+            float[] gateGrad = new float[rows * g];
+            float[] hNext = new float[batchSizes[0] * h];
+            float[] cNext = new float[batchSizes[0] * h];
+            for (int t = batchSizes.length - 1; t >= 0; t--) {
+                int row = offsets[t];
+                int prevRow = t > 0 ? offsets[t - 1] : 0;
+                for (int s = 0; s < batchSizes[t]; s++) {
+                    for (int j = 0; j < h; j++) {
+                        int index = (row + s) * h + j;
+                        int k = (row + s) * g + j;
+                        float f = gates[k];
+                        float i = gates[k + h];
+                        float o = gates[k + 2 * h];
+                        float u = gates[k + 3 * h];
+                        float tc = tanhC[index];
+                        float dh = yGrad.buffer[index] + hNext[s * h + j];
+                        float dc = cNext[s * h + j] + dh * o * (1f - tc * tc);
+                        float cPrev = t > 0 ? cells[(prevRow + s) * h + j] : 0f;
+
+                        gateGrad[k] = dc * cPrev * f * (1f - f);
+                        gateGrad[k + h] = dc * u * i * (1f - i);
+                        gateGrad[k + 2 * h] = dh * tc * o * (1f - o);
+                        gateGrad[k + 3 * h] = dc * i * (1f - u * u);
+                        cNext[s * h + j] = dc * f;
+                    }
+                }
+                Arrays.fill(hNext, 0f);
+                if (t > 0) {
+                    GemmUtil.gemmTransB(batchSizes[t], g, h, gateGrad, row * g, w, inputSize * g, hNext, 0);
+                }
+            }
+
+            NdArray wGrad = new NdArray(inputs[1].getValue().getShape());
+            GemmUtil.gemmTransA(inputSize, rows, g, x, 0, gateGrad, 0, wGrad.buffer, 0);
+            for (int t = 1; t < batchSizes.length; t++) {
+                GemmUtil.gemmTransA(h, batchSizes[t], g, hidden, offsets[t - 1] * h,
+                        gateGrad, offsets[t] * g, wGrad.buffer, inputSize * g);
+            }
+            NdArray bGrad = new NdArray(inputs[2].getValue().getShape());
+            for (int r = 0; r < rows; r++) {
+                for (int j = 0; j < g; j++) {
+                    bGrad.buffer[j] += gateGrad[r * g + j];
+                }
+            }
+            NdArray xGrad = new NdArray(inputs[0].getValue().getShape());
+            GemmUtil.gemmTransB(rows, g, inputSize, gateGrad, 0, w, 0, xGrad.buffer, 0);
+            return Arrays.asList(xGrad, wGrad, bGrad);
+        }
+
+        @Override
+        public int requireInputNum() {
+            return 3;
+        }
+    }
+
+    /**
+     * 从拼接的状态 [h_t, C_t] 中取出隐藏状态 h_t
+     */
+    private class HiddenFunction extends Function {
+
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            NdArray packed = inputs[0];
+            int batch = packed.getShape().getRow();
+            NdArray h = new NdArray(new Shape(batch, hiddenSize));
+            for (int n = 0; n < batch; n++) {
+                System.arraycopy(packed.buffer, n * 2 * hiddenSize, h.buffer, n * hiddenSize, hiddenSize);
+            }
+            return h;
+        }
+
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            NdArray packedGrad = new NdArray(inputs[0].getValue().getShape());
+            int batch = yGrad.getShape().getRow();
+            for (int n = 0; n < batch; n++) {
+                System.arraycopy(yGrad.buffer, n * hiddenSize, packedGrad.buffer, n * 2 * hiddenSize, hiddenSize);
+            }
+            return Collections.singletonList(packedGrad);
+        }
+
+        @Override
+        public int requireInputNum() {
+            return 1;
         }
-        
-        // 计算隐藏状态: h_t = o_t * tanh(C_t)
-        state = oGate.mul(candidate.tanh());
-        return state;
     }
-}
\ No newline at end of file
+}
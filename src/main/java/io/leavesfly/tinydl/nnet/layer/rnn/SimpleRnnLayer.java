@@ -1,10 +1,13 @@
 package io.leavesfly.tinydl.nnet.layer.rnn;
 
+import io.leavesfly.tinydl.func.Function;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.PackedSequence;
 import io.leavesfly.tinydl.nnet.Parameter;
 import io.leavesfly.tinydl.nnet.RnnLayer;
+import io.leavesfly.tinydl.ndarr.GemmUtil;
 
 import java.util.Arrays;
 import java.util.List;
@@ -155,7 +158,8 @@ public class SimpleRnnLayer extends RnnLayer {
             // 后续前向传播，包含前一时间步的隐藏状态
             prevState = state;
             xLinear = x.linear(x2h, b);
-            hLinear = new Variable(stateValue).linear(h2h, null);
+            // 隐藏状态保持在计算图中，梯度可以沿时间反向传播，直到被unChainBackward截断
+            hLinear = prevState.linear(h2h, null);
             state = xLinear.add(hLinear).tanh();
             stateValue = state.getValue();
             preTanh = state;
@@ -163,6 +167,20 @@ public class SimpleRnnLayer extends RnnLayer {
         return state;
     }
 
+    /**
+     * 对打包的变长序列批次执行前向传播
+     *
+     * 所有时间步的 x * W_xh + b 在一次矩阵乘法中完成，之后每个时间步只对仍然有效的序列计算 h_{t-1} * W_hh。
+     *
+     * @param input 打包的输入序列
+     * @return 打包的隐藏状态序列
+     */
+    @Override
+    public PackedSequence layerForwardPacked(PackedSequence input) {
+        checkPackedInput(input, x2h.getValue().getShape().getRow());
+        return input.withData(new SequenceFunction(input).call(input.getData(), x2h, h2h, b));
+    }
+
     /**
      * 基于NdArray的前向传播方法
      * 
@@ -222,4 +240,90 @@ public class SimpleRnnLayer extends RnnLayer {
             return Arrays.asList(xGrad, x2hGrad, bGrad);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 打包序列的RNN计算
+     *
+     * 输入为 (x, x2h, h2h, b)，x为打包数据，同一时间步的有效序列连续存放。
+     */
+    private class SequenceFunction extends Function {
+
+        private final int[] batchSizes;
+        private final int[] offsets;
+        private float[] hidden;  // h_t，形状为 (rows, hiddenSize)
+
+        SequenceFunction(PackedSequence layout) {
+            this.batchSizes = layout.getBatchSizes();
+            this.offsets = layout.getOffsets();
+        }
+
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            int inputSize = inputs[1].getShape().getRow();
+            int h = hiddenSize;
+            int rows = inputs[0].getShape().getRow();
+
+            hidden = new float[rows * h];
+            for (int r = 0; r < rows; r++) {
+                System.arraycopy(inputs[3].buffer, 0, hidden, r * h, h);
+            }
+            GemmUtil.gemm(rows, inputSize, h, inputs[0].buffer, 0, inputs[1].buffer, 0, hidden, 0);
+
+            for (int t = 0; t < batchSizes.length; t++) {
+                int row = offsets[t];
+                if (t > 0) {
+                    GemmUtil.gemm(batchSizes[t], h, h, hidden, offsets[t - 1] * h, inputs[2].buffer, 0, hidden, row * h);
+                }
+                for (int i = row * h; i < (row + batchSizes[t]) * h; i++) {
+                    hidden[i] = (float) Math.tanh(hidden[i]);
+                }
+            }
+            return new NdArray(hidden.clone(), new Shape(rows, h));
+        }
+
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            float[] wx = inputs[1].getValue().buffer;
+            float[] wh = inputs[2].getValue().buffer;
+            int inputSize = inputs[1].getValue().getShape().getRow();
+            int h = hiddenSize;
+            int rows = yGrad.getShape().getRow();
+
+            // 已结束的序列没有后续时间步，对应的 hNext 保持为0
+            float[] preGrad = yGrad.buffer.clone();
+            float[] hNext = new float[batchSizes[0] * h];
+            for (int t = batchSizes.length - 1; t >= 0; t--) {
+                int row = offsets[t];
+                for (int i = 0; i < batchSizes[t] * h; i++) {
+                    int index = row * h + i;
+                    preGrad[index] = (preGrad[index] + hNext[i]) * (1f - hidden[index] * hidden[index]);
+                }
+                Arrays.fill(hNext, 0f);
+                if (t > 0) {
+                    GemmUtil.gemmTransB(batchSizes[t], h, h, preGrad, row * h, wh, 0, hNext, 0);
+                }
+            }
+
+            NdArray x2hGrad = new NdArray(inputs[1].getValue().getShape());
+            GemmUtil.gemmTransA(inputSize, rows, h, inputs[0].getValue().buffer, 0, preGrad, 0, x2hGrad.buffer, 0);
+            NdArray h2hGrad = new NdArray(inputs[2].getValue().getShape());
+            for (int t = 1; t < batchSizes.length; t++) {
+                GemmUtil.gemmTransA(h, batchSizes[t], h, hidden, offsets[t - 1] * h, preGrad, offsets[t] * h, h2hGrad.buffer, 0);
+            }
+            NdArray bGrad = new NdArray(inputs[3].getValue().getShape());
+            for (int r = 0; r < rows; r++) {
+                for (int j = 0; j < h; j++) {
+                    bGrad.buffer[j] += preGrad[r * h + j];
+                }
+            }
+            NdArray xGrad = new NdArray(inputs[0].getValue().getShape());
+            GemmUtil.gemmTransB(rows, h, inputSize, preGrad, 0, wx, 0, xGrad.buffer, 0);
+            return Arrays.asList(xGrad, x2hGrad, h2hGrad, bGrad);
+        }
+
+        @Override
+        public int requireInputNum() {
+            return 4;
+        }
+    }
+}
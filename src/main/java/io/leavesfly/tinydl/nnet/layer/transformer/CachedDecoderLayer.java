@@ -0,0 +1,22 @@
+package io.leavesfly.tinydl.nnet.layer.transformer;
+
+import io.leavesfly.tinydl.func.Variable;
+
+/**
+ * 支持键/值缓存增量解码的解码器层
+ *
+ * 自回归生成时每一步只把新token送入网络，层内的自注意力在KVCache上计算，
+ * 结果与把完整前缀送入layerForward后取新位置的输出一致。
+ */
+public interface CachedDecoderLayer {
+
+    /**
+     * 增量前向计算
+     *
+     * @param x 新token的输入，shape: (rows.length, new_len, d_model)
+     * @param cache 本层自注意力的键/值缓存
+     * @param rows x的第i个样本对应缓存中的第rows[i]个样本
+     * @return 新token的输出，shape: (rows.length, new_len, d_model)
+     */
+    Variable forwardCached(Variable x, KVCache cache, int[] rows);
+}
@@ -1,6 +1,8 @@
 package io.leavesfly.tinydl.nnet.layer.transformer;
 
 import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.func.loss.ChunkedLinearCE;
+import io.leavesfly.tinydl.func.loss.SoftmaxCE;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
@@ -22,6 +24,7 @@ public class GPT2OutputHead extends Layer {
     private Parameter outputBias;    // 输出偏置
     private int vocabSize;           // 词汇表大小
     private int dModel;              // 模型维度
+    private int chunkSize = 1024;    // 计算损失时每个词表分块的大小
     
     /**
      * 构造GPT-2输出头
@@ -92,6 +95,36 @@ public class GPT2OutputHead extends Layer {
         return new Variable(result);
     }
     
+    /**
+     * 输出投影与交叉熵损失的融合计算
+     * 
+     * 按词表分块计算logits并以在线log-sum-exp累加，不生成(batch_size, seq_len, vocab_size)的完整logits，
+     * 反向传播同样逐块计算隐藏状态与输出权重的梯度。
+     * 
+     * @param hidden 隐藏状态，shape: (batch_size, seq_len, dModel)
+     * @param targetIds 目标token索引，shape: (batch_size, seq_len)
+     * @param ignoreIndex 需要忽略的标签值（例如填充符），SoftmaxCE.NO_IGNORE表示不忽略
+     * @return 平均交叉熵损失
+     */
+    public Variable loss(Variable hidden, Variable targetIds, int ignoreIndex) {
+        int[] dimension = hidden.getValue().getShape().dimension;
+        int tokens = dimension[0] * dimension[1];
+        Variable hidden2D = hidden.reshape(new Shape(tokens, dModel));
+        Variable labels = targetIds.reshape(new Shape(tokens, 1));
+        ChunkedLinearCE lossFunc = new ChunkedLinearCE(chunkSize, ignoreIndex);
+        if (useBias) {
+            return lossFunc.call(hidden2D, outputWeight, outputBias, labels);
+        }
+        return lossFunc.call(hidden2D, outputWeight, labels);
+    }
+    
+    /**
+     * 输出投影与交叉熵损失的融合计算，不忽略任何标签
+     */
+    public Variable loss(Variable hidden, Variable targetIds) {
+        return loss(hidden, targetIds, SoftmaxCE.NO_IGNORE);
+    }
+    
     /**
      * 将三维张量重塑为二维矩阵
      */
@@ -160,6 +193,23 @@ public class GPT2OutputHead extends Layer {
         return vocabSize;
     }
     
+    /**
+     * 获取计算损失时的词表分块大小
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    /**
+     * 设置计算损失时的词表分块大小，分块越小峰值内存越低
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive!");
+        }
+        this.chunkSize = chunkSize;
+    }
+    
     /**
      * 获取模型维度
      */
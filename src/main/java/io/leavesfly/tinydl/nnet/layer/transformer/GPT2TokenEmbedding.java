@@ -5,6 +5,7 @@ import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
 import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.nnet.layer.embedd.EmbeddingLookup;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -80,23 +81,41 @@ public class GPT2TokenEmbedding extends Layer {
     @Override
     public Variable layerForward(Variable... inputs) {
         Variable tokenIds = inputs[0];  // shape: (batch_size, seq_len)
+        return forwardAt(tokenIds, new int[tokenIds.getValue().shape.dimension[0]]);
+    }
+    
+    /**
+     * 从指定位置开始的嵌入，用于增量解码时只嵌入新token
+     * 
+     * @param tokenIds token序列，shape: (batch_size, seq_len)
+     * @param startPositions 第b个样本的第一个token所在的位置
+     * @return 嵌入结果，shape: (batch_size, seq_len, dModel)
+     */
+    public Variable forwardAt(Variable tokenIds, int[] startPositions) {
         NdArray tokenData = tokenIds.getValue();
         
         int batchSize = tokenData.shape.dimension[0];
         int seqLen = tokenData.shape.dimension[1];
         
-        if (seqLen > maxSeqLength) {
+        if (startPositions.length != batchSize) {
             throw new IllegalArgumentException(
-                String.format("Sequence length %d exceeds maximum length %d", seqLen, maxSeqLength)
+                String.format("Expected %d start positions, but got %d", batchSize, startPositions.length)
             );
         }
+        for (int start : startPositions) {
+            if (start + seqLen > maxSeqLength) {
+                throw new IllegalArgumentException(
+                    String.format("Sequence length %d exceeds maximum length %d", start + seqLen, maxSeqLength)
+                );
+            }
+        }
         
         // 1. 获取token嵌入
-        Variable tokenEmbeds = getTokenEmbeddings(tokenData, batchSize, seqLen);
+        Variable tokenEmbeds = getTokenEmbeddings(tokenIds);
         
         // 2. 如果使用位置嵌入，添加位置信息
         if (usePositionEmbedding) {
-            Variable posEmbeds = getPositionEmbeddings(seqLen, batchSize);
+            Variable posEmbeds = getPositionEmbeddings(startPositions, seqLen, batchSize);
             tokenEmbeds = tokenEmbeds.add(posEmbeds);
         }
         
@@ -110,51 +129,23 @@ public class GPT2TokenEmbedding extends Layer {
     }
     
     /**
-     * 获取token嵌入
+     * 获取token嵌入，梯度以按行稀疏的形式累加到被查到的词向量上
      */
-    private Variable getTokenEmbeddings(NdArray tokenIds, int batchSize, int seqLen) {
-        NdArray embeddings = new NdArray(new Shape(batchSize, seqLen, dModel));
-        
-        // 对每个token ID查找对应的嵌入向量
-        for (int b = 0; b < batchSize; b++) {
-            for (int s = 0; s < seqLen; s++) {
-                int tokenId = (int) tokenIds.get(b, s);
-                
-                // 检查token ID是否在有效范围内
-                if (tokenId < 0 || tokenId >= vocabSize) {
-                    throw new IllegalArgumentException(
-                        String.format("Token ID %d is out of vocabulary range [0, %d)", tokenId, vocabSize)
-                    );
-                }
-                
-                // 复制对应的嵌入向量
-                for (int d = 0; d < dModel; d++) {
-                    float embeddingValue = tokenEmbedding.getValue().get(tokenId, d);
-                    embeddings.set(embeddingValue, b, s, d);
-                }
-            }
-        }
-        
-        return new Variable(embeddings);
+    private Variable getTokenEmbeddings(Variable tokenIds) {
+        return new EmbeddingLookup(tokenEmbedding).call(tokenIds);
     }
     
     /**
-     * 获取位置嵌入
+     * 获取位置嵌入，第b个样本的第s个token查位置嵌入矩阵的第 startPositions[b] + s 行
      */
-    private Variable getPositionEmbeddings(int seqLen, int batchSize) {
-        NdArray posEmbeds = new NdArray(new Shape(batchSize, seqLen, dModel));
-        
-        // 为每个位置添加位置嵌入
+    private Variable getPositionEmbeddings(int[] startPositions, int seqLen, int batchSize) {
+        NdArray positions = new NdArray(new Shape(batchSize, seqLen));
         for (int b = 0; b < batchSize; b++) {
             for (int s = 0; s < seqLen; s++) {
-                for (int d = 0; d < dModel; d++) {
-                    float posValue = positionEmbedding.getValue().get(s, d);
-                    posEmbeds.set(posValue, b, s, d);
-                }
+                positions.buffer[b * seqLen + s] = startPositions[b] + s;
             }
         }
-        
-        return new Variable(posEmbeds);
+        return new EmbeddingLookup(positionEmbedding).call(new Variable(positions));
     }
     
     /**
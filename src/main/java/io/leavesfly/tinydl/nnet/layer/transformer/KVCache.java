@@ -0,0 +1,175 @@
+package io.leavesfly.tinydl.nnet.layer.transformer;
+
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+
+import java.util.Arrays;
+
+/**
+ * 自回归解码时一个注意力层的键/值缓存
+ *
+ * 键与值分别保存在形状为 (batchSize * capacity, dModel) 的缓冲区中，第b个样本占用
+ * [b * capacity, b * capacity + length(b)) 行，每个样本的长度可以不同。
+ * 每一步只需要计算新token的K/V并追加到缓存，注意力直接在缓存上计算，
+ * 生成N个token时不再需要N次完整前缀的前向计算。
+ *
+ * 容量可以一次预分配到maxLength，也可以从较小的容量开始，不够时按2倍扩容，最多扩到maxLength。
+ */
+public class KVCache {
+
+    /**
+     * 按需扩容时的初始容量
+     */
+    public static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    private final int batchSize;
+    private final int dModel;
+    private final int maxLength;
+    private int capacity;
+
+    private NdArray keys;
+    private NdArray values;
+
+    /**
+     * 每个样本已缓存的token数
+     */
+    private final int[] lengths;
+
+    /**
+     * @param batchSize 批次大小
+     * @param dModel 模型维度
+     * @param maxLength 每个样本最多缓存的token数
+     * @param initialCapacity 初始容量，不超过maxLength
+     */
+    public KVCache(int batchSize, int dModel, int maxLength, int initialCapacity) {
+        if (batchSize <= 0 || maxLength <= 0 || initialCapacity <= 0) {
+            throw new IllegalArgumentException("KVCache batchSize, maxLength and initialCapacity must be positive!");
+        }
+        this.batchSize = batchSize;
+        this.dModel = dModel;
+        this.maxLength = maxLength;
+        this.capacity = Math.min(initialCapacity, maxLength);
+        this.lengths = new int[batchSize];
+        this.keys = new NdArray(new Shape(batchSize * capacity, dModel));
+        this.values = new NdArray(new Shape(batchSize * capacity, dModel));
+    }
+
+    /**
+     * 创建缓存
+     *
+     * @param preallocate 为true时直接分配maxLength的容量，否则从DEFAULT_INITIAL_CAPACITY开始按需扩容
+     */
+    public static KVCache create(int batchSize, int dModel, int maxLength, boolean preallocate) {
+        return new KVCache(batchSize, dModel, maxLength, preallocate ? maxLength : DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * 把新token的键与值追加到指定样本的末尾
+     *
+     * @param rows 参与本次计算的样本下标
+     * @param newKeys 新的键，shape: (rows.length * newLength, dModel)，按样本依次排列
+     * @param newValues 新的值，形状与newKeys相同
+     */
+    public void append(int[] rows, NdArray newKeys, NdArray newValues) {
+        int newLength = newKeys.getShape().getRow() / rows.length;
+        if (newKeys.getShape().getColumn() != dModel || !newKeys.getShape().equals(newValues.getShape())
+                || newLength * rows.length != newKeys.getShape().getRow()) {
+            throw new IllegalArgumentException("KVCache append expects (" + rows.length + " * newLength, " + dModel
+                    + ") keys and values, but got " + newKeys.getShape() + " and " + newValues.getShape());
+        }
+        int required = 0;
+        for (int row : rows) {
+            required = Math.max(required, length(row) + newLength);
+        }
+        ensureCapacity(required);
+
+        for (int i = 0; i < rows.length; i++) {
+            int row = rows[i];
+            int src = i * newLength * dModel;
+            int dst = (row * capacity + lengths[row]) * dModel;
+            System.arraycopy(newKeys.buffer, src, keys.buffer, dst, newLength * dModel);
+            System.arraycopy(newValues.buffer, src, values.buffer, dst, newLength * dModel);
+            lengths[row] += newLength;
+        }
+    }
+
+    /**
+     * 保证每个样本至少可以容纳required个token，按2倍扩容并把已有内容搬到新缓冲区
+     */
+    private void ensureCapacity(int required) {
+        if (required > maxLength) {
+            throw new IllegalStateException("KVCache length " + required + " exceeds maximum length " + maxLength);
+        }
+        if (required <= capacity) {
+            return;
+        }
+        int newCapacity = capacity;
+        while (newCapacity < required) {
+            newCapacity = Math.min(maxLength, newCapacity * 2);
+        }
+        NdArray newKeys = new NdArray(new Shape(batchSize * newCapacity, dModel));
+        NdArray newValues = new NdArray(new Shape(batchSize * newCapacity, dModel));
+        for (int b = 0; b < batchSize; b++) {
+            System.arraycopy(keys.buffer, b * capacity * dModel, newKeys.buffer, b * newCapacity * dModel, lengths[b] * dModel);
+            System.arraycopy(values.buffer, b * capacity * dModel, newValues.buffer, b * newCapacity * dModel, lengths[b] * dModel);
+        }
+        keys = newKeys;
+        values = newValues;
+        capacity = newCapacity;
+    }
+
+    /**
+     * 第row个样本已缓存的token数
+     */
+    public int length(int row) {
+        if (row < 0 || row >= batchSize) {
+            throw new IllegalArgumentException("KVCache row " + row + " is out of batch size " + batchSize);
+        }
+        return lengths[row];
+    }
+
+    /**
+     * 第row个样本的键在缓冲区中的起始行
+     */
+    public int rowStart(int row) {
+        return row * capacity;
+    }
+
+    /**
+     * 把第row个样本回退到前length个token，丢弃之后缓存的K/V（例如投机解码中被拒绝的token）
+     */
+    public void truncate(int row, int length) {
+        if (length < 0 || length > length(row)) {
+            throw new IllegalArgumentException("KVCache cannot truncate row " + row + " of length "
+                    + lengths[row] + " to " + length);
+        }
+        lengths[row] = length;
+    }
+
+    /**
+     * 清空所有样本，保留已分配的缓冲区
+     */
+    public void reset() {
+        Arrays.fill(lengths, 0);
+    }
+
+    public NdArray getKeys() {
+        return keys;
+    }
+
+    public NdArray getValues() {
+        return values;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+}
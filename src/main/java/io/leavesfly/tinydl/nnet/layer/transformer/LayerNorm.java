@@ -1,13 +1,16 @@
 package io.leavesfly.tinydl.nnet.layer.transformer;
 
+import io.leavesfly.tinydl.func.Function;
 import io.leavesfly.tinydl.func.Variable;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
 import io.leavesfly.tinydl.nnet.Parameter;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * 层归一化（Layer Normalization）实现
@@ -20,6 +23,8 @@ import java.util.List;
  * - σ 是标准差
  * - γ 是学习的缩放参数
  * - β 是学习的偏移参数
+ * 
+ * 归一化在输入的最后一维上进行，前向与反向均由融合的计算节点完成，详见 LayerNormFunction。
  */
 public class LayerNorm extends Layer {
     
@@ -28,6 +33,11 @@ public class LayerNorm extends Layer {
     private double epsilon;  // 防止除零的小常数
     private int normalizedShape; // 归一化的维度大小
     
+    /**
+     * 并行处理时每个任务负责的行数
+     */
+    private static final int ROW_CHUNK = 16;
+    
     /**
      * 构造层归一化层
      * 
@@ -64,65 +74,153 @@ public class LayerNorm extends Layer {
     
     @Override
     public Variable layerForward(Variable... inputs) {
-        Variable input = inputs[0];
-        NdArray inputData = input.getValue();
-        
-        int[] shape = inputData.shape.dimension;
-        int batchSize = shape[0];
-        int seqLen = shape[1];
-        int featureDim = shape[2];
-        
-        if (featureDim != normalizedShape) {
-            throw new IllegalArgumentException("Input feature dimension doesn't match normalized shape");
+        return new LayerNormFunction().call(inputs[0], gamma, beta);
+    }
+    
+    @Override
+    public NdArray forward(NdArray... inputs) {
+        return new LayerNormFunction().forward(inputs[0], gamma.getValue(), beta.getValue());
+    }
+    
+    /**
+     * 反向传播由每次调用创建的LayerNormFunction节点完成
+     */
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        return null;
+    }
+    
+    /**
+     * 按行块执行任务，行块之间互不依赖，多于一块时并行
+     */
+    private static void forEachChunk(int chunks, IntConsumer task) {
+        if (chunks > 1) {
+            IntStream.range(0, chunks).parallel().forEach(task);
+        } else {
+            for (int c = 0; c < chunks; c++) {
+                task.accept(c);
+            }
         }
+    }
+    
+    /**
+     * 融合的层归一化计算节点，输入为 (x, gamma, beta)
+     * 
+     * 输入的最后一维是特征维，其余维度展平为行。前向时每行用Welford算法一次遍历得到均值和方差，
+     * 第二次遍历完成归一化与缩放偏移，并保存每行的均值和1/σ供反向传播使用；
+     * 反向时每行先遍历一次求 Σdx̂ 与 Σdx̂·x̂，再遍历一次写出输入梯度，同时累加gamma和beta的梯度。
+     * 行按块并行处理，gamma和beta的梯度先在每块内累加再合并。
+     */
+    private class LayerNormFunction extends Function {
         
-        NdArray output = new NdArray(new Shape(batchSize, seqLen, featureDim));
+        private float[] mean;
+        private float[] rstd;
         
-        // 对每个位置进行层归一化
-        for (int b = 0; b < batchSize; b++) {
-            for (int s = 0; s < seqLen; s++) {
-                // 计算均值
-                float sum = 0.0f;
-                for (int f = 0; f < featureDim; f++) {
-                    sum += inputData.get(b, s, f);
+        @Override
+        public NdArray forward(NdArray... inputs) {
+            NdArray x = inputs[0];
+            float[] g = inputs[1].buffer;
+            float[] b = inputs[2].buffer;
+            int featureDim = checkFeatureDim(x);
+            int rows = x.buffer.length / featureDim;
+            
+            float[] in = x.buffer;
+            NdArray output = new NdArray(x.getShape());
+            float[] out = output.buffer;
+            mean = new float[rows];
+            rstd = new float[rows];
+            
+            int chunks = (rows + ROW_CHUNK - 1) / ROW_CHUNK;
+            forEachChunk(chunks, chunk -> {
+                int end = Math.min(rows, (chunk + 1) * ROW_CHUNK);
+                for (int r = chunk * ROW_CHUNK; r < end; r++) {
+                    int offset = r * featureDim;
+                    float mu = 0f;
+                    float m2 = 0f;
+                    for (int f = 0; f < featureDim; f++) {
+                        float value = in[offset + f];
+                        float delta = value - mu;
+                        mu += delta / (f + 1);
+                        m2 += delta * (value - mu);
+                    }
+                    float inv = (float) (1.0 / Math.sqrt(m2 / featureDim + epsilon));
+                    mean[r] = mu;
+                    rstd[r] = inv;
+                    for (int f = 0; f < featureDim; f++) {
+                        out[offset + f] = (in[offset + f] - mu) * inv * g[f] + b[f];
+                    }
                 }
-                float mean = sum / featureDim;
-                
-                // 计算方差
-                float variance = 0.0f;
-                for (int f = 0; f < featureDim; f++) {
-                    float diff = inputData.get(b, s, f) - mean;
-                    variance += diff * diff;
+            });
+            return output;
+        }
+        
+        @Override
+        public List<NdArray> backward(NdArray yGrad) {
+            NdArray x = inputs[0].getValue();
+            float[] in = x.buffer;
+            float[] dy = yGrad.buffer;
+            float[] g = inputs[1].getValue().buffer;
+            int featureDim = normalizedShape;
+            int rows = in.length / featureDim;
+            
+            NdArray xGrad = new NdArray(x.getShape());
+            float[] dx = xGrad.buffer;
+            int chunks = (rows + ROW_CHUNK - 1) / ROW_CHUNK;
+            // 每块的 [dgamma | dbeta] 部分和
+            float[][] partials = new float[chunks][2 * featureDim];
+            
+            forEachChunk(chunks, chunk -> {
+                float[] partial = partials[chunk];
+                int end = Math.min(rows, (chunk + 1) * ROW_CHUNK);
+                for (int r = chunk * ROW_CHUNK; r < end; r++) {
+                    int offset = r * featureDim;
+                    float mu = mean[r];
+                    float inv = rstd[r];
+                    float sumDxHat = 0f;
+                    float sumDxHatXHat = 0f;
+                    for (int f = 0; f < featureDim; f++) {
+                        float xHat = (in[offset + f] - mu) * inv;
+                        float grad = dy[offset + f];
+                        float dxHat = grad * g[f];
+                        sumDxHat += dxHat;
+                        sumDxHatXHat += dxHat * xHat;
+                        partial[f] += grad * xHat;
+                        partial[featureDim + f] += grad;
+                    }
+                    float meanDxHat = sumDxHat / featureDim;
+                    float meanDxHatXHat = sumDxHatXHat / featureDim;
+                    for (int f = 0; f < featureDim; f++) {
+                        float xHat = (in[offset + f] - mu) * inv;
+                        dx[offset + f] = inv * (dy[offset + f] * g[f] - meanDxHat - xHat * meanDxHatXHat);
+                    }
                 }
-                variance = variance / featureDim;
-                
-                // 计算标准差
-                float std = (float) Math.sqrt(variance + epsilon);
-                
-                // 应用归一化和可学习参数
+            });
+            
+            NdArray gammaGrad = new NdArray(inputs[1].getValue().getShape());
+            NdArray betaGrad = new NdArray(inputs[2].getValue().getShape());
+            for (float[] partial : partials) {
                 for (int f = 0; f < featureDim; f++) {
-                    float normalized = (inputData.get(b, s, f) - mean) / std;
-                    float result = gamma.getValue().get(0, f) * normalized + beta.getValue().get(0, f);
-                    output.set(result, b, s, f);
+                    gammaGrad.buffer[f] += partial[f];
+                    betaGrad.buffer[f] += partial[featureDim + f];
                 }
             }
+            return Arrays.asList(xGrad, gammaGrad, betaGrad);
         }
         
-        return new Variable(output);
-    }
-    
-    @Override
-    public NdArray forward(NdArray... inputs) {
-        return layerForward(new Variable(inputs[0])).getValue();
+        @Override
+        public int requireInputNum() {
+            return 3;
+        }
     }
     
-    @Override
-    public List<NdArray> backward(NdArray yGrad) {
-        // 层归一化的反向传播比较复杂，这里提供简化版本
-        // 在实际应用中，需要计算对输入、gamma和beta的梯度
-        List<NdArray> result = new ArrayList<>();
-        result.add(yGrad);
-        return result;
+    private int checkFeatureDim(NdArray x) {
+        int[] shape = x.getShape().dimension;
+        int featureDim = shape[shape.length - 1];
+        if (featureDim != normalizedShape) {
+            throw new IllegalArgumentException("Input feature dimension " + featureDim
+                    + " doesn't match normalized shape " + normalizedShape);
+        }
+        return featureDim;
     }
     
     @Override
@@ -1,14 +1,16 @@
 package io.leavesfly.tinydl.nnet.layer.transformer;
 
 import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.func.graph.GraphScheduler;
 import io.leavesfly.tinydl.ndarr.NdArray;
 import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.Layer;
-import io.leavesfly.tinydl.nnet.Parameter;
 import io.leavesfly.tinydl.nnet.layer.dnn.LinearLayer;
+import io.leavesfly.tinydl.utils.Config;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * 多头注意力机制层实现
@@ -19,6 +21,8 @@ import java.util.List;
  * MultiHead(Q,K,V) = Concat(head_1,...,head_h)W^O
  * 
  * 其中 head_i = Attention(QW_i^Q, KW_i^K, VW_i^V)
+ * 
+ * 注意力由 TiledAttention 分块计算，不生成 seq_len × seq_len 的分数矩阵。
  */
 public class MultiHeadAttention extends Layer {
     
@@ -68,6 +72,12 @@ public class MultiHeadAttention extends Layer {
             valueLayer = new LinearLayer(name + "_value", dModel, dModel, false);
             outputLayer = new LinearLayer(name + "_output", dModel, dModel, false);
             
+            // 投影层的参数归属本层，随本层一起被优化器更新
+            params.putAll(queryLayer.getParams());
+            params.putAll(keyLayer.getParams());
+            params.putAll(valueLayer.getParams());
+            params.putAll(outputLayer.getParams());
+            
             alreadyInit = true;
         }
     }
@@ -78,170 +88,81 @@ public class MultiHeadAttention extends Layer {
         Variable key = inputs.length > 1 ? inputs[1] : query;
         Variable value = inputs.length > 2 ? inputs[2] : key;
         
-        NdArray queryData = query.getValue();
-        NdArray keyData = key.getValue();
-        NdArray valueData = value.getValue();
-        
-        int batchSize = queryData.shape.dimension[0];
-        int seqLen = queryData.shape.dimension[1];
+        int batchSize = query.getValue().shape.dimension[0];
+        int seqLen = query.getValue().shape.dimension[1];
         
         // 将三维张量重塑为二维矩阵进行线性变换
-        NdArray queryReshaped = reshapeTo2D(queryData);
-        NdArray keyReshaped = reshapeTo2D(keyData);
-        NdArray valueReshaped = reshapeTo2D(valueData);
-        
-        // 线性变换：Q, K, V
-        Variable Q = queryLayer.layerForward(new Variable(queryReshaped));
-        Variable K = keyLayer.layerForward(new Variable(keyReshaped));
-        Variable V = valueLayer.layerForward(new Variable(valueReshaped));
-        
-        // 重塑回三维
-        NdArray qData = reshapeFrom2D(Q.getValue(), batchSize, seqLen, dModel);
-        NdArray kData = reshapeFrom2D(K.getValue(), batchSize, seqLen, dModel);
-        NdArray vData = reshapeFrom2D(V.getValue(), batchSize, seqLen, dModel);
+        Variable queryReshaped = reshapeTo2D(query);
+        Variable keyReshaped = reshapeTo2D(key);
+        Variable valueReshaped = reshapeTo2D(value);
         
-        // 重塑为多头形式：(batch_size, seq_len, num_heads, d_k)
-        NdArray qHeads = reshapeForHeads(qData, batchSize, seqLen, numHeads, dK);
-        NdArray kHeads = reshapeForHeads(kData, batchSize, seqLen, numHeads, dK);
-        NdArray vHeads = reshapeForHeads(vData, batchSize, seqLen, numHeads, dV);
+        Variable[] projections = project(queryReshaped, keyReshaped, valueReshaped);
         
-        // 计算注意力
-        NdArray attention = computeAttention(qHeads, kHeads, vHeads, batchSize, seqLen);
+        // 分块计算注意力，各头按列切分，输出即各头拼接后的 (batch_size * seq_len, d_model)
+        Variable attention = new TiledAttention(batchSize, numHeads, useMask).call(projections);
         
-        // 合并多头结果
-        NdArray concatenated = concatenateHeads(attention, batchSize, seqLen);
-        
-        // 输出投影
-        NdArray concatReshaped = reshapeTo2D(concatenated);
-        Variable output = outputLayer.layerForward(new Variable(concatReshaped));
-        
-        // 重塑回三维
-        NdArray result = reshapeFrom2D(output.getValue(), batchSize, seqLen, dModel);
-        return new Variable(result);
-    }
-    
-    /**
-     * 将三维张量重塑为二维矩阵以用于线性变换
-     */
-    private NdArray reshapeTo2D(NdArray input) {
-        // input shape: (batch_size, seq_len, feature_dim)
-        // output shape: (batch_size * seq_len, feature_dim)
-        int batchSize = input.shape.dimension[0];
-        int seqLen = input.shape.dimension[1];
-        int featureDim = input.shape.dimension[2];
-        
-        return input.reshape(new Shape(batchSize * seqLen, featureDim));
-    }
-    
-    /**
-     * 将二维矩阵重塑回三维张量
-     */
-    private NdArray reshapeFrom2D(NdArray input, int batchSize, int seqLen, int featureDim) {
-        // input shape: (batch_size * seq_len, feature_dim)
-        // output shape: (batch_size, seq_len, feature_dim)
-        return input.reshape(new Shape(batchSize, seqLen, featureDim));
+        // 输出投影并重塑回三维
+        Variable output = outputLayer.layerForward(attention);
+        return output.reshape(new Shape(batchSize, seqLen, dModel));
     }
     
     /**
-     * 重塑张量为多头形式
+     * 使用键/值缓存的增量自注意力
+     * 
+     * 只对新输入的token计算Q/K/V投影，把K/V追加到缓存对应样本的末尾，
+     * 查询在该样本缓存的全部键上计算注意力（使用掩码时新token之间仍保持因果关系）。
+     * 缓存中的K/V不参与反向传播，仅用于推理。
+     * 
+     * @param x 新token的输入，shape: (rows.length, new_len, d_model)
+     * @param cache 本层的键/值缓存
+     * @param rows x的第i个样本对应缓存中的第rows[i]个样本
+     * @return 注意力输出，shape: (rows.length, new_len, d_model)
      */
-    private NdArray reshapeForHeads(NdArray input, int batchSize, int seqLen, int numHeads, int headDim) {
-        // input shape: (batch_size, seq_len, d_model)
-        // output shape: (batch_size, num_heads, seq_len, head_dim)
-        NdArray reshaped = new NdArray(new Shape(batchSize, numHeads, seqLen, headDim));
-        
-        for (int b = 0; b < batchSize; b++) {
-            for (int s = 0; s < seqLen; s++) {
-                for (int h = 0; h < numHeads; h++) {
-                    for (int d = 0; d < headDim; d++) {
-                        float value = input.get(b, s, h * headDim + d);
-                        reshaped.set(value, b, h, s, d);
-                    }
-                }
-            }
+    public Variable forwardCached(Variable x, KVCache cache, int[] rows) {
+        int[] dims = x.getValue().shape.dimension;
+        if (dims[0] != rows.length) {
+            throw new IllegalArgumentException("MultiHeadAttention forwardCached expects " + rows.length
+                    + " samples, but got " + x.getValue().getShape());
         }
-        
-        return reshaped;
-    }
-    
-    /**
-     * 计算缩放点积注意力
-     */
-    private NdArray computeAttention(NdArray query, NdArray key, NdArray value, int batchSize, int seqLen) {
-        // query, key, value shape: (batch_size, num_heads, seq_len, head_dim)
-        NdArray attention = new NdArray(new Shape(batchSize, numHeads, seqLen, dV));
-        
-        double scale = 1.0 / Math.sqrt(dK);
-        
-        for (int b = 0; b < batchSize; b++) {
-            for (int h = 0; h < numHeads; h++) {
-                // 计算attention scores: Q * K^T
-                NdArray scores = new NdArray(new Shape(seqLen, seqLen));
-                for (int i = 0; i < seqLen; i++) {
-                    for (int j = 0; j < seqLen; j++) {
-                        float score = 0.0f;
-                        for (int d = 0; d < dK; d++) {
-                            score += query.get(b, h, i, d) * key.get(b, h, j, d);
-                        }
-                        scores.set((float)(score * scale), i, j);
-                    }
-                }
-                
-                // 应用掩码（如果需要）
-                if (useMask) {
-                    applyMask(scores, seqLen);
-                }
-                
-                // Softmax
-                NdArray attentionWeights = scores.softMax();
-                
-                // 应用权重到values
-                for (int i = 0; i < seqLen; i++) {
-                    for (int d = 0; d < dV; d++) {
-                        float output = 0.0f;
-                        for (int j = 0; j < seqLen; j++) {
-                            output += attentionWeights.get(i, j) * value.get(b, h, j, d);
-                        }
-                        attention.set(output, b, h, i, d);
-                    }
-                }
-            }
+        Variable x2D = reshapeTo2D(x);
+        Variable[] projections = project(x2D, x2D, x2D);
+        cache.append(rows, projections[1].getValue(), projections[2].getValue());
+        
+        int[] keyStarts = new int[rows.length];
+        int[] keyLengths = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            keyStarts[i] = cache.rowStart(rows[i]);
+            keyLengths[i] = cache.length(rows[i]);
         }
+        Variable attention = new TiledAttention(numHeads, useMask, keyStarts, keyLengths)
+                .call(projections[0], new Variable(cache.getKeys()), new Variable(cache.getValues()));
         
-        return attention;
+        Variable output = outputLayer.layerForward(attention);
+        return output.reshape(new Shape(dims[0], dims[1], dModel));
     }
     
     /**
-     * 应用因果掩码（用于解码器）
+     * 线性变换：Q, K, V，三个投影互不依赖，开启并行时同时执行
      */
-    private void applyMask(NdArray scores, int seqLen) {
-        for (int i = 0; i < seqLen; i++) {
-            for (int j = i + 1; j < seqLen; j++) {
-                scores.set(Float.NEGATIVE_INFINITY, i, j);
-            }
+    private Variable[] project(Variable query, Variable key, Variable value) {
+        if (Config.parallel) {
+            List<Variable> projections = GraphScheduler.invokeAll(Arrays.<Callable<Variable>>asList(
+                    () -> queryLayer.layerForward(query),
+                    () -> keyLayer.layerForward(key),
+                    () -> valueLayer.layerForward(value)));
+            return projections.toArray(new Variable[0]);
         }
+        return new Variable[]{queryLayer.layerForward(query), keyLayer.layerForward(key), valueLayer.layerForward(value)};
     }
     
     /**
-     * 合并多头结果
+     * 将三维张量重塑为二维矩阵以用于线性变换
      */
-    private NdArray concatenateHeads(NdArray multiHeadOutput, int batchSize, int seqLen) {
-        // input shape: (batch_size, num_heads, seq_len, head_dim)
-        // output shape: (batch_size, seq_len, d_model)
-        NdArray concatenated = new NdArray(new Shape(batchSize, seqLen, dModel));
-        
-        for (int b = 0; b < batchSize; b++) {
-            for (int s = 0; s < seqLen; s++) {
-                for (int h = 0; h < numHeads; h++) {
-                    for (int d = 0; d < dV; d++) {
-                        float value = multiHeadOutput.get(b, h, s, d);
-                        concatenated.set(value, b, s, h * dV + d);
-                    }
-                }
-            }
-        }
-        
-        return concatenated;
+    private Variable reshapeTo2D(Variable input) {
+        // input shape: (batch_size, seq_len, feature_dim)
+        // output shape: (batch_size * seq_len, feature_dim)
+        int[] dims = input.getValue().shape.dimension;
+        return input.reshape(new Shape(dims[0] * dims[1], dims[2]));
     }
     
     @Override
@@ -253,12 +174,12 @@ public class MultiHeadAttention extends Layer {
         return layerForward(variables).getValue();
     }
     
+    /**
+     * 反向传播由layerForward构建的计算图（线性投影与TiledAttention节点）完成
+     */
     @Override
     public List<NdArray> backward(NdArray yGrad) {
-        // 简化的反向传播实现
-        List<NdArray> result = new ArrayList<>();
-        result.add(yGrad);
-        return result;
+        return null;
     }
     
     @Override
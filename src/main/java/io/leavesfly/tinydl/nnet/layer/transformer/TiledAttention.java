@@ -0,0 +1,311 @@
+package io.leavesfly.tinydl.nnet.layer.transformer;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.ndarr.NdArray;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * 分块计算的多头缩放点积注意力
+ *
+ * 输入为投影后的 (q, k, v)，形状分别为 (batch * queryLen, dModel) 与 (batch * keyLen, dModel)，
+ * 第h个头对应列 [h * headDim, (h + 1) * headDim)，输出形状与q相同，即各头拼接后的结果。
+ *
+ * 前向时按TILE行分块遍历K/V，使用在线softmax：每个查询行维护当前的最大值m、指数和l与加权和acc，
+ * 处理新的键块时按 exp(m_old - m_new) 修正已有的累加值，因此不需要生成 queryLen × keyLen 的分数矩阵，
+ * 只保存输出和每行的 logsumexp，额外内存为 O(queryLen)。
+ * 反向时按块重新计算分数，由保存的logsumexp直接得到概率。
+ *
+ * 因果掩码按末尾对齐：第i个查询可以看到第 j <= i + (keyLen - queryLen) 个键，
+ * 查询与键等长时即普通的下三角掩码。完全被掩码的键块直接跳过，不做任何计算。
+ * 不同 (batch, head) 写入互不重叠的区域，前向与反向都按 (batch, head) 并行。
+ *
+ * 增量解码时K/V来自KVCache，每个样本的键位于缓冲区中不同的起始行且长度各不相同，
+ * 此时通过keyStarts/keyLengths指定每个样本的键所在的行区间，因果掩码按各自的长度末尾对齐。
+ */
+public class TiledAttention extends Function {
+
+    /**
+     * 查询块与键块的行数
+     */
+    public static final int TILE = 32;
+
+    private final int batch;
+    private final int numHeads;
+    private final boolean causal;
+
+    /**
+     * 每个样本的键在k/v中的起始行与行数，为null时按 batch 均分k/v的行
+     */
+    private final int[] keyStarts;
+    private final int[] keyLengths;
+
+    /**
+     * 本次前向实际使用的键的行区间，反向时沿用
+     */
+    private int[] starts;
+    private int[] lengths;
+
+    private NdArray output;
+
+    /**
+     * 每个 (batch, head, 查询行) 的 logsumexp
+     */
+    private float[] logSumExp;
+
+    /**
+     * @param batch 批次大小
+     * @param numHeads 注意力头数
+     * @param causal 是否使用因果掩码
+     */
+    public TiledAttention(int batch, int numHeads, boolean causal) {
+        this.batch = batch;
+        this.numHeads = numHeads;
+        this.causal = causal;
+        this.keyStarts = null;
+        this.keyLengths = null;
+    }
+
+    /**
+     * 每个样本的键位于k/v中指定的行区间，用于在KVCache上计算注意力
+     *
+     * @param numHeads 注意力头数
+     * @param causal 是否使用因果掩码
+     * @param keyStarts 第b个样本的键在k/v中的起始行
+     * @param keyLengths 第b个样本的键的行数
+     */
+    public TiledAttention(int numHeads, boolean causal, int[] keyStarts, int[] keyLengths) {
+        if (keyStarts.length != keyLengths.length) {
+            throw new IllegalArgumentException("TiledAttention keyStarts and keyLengths must have the same length!");
+        }
+        this.batch = keyStarts.length;
+        this.numHeads = numHeads;
+        this.causal = causal;
+        this.keyStarts = keyStarts;
+        this.keyLengths = keyLengths;
+    }
+
+    private static void forEachTask(int tasks, IntConsumer task) {
+        if (tasks > 1) {
+            IntStream.range(0, tasks).parallel().forEach(task);
+        } else {
+            for (int t = 0; t < tasks; t++) {
+                task.accept(t);
+            }
+        }
+    }
+
+    /**
+     * 未指定键的行区间时按 batch 均分k/v的行，并检查区间没有越界
+     */
+    private void resolveKeyRanges(int keyRows, int valueRows) {
+        if (keyRows != valueRows) {
+            throw new IllegalArgumentException("TiledAttention k and v must have the same rows, but got "
+                    + keyRows + " and " + valueRows);
+        }
+        if (keyStarts == null) {
+            int keyLen = keyRows / batch;
+            starts = new int[batch];
+            lengths = new int[batch];
+            for (int b = 0; b < batch; b++) {
+                starts[b] = b * keyLen;
+                lengths[b] = keyLen;
+            }
+            return;
+        }
+        starts = keyStarts;
+        lengths = keyLengths;
+        for (int b = 0; b < batch; b++) {
+            if (keyStarts[b] < 0 || keyLengths[b] < 0 || keyStarts[b] + keyLengths[b] > keyRows) {
+                throw new IllegalArgumentException("TiledAttention key range [" + keyStarts[b] + ", "
+                        + (keyStarts[b] + keyLengths[b]) + ") is out of " + keyRows + " rows");
+            }
+        }
+    }
+
+    @Override
+    public NdArray forward(NdArray... inputs) {
+        NdArray q = inputs[0];
+        NdArray k = inputs[1];
+        NdArray v = inputs[2];
+        int dModel = q.getShape().getColumn();
+        if (dModel % numHeads != 0 || k.getShape().getColumn() != dModel || v.getShape().getColumn() != dModel) {
+            throw new IllegalArgumentException("TiledAttention q/k/v columns must be equal and divisible by numHeads, but got "
+                    + q.getShape() + ", " + k.getShape() + ", " + v.getShape());
+        }
+        int queryLen = q.getShape().getRow() / batch;
+        resolveKeyRanges(k.getShape().getRow(), v.getShape().getRow());
+        int headDim = dModel / numHeads;
+        float scale = (float) (1.0 / Math.sqrt(headDim));
+
+        float[] qb = q.buffer;
+        float[] kb = k.buffer;
+        float[] vb = v.buffer;
+        output = new NdArray(q.getShape());
+        float[] ob = output.buffer;
+        logSumExp = new float[batch * numHeads * queryLen];
+
+        forEachTask(batch * numHeads, task -> {
+            int b = task / numHeads;
+            int col = (task % numHeads) * headDim;
+            int qBase = b * queryLen;
+            int kBase = starts[b];
+            int keyLen = lengths[b];
+            int shift = keyLen - queryLen;
+            float[] scores = new float[TILE * TILE];
+            float[] acc = new float[TILE * headDim];
+            float[] rowMax = new float[TILE];
+            float[] rowSum = new float[TILE];
+
+            for (int i0 = 0; i0 < queryLen; i0 += TILE) {
+                int rows = Math.min(TILE, queryLen - i0);
+                Arrays.fill(acc, 0f);
+                Arrays.fill(rowMax, Float.NEGATIVE_INFINITY);
+                Arrays.fill(rowSum, 0f);
+                // 因果掩码下本查询块可以看到的键的上界（不含）
+                int keyEnd = causal ? Math.min(keyLen, i0 + rows + shift) : keyLen;
+
+                for (int j0 = 0; j0 < keyEnd; j0 += TILE) {
+                    int cols = Math.min(TILE, keyEnd - j0);
+                    for (int r = 0; r < rows; r++) {
+                        int qOff = (qBase + i0 + r) * dModel + col;
+                        int visible = causal ? Math.min(cols, i0 + r + shift - j0 + 1) : cols;
+                        float max = rowMax[r];
+                        for (int c = 0; c < visible; c++) {
+                            int kOff = (kBase + j0 + c) * dModel + col;
+                            float s = 0f;
+                            for (int d = 0; d < headDim; d++) {
+                                s += qb[qOff + d] * kb[kOff + d];
+                            }
+                            s *= scale;
+                            scores[r * TILE + c] = s;
+                            if (s > max) {
+                                max = s;
+                            }
+                        }
+                        if (visible <= 0) {
+                            continue;
+                        }
+                        // 在线softmax：按新的最大值修正已有的指数和与加权和
+                        float correction = (float) Math.exp(rowMax[r] - max);
+                        rowMax[r] = max;
+                        float sum = rowSum[r] * correction;
+                        int accOff = r * headDim;
+                        for (int d = 0; d < headDim; d++) {
+                            acc[accOff + d] *= correction;
+                        }
+                        for (int c = 0; c < visible; c++) {
+                            float p = (float) Math.exp(scores[r * TILE + c] - max);
+                            sum += p;
+                            int vOff = (kBase + j0 + c) * dModel + col;
+                            for (int d = 0; d < headDim; d++) {
+                                acc[accOff + d] += p * vb[vOff + d];
+                            }
+                        }
+                        rowSum[r] = sum;
+                    }
+                }
+
+                for (int r = 0; r < rows; r++) {
+                    int oOff = (qBase + i0 + r) * dModel + col;
+                    int lseIndex = task * queryLen + i0 + r;
+                    if (rowSum[r] == 0f) {
+                        // 没有任何可见的键（只在查询比键多时出现），输出为0
+                        logSumExp[lseIndex] = Float.POSITIVE_INFINITY;
+                        continue;
+                    }
+                    float inv = 1f / rowSum[r];
+                    for (int d = 0; d < headDim; d++) {
+                        ob[oOff + d] = acc[r * headDim + d] * inv;
+                    }
+                    logSumExp[lseIndex] = rowMax[r] + (float) Math.log(rowSum[r]);
+                }
+            }
+        });
+        return output;
+    }
+
+    @Override
+    public List<NdArray> backward(NdArray yGrad) {
+        NdArray q = inputs[0].getValue();
+        NdArray k = inputs[1].getValue();
+        NdArray v = inputs[2].getValue();
+        int dModel = q.getShape().getColumn();
+        int queryLen = q.getShape().getRow() / batch;
+        int headDim = dModel / numHeads;
+        float scale = (float) (1.0 / Math.sqrt(headDim));
+
+        float[] qb = q.buffer;
+        float[] kb = k.buffer;
+        float[] vb = v.buffer;
+        float[] ob = output.buffer;
+        float[] dob = yGrad.buffer;
+        NdArray qGrad = new NdArray(q.getShape());
+        NdArray kGrad = new NdArray(k.getShape());
+        NdArray vGrad = new NdArray(v.getShape());
+        float[] dq = qGrad.buffer;
+        float[] dk = kGrad.buffer;
+        float[] dv = vGrad.buffer;
+
+        forEachTask(batch * numHeads, task -> {
+            int b = task / numHeads;
+            int col = (task % numHeads) * headDim;
+            int qBase = b * queryLen;
+            int kBase = starts[b];
+            int keyLen = lengths[b];
+            int shift = keyLen - queryLen;
+
+            // D_i = dO_i · O_i
+            float[] rowDot = new float[queryLen];
+            for (int i = 0; i < queryLen; i++) {
+                int off = (qBase + i) * dModel + col;
+                float dot = 0f;
+                for (int d = 0; d < headDim; d++) {
+                    dot += dob[off + d] * ob[off + d];
+                }
+                rowDot[i] = dot;
+            }
+
+            for (int i0 = 0; i0 < queryLen; i0 += TILE) {
+                int rows = Math.min(TILE, queryLen - i0);
+                int keyEnd = causal ? Math.min(keyLen, i0 + rows + shift) : keyLen;
+                for (int j0 = 0; j0 < keyEnd; j0 += TILE) {
+                    int cols = Math.min(TILE, keyEnd - j0);
+                    for (int r = 0; r < rows; r++) {
+                        int i = i0 + r;
+                        float lse = logSumExp[task * queryLen + i];
+                        int visible = causal ? Math.min(cols, i + shift - j0 + 1) : cols;
+                        int qOff = (qBase + i) * dModel + col;
+                        for (int c = 0; c < visible; c++) {
+                            int kOff = (kBase + j0 + c) * dModel + col;
+                            float s = 0f;
+                            float dp = 0f;
+                            for (int d = 0; d < headDim; d++) {
+                                s += qb[qOff + d] * kb[kOff + d];
+                                dp += dob[qOff + d] * vb[kOff + d];
+                            }
+                            // 按保存的logsumexp重新得到概率
+                            float p = (float) Math.exp(s * scale - lse);
+                            float ds = p * (dp - rowDot[i]) * scale;
+                            for (int d = 0; d < headDim; d++) {
+                                dv[kOff + d] += p * dob[qOff + d];
+                                dq[qOff + d] += ds * kb[kOff + d];
+                                dk[kOff + d] += ds * qb[qOff + d];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        return Arrays.asList(qGrad, kGrad, vGrad);
+    }
+
+    @Override
+    public int requireInputNum() {
+        return 3;
+    }
+
+}
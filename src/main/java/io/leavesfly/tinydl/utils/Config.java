@@ -16,6 +16,19 @@ public class Config {
      */
     public static Boolean train = true;
 
+    /**
+     * 并行执行开关
+     * true表示计算图中相互独立的分支（注意力的Q/K/V投影、MoE的多个专家、反向传播的兄弟分支）
+     * 在共享的ForkJoin线程池上并行执行
+     */
+    public static Boolean parallel = false;
+
+    /**
+     * 卷积算法自动调优开关
+     * true表示卷积层第一次遇到某个形状时对所有可用算法计时，之后固定使用最快的算法
+     */
+    public static Boolean convAutotune = false;
+
     /**
      * 激活函数类型枚举
      * 定义了框架支持的激活函数类型
@@ -0,0 +1,337 @@
+package io.leavesfly.tinydl.utils;
+
+import io.leavesfly.tinydl.func.Function;
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.func.matrix.FusedLinear;
+import io.leavesfly.tinydl.func.matrix.Linear;
+import io.leavesfly.tinydl.func.matrix.MatMul;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.nnet.LayerAble;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 算子级性能分析器
+ *
+ * 在Function.call与反向传播的调用处进行插桩，按"所属层名称 + 算子类型"聚合：
+ * 调用次数、耗时、FLOPs估计、分配的字节数以及出现过的张量形状。
+ * 算子所属的层由Block/Model逐层调用时维护的作用域栈确定（取最内层的LayerAble.name），
+ * 反向传播沿用前向传播时记录的作用域。
+ *
+ * 默认关闭，关闭时只有一次volatile读的开销。使用示例：
+ * <pre>
+ * Profiler.enable();
+ * trainer.train(true);
+ * System.out.println(Profiler.table());
+ * Profiler.export("profile.csv");
+ * </pre>
+ */
+public final class Profiler {
+
+    /**
+     * 每个统计项最多记录的不同形状数量
+     */
+    private static final int MAX_SHAPES = 4;
+
+    private static volatile boolean enabled = false;
+
+    private static final Map<String, OpStat> STATS = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Deque<String>> SCOPES = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private Profiler() {
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 清空已收集的统计信息
+     */
+    public static void reset() {
+        STATS.clear();
+    }
+
+    /**
+     * 当前线程所在的层作用域，不在任何层中时返回null
+     *
+     * @return 最内层的层名称
+     */
+    public static String currentScope() {
+        return SCOPES.get().peek();
+    }
+
+    /**
+     * 在指定作用域中执行任务，用于把当前线程的层作用域传递到线程池中的任务
+     *
+     * @param scope 层作用域，可以为null
+     * @param task 任务
+     * @param <T> 结果类型
+     * @return 任务结果
+     * @throws Exception 任务抛出的异常
+     */
+    public static <T> T callInScope(String scope, Callable<T> task) throws Exception {
+        if (scope == null) {
+            return task.call();
+        }
+        Deque<String> scopes = SCOPES.get();
+        scopes.push(scope);
+        try {
+            return task.call();
+        } finally {
+            scopes.pop();
+        }
+    }
+
+    /**
+     * 在层作用域中执行层的前向传播，层内部调用的算子都归属于该层
+     *
+     * @param layer 层
+     * @param inputs 输入变量
+     * @return 输出变量
+     */
+    public static Variable layerForward(LayerAble layer, Variable... inputs) {
+        if (!enabled || layer.getName() == null) {
+            return layer.layerForward(inputs);
+        }
+        Deque<String> scopes = SCOPES.get();
+        scopes.push(layer.getName());
+        try {
+            return layer.layerForward(inputs);
+        } finally {
+            scopes.pop();
+        }
+    }
+
+    /**
+     * 执行并统计算子的前向传播
+     *
+     * @param function 算子
+     * @param inputs 输入
+     * @return 输出
+     */
+    public static NdArray forward(Function function, NdArray[] inputs) {
+        if (!enabled) {
+            return function.forward(inputs);
+        }
+        long start = System.nanoTime();
+        NdArray output = function.forward(inputs);
+        long elapsed = System.nanoTime() - start;
+
+        function.setScope(currentScope());
+        long bytes = output == null ? 0 : (long) output.buffer.length * Float.BYTES;
+        StringBuilder shape = new StringBuilder();
+        for (int i = 0; i < inputs.length; i++) {
+            shape.append(i > 0 ? "x" : "").append(inputs[i].getShape());
+        }
+        if (output != null) {
+            shape.append("->").append(output.getShape());
+        }
+        statOf(function).addForward(elapsed, estimateFlops(function, inputs, output), bytes, shape.toString());
+        return output;
+    }
+
+    /**
+     * 执行并统计算子的反向传播
+     *
+     * @param function 算子
+     * @param yGrad 输出的梯度
+     * @return 输入的梯度
+     */
+    public static List<NdArray> backward(Function function, NdArray yGrad) {
+        if (!enabled) {
+            return function.backward(yGrad);
+        }
+        long start = System.nanoTime();
+        List<NdArray> grads = function.backward(yGrad);
+        long elapsed = System.nanoTime() - start;
+
+        long bytes = 0;
+        if (grads != null) {
+            for (NdArray grad : grads) {
+                bytes += grad == null ? 0 : (long) grad.buffer.length * Float.BYTES;
+            }
+        }
+        // 反向传播的计算量按前向传播的两倍估计（对输入和权重各求一次梯度）
+        NdArray[] inputs = new NdArray[function.getInputs().length];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = function.getInputs()[i].getValue();
+        }
+        long flops = 2 * estimateFlops(function, inputs, function.getOutput().getValue());
+        statOf(function).addBackward(elapsed, flops, bytes);
+        return grads;
+    }
+
+    /**
+     * 估计算子前向传播的浮点运算次数
+     *
+     * 矩阵乘法按2*m*k*n计算，其余算子按输出元素个数计算。
+     */
+    private static long estimateFlops(Function function, NdArray[] inputs, NdArray output) {
+        if ((function instanceof MatMul || function instanceof Linear || function instanceof FusedLinear)
+                && inputs.length >= 2) {
+            long m = inputs[0].getShape().getRow();
+            long k = inputs[0].getShape().getColumn();
+            long n = inputs[1].getShape().getColumn();
+            return 2 * m * k * n + (inputs.length > 2 ? m * n : 0);
+        }
+        return output == null ? 0 : output.buffer.length;
+    }
+
+    private static OpStat statOf(Function function) {
+        String layer = function.getScope() == null ? "-" : function.getScope();
+        String op = function.getClass().getSimpleName();
+        return STATS.computeIfAbsent(layer + "|" + op, key -> new OpStat(layer, op));
+    }
+
+    /**
+     * 获取所有统计项，按前向与反向总耗时降序排列
+     *
+     * @return 统计项列表
+     */
+    public static List<OpStat> getStats() {
+        List<OpStat> stats = new ArrayList<>(STATS.values());
+        stats.sort((a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+        return stats;
+    }
+
+    /**
+     * 生成聚合的统计表格
+     *
+     * @return 表格文本
+     */
+    public static String table() {
+        List<OpStat> stats = getStats();
+        long total = 0;
+        for (OpStat stat : stats) {
+            total += stat.getTotalNanos();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-24s %-16s %8s %10s %8s %10s %7s %10s %10s  %s%n",
+                "layer", "op", "fwd.cnt", "fwd.ms", "bwd.cnt", "bwd.ms", "time%", "MFLOPs", "MB", "shapes"));
+        for (OpStat stat : stats) {
+            sb.append(String.format("%-24s %-16s %8d %10.3f %8d %10.3f %6.2f%% %10.2f %10.2f  %s%n",
+                    stat.getLayer(), stat.getOp(), stat.getForwardCount(), stat.getForwardNanos() / 1e6,
+                    stat.getBackwardCount(), stat.getBackwardNanos() / 1e6,
+                    total == 0 ? 0.0 : 100.0 * stat.getTotalNanos() / total,
+                    stat.getFlops() / 1e6, stat.getBytes() / (1024.0 * 1024.0), String.join(" ", stat.getShapes())));
+        }
+        sb.append(String.format("total time: %.3f ms%n", total / 1e6));
+        return sb.toString();
+    }
+
+    /**
+     * 以CSV格式导出统计结果
+     *
+     * @param filePath 文件路径
+     */
+    public static void export(String filePath) {
+        try (FileWriter writer = new FileWriter(filePath)) {
+            writer.write("layer,op,forward_count,forward_ns,backward_count,backward_ns,flops,bytes,shapes\n");
+            for (OpStat stat : getStats()) {
+                writer.write(stat.getLayer() + "," + stat.getOp() + "," + stat.getForwardCount() + "," + stat.getForwardNanos() + ","
+                        + stat.getBackwardCount() + "," + stat.getBackwardNanos() + "," + stat.getFlops() + "," + stat.getBytes()
+                        + ",\"" + String.join(" ", stat.getShapes()) + "\"\n");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Profiler export error: " + filePath, e);
+        }
+    }
+
+    /**
+     * 单个"层 + 算子类型"的统计项
+     */
+    public static class OpStat {
+
+        private final String layer;
+        private final String op;
+        private long forwardCount;
+        private long forwardNanos;
+        private long backwardCount;
+        private long backwardNanos;
+        private long flops;
+        private long bytes;
+        private final Set<String> shapes = new LinkedHashSet<>();
+
+        OpStat(String layer, String op) {
+            this.layer = layer;
+            this.op = op;
+        }
+
+        synchronized void addForward(long nanos, long flops, long bytes, String shape) {
+            forwardCount++;
+            forwardNanos += nanos;
+            this.flops += flops;
+            this.bytes += bytes;
+            if (shapes.size() < MAX_SHAPES) {
+                shapes.add(shape);
+            }
+        }
+
+        synchronized void addBackward(long nanos, long flops, long bytes) {
+            backwardCount++;
+            backwardNanos += nanos;
+            this.flops += flops;
+            this.bytes += bytes;
+        }
+
+        public String getLayer() {
+            return layer;
+        }
+
+        public String getOp() {
+            return op;
+        }
+
+        public synchronized long getForwardCount() {
+            return forwardCount;
+        }
+
+        public synchronized long getForwardNanos() {
+            return forwardNanos;
+        }
+
+        public synchronized long getBackwardCount() {
+            return backwardCount;
+        }
+
+        public synchronized long getBackwardNanos() {
+            return backwardNanos;
+        }
+
+        public synchronized long getTotalNanos() {
+            return forwardNanos + backwardNanos;
+        }
+
+        public synchronized long getFlops() {
+            return flops;
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        public synchronized List<String> getShapes() {
+            return new ArrayList<>(shapes);
+        }
+    }
+}
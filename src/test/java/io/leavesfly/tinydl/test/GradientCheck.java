@@ -0,0 +1,59 @@
+package io.leavesfly.tinydl.test;
+
+import io.leavesfly.tinydl.ndarr.NdArray;
+
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 数值梯度检查
+ *
+ * 以加权和 sum(y * r) 为目标函数，r 即反向传播时设置的输出梯度，
+ * 对输入或参数逐元素做中心差分，与反向传播得到的解析梯度对比。
+ */
+public final class GradientCheck {
+
+    private GradientCheck() {
+    }
+
+    public static float weightedSum(NdArray y, NdArray r) {
+        float sum = 0f;
+        for (int i = 0; i < y.buffer.length; i++) {
+            sum += y.buffer[i] * r.buffer[i];
+        }
+        return sum;
+    }
+
+    /**
+     * data[index] 处的中心差分，计算完成后恢复原值
+     *
+     * @param forward 按当前的data重新计算前向输出
+     * @param r 目标函数的权重
+     * @param data 被扰动的数组，原地修改
+     * @param index 被扰动的元素
+     * @param eps 差分步长
+     */
+    public static float numericGrad(Supplier<NdArray> forward, NdArray r, float[] data, int index, float eps) {
+        float origin = data[index];
+        data[index] = origin + eps;
+        float plus = weightedSum(forward.get(), r);
+        data[index] = origin - eps;
+        float minus = weightedSum(forward.get(), r);
+        data[index] = origin;
+        return (plus - minus) / (2 * eps);
+    }
+
+    /**
+     * 对data的每个元素做中心差分，与解析梯度对比
+     *
+     * @param grad 解析梯度，与data逐元素对应
+     * @param tolerance 允许的绝对误差
+     */
+    public static void check(Supplier<NdArray> forward, NdArray r, float[] data, NdArray grad,
+                             float eps, float tolerance) {
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(numericGrad(forward, r, data, i, eps), grad.buffer[i], tolerance);
+        }
+    }
+}
@@ -5,7 +5,6 @@ import io.leavesfly.tinydl.ndarr.Shape;
 import io.leavesfly.tinydl.nnet.layer.cnn.ConvLayer;
 import io.leavesfly.tinydl.nnet.layer.cnn.PoolingLayer;
 import io.leavesfly.tinydl.nnet.layer.cnn.Im2ColUtil;
-import io.leavesfly.tinydl.nnet.layer.cnn.Col2ImUtil;
 import io.leavesfly.tinydl.nnet.layer.norm.BatchNorm;
 import io.leavesfly.tinydl.nnet.layer.cnn.DepthwiseSeparableConvLayer;
 import io.leavesfly.tinydl.modality.cv.SimpleConvNet;
@@ -119,7 +118,7 @@ public class CnnPerformanceBenchmark {
         // 测试优化的im2col（带缓存）
         long optimizedTime = System.nanoTime();
         for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
-            Im2ColUtil.im2col(input, 3, 3, 1, 1); // 第二次调用会使用缓存
+            Im2ColUtil.im2col(input, 3, 3, 1, 1);
         }
         optimizedTime = (System.nanoTime() - optimizedTime) / BENCHMARK_ITERATIONS;
         
@@ -139,10 +138,7 @@ public class CnnPerformanceBenchmark {
                           String.format("%.1f", (originalTime - optimizedTime) / (double) originalTime * 100) + "% 的内存分配开销");
         System.out.println("- 并行处理在多核系统上提供显著加速");
         System.out.println("- 优化的内存访问模式减少了缓存未命中");
-        
-        // 清理缓存以避免内存泄漏
-        Im2ColUtil.clearCache();
-        Col2ImUtil.clearCache();
+
         System.out.println();
     }
     
@@ -0,0 +1,273 @@
+package io.leavesfly.tinydl.test.cnn;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.nnet.layer.cnn.ConvAlgorithm;
+import io.leavesfly.tinydl.nnet.layer.cnn.ConvAutotuner;
+import io.leavesfly.tinydl.nnet.layer.cnn.ConvLayer;
+import io.leavesfly.tinydl.nnet.layer.cnn.DepthwiseSeparableConvLayer;
+import io.leavesfly.tinydl.nnet.layer.cnn.PoolingLayer;
+import io.leavesfly.tinydl.test.GradientCheck;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * 卷积层的单元测试，与直接按定义计算的卷积结果对比
+ */
+public class ConvLayerTest {
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    /**
+     * 按卷积定义直接计算输出
+     */
+    private static NdArray naiveConv(NdArray x, NdArray w, NdArray b, int stride, int pad) {
+        int[] xd = x.getShape().dimension;
+        int[] wd = w.getShape().dimension;
+        int outH = (xd[2] + 2 * pad - wd[2]) / stride + 1;
+        int outW = (xd[3] + 2 * pad - wd[3]) / stride + 1;
+        NdArray y = new NdArray(new Shape(xd[0], wd[0], outH, outW));
+        int index = 0;
+        for (int n = 0; n < xd[0]; n++) {
+            for (int f = 0; f < wd[0]; f++) {
+                for (int oh = 0; oh < outH; oh++) {
+                    for (int ow = 0; ow < outW; ow++) {
+                        float sum = b == null ? 0f : b.buffer[f];
+                        for (int c = 0; c < xd[1]; c++) {
+                            for (int kh = 0; kh < wd[2]; kh++) {
+                                for (int kw = 0; kw < wd[3]; kw++) {
+                                    int ih = oh * stride + kh - pad;
+                                    int iw = ow * stride + kw - pad;
+                                    if (ih >= 0 && ih < xd[2] && iw >= 0 && iw < xd[3]) {
+                                        sum += x.buffer[((n * xd[1] + c) * xd[2] + ih) * xd[3] + iw]
+                                                * w.buffer[((f * wd[1] + c) * wd[2] + kh) * wd[3] + kw];
+                                    }
+                                }
+                            }
+                        }
+                        y.buffer[index++] = sum;
+                    }
+                }
+            }
+        }
+        return y;
+    }
+
+    private void checkConv(Shape inputShape, int filterNum, int kernel, int stride, int pad) {
+        checkConv(inputShape, filterNum, kernel, stride, pad, null);
+    }
+
+    private void checkConv(Shape inputShape, int filterNum, int kernel, int stride, int pad, ConvAlgorithm algorithm) {
+        ConvLayer conv = new ConvLayer("conv", inputShape, filterNum, kernel, kernel, stride, pad, true);
+        conv.setAlgorithm(algorithm);
+        Parameter filter = conv.getParamBy("filterParam");
+        Parameter bias = conv.getParamBy("biasParam");
+        bias.getValue().buffer[0] = 0.5f;
+        NdArray xData = NdArray.likeRandomN(inputShape, 7);
+
+        Variable x = new Variable(xData, "x");
+        Variable y = conv.layerForward(x);
+        NdArray expected = naiveConv(xData, filter.getValue(), bias.getValue(), stride, pad);
+        assertEquals(expected.getShape(), y.getValue().getShape());
+        assertArrayEquals(expected.buffer, y.getValue().buffer, 1e-4f);
+
+        NdArray r = NdArray.likeRandomN(expected.getShape(), 8);
+        y.setGrad(r);
+        y.backward();
+
+        float[][] targets = {xData.buffer, filter.getValue().buffer, bias.getValue().buffer};
+        NdArray[] grads = {x.getGrad(), filter.getGrad(), bias.getGrad()};
+        for (int t = 0; t < targets.length; t++) {
+            for (int i = 0; i < targets[t].length; i += 3) {
+                float numeric = GradientCheck.numericGrad(
+                        () -> naiveConv(xData, filter.getValue(), bias.getValue(), stride, pad), r, targets[t], i, 1e-2f);
+                assertEquals(numeric, grads[t].buffer[i], 2e-2f * Math.max(1f, Math.abs(numeric)));
+            }
+        }
+    }
+
+    @Test
+    public void testStrideOneWithPadding() {
+        checkConv(new Shape(2, 3, 5, 5), 4, 3, 1, 1);
+    }
+
+    @Test
+    public void testStrideTwoWithPadding() {
+        checkConv(new Shape(3, 2, 7, 6), 3, 3, 2, 1);
+    }
+
+    @Test
+    public void testNoPadding() {
+        checkConv(new Shape(1, 2, 6, 6), 2, 2, 2, 0);
+    }
+
+    @Test
+    public void testWinogradMatchesDefinition() {
+        // 奇数输出尺寸会产生不完整的2x2输出块
+        checkConv(new Shape(2, 3, 7, 6), 4, 3, 1, 1, ConvAlgorithm.WINOGRAD);
+        checkConv(new Shape(1, 2, 6, 5), 3, 3, 1, 0, ConvAlgorithm.WINOGRAD);
+        checkConv(new Shape(1, 2, 4, 4), 2, 3, 1, 2, ConvAlgorithm.WINOGRAD);
+        checkConv(new Shape(2, 3, 5, 5), 4, 3, 1, 1, ConvAlgorithm.IM2COL);
+    }
+
+    @Test
+    public void testDirectMatchesDefinition() {
+        checkConv(new Shape(2, 3, 7, 6), 3, 3, 2, 1, ConvAlgorithm.DIRECT);
+        checkConv(new Shape(1, 2, 5, 5), 2, 1, 1, 0, ConvAlgorithm.DIRECT);
+    }
+
+    /**
+     * 深度可分离卷积的参考实现：深度卷积等价于通道间为对角块的普通卷积，逐点卷积为1x1卷积
+     */
+    private static NdArray naiveSeparable(NdArray x, NdArray depthwise, NdArray pointwise, int stride, int pad) {
+        int channels = depthwise.getShape().dimension[0];
+        int k = depthwise.getShape().dimension[2];
+        NdArray full = new NdArray(new Shape(channels, channels, k, k));
+        for (int c = 0; c < channels; c++) {
+            System.arraycopy(depthwise.buffer, c * k * k, full.buffer, (c * channels + c) * k * k, k * k);
+        }
+        return naiveConv(naiveConv(x, full, null, stride, pad), pointwise, null, 1, 0);
+    }
+
+    @Test
+    public void testDepthwiseSeparableMatchesDefinition() {
+        Shape inputShape = new Shape(2, 3, 7, 6);
+        int stride = 2;
+        int pad = 1;
+        DepthwiseSeparableConvLayer layer = new DepthwiseSeparableConvLayer("ds", inputShape, 4, 3, stride, pad);
+        Parameter depthwise = layer.getParamBy("depthwiseFilter");
+        Parameter pointwise = layer.getParamBy("pointwiseFilter");
+        NdArray xData = NdArray.likeRandomN(inputShape, 11);
+
+        Variable x = new Variable(xData, "x");
+        Variable y = layer.layerForward(x);
+        NdArray expected = naiveSeparable(xData, depthwise.getValue(), pointwise.getValue(), stride, pad);
+        assertEquals(expected.getShape(), y.getValue().getShape());
+        assertArrayEquals(expected.buffer, y.getValue().buffer, 1e-4f);
+
+        NdArray r = NdArray.likeRandomN(expected.getShape(), 12);
+        y.setGrad(r);
+        y.backward();
+
+        float[][] targets = {xData.buffer, depthwise.getValue().buffer, pointwise.getValue().buffer};
+        NdArray[] grads = {x.getGrad(), depthwise.getGrad(), pointwise.getGrad()};
+        for (int t = 0; t < targets.length; t++) {
+            for (int i = 0; i < targets[t].length; i += 2) {
+                float numeric = GradientCheck.numericGrad(
+                        () -> naiveSeparable(xData, depthwise.getValue(), pointwise.getValue(), stride, pad),
+                        r, targets[t], i, 1e-2f);
+                assertEquals(numeric, grads[t].buffer[i], 2e-2f * Math.max(1f, Math.abs(numeric)));
+            }
+        }
+    }
+
+    @Test
+    public void testAutotunerCachesAndPersistsDecisions() throws Exception {
+        boolean originalAutotune = Config.convAutotune;
+        Config.convAutotune = true;
+        ConvAutotuner.clear();
+        try {
+            Shape inputShape = new Shape(1, 2, 6, 6);
+            ConvLayer conv = new ConvLayer("conv", inputShape, 3, 3, 3, 1, 1, true);
+            NdArray x = NdArray.likeRandomN(inputShape, 5);
+            NdArray y = conv.forward(x);
+            NdArray expected = naiveConv(x, conv.getParamBy("filterParam").getValue(),
+                    conv.getParamBy("biasParam").getValue(), 1, 1);
+            assertArrayEquals(expected.buffer, y.buffer, 1e-4f);
+
+            String key = ConvAutotuner.key("conv", inputShape.dimension, 3, 3, 3, 1, 1);
+            ConvAlgorithm decision = ConvAutotuner.get(key);
+            assertNotNull(decision);
+
+            File file = File.createTempFile("conv-autotune", ".properties");
+            file.deleteOnExit();
+            ConvAutotuner.save(file.getPath());
+            ConvAutotuner.clear();
+            assertNull(ConvAutotuner.get(key));
+            assertEquals(1, ConvAutotuner.load(file.getPath()));
+            assertEquals(decision, ConvAutotuner.get(key));
+        } finally {
+            ConvAutotuner.clear();
+            Config.convAutotune = originalAutotune;
+        }
+    }
+
+    @Test
+    public void testWinogradFilterCacheFollowsParameter() {
+        Config.train = false;
+        Shape inputShape = new Shape(1, 2, 6, 6);
+        ConvLayer conv = new ConvLayer("conv", inputShape, 3, 3, 3, 1, 1, false);
+        NdArray x = NdArray.likeRandomN(inputShape, 3);
+        Parameter filter = conv.getParamBy("filterParam");
+
+        conv.forward(x);
+        filter.setValue(filter.getValue().mulNum(2f));
+        NdArray actual = conv.forward(x);
+        NdArray expected = naiveConv(x, filter.getValue(), null, 1, 1);
+        assertArrayEquals(expected.buffer, actual.buffer, 1e-4f);
+        assertFalse(ConvAlgorithm.WINOGRAD.supports(3, 3, 2, 1));
+    }
+
+    @Test
+    public void testConcurrentInferenceSharesLayer() throws Exception {
+        Config.train = false;
+        Shape inputShape = new Shape(2, 3, 8, 8);
+        ConvLayer conv = new ConvLayer("conv", inputShape, 4, 3, 3, 1, 1, true);
+        PoolingLayer pool = new PoolingLayer("pool", conv.getOutputShape(), 2, 2, 2, 0);
+
+        int threadNum = 4;
+        NdArray[] inputs = new NdArray[threadNum];
+        NdArray[] expected = new NdArray[threadNum];
+        for (int t = 0; t < threadNum; t++) {
+            inputs[t] = NdArray.likeRandomN(inputShape, t + 1);
+            expected[t] = pool.forward(conv.forward(inputs[t]));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int t = 0; t < threadNum; t++) {
+                final int index = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        NdArray actual = pool.layerForward(conv.layerForward(new Variable(inputs[index]))).getValue();
+                        if (!Arrays.equals(expected[index].buffer, actual.buffer)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package io.leavesfly.tinydl.test.cnn;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.layer.cnn.PoolingLayer;
+import io.leavesfly.tinydl.nnet.layer.cnn.PoolingLayer.PoolingMode;
+import io.leavesfly.tinydl.test.GradientCheck;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 池化层的单元测试，与直接按定义计算的池化结果及数值梯度对比
+ */
+public class PoolingLayerTest {
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    /**
+     * 按定义计算池化输出，填充位置按0参与最大值比较和平均
+     */
+    private static NdArray naivePool(NdArray x, int poolH, int poolW, int stride, int pad, boolean max) {
+        int n = x.shape.dimension[0], c = x.shape.dimension[1], h = x.shape.dimension[2], w = x.shape.dimension[3];
+        int outH = (h + 2 * pad - poolH) / stride + 1;
+        int outW = (w + 2 * pad - poolW) / stride + 1;
+        NdArray y = new NdArray(new Shape(n, c, outH, outW));
+        for (int i = 0; i < n; i++) {
+            for (int ch = 0; ch < c; ch++) {
+                for (int oh = 0; oh < outH; oh++) {
+                    for (int ow = 0; ow < outW; ow++) {
+                        float acc = max ? Float.NEGATIVE_INFINITY : 0f;
+                        for (int ph = 0; ph < poolH; ph++) {
+                            for (int pw = 0; pw < poolW; pw++) {
+                                int ih = oh * stride + ph - pad, iw = ow * stride + pw - pad;
+                                float v = ih >= 0 && ih < h && iw >= 0 && iw < w ? x.get(i, ch, ih, iw) : 0f;
+                                acc = max ? Math.max(acc, v) : acc + v;
+                            }
+                        }
+                        y.set(max ? acc : acc / (poolH * poolW), i, ch, oh, ow);
+                    }
+                }
+            }
+        }
+        return y;
+    }
+
+    /**
+     * 检查反向传播的输入梯度与中心差分一致
+     */
+    private static void checkGradient(PoolingLayer pool, NdArray xData) {
+        Variable x = new Variable(xData, "x");
+        Variable y = pool.layerForward(x);
+        NdArray r = NdArray.likeRandomN(y.getValue().getShape(), 11);
+        y.setGrad(r);
+        y.backward();
+
+        GradientCheck.check(() -> pool.forward(xData), r, xData.buffer, x.getGrad(), 1e-3f, 1e-2f);
+    }
+
+    private void checkPool(Shape inputShape, int poolSize, int stride, int pad, PoolingMode mode) {
+        PoolingLayer pool = new PoolingLayer("pool", inputShape, poolSize, poolSize, stride, pad, mode);
+        NdArray xData = NdArray.likeRandomN(inputShape, 5);
+        NdArray expected = naivePool(xData, poolSize, poolSize, stride, pad, mode == PoolingMode.MAX);
+        NdArray actual = pool.forward(xData);
+        assertEquals(expected.getShape(), actual.getShape());
+        assertArrayEquals(expected.buffer, actual.buffer, 1e-5f);
+        checkGradient(pool, xData);
+    }
+
+    @Test
+    public void testMaxPoolingMatchesDefinition() {
+        checkPool(new Shape(2, 3, 6, 6), 2, 2, 0, PoolingMode.MAX);
+        checkPool(new Shape(2, 3, 7, 7), 3, 2, 1, PoolingMode.MAX);
+    }
+
+    @Test
+    public void testAveragePoolingMatchesDefinition() {
+        checkPool(new Shape(2, 3, 6, 6), 2, 2, 0, PoolingMode.AVERAGE);
+        checkPool(new Shape(2, 3, 7, 7), 3, 2, 1, PoolingMode.AVERAGE);
+    }
+
+    @Test
+    public void testGlobalAveragePooling() {
+        Shape inputShape = new Shape(2, 4, 5, 5);
+        NdArray xData = NdArray.likeRandomN(inputShape, 9);
+        PoolingLayer global = new PoolingLayer("gap", inputShape, 1, 1, 1, 0, PoolingMode.ADAPTIVE_AVERAGE);
+        PoolingLayer window = new PoolingLayer("avg", inputShape, 5, 5, 1, 0, PoolingMode.AVERAGE);
+
+        NdArray expected = naivePool(xData, 5, 5, 1, 0, false);
+        assertArrayEquals(expected.buffer, global.forward(xData).buffer, 1e-5f);
+        assertArrayEquals(expected.buffer, window.forward(xData).buffer, 1e-5f);
+        checkGradient(global, xData);
+    }
+
+    @Test
+    public void testAdaptiveMaxPooling() {
+        Shape inputShape = new Shape(1, 2, 5, 5);
+        NdArray xData = NdArray.likeRandomN(inputShape, 3);
+        PoolingLayer pool = new PoolingLayer("adaptive", inputShape, 2, 2, 1, 0, PoolingMode.ADAPTIVE_MAX);
+        NdArray y = pool.forward(xData);
+        assertEquals(new Shape(1, 2, 2, 2), y.getShape());
+        // 5 -> 2 的自适应区间为 [0, 3) 与 [2, 5)
+        for (int c = 0; c < 2; c++) {
+            float expected = Float.NEGATIVE_INFINITY;
+            for (int h = 2; h < 5; h++) {
+                for (int w = 0; w < 3; w++) {
+                    expected = Math.max(expected, xData.get(0, c, h, w));
+                }
+            }
+            assertEquals(expected, y.get(0, c, 1, 0), 0f);
+        }
+        checkGradient(pool, xData);
+    }
+}
@@ -0,0 +1,158 @@
+package io.leavesfly.tinydl.test.embedd;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.mlearning.Model;
+import io.leavesfly.tinydl.mlearning.optimize.Adam;
+import io.leavesfly.tinydl.mlearning.optimize.SGD;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.nnet.RowSparseGrad;
+import io.leavesfly.tinydl.nnet.block.SequentialBlock;
+import io.leavesfly.tinydl.nnet.layer.embedd.Embedding;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 词嵌入层的单元测试：批量查表、按行稀疏的梯度以及优化器的惰性更新
+ */
+public class EmbeddingTest {
+
+    private static final int VOCAB_SIZE = 10;
+    private static final int EMBED_SIZE = 4;
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    private static Model newModel(Embedding embedding) {
+        SequentialBlock block = new SequentialBlock("block", new Shape(-1, -1), new Shape(-1, -1, EMBED_SIZE));
+        block.addLayer(embedding);
+        return new Model("model", block);
+    }
+
+    private static NdArray copy(NdArray value) {
+        return new NdArray(value.buffer.clone(), value.getShape());
+    }
+
+    /**
+     * 前向查表并以随机梯度反向传播，返回输出梯度
+     */
+    private static NdArray lookupAndBackward(Embedding embedding, float[][] ids) {
+        Variable y = embedding.layerForward(new Variable(new NdArray(ids)));
+        NdArray yGrad = NdArray.likeRandomN(y.getValue().getShape(), 7);
+        y.setGrad(yGrad);
+        y.backwardIterative();
+        return yGrad;
+    }
+
+    /**
+     * 按定义计算的稠密梯度：每个位置的输出梯度累加到对应的词向量行
+     */
+    private static NdArray denseGrad(float[][] ids, NdArray yGrad) {
+        NdArray grad = new NdArray(new Shape(VOCAB_SIZE, EMBED_SIZE));
+        int position = 0;
+        for (float[] row : ids) {
+            for (float id : row) {
+                for (int d = 0; d < EMBED_SIZE; d++) {
+                    grad.buffer[(int) id * EMBED_SIZE + d] += yGrad.buffer[position * EMBED_SIZE + d];
+                }
+                position++;
+            }
+        }
+        return grad;
+    }
+
+    @Test
+    public void testBatchedLookup() {
+        Embedding embedding = new Embedding("emb", VOCAB_SIZE, EMBED_SIZE);
+        NdArray weight = embedding.getWeight().getValue();
+        float[][] ids = {{1, 3, 5}, {2, 4, 1}};
+
+        NdArray y = embedding.layerForward(new Variable(new NdArray(ids))).getValue();
+        assertEquals(new Shape(2, 3, EMBED_SIZE), y.getShape());
+        for (int b = 0; b < 2; b++) {
+            for (int t = 0; t < 3; t++) {
+                for (int d = 0; d < EMBED_SIZE; d++) {
+                    assertEquals(weight.get((int) ids[b][t], d), y.get(b, t, d), 0f);
+                }
+            }
+        }
+
+        NdArray single = embedding.layerForward(new Variable(new NdArray(new float[]{4, 2}, new Shape(2)))).getValue();
+        assertEquals(new Shape(2, EMBED_SIZE), single.getShape());
+        assertEquals(weight.get(2, 1), single.get(1, 1), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLookupOutOfRange() {
+        Embedding embedding = new Embedding("emb", VOCAB_SIZE, EMBED_SIZE);
+        embedding.layerForward(new Variable(new NdArray(new float[][]{{1, VOCAB_SIZE}})));
+    }
+
+    @Test
+    public void testSparseGradMatchesDense() {
+        Embedding embedding = new Embedding("emb", VOCAB_SIZE, EMBED_SIZE);
+        float[][] ids = {{1, 3, 1}, {7, 3, 1}};
+        NdArray yGrad = lookupAndBackward(embedding, ids);
+
+        Parameter weight = embedding.getWeight();
+        assertNull(weight.getGrad());
+        RowSparseGrad sparseGrad = weight.getSparseGrad();
+        assertEquals(6, sparseGrad.size());
+        assertEquals(3, sparseGrad.coalesce().size());
+        assertArrayEquals(denseGrad(ids, yGrad).buffer, weight.getDenseGrad().buffer, 1e-6f);
+
+        weight.clearGrad();
+        assertNull(weight.getSparseGrad());
+        assertNull(weight.getDenseGrad());
+    }
+
+    @Test
+    public void testLazySgdMatchesDense() {
+        Embedding embedding = new Embedding("emb", VOCAB_SIZE, EMBED_SIZE);
+        float[][] ids = {{2, 5, 2}};
+        NdArray before = copy(embedding.getWeight().getValue());
+        NdArray yGrad = lookupAndBackward(embedding, ids);
+
+        new SGD(newModel(embedding), 0.1f).update();
+
+        NdArray expected = before.sub(denseGrad(ids, yGrad).mulNum(0.1f));
+        assertArrayEquals(expected.buffer, embedding.getWeight().getValue().buffer, 1e-6f);
+    }
+
+    @Test
+    public void testLazyAdamUpdatesTouchedRowsOnly() {
+        Embedding lazy = new Embedding("lazy", VOCAB_SIZE, EMBED_SIZE);
+        Embedding dense = new Embedding("dense", VOCAB_SIZE, EMBED_SIZE);
+        dense.getWeight().setValue(copy(lazy.getWeight().getValue()));
+        NdArray before = copy(lazy.getWeight().getValue());
+
+        float[][] ids = {{0, 6, 6, 9}};
+        NdArray yGrad = lookupAndBackward(lazy, ids);
+        dense.getWeight().setGrad(denseGrad(ids, yGrad));
+
+        new Adam(newModel(lazy)).update();
+        new Adam(newModel(dense)).update();
+
+        // 第一步时未出现的行在稠密Adam中的矩估计为0，不会更新，与惰性更新结果一致
+        assertArrayEquals(dense.getWeight().getValue().buffer, lazy.getWeight().getValue().buffer, 1e-6f);
+        for (int d = 0; d < EMBED_SIZE; d++) {
+            assertEquals(before.get(3, d), lazy.getWeight().getValue().get(3, d), 0f);
+            assertNotEquals(before.get(6, d), lazy.getWeight().getValue().get(6, d), 0f);
+        }
+    }
+}
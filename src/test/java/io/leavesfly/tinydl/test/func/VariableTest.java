@@ -416,5 +416,47 @@ public class VariableTest {
         assertArrayEquals(expectedYGrad, y.getGrad().getMatrix());
     }
     
+    @Test
+    public void testIterativeBackwardWithSharedIntermediate() {
+        // y = h * h + h，h = 3x，共享的h只能向前传播一次
+        Variable x = new Variable(new NdArray(new float[][]{{1, 2}}), "x");
+        Variable h = x.add(x).add(x);
+        Variable loss = h.mul(h).add(h).sum();
+        
+        loss.backwardIterative();
+        
+        // dloss/dx = (2h + 1) * 3
+        float[][] expectedGrad = {{21, 39}};
+        assertArrayEquals(expectedGrad, x.getGrad().getMatrix());
+    }
+    
+    @Test
+    public void testBackwardWithSharedIntermediate() {
+        // backward与backwardIterative使用相同的遍历，共享的h不会重复传播
+        Variable x = new Variable(new NdArray(new float[][]{{1, 2}}), "x");
+        Variable h = x.add(x).add(x);
+        Variable loss = h.mul(h).add(h).sum();
+        
+        loss.backward();
+        
+        float[][] expectedGrad = {{21, 39}};
+        assertArrayEquals(expectedGrad, x.getGrad().getMatrix());
+    }
+    
+    @Test
+    public void testUnchainBackwardLongChain() {
+        // 很长的计算图也不会导致栈溢出
+        Variable x = new Variable(new NdArray(1.0f), "x");
+        Variable y = x;
+        for (int i = 0; i < 100000; i++) {
+            y = y.add(x);
+        }
+        
+        y.unChainBackward();
+        
+        assertNull(y.getCreator());
+        assertEquals(100001f, y.getValue().getNumber().floatValue(), 1e-3f);
+    }
+    
     // 辅助方法 - 删除了isRequireGrad方法，因为Variable类没有这个方法
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package io.leavesfly.tinydl.test.func.graph;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.func.graph.GraphScheduler;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+/**
+ * 计算图并行调度器的单元测试
+ */
+public class GraphSchedulerTest {
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    private Parameter[] params() {
+        return new Parameter[]{
+                new Parameter(NdArray.likeRandomN(new Shape(3, 4), 3)),
+                new Parameter(NdArray.likeRandomN(new Shape(3, 4), 4)),
+                new Parameter(NdArray.likeRandomN(new Shape(4, 2), 5))};
+    }
+
+    /**
+     * 构造带有共享中间结果的菱形计算图：h被两个兄弟分支同时使用
+     */
+    private Variable buildDiamondLoss(Parameter[] p) {
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(5, 3), 1), "x", false);
+        Variable y = new Variable(NdArray.likeRandomN(new Shape(5, 2), 2), "y", false);
+        Variable h = x.linear(p[0], null);
+        Variable left = h.sigmoid();
+        Variable right = h.mul(x.linear(p[1], null).tanh());
+        return left.add(right).linear(p[2], null).meanSquaredError(y);
+    }
+
+    @Test
+    public void testParallelBackwardMatchesNumericalGradient() {
+        Parameter[] p = params();
+        buildDiamondLoss(p).backwardParallel();
+
+        // 共享的h必须在两个分支的梯度都累加之后才向下传播，用数值梯度校验
+        float eps = 1e-2f;
+        for (Parameter param : p) {
+            float[] buffer = param.getValue().buffer;
+            for (int j = 0; j < buffer.length; j++) {
+                float origin = buffer[j];
+                buffer[j] = origin + eps;
+                float plus = buildDiamondLoss(p).getValue().getNumber().floatValue();
+                buffer[j] = origin - eps;
+                float minus = buildDiamondLoss(p).getValue().getNumber().floatValue();
+                buffer[j] = origin;
+                float numerical = (plus - minus) / (2 * eps);
+                assertEquals(numerical, param.getGrad().buffer[j], 1e-2f * Math.max(1f, Math.abs(numerical)));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelBackwardMatchesSerialOnTree() {
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(5, 3), 1), "x", false);
+        Variable y = new Variable(NdArray.likeRandomN(new Shape(5, 2), 2), "y", false);
+        Parameter[] serial = params();
+        Parameter[] parallel = params();
+        x.linear(serial[0], null).sigmoid().add(x.linear(serial[1], null).tanh())
+                .linear(serial[2], null).meanSquaredError(y).backward();
+        x.linear(parallel[0], null).sigmoid().add(x.linear(parallel[1], null).tanh())
+                .linear(parallel[2], null).meanSquaredError(y).backwardParallel();
+
+        for (int i = 0; i < serial.length; i++) {
+            assertArrayEquals(serial[i].getGrad().buffer, parallel[i].getGrad().buffer, 1e-6f);
+        }
+    }
+
+    @Test
+    public void testParallelBackwardOnLongChain() {
+        // 单链上每个函数只有一个就绪的后继，在同一个线程中依次执行，不能随链长递归
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(1, 2), 6), "x");
+        Variable h = x;
+        for (int i = 0; i < 20000; i++) {
+            h = h.neg();
+        }
+        h.backwardParallel();
+
+        assertArrayEquals(new float[]{1f, 1f}, x.getGrad().buffer, 0f);
+    }
+
+    @Test
+    public void testInvokeAllKeepsOrder() {
+        List<Callable<Integer>> branches = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            final int index = i;
+            branches.add(() -> index * index);
+        }
+        List<Integer> results = GraphScheduler.invokeAll(branches);
+        for (int i = 0; i < 16; i++) {
+            assertEquals(Integer.valueOf(i * i), results.get(i));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.leavesfly.tinydl.test.func.graph;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.func.graph.ComputeGraph;
+import io.leavesfly.tinydl.func.graph.MemoryPlan;
+import io.leavesfly.tinydl.func.graph.MemoryPlanner;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 计算图捕获与内存规划器的单元测试
+ */
+public class MemoryPlannerTest {
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    private Variable buildMlpLoss() {
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(4, 3), 1), "x", false);
+        Variable y = new Variable(NdArray.likeRandomN(new Shape(4, 2), 2), "y", false);
+        Parameter w1 = new Parameter(NdArray.likeRandomN(new Shape(3, 5), 3));
+        Parameter b1 = new Parameter(NdArray.zeros(new Shape(1, 5)));
+        Parameter w2 = new Parameter(NdArray.likeRandomN(new Shape(5, 2), 4));
+        return x.linear(w1, b1).sigmoid().linear(w2, null).meanSquaredError(y);
+    }
+
+    @Test
+    public void testTraceTopologicalOrder() {
+        Variable loss = buildMlpLoss();
+        ComputeGraph graph = ComputeGraph.trace(loss);
+
+        assertEquals(4, graph.size());
+        assertSame(loss.getCreator(), graph.getFunctions().get(graph.size() - 1));
+        // 每个函数的输入的creator都必须排在它前面
+        for (int i = 0; i < graph.size(); i++) {
+            for (Variable input : graph.getFunctions().get(i).getInputs()) {
+                if (input.getCreator() != null) {
+                    assertTrue(graph.indexOf(input.getCreator()) < i);
+                }
+            }
+        }
+        assertEquals(5, graph.getLeaves().size());
+    }
+
+    @Test
+    public void testTrainingPlanHasNoOverlap() {
+        Variable loss = buildMlpLoss();
+        MemoryPlan plan = new MemoryPlanner(true).plan(ComputeGraph.trace(loss));
+        List<MemoryPlan.TensorPlan> tensors = plan.getTensors();
+
+        for (MemoryPlan.TensorPlan a : tensors) {
+            assertTrue(a.getBufferId() >= 0);
+            assertTrue(plan.getBufferBytes(a.getBufferId()) >= a.getBytes());
+            for (MemoryPlan.TensorPlan b : tensors) {
+                if (a == b || a.getBufferId() != b.getBufferId()) {
+                    continue;
+                }
+                boolean disjoint = a.getEnd() < b.getStart() || b.getEnd() < a.getStart()
+                        || (b.isInPlace() && a.getEnd() == b.getStart())
+                        || (a.isInPlace() && b.getEnd() == a.getStart());
+                assertTrue(a.getName() + " 与 " + b.getName() + " 的生命周期重叠", disjoint);
+            }
+        }
+        assertTrue(plan.getPlannedActivationBytes() <= plan.getNaiveActivationBytes());
+        assertTrue(plan.getPlannedActivationBytes() >= plan.getLivePeakBytes());
+        assertEquals((3 * 5 + 5 + 5 * 2) * Float.BYTES, plan.getParameterBytes());
+        assertEquals(4, plan.estimateMaxBatchSize(plan.getPlannedPeakBytes()));
+        assertNotNull(plan.report());
+    }
+
+    @Test
+    public void testInferenceElementWiseChainInPlace() {
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(8, 8), 5), "x", false);
+        Variable y = x.exp().neg().exp().neg();
+
+        MemoryPlan plan = new MemoryPlanner(false).plan(ComputeGraph.trace(y));
+
+        assertEquals(4, plan.getTensors().size());
+        assertEquals(1, plan.getBufferCount());
+        assertEquals(8 * 8 * Float.BYTES, plan.getPlannedActivationBytes());
+    }
+
+    @Test
+    public void testOutputKeptForBackwardIsNotReused() {
+        // Max的反向传播读取自己的输出，输出要存活到Max的反向步骤，不能被后面的Neg原地覆盖
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(4, 6), 6), "x");
+        Variable y = x.max(1, true).neg();
+
+        MemoryPlan plan = new MemoryPlanner(true).plan(ComputeGraph.trace(y));
+
+        MemoryPlan.TensorPlan max = null;
+        MemoryPlan.TensorPlan neg = null;
+        for (MemoryPlan.TensorPlan tensor : plan.getTensors()) {
+            if ("Max#0".equals(tensor.getName())) {
+                max = tensor;
+            } else if ("Neg#1".equals(tensor.getName())) {
+                neg = tensor;
+            }
+        }
+        assertNotNull(max);
+        assertNotNull(neg);
+        assertEquals(3, max.getEnd());
+        assertFalse(neg.isInPlace());
+        assertNotEquals(max.getBufferId(), neg.getBufferId());
+    }
+}
@@ -1,10 +1,17 @@
 package io.leavesfly.tinydl.test.func.loss;
 
 import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.func.loss.ChunkedLinearCE;
 import io.leavesfly.tinydl.func.loss.MeanSE;
+import io.leavesfly.tinydl.func.loss.SampledSoftmaxCE;
 import io.leavesfly.tinydl.func.loss.SigmoidCE;
 import io.leavesfly.tinydl.func.loss.SoftmaxCE;
+import io.leavesfly.tinydl.mlearning.loss.CandidateSampler;
+import io.leavesfly.tinydl.mlearning.loss.SampledSoftmaxLoss;
+import io.leavesfly.tinydl.mlearning.optimize.SGD;
 import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.Parameter;
 import io.leavesfly.tinydl.utils.Config;
 import org.junit.Test;
 import org.junit.Before;
@@ -81,6 +88,154 @@ public class LossFunctionsTest {
         assertEquals(pred.getValue().getShape(), pred.getGrad().getShape());
     }
     
+    @Test
+    public void testSoftmaxCEIgnoreIndexAndMask() {
+        NdArray predict = new NdArray(new float[][]{{2, 1, 3}, {1, 3, 2}, {0, 0, 5}});
+        NdArray label = new NdArray(new float[][]{{2}, {1}, {0}});
+        
+        // 第三个样本被ignoreIndex忽略，第二个样本被掩码忽略，只剩第一个样本
+        Variable pred = new Variable(predict, "pred");
+        NdArray mask = new NdArray(new float[][]{{1}, {0}, {1}});
+        Variable loss = pred.softmaxCrossEntropy(new Variable(label, "lab"), 0, mask);
+        
+        double lse = Math.log(Math.exp(2) + Math.exp(1) + Math.exp(3));
+        assertEquals(lse - 3, loss.getValue().getNumber().floatValue(), 1e-5);
+        
+        loss.backward();
+        
+        // 有效样本的梯度为 softmax - 1[label]，被忽略样本的梯度为0
+        float[][] grad = pred.getGrad().getMatrix();
+        assertEquals(Math.exp(2 - lse), grad[0][0], 1e-5);
+        assertEquals(Math.exp(1 - lse), grad[0][1], 1e-5);
+        assertEquals(Math.exp(3 - lse) - 1, grad[0][2], 1e-5);
+        for (int i = 1; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                assertEquals(0f, grad[i][j], 0f);
+            }
+        }
+    }
+    
+    @Test
+    public void testChunkedLinearCEMatchesUnfused() {
+        NdArray xData = NdArray.likeRandomN(new Shape(4, 5), 1);
+        NdArray wData = NdArray.likeRandomN(new Shape(5, 7), 2);
+        NdArray bData = NdArray.likeRandomN(new Shape(1, 7), 3);
+        NdArray label = new NdArray(new float[][]{{6}, {0}, {3}, {2}});
+        
+        Variable x1 = new Variable(xData, "x");
+        Variable w1 = new Variable(wData, "w");
+        Variable b1 = new Variable(bData, "b");
+        Variable expected = x1.linear(w1, b1).softmaxCrossEntropy(new Variable(label));
+        expected.backward();
+        
+        // 词表大小7按3切分，最后一块不满
+        Variable x2 = new Variable(xData, "x");
+        Variable w2 = new Variable(wData, "w");
+        Variable b2 = new Variable(bData, "b");
+        Variable actual = new ChunkedLinearCE(3, SoftmaxCE.NO_IGNORE).call(x2, w2, b2, new Variable(label));
+        actual.backward();
+        
+        assertEquals(expected.getValue().getNumber().floatValue(), actual.getValue().getNumber().floatValue(), 1e-5);
+        assertArrayEquals(x1.getGrad().buffer, x2.getGrad().buffer, 1e-5f);
+        assertArrayEquals(w1.getGrad().buffer, w2.getGrad().buffer, 1e-5f);
+        assertArrayEquals(b1.getGrad().buffer, b2.getGrad().buffer, 1e-5f);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testChunkedLinearCERejectsOutOfRangeLabel() {
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(2, 5), 1), "x");
+        Variable w = new Variable(NdArray.likeRandomN(new Shape(5, 7), 2), "w");
+        NdArray label = new NdArray(new float[][]{{1}, {7}});
+        new ChunkedLinearCE(3, SoftmaxCE.NO_IGNORE).call(x, w, new Variable(label));
+    }
+    
+    @Test
+    public void testSampledSoftmaxCEMatchesFullSoftmax() {
+        NdArray xData = NdArray.likeRandomN(new Shape(4, 5), 1);
+        NdArray wData = NdArray.likeRandomN(new Shape(5, 7), 2);
+        NdArray bData = NdArray.likeRandomN(new Shape(1, 7), 3);
+        NdArray label = new NdArray(new float[][]{{6}, {0}, {3}, {2}});
+        
+        Variable x1 = new Variable(xData, "x");
+        Variable w1 = new Variable(wData, "w");
+        Variable b1 = new Variable(bData, "b");
+        Variable expected = x1.linear(w1, b1).softmaxCrossEntropy(new Variable(label));
+        expected.backward();
+        
+        // 采样覆盖整个词表且logQ为0时，去掉与标签重复的采样后等价于完整Softmax
+        int[] sampled = {0, 1, 2, 3, 4, 5, 6};
+        Variable x2 = new Variable(xData, "x");
+        Parameter w2 = new Parameter(wData);
+        Parameter b2 = new Parameter(bData);
+        Variable actual = new SampledSoftmaxCE(w2, b2, sampled, new float[7], new float[4])
+                .call(x2, new Variable(label));
+        actual.backward();
+        
+        assertEquals(expected.getValue().getNumber().floatValue(), actual.getValue().getNumber().floatValue(), 1e-5);
+        assertArrayEquals(x1.getGrad().buffer, x2.getGrad().buffer, 1e-5f);
+        // 输出层参数只有按列稀疏的梯度：7个采样类别加4个真实类别
+        assertNull(w2.getGrad());
+        assertTrue(w2.getSparseGrad().isByColumn());
+        assertEquals(11, w2.getSparseGrad().size());
+        assertArrayEquals(w1.getGrad().buffer, w2.getDenseGrad().buffer, 1e-5f);
+        assertArrayEquals(b1.getGrad().buffer, b2.getDenseGrad().buffer, 1e-5f);
+        
+        // 推理模式回退到完整Softmax
+        SampledSoftmaxLoss lossFunc = new SampledSoftmaxLoss(new Parameter(wData), new Parameter(bData),
+                3, CandidateSampler.logUniform(7, 0));
+        Config.train = false;
+        Variable eval = lossFunc.loss(new Variable(label), new Variable(xData));
+        assertEquals(expected.getValue().getNumber().floatValue(), eval.getValue().getNumber().floatValue(), 1e-5);
+        
+        Config.train = true;
+        Variable train = lossFunc.loss(new Variable(label), new Variable(xData));
+        assertTrue(train.getValue().getNumber().floatValue() > 0);
+    }
+    
+    @Test
+    public void testSampledSoftmaxCELazySgdUpdatesTouchedColumns() {
+        NdArray xData = NdArray.likeRandomN(new Shape(2, 3), 4);
+        NdArray wData = NdArray.likeRandomN(new Shape(3, 10), 5);
+        NdArray bData = NdArray.likeRandomN(new Shape(10), 6);
+        NdArray label = new NdArray(new float[][]{{8}, {1}});
+        
+        Parameter w = new Parameter(new NdArray(wData.buffer.clone(), wData.getShape()));
+        Parameter b = new Parameter(new NdArray(bData.buffer.clone(), bData.getShape()));
+        new SampledSoftmaxCE(w, b, new int[]{2, 8, 2}, new float[3], new float[2])
+                .call(new Variable(xData), new Variable(label)).backward();
+        NdArray wGrad = w.getDenseGrad();
+        NdArray bGrad = b.getDenseGrad();
+        
+        new SGD(null, 0.1f).updateOne(w);
+        new SGD(null, 0.1f).updateOne(b);
+        assertArrayEquals(wData.sub(wGrad.mulNum(0.1f)).buffer, w.getValue().buffer, 1e-6f);
+        assertArrayEquals(bData.sub(bGrad.mulNum(0.1f)).buffer, b.getValue().buffer, 1e-6f);
+        // 未被采样也不是标签的列保持不变
+        for (int k = 0; k < 3; k++) {
+            assertEquals(wData.get(k, 5), w.getValue().get(k, 5), 0f);
+        }
+    }
+    
+    @Test
+    public void testCandidateSamplerProbabilities() {
+        float[] counts = {10, 5, 0, 1};
+        CandidateSampler[] samplers = {
+                CandidateSampler.logUniform(100, 1),
+                CandidateSampler.unigram(counts, 0.75, 1)
+        };
+        for (CandidateSampler sampler : samplers) {
+            double sum = 0.0;
+            for (int i = 0; i < sampler.getVocabSize(); i++) {
+                sum += sampler.probability(i);
+            }
+            assertEquals(1.0, sum, 1e-6);
+            for (int id : sampler.sample(1000)) {
+                assertTrue(id >= 0 && id < sampler.getVocabSize());
+                assertTrue(sampler.probability(id) > 0);
+            }
+        }
+    }
+    
     @Test
     public void testSigmoidCE() {
         SigmoidCE sigmoidCEFunc = new SigmoidCE();
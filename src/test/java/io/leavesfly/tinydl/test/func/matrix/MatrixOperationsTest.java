@@ -465,4 +465,33 @@ public class MatrixOperationsTest {
         NdArray softmaxResult = softmaxFunc.forward(singleElement);
         assertEquals(1f, softmaxResult.getNumber().floatValue(), 1e-6);
     }
+
+    @Test
+    public void testFusedLinearMatchesUnfused() {
+        NdArray xValue = NdArray.likeRandomN(new Shape(4, 3), 11);
+        NdArray wValue = NdArray.likeRandomN(new Shape(3, 5), 12);
+        NdArray bValue = NdArray.likeRandomN(new Shape(1, 5), 13);
+
+        for (Config.ActiveFunc func : new Config.ActiveFunc[]{Config.ActiveFunc.ReLU,
+                Config.ActiveFunc.Sigmoid, Config.ActiveFunc.Tanh}) {
+            Variable x1 = new Variable(xValue);
+            Variable w1 = new Variable(wValue);
+            Variable b1 = new Variable(bValue);
+            Variable fused = x1.linear(w1, b1, func);
+            fused.sum().backward();
+
+            Variable x2 = new Variable(xValue);
+            Variable w2 = new Variable(wValue);
+            Variable b2 = new Variable(bValue);
+            Variable linear = x2.linear(w2, b2);
+            Variable unfused = func == Config.ActiveFunc.ReLU ? linear.relu()
+                    : func == Config.ActiveFunc.Sigmoid ? linear.sigmoid() : linear.tanh();
+            unfused.sum().backward();
+
+            assertArrayEquals(unfused.getValue().buffer, fused.getValue().buffer, 1e-5f);
+            assertArrayEquals(x2.getGrad().buffer, x1.getGrad().buffer, 1e-5f);
+            assertArrayEquals(w2.getGrad().buffer, w1.getGrad().buffer, 1e-5f);
+            assertArrayEquals(b2.getGrad().buffer, b1.getGrad().buffer, 1e-5f);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,214 @@
+package io.leavesfly.tinydl.test.norm;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.block.SequentialBlock;
+import io.leavesfly.tinydl.nnet.layer.cnn.ConvLayer;
+import io.leavesfly.tinydl.nnet.layer.dnn.LinearLayer;
+import io.leavesfly.tinydl.nnet.layer.norm.BatchNorm;
+import io.leavesfly.tinydl.test.GradientCheck;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 批量归一化的单元测试：与按定义计算的结果及数值梯度对比，以及推理时折叠进前一层
+ */
+public class BatchNormTest {
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    private static BatchNorm newBatchNorm(Shape inputShape) {
+        BatchNorm bn = new BatchNorm("bn", inputShape);
+        int channels = inputShape.dimension[1];
+        bn.getParamBy("gamma").setValue(NdArray.likeRandomN(new Shape(channels), 3));
+        bn.getParamBy("beta").setValue(NdArray.likeRandomN(new Shape(channels), 4));
+        return bn;
+    }
+
+    /**
+     * 按定义计算：两次遍历求每个通道的均值与方差
+     */
+    private static NdArray naiveBatchNorm(NdArray x, float[] gamma, float[] beta, float eps) {
+        int n = x.shape.dimension[0], c = x.shape.dimension[1];
+        int inner = x.buffer.length / (n * c);
+        NdArray y = new NdArray(x.getShape());
+        for (int ch = 0; ch < c; ch++) {
+            double mean = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < inner; j++) {
+                    mean += x.buffer[(i * c + ch) * inner + j];
+                }
+            }
+            mean /= n * inner;
+            double var = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < inner; j++) {
+                    double diff = x.buffer[(i * c + ch) * inner + j] - mean;
+                    var += diff * diff;
+                }
+            }
+            var /= n * inner;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < inner; j++) {
+                    int index = (i * c + ch) * inner + j;
+                    y.buffer[index] = (float) ((x.buffer[index] - mean) / Math.sqrt(var + eps) * gamma[ch] + beta[ch]);
+                }
+            }
+        }
+        return y;
+    }
+
+    private static void checkAllGradients(BatchNorm bn, Shape shape) {
+        NdArray xData = NdArray.likeRandomN(shape, 7);
+        Variable x = new Variable(xData, "x");
+        Variable y = bn.layerForward(x);
+        NdArray r = NdArray.likeRandomN(shape, 8);
+        y.setGrad(r);
+        y.backwardIterative();
+
+        GradientCheck.check(() -> bn.forward(xData), r, xData.buffer, x.getGrad(), 1e-2f, 2e-2f);
+        for (String name : new String[]{"gamma", "beta"}) {
+            GradientCheck.check(() -> bn.forward(xData), r, bn.getParamBy(name).getValue().buffer,
+                    bn.getParamBy(name).getGrad(), 1e-2f, 2e-2f);
+        }
+    }
+
+    @Test
+    public void testTrainingForwardMatchesDefinition() {
+        Shape shape = new Shape(3, 4, 5, 5);
+        BatchNorm bn = newBatchNorm(shape);
+        NdArray x = NdArray.likeRandomN(shape, 5).mulNum(2f).add(NdArray.ones(shape));
+
+        NdArray expected = naiveBatchNorm(x, bn.getParamBy("gamma").getValue().buffer,
+                bn.getParamBy("beta").getValue().buffer, 1e-5f);
+        assertArrayEquals(expected.buffer, bn.forward(x).buffer, 1e-4f);
+
+        // 运行时均值从0开始以动量0.9更新
+        float sum = 0f;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 25; j++) {
+                sum += x.buffer[(i * 4 + 2) * 25 + j];
+            }
+        }
+        assertEquals(0.1f * sum / 75, bn.getRunningMean().buffer[2], 1e-5f);
+    }
+
+    @Test
+    public void testTrainingGradients() {
+        checkAllGradients(newBatchNorm(new Shape(2, 3, 3, 3)), new Shape(2, 3, 3, 3));
+        checkAllGradients(newBatchNorm(new Shape(6, 4)), new Shape(6, 4));
+    }
+
+    @Test
+    public void testInferenceUsesRunningStats() {
+        Shape shape = new Shape(2, 3, 4, 4);
+        BatchNorm bn = newBatchNorm(shape);
+        bn.forward(NdArray.likeRandomN(shape, 1).mulNum(3f));
+        bn.setTraining(false);
+
+        NdArray x = NdArray.likeRandomN(shape, 2);
+        NdArray y = bn.forward(x);
+        for (int c = 0; c < 3; c++) {
+            float scale = bn.getParamBy("gamma").getValue().buffer[c]
+                    / (float) Math.sqrt(bn.getRunningVar().buffer[c] + 1e-5f);
+            float expected = (x.get(1, c, 2, 3) - bn.getRunningMean().buffer[c]) * scale
+                    + bn.getParamBy("beta").getValue().buffer[c];
+            assertEquals(expected, y.get(1, c, 2, 3), 1e-5f);
+        }
+        checkAllGradients(bn, shape);
+    }
+
+    @Test
+    public void testFoldIntoConvLayer() {
+        Shape inputShape = new Shape(2, 3, 6, 6);
+        for (boolean useBias : new boolean[]{true, false}) {
+            ConvLayer conv = new ConvLayer("conv", inputShape, 4, 3, 3, 1, 1, useBias);
+            BatchNorm bn = newBatchNorm(conv.getOutputShape());
+            bn.forward(conv.forward(NdArray.likeRandomN(inputShape, 9)));
+            bn.setTraining(false);
+
+            NdArray x = NdArray.likeRandomN(inputShape, 10);
+            NdArray expected = bn.forward(conv.forward(x));
+            bn.foldInto(conv);
+            assertTrue(bn.isFolded());
+            assertArrayEquals(expected.buffer, bn.forward(conv.forward(x)).buffer, 1e-4f);
+        }
+    }
+
+    @Test
+    public void testFoldIntoConvLayerAfterInference() {
+        Shape inputShape = new Shape(2, 3, 6, 6);
+        ConvLayer conv = new ConvLayer("conv", inputShape, 4, 3, 3, 1, 1, true);
+        BatchNorm bn = newBatchNorm(conv.getOutputShape());
+        bn.forward(conv.forward(NdArray.likeRandomN(inputShape, 9)));
+        bn.setTraining(false);
+
+        // 推理模式下的一次前向会缓存卷积核的Winograd变换，折叠后必须重新计算
+        Config.train = false;
+        NdArray x = NdArray.likeRandomN(inputShape, 10);
+        NdArray expected = bn.forward(conv.forward(x));
+        bn.foldInto(conv);
+        assertArrayEquals(expected.buffer, bn.forward(conv.forward(x)).buffer, 1e-4f);
+    }
+
+    @Test
+    public void testFoldLinearLayerInBlock() {
+        LinearLayer linear = new LinearLayer("fc", 5, 4, false);
+        BatchNorm bn = newBatchNorm(new Shape(-1, 4));
+        SequentialBlock block = new SequentialBlock("block", new Shape(-1, 5), new Shape(-1, 4));
+        block.addLayer(linear);
+        block.addLayer(bn);
+
+        block.layerForward(new Variable(NdArray.likeRandomN(new Shape(8, 5), 11)));
+        bn.setTraining(false);
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(3, 5), 12));
+        NdArray expected = block.layerForward(x).getValue();
+
+        assertEquals(1, block.foldBatchNorm());
+        assertEquals(0, block.foldBatchNorm());
+        assertArrayEquals(expected.buffer, block.layerForward(x).getValue().buffer, 1e-4f);
+    }
+
+    @Test
+    public void testLinearLayerWithActiveFuncIsNotFolded() {
+        LinearLayer linear = new LinearLayer("fc", 5, 4, true, Config.ActiveFunc.ReLU);
+        BatchNorm bn = newBatchNorm(new Shape(-1, 4));
+        SequentialBlock block = new SequentialBlock("block", new Shape(-1, 5), new Shape(-1, 4));
+        block.addLayer(linear);
+        block.addLayer(bn);
+
+        block.layerForward(new Variable(NdArray.likeRandomN(new Shape(8, 5), 13)));
+        bn.setTraining(false);
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(3, 5), 14));
+        NdArray expected = block.layerForward(x).getValue();
+        float[] weight = linear.getParamBy("w").getValue().buffer.clone();
+
+        assertEquals(0, block.foldBatchNorm());
+        assertFalse(bn.isFolded());
+        assertArrayEquals(expected.buffer, block.layerForward(x).getValue().buffer, 1e-6f);
+
+        try {
+            bn.foldInto(linear);
+            fail("folding into a LinearLayer with a fused activation should fail");
+        } catch (IllegalStateException e) {
+            assertFalse(bn.isFolded());
+            assertArrayEquals(weight, linear.getParamBy("w").getValue().buffer, 0f);
+        }
+    }
+}
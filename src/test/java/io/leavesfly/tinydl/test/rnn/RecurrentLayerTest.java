@@ -0,0 +1,373 @@
+package io.leavesfly.tinydl.test.rnn;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.PackedSequence;
+import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.nnet.RnnLayer;
+import io.leavesfly.tinydl.nnet.block.seq2seq.Seq2SeqEncoder;
+import io.leavesfly.tinydl.nnet.layer.rnn.GruLayer;
+import io.leavesfly.tinydl.nnet.layer.rnn.LstmLayer;
+import io.leavesfly.tinydl.nnet.layer.rnn.SimpleRnnLayer;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 融合门LSTM、GRU层的单元测试，与按公式逐门计算的结果及数值梯度对比；
+ * 整序列模式与逐时间步模式的输出和梯度对比；变长序列打包后（包括Seq2SeqEncoder的变长入口）与逐条处理的结果对比
+ */
+public class RecurrentLayerTest {
+
+    private static final int BATCH = 2;
+    private static final int INPUT = 3;
+    private static final int HIDDEN = 4;
+    private static final int STEPS = 3;
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    private static float sigmoid(float v) {
+        return (float) (1.0 / (1.0 + Math.exp(-v)));
+    }
+
+    /**
+     * 计算 [x, h] * w[:, col] + b[col]
+     */
+    private static float affine(NdArray x, float[] h, int n, NdArray w, NdArray b, int col) {
+        int columns = w.getShape().getColumn();
+        float sum = b.buffer[col];
+        for (int i = 0; i < INPUT; i++) {
+            sum += x.buffer[n * INPUT + i] * w.buffer[i * columns + col];
+        }
+        for (int i = 0; i < HIDDEN; i++) {
+            sum += h[n * HIDDEN + i] * w.buffer[(INPUT + i) * columns + col];
+        }
+        return sum;
+    }
+
+    private static float[][] naiveLstm(NdArray[] xs, NdArray w, NdArray b) {
+        float[] h = new float[BATCH * HIDDEN];
+        float[] c = new float[BATCH * HIDDEN];
+        float[][] outputs = new float[xs.length][];
+        for (int t = 0; t < xs.length; t++) {
+            float[] nextH = new float[h.length];
+            for (int n = 0; n < BATCH; n++) {
+                for (int j = 0; j < HIDDEN; j++) {
+                    float f = sigmoid(affine(xs[t], h, n, w, b, j));
+                    float i = sigmoid(affine(xs[t], h, n, w, b, HIDDEN + j));
+                    float o = sigmoid(affine(xs[t], h, n, w, b, 2 * HIDDEN + j));
+                    float u = (float) Math.tanh(affine(xs[t], h, n, w, b, 3 * HIDDEN + j));
+                    int index = n * HIDDEN + j;
+                    c[index] = f * c[index] + i * u;
+                    nextH[index] = o * (float) Math.tanh(c[index]);
+                }
+            }
+            h = nextH;
+            outputs[t] = h;
+        }
+        return outputs;
+    }
+
+    private static float[][] naiveGru(NdArray[] xs, NdArray gw, NdArray gb, NdArray cw, NdArray cb) {
+        float[] h = new float[BATCH * HIDDEN];
+        float[][] outputs = new float[xs.length][];
+        for (int t = 0; t < xs.length; t++) {
+            float[] rh = new float[h.length];
+            float[] z = new float[h.length];
+            for (int n = 0; n < BATCH; n++) {
+                for (int j = 0; j < HIDDEN; j++) {
+                    int index = n * HIDDEN + j;
+                    z[index] = sigmoid(affine(xs[t], h, n, gw, gb, j));
+                    rh[index] = sigmoid(affine(xs[t], h, n, gw, gb, HIDDEN + j)) * h[index];
+                }
+            }
+            float[] nextH = new float[h.length];
+            for (int n = 0; n < BATCH; n++) {
+                for (int j = 0; j < HIDDEN; j++) {
+                    int index = n * HIDDEN + j;
+                    float u = (float) Math.tanh(affine(xs[t], rh, n, cw, cb, j));
+                    nextH[index] = (1f - z[index]) * u + z[index] * h[index];
+                }
+            }
+            h = nextH;
+            outputs[t] = h;
+        }
+        return outputs;
+    }
+
+    private static NdArray[] randomSequence(int seed) {
+        NdArray[] xs = new NdArray[STEPS];
+        for (int t = 0; t < STEPS; t++) {
+            xs[t] = NdArray.likeRandomN(new Shape(BATCH, INPUT), seed + t);
+        }
+        return xs;
+    }
+
+    /**
+     * 沿序列运行基于NdArray的前向传播，返回 sum_t <h_t, r_t>
+     */
+    private static float weightedLoss(RnnLayer layer, NdArray[] xs, NdArray[] rs) {
+        layer.resetState();
+        float sum = 0f;
+        for (int t = 0; t < xs.length; t++) {
+            NdArray h = layer.forward(xs[t]);
+            for (int i = 0; i < h.buffer.length; i++) {
+                sum += h.buffer[i] * rs[t].buffer[i];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 检查沿时间反向传播得到的参数梯度和输入梯度与中心差分一致
+     */
+    private static void checkGradients(RnnLayer layer, NdArray[] xs) {
+        NdArray[] rs = new NdArray[STEPS];
+        for (int t = 0; t < STEPS; t++) {
+            rs[t] = NdArray.likeRandomN(new Shape(BATCH, HIDDEN), 100 + t);
+        }
+
+        layer.resetState();
+        Variable[] xVars = new Variable[STEPS];
+        Variable loss = null;
+        for (int t = 0; t < STEPS; t++) {
+            xVars[t] = new Variable(xs[t], "x" + t);
+            Variable term = layer.layerForward(xVars[t]).mul(new Variable(rs[t]).setRequireGrad(false)).sum();
+            loss = loss == null ? term : loss.add(term);
+        }
+        loss.backwardIterative();
+
+        float eps = 1e-2f;
+        for (Parameter param : layer.getParams().values()) {
+            float[] data = param.getValue().buffer;
+            for (int i = 0; i < data.length; i += 5) {
+                float numeric = numericGrad(layer, xs, rs, data, i, eps);
+                assertEquals(param.getName(), numeric, param.getGrad().buffer[i], 2e-2f * Math.max(1f, Math.abs(numeric)));
+            }
+        }
+        for (int t = 0; t < STEPS; t++) {
+            for (int i = 0; i < xs[t].buffer.length; i++) {
+                float numeric = numericGrad(layer, xs, rs, xs[t].buffer, i, eps);
+                assertEquals(numeric, xVars[t].getGrad().buffer[i], 2e-2f * Math.max(1f, Math.abs(numeric)));
+            }
+        }
+    }
+
+    private static float numericGrad(RnnLayer layer, NdArray[] xs, NdArray[] rs, float[] data, int i, float eps) {
+        float origin = data[i];
+        data[i] = origin + eps;
+        float plus = weightedLoss(layer, xs, rs);
+        data[i] = origin - eps;
+        float minus = weightedLoss(layer, xs, rs);
+        data[i] = origin;
+        return (plus - minus) / (2 * eps);
+    }
+
+    @Test
+    public void testLstmMatchesGateFormula() {
+        LstmLayer lstm = new LstmLayer("lstm", new Shape(-1, INPUT), new Shape(-1, HIDDEN));
+        Parameter bias = lstm.getParamBy("lstm.bias");
+        for (int i = 0; i < bias.getValue().buffer.length; i++) {
+            bias.getValue().buffer[i] = 0.1f * (i % 5) - 0.2f;
+        }
+        NdArray[] xs = randomSequence(1);
+        float[][] expected = naiveLstm(xs, lstm.getParamBy("lstm.weight").getValue(), bias.getValue());
+
+        lstm.resetState();
+        for (int t = 0; t < STEPS; t++) {
+            NdArray graph = lstm.layerForward(new Variable(xs[t])).getValue();
+            assertEquals(new Shape(BATCH, HIDDEN), graph.getShape());
+            assertArrayEquals(expected[t], graph.buffer, 1e-5f);
+        }
+        lstm.resetState();
+        for (int t = 0; t < STEPS; t++) {
+            assertArrayEquals(expected[t], lstm.forward(xs[t]).buffer, 1e-5f);
+        }
+        checkGradients(lstm, xs);
+    }
+
+    @Test
+    public void testGruMatchesGateFormula() {
+        GruLayer gru = new GruLayer("gru", new Shape(-1, INPUT), new Shape(-1, HIDDEN));
+        Parameter gateBias = gru.getParamBy("gru.gateBias");
+        for (int i = 0; i < gateBias.getValue().buffer.length; i++) {
+            gateBias.getValue().buffer[i] = 0.1f * (i % 3) - 0.1f;
+        }
+        NdArray[] xs = randomSequence(2);
+        float[][] expected = naiveGru(xs, gru.getParamBy("gru.gateWeight").getValue(), gateBias.getValue(),
+                gru.getParamBy("gru.candidateWeight").getValue(), gru.getParamBy("gru.candidateBias").getValue());
+
+        gru.resetState();
+        for (int t = 0; t < STEPS; t++) {
+            assertArrayEquals(expected[t], gru.layerForward(new Variable(xs[t])).getValue().buffer, 1e-5f);
+        }
+        gru.resetState();
+        for (int t = 0; t < STEPS; t++) {
+            assertArrayEquals(expected[t], gru.forward(xs[t]).buffer, 1e-5f);
+        }
+        checkGradients(gru, xs);
+    }
+
+    /**
+     * 整序列模式的输出和梯度应与逐时间步模式一致
+     */
+    private static void checkSequenceMatchesSteps(RnnLayer layer) {
+        Shape shape = new Shape(BATCH, STEPS, INPUT);
+        NdArray xData = NdArray.likeRandomN(shape, 21);
+        NdArray r = NdArray.likeRandomN(new Shape(BATCH, STEPS, HIDDEN), 22);
+
+        // 逐时间步：拆出每个时间步的输入，梯度作为参照
+        layer.resetState();
+        layer.clearGrads();
+        Variable[] xs = new Variable[STEPS];
+        Variable loss = null;
+        float[][] stepOutputs = new float[STEPS][];
+        for (int t = 0; t < STEPS; t++) {
+            NdArray xt = new NdArray(new Shape(BATCH, INPUT));
+            NdArray rt = new NdArray(new Shape(BATCH, HIDDEN));
+            for (int n = 0; n < BATCH; n++) {
+                System.arraycopy(xData.buffer, (n * STEPS + t) * INPUT, xt.buffer, n * INPUT, INPUT);
+                System.arraycopy(r.buffer, (n * STEPS + t) * HIDDEN, rt.buffer, n * HIDDEN, HIDDEN);
+            }
+            xs[t] = new Variable(xt);
+            Variable h = layer.layerForward(xs[t]);
+            stepOutputs[t] = h.getValue().buffer;
+            Variable term = h.mul(new Variable(rt).setRequireGrad(false)).sum();
+            loss = loss == null ? term : loss.add(term);
+        }
+        loss.backwardIterative();
+        Map<String, float[]> expectedGrads = new HashMap<>();
+        for (Map.Entry<String, Parameter> entry : layer.getParams().entrySet()) {
+            expectedGrads.put(entry.getKey(), entry.getValue().getGrad().buffer.clone());
+        }
+
+        layer.clearGrads();
+        Variable x = new Variable(xData);
+        Variable y = layer.layerForwardSequence(x);
+        assertEquals(new Shape(BATCH, STEPS, HIDDEN), y.getValue().getShape());
+        for (int t = 0; t < STEPS; t++) {
+            for (int n = 0; n < BATCH; n++) {
+                for (int j = 0; j < HIDDEN; j++) {
+                    assertEquals(stepOutputs[t][n * HIDDEN + j], y.getValue().buffer[(n * STEPS + t) * HIDDEN + j], 1e-5f);
+                }
+            }
+        }
+        Shape flat = new Shape(BATCH * STEPS, HIDDEN);
+        y.reshape(flat).mul(new Variable(r.reshape(flat)).setRequireGrad(false)).sum().backwardIterative();
+
+        for (Map.Entry<String, Parameter> entry : layer.getParams().entrySet()) {
+            assertArrayEquals(entry.getKey(), expectedGrads.get(entry.getKey()), entry.getValue().getGrad().buffer, 1e-4f);
+        }
+        for (int t = 0; t < STEPS; t++) {
+            for (int n = 0; n < BATCH; n++) {
+                for (int i = 0; i < INPUT; i++) {
+                    assertEquals(xs[t].getGrad().buffer[n * INPUT + i], x.getGrad().buffer[(n * STEPS + t) * INPUT + i], 1e-4f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSequenceModeMatchesStepMode() {
+        checkSequenceMatchesSteps(new SimpleRnnLayer("rnn", new Shape(-1, INPUT), new Shape(-1, HIDDEN)));
+        checkSequenceMatchesSteps(new LstmLayer("lstm", new Shape(-1, INPUT), new Shape(-1, HIDDEN)));
+        checkSequenceMatchesSteps(new GruLayer("gru", new Shape(-1, INPUT), new Shape(-1, HIDDEN)));
+    }
+
+    /**
+     * 打包的变长批次应与每条序列单独处理的结果一致，填充位置输出为0且没有梯度
+     */
+    private static void checkPackedMatchesSeparate(RnnLayer layer) {
+        int[] lengths = {2, STEPS, 1};
+        int batch = lengths.length;
+        NdArray xData = NdArray.likeRandomN(new Shape(batch, STEPS, INPUT), 31);
+        NdArray r = NdArray.likeRandomN(new Shape(batch * STEPS, HIDDEN), 32);
+
+        layer.clearGrads();
+        Variable x = new Variable(xData);
+        PackedSequence packed = PackedSequence.pack(x, lengths);
+        assertArrayEquals(new int[]{3, 2, 1}, packed.getBatchSizes());
+        Variable y = layer.layerForwardPacked(packed).unpack();
+        assertEquals(new Shape(batch, STEPS, HIDDEN), y.getValue().getShape());
+        y.reshape(new Shape(batch * STEPS, HIDDEN)).mul(new Variable(r).setRequireGrad(false)).sum().backwardIterative();
+
+        Map<String, float[]> expectedGrads = new HashMap<>();
+        for (Map.Entry<String, Parameter> entry : layer.getParams().entrySet()) {
+            expectedGrads.put(entry.getKey(), entry.getValue().getGrad().buffer.clone());
+            entry.getValue().clearGrad();
+        }
+        for (int n = 0; n < batch; n++) {
+            int length = lengths[n];
+            NdArray single = new NdArray(new Shape(1, length, INPUT));
+            System.arraycopy(xData.buffer, n * STEPS * INPUT, single.buffer, 0, length * INPUT);
+            NdArray rSingle = new NdArray(new Shape(length, HIDDEN));
+            System.arraycopy(r.buffer, n * STEPS * HIDDEN, rSingle.buffer, 0, length * HIDDEN);
+
+            Variable xs = new Variable(single);
+            Variable ys = layer.layerForwardSequence(xs);
+            ys.reshape(new Shape(length, HIDDEN)).mul(new Variable(rSingle).setRequireGrad(false)).sum().backwardIterative();
+            for (int i = 0; i < STEPS * HIDDEN; i++) {
+                float expected = i < length * HIDDEN ? ys.getValue().buffer[i] : 0f;
+                assertEquals(expected, y.getValue().buffer[n * STEPS * HIDDEN + i], 1e-5f);
+            }
+            for (int i = 0; i < STEPS * INPUT; i++) {
+                float expected = i < length * INPUT ? xs.getGrad().buffer[i] : 0f;
+                assertEquals(expected, x.getGrad().buffer[n * STEPS * INPUT + i], 1e-4f);
+            }
+        }
+        for (Map.Entry<String, Parameter> entry : layer.getParams().entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue().getGrad().buffer, expectedGrads.get(entry.getKey()), 1e-4f);
+        }
+    }
+
+    @Test
+    public void testPackedSequenceMatchesSeparateSequences() {
+        checkPackedMatchesSeparate(new SimpleRnnLayer("rnn", new Shape(-1, INPUT), new Shape(-1, HIDDEN)));
+        checkPackedMatchesSeparate(new LstmLayer("lstm", new Shape(-1, INPUT), new Shape(-1, HIDDEN)));
+        checkPackedMatchesSeparate(new GruLayer("gru", new Shape(-1, INPUT), new Shape(-1, HIDDEN)));
+    }
+
+    @Test
+    public void testSeq2SeqEncoderPackedMatchesSeparateSequences() {
+        // Dropout比率为0且处于推理模式，输出是确定的
+        Config.train = false;
+        Seq2SeqEncoder encoder = new Seq2SeqEncoder("encoder", new Shape(-1, 4), new Shape(-1, 4, HIDDEN),
+                10, INPUT, HIDDEN, 0.0);
+        int maxLength = 4;
+        int[] lengths = {2, 4};
+        float[][] ids = {{3, 1, 0, 0}, {5, 2, 7, 9}};
+
+        Variable out = encoder.layerForward(new Variable(new NdArray(ids)), lengths);
+        assertEquals(new Shape(2, maxLength, HIDDEN), out.getValue().getShape());
+
+        for (int n = 0; n < ids.length; n++) {
+            float[][] single = {Arrays.copyOf(ids[n], lengths[n])};
+            NdArray expected = encoder.layerForward(new Variable(new NdArray(single))).getValue();
+            for (int t = 0; t < maxLength; t++) {
+                for (int h = 0; h < HIDDEN; h++) {
+                    float want = t < lengths[n] ? expected.buffer[t * HIDDEN + h] : 0f;
+                    assertEquals(want, out.getValue().buffer[(n * maxLength + t) * HIDDEN + h], 1e-5f);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package io.leavesfly.tinydl.test.transformer;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.modality.nlp.GPT2Model;
+import io.leavesfly.tinydl.modality.nlp.GenerationRequest;
+import io.leavesfly.tinydl.modality.nlp.TokenListener;
+import io.leavesfly.tinydl.modality.nlp.TokenSampler;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 批量采样生成的单元测试：与逐条完整前向的贪心解码对比，以及采样器的候选集合与概率
+ */
+public class GenerationTest {
+
+    private static final int VOCAB_SIZE = 20;
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = false;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    private static GPT2Model newModel() {
+        return new GPT2Model("gpt", VOCAB_SIZE, 8, 2, 2, 16, 32, 0.0);
+    }
+
+    /**
+     * 每一步都对完整前缀做前向计算的贪心解码
+     */
+    private static int[] naiveGreedy(GPT2Model model, int[] prompt, int maxNewTokens) {
+        int[] tokens = Arrays.copyOf(prompt, prompt.length + maxNewTokens);
+        for (int t = prompt.length; t < tokens.length; t++) {
+            NdArray input = new NdArray(new Shape(1, t));
+            for (int i = 0; i < t; i++) {
+                input.buffer[i] = tokens[i];
+            }
+            NdArray logits = model.layerForward(new Variable(input)).getValue();
+            tokens[t] = TokenSampler.argmax(logits.buffer, (t - 1) * VOCAB_SIZE, VOCAB_SIZE);
+        }
+        return Arrays.copyOfRange(tokens, prompt.length, tokens.length);
+    }
+
+    private static float[] logitsOf(double... probabilities) {
+        float[] logits = new float[probabilities.length];
+        for (int i = 0; i < logits.length; i++) {
+            logits[i] = (float) Math.log(probabilities[i]);
+        }
+        return logits;
+    }
+
+    @Test
+    public void testBatchedGreedyMatchesSequential() {
+        GPT2Model model = newModel();
+        int[][] prompts = {{1, 2, 3}, {4, 5, 6, 7, 8, 9}, {10}, {11, 12, 13}};
+        List<GenerationRequest> requests = new ArrayList<>();
+        for (int[] prompt : prompts) {
+            requests.add(new GenerationRequest(prompt, 6));
+        }
+        List<int[]> results = model.generate(requests, null);
+        for (int i = 0; i < prompts.length; i++) {
+            assertArrayEquals(naiveGreedy(model, prompts[i], 6), results.get(i));
+        }
+    }
+
+    @Test
+    public void testStopTokensAndStreaming() {
+        GPT2Model model = newModel();
+        int[] prompt = {3, 1, 4};
+        int[] greedy = naiveGreedy(model, prompt, 8);
+
+        GenerationRequest stopped = new GenerationRequest(prompt, 8);
+        stopped.setStopTokens(greedy[2]);
+        GenerationRequest limited = new GenerationRequest(new int[]{5, 9}, 3);
+
+        List<Integer> streamed = new ArrayList<>();
+        int[][] finished = new int[2][];
+        List<int[]> results = model.generate(Arrays.asList(stopped, limited), new TokenListener() {
+            @Override
+            public void onToken(int requestIndex, int token) {
+                if (requestIndex == 0) {
+                    streamed.add(token);
+                }
+            }
+
+            @Override
+            public void onFinish(int requestIndex, int[] tokens) {
+                finished[requestIndex] = tokens;
+            }
+        });
+
+        // 停止token第一次出现之前的token按生成顺序逐个回调
+        int stopAt = 0;
+        while (greedy[stopAt] != greedy[2]) {
+            stopAt++;
+        }
+        int[] expected = Arrays.copyOf(greedy, stopAt);
+        assertArrayEquals(expected, results.get(0));
+        assertArrayEquals(expected, streamed.stream().mapToInt(Integer::intValue).toArray());
+        assertArrayEquals(expected, finished[0]);
+        assertEquals(3, results.get(1).length);
+        assertArrayEquals(results.get(1), finished[1]);
+    }
+
+    @Test
+    public void testSeededSamplingIsReproducible() {
+        GPT2Model model = newModel();
+        List<GenerationRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            GenerationRequest request = new GenerationRequest(new int[]{1, 2}, 10);
+            request.setTemperature(1.5f);
+            request.setTopP(0.9f);
+            request.setSeed(42);
+            requests.add(request);
+        }
+        GenerationRequest topOne = new GenerationRequest(new int[]{1, 2}, 10);
+        topOne.setTemperature(1.5f);
+        topOne.setTopK(1);
+        requests.add(topOne);
+
+        List<int[]> results = model.generate(requests, null);
+        assertArrayEquals(results.get(0), results.get(1));
+        // top-k为1时只能选择概率最大的token，与贪心解码一致
+        assertArrayEquals(naiveGreedy(model, new int[]{1, 2}, 10), results.get(2));
+    }
+
+    @Test
+    public void testTopKAndTopPCandidates() {
+        float[] logits = logitsOf(0.05, 0.5, 0.15, 0.3);
+        int samples = 4000;
+
+        // top-p = 0.7：nucleus为 {1, 3}，概率重新归一化为 0.625 / 0.375
+        TokenSampler nucleus = new TokenSampler(1f, 0, 0.7f, new Random(1));
+        int[] counts = new int[4];
+        for (int i = 0; i < samples; i++) {
+            counts[nucleus.sample(logits, 0, 4)]++;
+        }
+        assertEquals(0, counts[0] + counts[2]);
+        assertEquals(0.625, counts[1] / (double) samples, 0.03);
+
+        // top-k = 3 后再做 top-p = 0.9：累计 0.5 + 0.3 + 0.15 = 0.95 / 0.95，保留全部3个
+        TokenSampler both = new TokenSampler(1f, 3, 0.9f, new Random(2));
+        counts = new int[4];
+        for (int i = 0; i < samples; i++) {
+            counts[both.sample(logits, 0, 4)]++;
+        }
+        assertEquals(0, counts[0]);
+        assertEquals(0.15 / 0.95, counts[2] / (double) samples, 0.03);
+
+        // 不限制候选时按完整分布采样
+        TokenSampler full = new TokenSampler(1f, 0, 1f, new Random(3));
+        counts = new int[4];
+        for (int i = 0; i < samples; i++) {
+            counts[full.sample(logits, 0, 4)]++;
+        }
+        assertEquals(0.05, counts[0] / (double) samples, 0.02);
+        assertEquals(1, new TokenSampler(0f, 0, 1f, new Random()).sample(logits, 0, 4));
+    }
+}
@@ -0,0 +1,154 @@
+package io.leavesfly.tinydl.test.transformer;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.modality.nlp.DecodingSession;
+import io.leavesfly.tinydl.modality.nlp.GPT2Model;
+import io.leavesfly.tinydl.modality.nlp.MoEGPTModel;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.layer.transformer.KVCache;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 键/值缓存增量解码的单元测试，与完整前缀的前向计算对比
+ */
+public class KVCacheTest {
+
+    private static final int VOCAB_SIZE = 20;
+    private static final int MAX_SEQ_LENGTH = 40;
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = false;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    private static GPT2Model newModel() {
+        return new GPT2Model("gpt", VOCAB_SIZE, 8, 2, 2, 16, MAX_SEQ_LENGTH, 0.0);
+    }
+
+    private static NdArray tokens(int[] ids, int from, int to) {
+        NdArray array = new NdArray(new Shape(1, to - from));
+        for (int i = from; i < to; i++) {
+            array.buffer[i - from] = ids[i];
+        }
+        return array;
+    }
+
+    /**
+     * 完整前缀前向计算得到的第position个位置的logits
+     */
+    private static float[] fullLogits(GPT2Model model, int[] ids, int position) {
+        NdArray logits = model.layerForward(new Variable(tokens(ids, 0, ids.length))).getValue();
+        float[] row = new float[VOCAB_SIZE];
+        System.arraycopy(logits.buffer, position * VOCAB_SIZE, row, 0, VOCAB_SIZE);
+        return row;
+    }
+
+    private static float[] row(NdArray logits, int i) {
+        float[] row = new float[VOCAB_SIZE];
+        System.arraycopy(logits.buffer, i * VOCAB_SIZE, row, 0, VOCAB_SIZE);
+        return row;
+    }
+
+    @Test
+    public void testIncrementalDecodingMatchesFullForward() {
+        GPT2Model model = newModel();
+        int[] ids = new int[20];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (i * 7 + 3) % VOCAB_SIZE;
+        }
+        NdArray full = model.layerForward(new Variable(tokens(ids, 0, ids.length))).getValue();
+
+        // 先输入5个token的提示，之后逐个输入，缓存从16扩容到32
+        DecodingSession session = model.newDecodingSession(1, false);
+        NdArray logits = session.feed(tokens(ids, 0, 5));
+        assertArrayEquals(row(full, 4), row(logits, 0), 1e-4f);
+        for (int t = 5; t < ids.length; t++) {
+            logits = session.feed(tokens(ids, t, t + 1));
+            assertArrayEquals(row(full, t), row(logits, 0), 1e-4f);
+        }
+        assertEquals(20, session.length(0));
+        assertEquals(32, session.getCaches().get(0).getCapacity());
+    }
+
+    @Test
+    public void testRowsWithDifferentLengths() {
+        GPT2Model model = newModel();
+        int[] first = {1, 2, 3, 4};
+        int[] second = {5, 6, 7, 8, 9, 10, 11};
+        DecodingSession session = model.newDecodingSession(2, true);
+
+        // 两个样本分别输入不同长度的提示，再一起输入一个token
+        session.feed(new int[]{0}, tokens(first, 0, 3));
+        session.feed(new int[]{1}, tokens(second, 0, 6));
+        NdArray step = new NdArray(new float[]{first[3], second[6]}, new Shape(2, 1));
+        NdArray logits = session.feed(step);
+
+        assertArrayEquals(fullLogits(model, first, 3), row(logits, 0), 1e-4f);
+        assertArrayEquals(fullLogits(model, second, 6), row(logits, 1), 1e-4f);
+        assertEquals(MAX_SEQ_LENGTH, session.getCaches().get(0).getCapacity());
+    }
+
+    @Test
+    public void testResetAndPredictNextToken() {
+        GPT2Model model = newModel();
+        int[] ids = {3, 1, 4, 1, 5, 9};
+        DecodingSession session = model.newDecodingSession(1, false);
+        session.feed(tokens(ids, 0, 6));
+        session.reset();
+        assertEquals(0, session.length(0));
+
+        int expected = model.predictNextToken(tokens(ids, 0, 6));
+        assertEquals(expected, model.predictNextToken(session, tokens(ids, 0, 6)));
+    }
+
+    @Test
+    public void testCacheGrowthAndLimit() {
+        KVCache cache = new KVCache(2, 4, 10, 3);
+        NdArray keys = NdArray.likeRandomN(new Shape(4, 4), 1);
+        cache.append(new int[]{1, 0}, keys, keys);
+        cache.append(new int[]{1}, keys, keys);
+        assertEquals(2, cache.length(0));
+        assertEquals(6, cache.length(1));
+        assertEquals(6, cache.getCapacity());
+        // 扩容后原有内容保持不变
+        assertEquals(keys.buffer[0], cache.getKeys().buffer[cache.rowStart(1) * 4], 0f);
+        assertEquals(keys.buffer[8], cache.getKeys().buffer[cache.rowStart(0) * 4], 0f);
+
+        try {
+            cache.append(new int[]{1}, NdArray.likeRandomN(new Shape(5, 4), 2), NdArray.likeRandomN(new Shape(5, 4), 3));
+            fail("cache should not grow beyond its maximum length");
+        } catch (IllegalStateException e) {
+            assertEquals(6, cache.length(1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSessionExceedsMaxSeqLength() {
+        DecodingSession session = newModel().newDecodingSession(1, false);
+        session.feed(new NdArray(new Shape(1, MAX_SEQ_LENGTH)));
+        session.feed(new NdArray(new Shape(1, 1)));
+    }
+
+    @Test
+    public void testMoEModelSession() {
+        MoEGPTModel model = new MoEGPTModel("moe", VOCAB_SIZE, 8, 1, 2, 2, 1, 16, MAX_SEQ_LENGTH, 0.0, 0.01);
+        DecodingSession session = model.newDecodingSession(2, false);
+        assertEquals(new Shape(2, VOCAB_SIZE), session.feed(new NdArray(new Shape(2, 3))).getShape());
+        assertEquals(new Shape(2, VOCAB_SIZE), session.feed(new NdArray(new Shape(2, 1))).getShape());
+        assertEquals(4, session.length(1));
+    }
+}
@@ -0,0 +1,109 @@
+package io.leavesfly.tinydl.test.transformer;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.layer.transformer.LayerNorm;
+import io.leavesfly.tinydl.test.GradientCheck;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 层归一化的单元测试，与按定义计算的结果及数值梯度对比
+ */
+public class LayerNormTest {
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    private static LayerNorm newLayerNorm(int featureDim) {
+        LayerNorm layerNorm = new LayerNorm("ln", featureDim, 1e-5);
+        layerNorm.getGamma().setValue(NdArray.likeRandomN(new Shape(1, featureDim), 3));
+        layerNorm.getBeta().setValue(NdArray.likeRandomN(new Shape(1, featureDim), 4));
+        return layerNorm;
+    }
+
+    /**
+     * 按定义计算：两次遍历求均值与方差
+     */
+    private static NdArray naiveLayerNorm(NdArray x, NdArray gamma, NdArray beta, double epsilon) {
+        int featureDim = gamma.buffer.length;
+        NdArray y = new NdArray(x.getShape());
+        for (int offset = 0; offset < x.buffer.length; offset += featureDim) {
+            double mean = 0;
+            for (int f = 0; f < featureDim; f++) {
+                mean += x.buffer[offset + f];
+            }
+            mean /= featureDim;
+            double variance = 0;
+            for (int f = 0; f < featureDim; f++) {
+                variance += (x.buffer[offset + f] - mean) * (x.buffer[offset + f] - mean);
+            }
+            variance /= featureDim;
+            for (int f = 0; f < featureDim; f++) {
+                double xHat = (x.buffer[offset + f] - mean) / Math.sqrt(variance + epsilon);
+                y.buffer[offset + f] = (float) (xHat * gamma.buffer[f] + beta.buffer[f]);
+            }
+        }
+        return y;
+    }
+
+    @Test
+    public void testForwardMatchesDefinition() {
+        // 30行，超过一个行块，走并行路径
+        Shape shape = new Shape(3, 10, 8);
+        LayerNorm layerNorm = newLayerNorm(8);
+        NdArray x = NdArray.likeRandomN(shape, 5).mulNum(3f).add(NdArray.ones(shape));
+
+        NdArray expected = naiveLayerNorm(x, layerNorm.getGamma().getValue(), layerNorm.getBeta().getValue(), 1e-5);
+        NdArray actual = layerNorm.layerForward(new Variable(x)).getValue();
+        assertEquals(shape, actual.getShape());
+        assertArrayEquals(expected.buffer, actual.buffer, 1e-4f);
+    }
+
+    @Test
+    public void testTwoDimensionalInput() {
+        LayerNorm layerNorm = newLayerNorm(6);
+        NdArray x = NdArray.likeRandomN(new Shape(4, 6), 6);
+        NdArray expected = naiveLayerNorm(x, layerNorm.getGamma().getValue(), layerNorm.getBeta().getValue(), 1e-5);
+        assertArrayEquals(expected.buffer, layerNorm.forward(x).buffer, 1e-4f);
+    }
+
+    @Test
+    public void testGradients() {
+        Shape shape = new Shape(2, 10, 5);
+        LayerNorm layerNorm = newLayerNorm(5);
+        NdArray xData = NdArray.likeRandomN(shape, 7);
+
+        Variable x = new Variable(xData, "x");
+        Variable y = layerNorm.layerForward(x);
+        NdArray r = NdArray.likeRandomN(shape, 8);
+        y.setGrad(r);
+        y.backwardIterative();
+
+        GradientCheck.check(() -> layerNorm.forward(xData), r, xData.buffer, x.getGrad(), 1e-2f, 2e-2f);
+        GradientCheck.check(() -> layerNorm.forward(xData), r, layerNorm.getGamma().getValue().buffer,
+                layerNorm.getGamma().getGrad(), 1e-2f, 2e-2f);
+        GradientCheck.check(() -> layerNorm.forward(xData), r, layerNorm.getBeta().getValue().buffer,
+                layerNorm.getBeta().getGrad(), 1e-2f, 2e-2f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFeatureDimMismatch() {
+        newLayerNorm(4).forward(NdArray.likeRandomN(new Shape(2, 3, 5), 1));
+    }
+}
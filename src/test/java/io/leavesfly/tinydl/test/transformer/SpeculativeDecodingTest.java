@@ -0,0 +1,119 @@
+package io.leavesfly.tinydl.test.transformer;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.modality.nlp.GPT2Model;
+import io.leavesfly.tinydl.modality.nlp.GenerationRequest;
+import io.leavesfly.tinydl.modality.nlp.SpeculativeDecoder;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * 投机解码的单元测试：贪心解码与目标模型一致，采样时输出分布与目标模型相同
+ */
+public class SpeculativeDecodingTest {
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = false;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    /**
+     * 目标模型对完整序列前向计算，最后一个位置的softmax分布
+     */
+    private static double[] nextDistribution(GPT2Model model, int... ids) {
+        NdArray input = new NdArray(new Shape(1, ids.length));
+        for (int i = 0; i < ids.length; i++) {
+            input.buffer[i] = ids[i];
+        }
+        NdArray logits = model.layerForward(new Variable(input)).getValue();
+        int vocabSize = model.getVocabSize();
+        int offset = (ids.length - 1) * vocabSize;
+        double[] p = new double[vocabSize];
+        double sum = 0;
+        for (int v = 0; v < vocabSize; v++) {
+            p[v] = Math.exp(logits.buffer[offset + v]);
+            sum += p[v];
+        }
+        for (int v = 0; v < vocabSize; v++) {
+            p[v] /= sum;
+        }
+        return p;
+    }
+
+    @Test
+    public void testGreedyMatchesTargetModel() {
+        GPT2Model target = new GPT2Model("target", 20, 16, 2, 2, 32, 40, 0.0);
+        GPT2Model draft = new GPT2Model("draft", 20, 8, 1, 2, 16, 40, 0.0);
+        int[] prompt = {1, 5, 7};
+
+        int[] expected = target.generate(Collections.singletonList(new GenerationRequest(prompt, 15)), null).get(0);
+        SpeculativeDecoder decoder = new SpeculativeDecoder(target, draft, 3);
+        assertArrayEquals(expected, decoder.generate(new GenerationRequest(prompt, 15), null));
+        assertTrue(decoder.getProposedTokens() > 0);
+
+        // 草稿模型与目标模型相同时草稿token几乎全部被接受
+        SpeculativeDecoder self = new SpeculativeDecoder(target, target, 4);
+        assertArrayEquals(expected, self.generate(new GenerationRequest(prompt, 15), null));
+        assertTrue(self.getAcceptanceRate() > 0.9);
+    }
+
+    @Test
+    public void testSamplingDistributionMatchesTarget() {
+        int vocabSize = 4;
+        GPT2Model target = new GPT2Model("target", vocabSize, 8, 1, 2, 16, 16, 0.0);
+        GPT2Model draft = new GPT2Model("draft", vocabSize, 4, 1, 1, 8, 16, 0.0);
+        // 放大输出权重让两个模型的分布明显不同，验证拒绝后的修正
+        NdArray weight = target.getOutputHead().getOutputWeight().getValue();
+        target.getOutputHead().getOutputWeight().setValue(weight.mulNum(20f));
+
+        // 按目标模型计算前两个token的联合分布
+        double[] first = nextDistribution(target, 1, 2);
+        double[][] joint = new double[vocabSize][];
+        for (int a = 0; a < vocabSize; a++) {
+            double[] second = nextDistribution(target, 1, 2, a);
+            joint[a] = new double[vocabSize];
+            for (int b = 0; b < vocabSize; b++) {
+                joint[a][b] = first[a] * second[b];
+            }
+        }
+
+        SpeculativeDecoder decoder = new SpeculativeDecoder(target, draft, 2);
+        int runs = 3000;
+        int[][] counts = new int[vocabSize][vocabSize];
+        for (int r = 0; r < runs; r++) {
+            GenerationRequest request = new GenerationRequest(new int[]{1, 2}, 2);
+            request.setTemperature(1f);
+            request.setSeed(r);
+            int[] tokens = decoder.generate(request, null);
+            counts[tokens[0]][tokens[1]]++;
+        }
+        for (int a = 0; a < vocabSize; a++) {
+            for (int b = 0; b < vocabSize; b++) {
+                assertEquals(joint[a][b], counts[a][b] / (double) runs, 0.03);
+            }
+        }
+        assertTrue(decoder.getAcceptanceRate() < 1.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVocabularyMismatch() {
+        new SpeculativeDecoder(new GPT2Model("target", 10, 8, 1, 2, 16, 16, 0.0),
+                new GPT2Model("draft", 12, 8, 1, 2, 16, 16, 0.0), 2);
+    }
+}
@@ -0,0 +1,142 @@
+package io.leavesfly.tinydl.test.transformer;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.Parameter;
+import io.leavesfly.tinydl.nnet.layer.transformer.MultiHeadAttention;
+import io.leavesfly.tinydl.nnet.layer.transformer.TiledAttention;
+import io.leavesfly.tinydl.test.GradientCheck;
+import io.leavesfly.tinydl.utils.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分块注意力的单元测试，与生成完整分数矩阵的注意力及数值梯度对比
+ */
+public class TiledAttentionTest {
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+    }
+
+    @After
+    public void tearDown() {
+        Config.train = originalTrainMode;
+    }
+
+    /**
+     * 按定义计算：每个 (batch, head) 生成完整的分数矩阵，掩码后做softmax再加权求和
+     */
+    private static NdArray naiveAttention(NdArray q, NdArray k, NdArray v, int batch, int numHeads, boolean causal) {
+        int dModel = q.getShape().getColumn();
+        int queryLen = q.getShape().getRow() / batch;
+        int keyLen = k.getShape().getRow() / batch;
+        int headDim = dModel / numHeads;
+        NdArray out = new NdArray(q.getShape());
+        for (int b = 0; b < batch; b++) {
+            for (int h = 0; h < numHeads; h++) {
+                for (int i = 0; i < queryLen; i++) {
+                    double[] scores = new double[keyLen];
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int j = 0; j < keyLen; j++) {
+                        if (causal && j > i + keyLen - queryLen) {
+                            scores[j] = Double.NEGATIVE_INFINITY;
+                            continue;
+                        }
+                        double s = 0;
+                        for (int d = 0; d < headDim; d++) {
+                            s += q.get(b * queryLen + i, h * headDim + d) * k.get(b * keyLen + j, h * headDim + d);
+                        }
+                        scores[j] = s / Math.sqrt(headDim);
+                        max = Math.max(max, scores[j]);
+                    }
+                    double sum = 0;
+                    for (int j = 0; j < keyLen; j++) {
+                        scores[j] = Math.exp(scores[j] - max);
+                        sum += scores[j];
+                    }
+                    for (int d = 0; d < headDim; d++) {
+                        double acc = 0;
+                        for (int j = 0; j < keyLen; j++) {
+                            acc += scores[j] / sum * v.get(b * keyLen + j, h * headDim + d);
+                        }
+                        out.set((float) acc, b * queryLen + i, h * headDim + d);
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    private static void checkForward(int batch, int numHeads, int queryLen, int keyLen, int dModel, boolean causal) {
+        NdArray q = NdArray.likeRandomN(new Shape(batch * queryLen, dModel), 1);
+        NdArray k = NdArray.likeRandomN(new Shape(batch * keyLen, dModel), 2);
+        NdArray v = NdArray.likeRandomN(new Shape(batch * keyLen, dModel), 3);
+        NdArray expected = naiveAttention(q, k, v, batch, numHeads, causal);
+        NdArray actual = new TiledAttention(batch, numHeads, causal).forward(q, k, v);
+        assertArrayEquals(expected.buffer, actual.buffer, 1e-4f);
+    }
+
+    @Test
+    public void testForwardMatchesFullAttention() {
+        // 70 超过两个块，包含不完整的块
+        checkForward(2, 2, 70, 70, 8, false);
+        checkForward(2, 2, 70, 70, 8, true);
+    }
+
+    @Test
+    public void testCausalMaskAlignsToLastKey() {
+        // 查询少于键时（例如增量解码）最后一个查询可以看到所有键
+        checkForward(1, 2, 3, 45, 4, true);
+        checkForward(2, 1, 5, 9, 4, false);
+    }
+
+    @Test
+    public void testGradients() {
+        int batch = 2, numHeads = 2, len = 40, dModel = 4;
+        boolean[] modes = {false, true};
+        for (boolean causal : modes) {
+            NdArray qData = NdArray.likeRandomN(new Shape(batch * len, dModel), 4);
+            NdArray kData = NdArray.likeRandomN(new Shape(batch * len, dModel), 5);
+            NdArray vData = NdArray.likeRandomN(new Shape(batch * len, dModel), 6);
+            Variable q = new Variable(qData, "q");
+            Variable k = new Variable(kData, "k");
+            Variable v = new Variable(vData, "v");
+            Variable y = new TiledAttention(batch, numHeads, causal).call(q, k, v);
+            NdArray r = NdArray.likeRandomN(y.getValue().getShape(), 7);
+            y.setGrad(r);
+            y.backwardIterative();
+
+            NdArray[] data = {qData, kData, vData};
+            Variable[] vars = {q, k, v};
+            for (int n = 0; n < 3; n++) {
+                GradientCheck.check(() -> new TiledAttention(batch, numHeads, causal).forward(qData, kData, vData),
+                        r, data[n].buffer, vars[n].getGrad(), 1e-2f, 2e-2f);
+            }
+        }
+    }
+
+    @Test
+    public void testMultiHeadAttentionPropagatesGradients() {
+        MultiHeadAttention mha = new MultiHeadAttention("mha", 8, 2, true);
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(2, 5, 8), 8), "x");
+        Variable y = mha.layerForward(x, x, x);
+        assertEquals(new Shape(2, 5, 8), y.getValue().getShape());
+
+        y.setGrad(NdArray.ones(y.getValue().getShape()));
+        y.backwardIterative();
+        assertNotNull(x.getGrad());
+        assertEquals(4, mha.getParams().size());
+        for (Parameter parameter : mha.getParams().values()) {
+            assertNotNull(parameter.getGrad());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.leavesfly.tinydl.test.utils;
+
+import io.leavesfly.tinydl.func.Variable;
+import io.leavesfly.tinydl.ndarr.NdArray;
+import io.leavesfly.tinydl.ndarr.Shape;
+import io.leavesfly.tinydl.nnet.block.MlpBlock;
+import io.leavesfly.tinydl.utils.Config;
+import io.leavesfly.tinydl.utils.Profiler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 算子级性能分析器的单元测试
+ */
+public class ProfilerTest {
+
+    private boolean originalTrainMode;
+
+    @Before
+    public void setUp() {
+        originalTrainMode = Config.train;
+        Config.train = true;
+        Profiler.reset();
+        Profiler.enable();
+    }
+
+    @After
+    public void tearDown() {
+        Profiler.disable();
+        Profiler.reset();
+        Config.train = originalTrainMode;
+    }
+
+    private Profiler.OpStat find(String layer, String op) {
+        for (Profiler.OpStat stat : Profiler.getStats()) {
+            if (stat.getLayer().equals(layer) && stat.getOp().equals(op)) {
+                return stat;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testStatsGroupedByLayerAndOp() {
+        MlpBlock block = new MlpBlock("mlp", 4, Config.ActiveFunc.Sigmoid, 3, 5, 2);
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(4, 3), 1), "x", false);
+        Variable y = new Variable(NdArray.likeRandomN(new Shape(4, 2), 2), "y", false);
+
+        Variable loss = Profiler.layerForward(block, x).meanSquaredError(y);
+        loss.backward();
+
+        Profiler.OpStat hidden = find("layer1", "FusedLinear");
+        assertNotNull(hidden);
+        assertEquals(1, hidden.getForwardCount());
+        assertEquals(1, hidden.getBackwardCount());
+        // 前向2*m*k*n + m*n，反向按前向的两倍估计
+        long forwardFlops = 2 * 4 * 3 * 5 + 4 * 5;
+        assertEquals(3 * forwardFlops, hidden.getFlops());
+        assertEquals("[4,3]x[3,5]x[1,5]->[4,5]", hidden.getShapes().get(0));
+
+        // 不在任何层中的算子归属于"-"
+        Profiler.OpStat mse = find("-", "MeanSE");
+        assertNotNull(mse);
+        assertEquals(1, mse.getBackwardCount());
+
+        List<Profiler.OpStat> stats = Profiler.getStats();
+        for (int i = 1; i < stats.size(); i++) {
+            assertTrue(stats.get(i - 1).getTotalNanos() >= stats.get(i).getTotalNanos());
+        }
+        assertTrue(Profiler.table().contains("layer1"));
+    }
+
+    @Test
+    public void testDisabledProfilerRecordsNothing() {
+        Profiler.disable();
+        Variable x = new Variable(NdArray.likeRandomN(new Shape(2, 2), 1));
+        x.exp().sum().backward();
+        assertTrue(Profiler.getStats().isEmpty());
+    }
+}